@@ -0,0 +1,257 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.strategy.SamplingPolicy;
+import org.openmrs.module.auditlog.strategy.StateCondition;
+
+/**
+ * An immutable snapshot of whether each mapped type is audited either explicitly or implicitly, it
+ * is built by {@link AuditLogHelper} from the audit strategy, exceptions and implicitly audited
+ * types in effect and is replaced as a whole whenever any of them changes. The decision for each
+ * class is memoized on the class itself via a {@link ClassValue}, so after the first call for a
+ * class a check costs a single lookup. It also holds the sampling policies of the audited types
+ * whose creates and updates are sampled, the conditions on the states of the entities of audited
+ * types that only have some of their entities audited and the properties that are audited or
+ * ignored per type.
+ */
+public final class AuditDecisionTable {
+	
+	private final Map<Class<?>, Boolean> decisions;
+	
+	private final Map<Class<?>, SamplingPolicy> samplingPolicies;
+	
+	//Conditions on the states of the entities of audited types that only have some of their entities audited
+	private final Map<Class<?>, StateCondition> stateConditions;
+	
+	//Types mapped to the only properties of theirs and their subclasses that are audited
+	private final Map<Class<?>, Set<String>> auditedProperties;
+	
+	//Types mapped to the properties of theirs and their subclasses that are never audited
+	private final Map<Class<?>, Set<String>> ignoredProperties;
+	
+	private final Predicate<Class<?>> fallback;
+	
+	private final ClassValue<Boolean> lookup = new ClassValue<Boolean>() {
+		
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			Boolean decision = decisions.get(type);
+			return decision != null ? decision : fallback.test(type);
+		}
+	};
+	
+	private final ClassValue<Predicate<String>> propertyFilters = new ClassValue<Predicate<String>>() {
+		
+		@Override
+		protected Predicate<String> computeValue(Class<?> type) {
+			return createPropertyFilter(type);
+		}
+	};
+	
+	/**
+	 * @param decisions the precomputed decisions for the mapped types
+	 * @param fallback used to compute the decision for types that have no precomputed decision e.g.
+	 *            proxy classes, it is called at most once per type
+	 */
+	AuditDecisionTable(Map<Class<?>, Boolean> decisions, Predicate<Class<?>> fallback) {
+		this(decisions, Collections.<Class<?>, SamplingPolicy> emptyMap(), fallback);
+	}
+	
+	/**
+	 * @param decisions the precomputed decisions for the mapped types
+	 * @param samplingPolicies the sampling policies of the audited types whose changes are sampled
+	 * @param fallback used to compute the decision for types that have no precomputed decision e.g.
+	 *            proxy classes, it is called at most once per type
+	 */
+	AuditDecisionTable(Map<Class<?>, Boolean> decisions, Map<Class<?>, SamplingPolicy> samplingPolicies,
+	    Predicate<Class<?>> fallback) {
+		this(decisions, samplingPolicies, Collections.<Class<?>, StateCondition> emptyMap(), Collections
+		        .<Class<?>, Set<String>> emptyMap(), Collections.<Class<?>, Set<String>> emptyMap(), fallback);
+	}
+	
+	/**
+	 * @param decisions the precomputed decisions for the mapped types
+	 * @param samplingPolicies the sampling policies of the audited types whose changes are sampled
+	 * @param stateConditions the conditions on the states of the entities of audited types
+	 * @param auditedProperties types mapped to the only properties of theirs that are audited
+	 * @param ignoredProperties types mapped to the properties of theirs that are never audited
+	 * @param fallback used to compute the decision for types that have no precomputed decision e.g.
+	 *            proxy classes, it is called at most once per type
+	 */
+	AuditDecisionTable(Map<Class<?>, Boolean> decisions, Map<Class<?>, SamplingPolicy> samplingPolicies,
+	    Map<Class<?>, StateCondition> stateConditions, Map<Class<?>, Set<String>> auditedProperties,
+	    Map<Class<?>, Set<String>> ignoredProperties, Predicate<Class<?>> fallback) {
+		this.decisions = Collections.unmodifiableMap(new HashMap<Class<?>, Boolean>(decisions));
+		this.samplingPolicies = Collections.unmodifiableMap(new HashMap<Class<?>, SamplingPolicy>(samplingPolicies));
+		this.stateConditions = Collections.unmodifiableMap(new HashMap<Class<?>, StateCondition>(stateConditions));
+		this.auditedProperties = copyProperties(auditedProperties);
+		this.ignoredProperties = copyProperties(ignoredProperties);
+		this.fallback = fallback;
+	}
+	
+	private static Map<Class<?>, Set<String>> copyProperties(Map<Class<?>, Set<String>> properties) {
+		Map<Class<?>, Set<String>> copy = new HashMap<Class<?>, Set<String>>(properties.size());
+		for (Map.Entry<Class<?>, Set<String>> entry : properties.entrySet()) {
+			copy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<String>(entry.getValue())));
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+	
+	/**
+	 * Checks if the specified type is audited explicitly or implicitly
+	 * 
+	 * @param clazz the type to check
+	 * @return true if the type is audited otherwise false
+	 * @should return the precomputed decision for a mapped type
+	 * @should call the fallback only once for a type without a precomputed decision
+	 */
+	public boolean isAudited(Class<?> clazz) {
+		return lookup.get(clazz);
+	}
+	
+	/**
+	 * Checks if a change to an entity of the specified audited type with the specified state is
+	 * audited under the conditions of the audit strategy
+	 * 
+	 * @param clazz the type of the entity
+	 * @param state the property values of the entity, null if not known
+	 * @return true if the change is audited otherwise false
+	 * @should return true for a type without a condition
+	 * @should evaluate the condition of the type
+	 */
+	public boolean matchesState(Class<?> clazz, Object[] state) {
+		if (stateConditions.isEmpty()) {
+			return true;
+		}
+		StateCondition condition = stateConditions.get(clazz);
+		return condition == null || (state != null && condition.matches(state));
+	}
+	
+	/**
+	 * Checks if the specified change of an audited type should get an audit log under the sampling
+	 * policy of the type, this is meant to be called once per changed object before its changes are
+	 * serialized.
+	 * 
+	 * @param clazz the type of the changed object
+	 * @param action the action performed on the object
+	 * @return true if the change should be audited otherwise false
+	 * @should always audit deletes
+	 * @should audit every change of a type without a sampling policy
+	 * @should apply the sampling policy to creates and updates
+	 */
+	public boolean isSampled(Class<?> clazz, Action action) {
+		if (action == Action.DELETED || samplingPolicies.isEmpty()) {
+			return true;
+		}
+		SamplingPolicy policy = samplingPolicies.get(clazz);
+		return policy == null || policy.sample();
+	}
+	
+	/**
+	 * Checks if changes to the specified property of the specified type are audited, a property is
+	 * audited unless it is ignored for the type or any of its superclasses or the type or any of its
+	 * superclasses has a list of the only audited properties that doesn't include it
+	 * 
+	 * @param clazz the type declaring the property
+	 * @param propertyName the name of the property
+	 * @return true if the property is audited otherwise false
+	 * @should return false for an ignored property of a type or its superclasses
+	 * @should return false for a property missing from the audited properties of a type
+	 * @should return true for a property of a type without any property filters
+	 * @should ignore later changes to the properties the table was built from
+	 */
+	public boolean isPropertyAudited(Class<?> clazz, String propertyName) {
+		return propertyFilters.get(clazz).test(propertyName);
+	}
+	
+	/**
+	 * Gets the filter that decides which properties of the specified type are audited, it is meant
+	 * to be used to compile the audited properties of a type once
+	 * 
+	 * @param clazz the type
+	 * @return the filter
+	 */
+	public Predicate<String> getPropertyFilter(Class<?> clazz) {
+		return propertyFilters.get(clazz);
+	}
+	
+	/**
+	 * @return the sampling policies of the audited types whose changes are sampled
+	 */
+	public Map<Class<?>, SamplingPolicy> getSamplingPolicies() {
+		return samplingPolicies;
+	}
+	
+	/**
+	 * Carries over the counts of the sampling policies of the specified table this one replaces to
+	 * the policies of the same types, each policy gets the counts of a previous one at most once
+	 * since a policy is shared with the subclasses of its type
+	 * 
+	 * @param previous the replaced table
+	 * @should carry over the counts of a shared policy once
+	 */
+	void carryOverSamplingCounts(AuditDecisionTable previous) {
+		Set<SamplingPolicy> carried = Collections.newSetFromMap(new IdentityHashMap<SamplingPolicy, Boolean>());
+		for (Map.Entry<Class<?>, SamplingPolicy> entry : samplingPolicies.entrySet()) {
+			SamplingPolicy old = previous.samplingPolicies.get(entry.getKey());
+			if (old != null && old != entry.getValue() && carried.add(entry.getValue())) {
+				entry.getValue().carryOver(old);
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of types with a precomputed decision
+	 */
+	public int size() {
+		return decisions.size();
+	}
+	
+	private Predicate<String> createPropertyFilter(Class<?> type) {
+		Set<String> audited = null;
+		Set<String> ignored = new HashSet<String>();
+		for (Map.Entry<Class<?>, Set<String>> entry : auditedProperties.entrySet()) {
+			if (entry.getKey().isAssignableFrom(type)) {
+				if (audited == null) {
+					audited = new HashSet<String>(entry.getValue());
+				} else {
+					//Each type in the hierarchy with a list narrows down the audited properties
+					audited.retainAll(entry.getValue());
+				}
+			}
+		}
+		for (Map.Entry<Class<?>, Set<String>> entry : ignoredProperties.entrySet()) {
+			if (entry.getKey().isAssignableFrom(type)) {
+				ignored.addAll(entry.getValue());
+			}
+		}
+		
+		if (audited == null && ignored.isEmpty()) {
+			return propertyName -> true;
+		}
+		final Set<String> auditedNames = audited;
+		return propertyName -> !ignored.contains(propertyName)
+		        && (auditedNames == null || auditedNames.contains(propertyName));
+	}
+}
@@ -1,7 +1,10 @@
 package org.openmrs.module.auditlog;
 
 import org.apache.commons.lang.StringUtils;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Type;
 import org.openmrs.User;
+import org.openmrs.module.auditlog.util.TimeOrderedUuidGenerator;
 
 import javax.persistence.*;
 import java.io.Serializable;
@@ -9,7 +12,6 @@ import java.sql.Blob;
 import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.UUID;
 
 @Entity
 @Table(name = "auditlog_audit_log")
@@ -18,12 +20,14 @@ public class AuditLog implements Serializable {
 	private static final long serialVersionUID = 1L;
 
 	@Id
-	@GeneratedValue
+	@GeneratedValue(generator = "auditLogIdGenerator")
+	@GenericGenerator(name = "auditLogIdGenerator", strategy = "org.openmrs.module.auditlog.api.db.hibernate.AuditLogIdGenerator")
 	@Column(name = "audit_log_id")
 	private Integer auditLogId;
 
 	@Column(name = "uuid", length = 38, nullable = false, unique = true)
-	private String uuid = UUID.randomUUID().toString();
+	@Type(type = "org.openmrs.module.auditlog.api.db.hibernate.AuditLogUuidType")
+	private String uuid = TimeOrderedUuidGenerator.generate().toString();
 
 	@Column(name = "type", length = 512, nullable = false)
 	private String type;
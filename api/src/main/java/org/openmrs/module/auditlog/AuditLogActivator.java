@@ -15,7 +15,16 @@ package org.openmrs.module.auditlog;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.auditlog.api.db.DAOUtils;
+import org.openmrs.module.auditlog.api.db.hibernate.AuditLogIdGenerator;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditLogEventListener;
+import org.openmrs.module.auditlog.trigger.TriggerCaptureManager;
+import org.openmrs.module.auditlog.writer.AsyncAuditLogWriter;
+import org.openmrs.module.auditlog.writer.AuditJournal;
+import org.openmrs.module.auditlog.writer.AuditLoadController;
+import org.openmrs.module.auditlog.writer.AuditLogCoalescer;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
@@ -39,6 +48,14 @@ public class AuditLogActivator extends BaseModuleActivator {
 	 */
 	@Override
 	public void started() {
+		AuditLogIdGenerator.validateIncrementSize(DAOUtils.getSessionFactory());
+		getEventListener().start();
+		getTriggerCaptureManager().installTriggers();
+		getLoadController().start();
+		getSamplingStatistics().start();
+		getJournal().start();
+		getWriter().start();
+		getCoalescer().start();
 		if (log.isInfoEnabled()) {
 			log.info("Started Audit Log Module...");
 		}
@@ -52,6 +69,14 @@ public class AuditLogActivator extends BaseModuleActivator {
 		if (log.isDebugEnabled()) {
 			log.debug("Stopping Audit Log Module...");
 		}
+		//Write the pending coalesced updates and drain the async writer's queue so that no audit
+		//logs are lost on shutdown
+		getCoalescer().stop();
+		getWriter().stop();
+		getJournal().stop();
+		getLoadController().stop();
+		getSamplingStatistics().stop();
+		getEventListener().stop();
 	}
 	
 	/**
@@ -63,4 +88,32 @@ public class AuditLogActivator extends BaseModuleActivator {
 			log.info("Stopped Audit Log Module...");
 		}
 	}
+	
+	private AsyncAuditLogWriter getWriter() {
+		return Context.getRegisteredComponents(AsyncAuditLogWriter.class).get(0);
+	}
+	
+	private AuditJournal getJournal() {
+		return Context.getRegisteredComponents(AuditJournal.class).get(0);
+	}
+	
+	private AuditLogCoalescer getCoalescer() {
+		return Context.getRegisteredComponents(AuditLogCoalescer.class).get(0);
+	}
+	
+	private AuditLoadController getLoadController() {
+		return Context.getRegisteredComponents(AuditLoadController.class).get(0);
+	}
+	
+	private AuditSamplingStatistics getSamplingStatistics() {
+		return Context.getRegisteredComponents(AuditSamplingStatistics.class).get(0);
+	}
+	
+	private AuditLogEventListener getEventListener() {
+		return Context.getRegisteredComponents(AuditLogEventListener.class).get(0);
+	}
+	
+	private TriggerCaptureManager getTriggerCaptureManager() {
+		return Context.getRegisteredComponents(TriggerCaptureManager.class).get(0);
+	}
 }
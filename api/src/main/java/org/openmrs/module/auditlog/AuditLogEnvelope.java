@@ -0,0 +1,129 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Holds the audit logs of a transaction including their child logs packed into a single
+ * compressed payload instead of a row per audit log, it is only used when the
+ * {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_ENVELOPE_STORAGE_ENABLED} global
+ * property is set to true. Each packed object has an {@link AuditLogEnvelopeItem} pointing to its
+ * envelope so its audit logs can be looked up without unpacking every envelope.
+ */
+@Entity
+@Table(name = "auditlog_envelope")
+public class AuditLogEnvelope implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "envelope_id")
+	private Integer envelopeId;
+	
+	@Column(name = "entry_count", nullable = false)
+	private Integer entryCount;
+	
+	//The smallest and largest uuids of the packed audit logs, they are time ordered so an audit log
+	//can be found by its uuid without an index on each of them
+	@Column(name = "first_uuid", length = 38, nullable = false)
+	private String firstUuid;
+	
+	@Column(name = "last_uuid", length = 38, nullable = false)
+	private String lastUuid;
+	
+	//The dates of the earliest and latest packed audit logs
+	@Column(name = "start_date", nullable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date startDate;
+	
+	@Column(name = "end_date", nullable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date endDate;
+	
+	@Lob
+	@Basic(fetch = FetchType.LAZY)
+	@Column(name = "payload", nullable = false)
+	private byte[] payload;
+	
+	public Integer getEnvelopeId() {
+		return envelopeId;
+	}
+	
+	public void setEnvelopeId(Integer envelopeId) {
+		this.envelopeId = envelopeId;
+	}
+	
+	public Integer getEntryCount() {
+		return entryCount;
+	}
+	
+	public void setEntryCount(Integer entryCount) {
+		this.entryCount = entryCount;
+	}
+	
+	public String getFirstUuid() {
+		return firstUuid;
+	}
+	
+	public void setFirstUuid(String firstUuid) {
+		this.firstUuid = firstUuid;
+	}
+	
+	public String getLastUuid() {
+		return lastUuid;
+	}
+	
+	public void setLastUuid(String lastUuid) {
+		this.lastUuid = lastUuid;
+	}
+	
+	public Date getStartDate() {
+		return startDate;
+	}
+	
+	public void setStartDate(Date startDate) {
+		this.startDate = startDate;
+	}
+	
+	public Date getEndDate() {
+		return endDate;
+	}
+	
+	public void setEndDate(Date endDate) {
+		this.endDate = endDate;
+	}
+	
+	public byte[] getPayload() {
+		return payload;
+	}
+	
+	public void setPayload(byte[] payload) {
+		this.payload = payload;
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+
+/**
+ * Points an object whose audit logs are packed in an {@link AuditLogEnvelope} to the envelope, it
+ * is the side index used to look up the audit logs of an object and has a row per distinct object
+ * in an envelope.
+ */
+@Entity
+@Table(name = "auditlog_envelope_item")
+@IdClass(AuditLogEnvelopeItem.class)
+public class AuditLogEnvelopeItem implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@Id
+	@Column(name = "identifier", length = 255, nullable = false)
+	private String identifier;
+	
+	@Id
+	@Column(name = "type", length = 512, nullable = false)
+	private String type;
+	
+	@Id
+	@Column(name = "envelope_id", nullable = false)
+	private Integer envelopeId;
+	
+	public AuditLogEnvelopeItem() {
+	}
+	
+	public AuditLogEnvelopeItem(String type, String identifier, Integer envelopeId) {
+		this.type = type;
+		this.identifier = identifier;
+		this.envelopeId = envelopeId;
+	}
+	
+	public String getIdentifier() {
+		return identifier;
+	}
+	
+	public void setIdentifier(String identifier) {
+		this.identifier = identifier;
+	}
+	
+	public String getType() {
+		return type;
+	}
+	
+	public void setType(String type) {
+		this.type = type;
+	}
+	
+	public Integer getEnvelopeId() {
+		return envelopeId;
+	}
+	
+	public void setEnvelopeId(Integer envelopeId) {
+		this.envelopeId = envelopeId;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof AuditLogEnvelopeItem)) {
+			return false;
+		}
+		AuditLogEnvelopeItem other = (AuditLogEnvelopeItem) obj;
+		return Objects.equals(identifier, other.identifier) && Objects.equals(type, other.type)
+		        && Objects.equals(envelopeId, other.envelopeId);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(identifier, type, envelopeId);
+	}
+}
@@ -14,7 +14,9 @@
 package org.openmrs.module.auditlog;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -38,10 +40,13 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.auditlog.api.db.DAOUtils;
 import org.openmrs.module.auditlog.strategy.AllAuditStrategy;
 import org.openmrs.module.auditlog.strategy.AllExceptAuditStrategy;
+import org.openmrs.module.auditlog.strategy.AuditRule;
 import org.openmrs.module.auditlog.strategy.AuditStrategy;
 import org.openmrs.module.auditlog.strategy.ExceptionBasedAuditStrategy;
 import org.openmrs.module.auditlog.strategy.NoneAuditStrategy;
 import org.openmrs.module.auditlog.strategy.NoneExceptAuditStrategy;
+import org.openmrs.module.auditlog.strategy.SamplingPolicy;
+import org.openmrs.module.auditlog.strategy.StateCondition;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
 import org.openmrs.module.auditlog.util.AuditLogUtil;
 import org.springframework.stereotype.Component;
@@ -55,6 +60,9 @@ public class AuditLogHelper implements GlobalPropertyListener {
 	static {
 		CORE_EXCEPTIONS = new ArrayList<Class<?>>();
 		CORE_EXCEPTIONS.add(AuditLog.class);
+		CORE_EXCEPTIONS.add(BulkAuditSummary.class);
+		CORE_EXCEPTIONS.add(AuditLogEnvelope.class);
+		CORE_EXCEPTIONS.add(AuditLogEnvelopeItem.class);
 	}
 	
 	private static Set<Class<?>> exceptionsTypeCache;
@@ -63,6 +71,18 @@ public class AuditLogHelper implements GlobalPropertyListener {
 	
 	private static Set<Class<?>> implicitlyAuditedTypeCache;
 	
+	private static volatile AuditDecisionTable decisionTableCache;
+	
+	//The last table that was built, unlike the cache it is kept when the configuration changes so
+	//that the counts of the sampling policies can be carried over to the next table
+	private static volatile AuditDecisionTable latestDecisionTable;
+	
+	private static Set<Class<?>> triggerCapturedTypeCache;
+	
+	private static Map<Class<?>, SamplingPolicy> samplingPolicyCache;
+	
+	private static List<AuditRule> auditRuleCache;
+	
 	public AuditStrategy getAuditingStrategy() {
 		if (auditingStrategyCache == null) {
 			String gpValue = Context.getAdministrationService().getGlobalProperty(AuditLogConstants.GP_AUDITING_STRATEGY);
@@ -104,6 +124,50 @@ public class AuditLogHelper implements GlobalPropertyListener {
 		return isAuditedInternal(clazz);
 	}
 	
+	/**
+	 * @return the last decision table that was built or null if none was built yet, unlike
+	 *         {@link #getDecisionTable()} it never builds one
+	 */
+	static AuditDecisionTable getLatestDecisionTable() {
+		return latestDecisionTable;
+	}
+	
+	/**
+	 * Gets the table of audit decisions for all mapped types under the current configuration, the
+	 * table is built on first use and rebuilt after any change to the audit strategy or exceptions.
+	 * 
+	 * @return the decision table
+	 * @should include explicitly and implicitly audited types
+	 * @should return a new table after the exceptions change
+	 */
+	public AuditDecisionTable getDecisionTable() {
+		AuditDecisionTable table = decisionTableCache;
+		if (table == null) {
+			//We need to stop hibernate auto flushing which might happen as we fetch
+			//the GP values, Otherwise if a flush happens, then the interceptor
+			//logic will be called again which will result in an infinite loop/stack overflow
+			SessionFactory sf = DAOUtils.getSessionFactory();
+			Session session = sf.getCurrentSession();
+			FlushMode originalFlushMode = session.getHibernateFlushMode();
+			session.setHibernateFlushMode(FlushMode.MANUAL);
+			try {
+				table = buildDecisionTable();
+			}
+			finally {
+				//reset
+				session.setHibernateFlushMode(originalFlushMode);
+			}
+			AuditDecisionTable previous = latestDecisionTable;
+			if (previous != null) {
+				table.carryOverSamplingCounts(previous);
+			}
+			latestDecisionTable = table;
+			decisionTableCache = table;
+		}
+		
+		return table;
+	}
+	
 	/**
 	 * Checks if the specified type is implicitly audit
 	 * 
@@ -229,13 +293,218 @@ public class AuditLogHelper implements GlobalPropertyListener {
 		return exceptionsTypeCache;
 	}
 	
+	/**
+	 * Gets the types whose changes are captured by DB triggers instead of the interceptor, they are
+	 * specified via the {@link AuditLogConstants#GP_TRIGGER_CAPTURED_TYPES} global property
+	 * 
+	 * @return a set of types including their persistent subclasses
+	 */
+	public Set<Class<?>> getTriggerCapturedTypes() {
+		if (triggerCapturedTypeCache == null) {
+			triggerCapturedTypeCache = getTriggerCapturedTypes(Context.getAdministrationService().getGlobalProperty(
+			    AuditLogConstants.GP_TRIGGER_CAPTURED_TYPES));
+		}
+		
+		return triggerCapturedTypeCache;
+	}
+	
+	/**
+	 * Gets the types whose changes are captured by DB triggers from the specified value of the
+	 * {@link AuditLogConstants#GP_TRIGGER_CAPTURED_TYPES} global property, only root entity types
+	 * are accepted since the triggers are installed on the root table which is shared or joined by
+	 * all the subclasses, other types are ignored with a warning.
+	 * 
+	 * @param gpValue comma separated fully qualified java class names
+	 * @return a set of types including their persistent subclasses
+	 */
+	public Set<Class<?>> getTriggerCapturedTypes(String gpValue) {
+		Set<Class<?>> types = new HashSet<Class<?>>();
+		if (StringUtils.isNotBlank(gpValue)) {
+			for (String classname : StringUtils.split(gpValue, AuditLogConstants.SEPARATOR)) {
+				classname = classname.trim();
+				try {
+					Class<?> type = Context.loadClass(classname);
+					SessionFactoryImplementor sfi = (SessionFactoryImplementor) DAOUtils.getSessionFactory();
+					EntityPersister persister = sfi.getMetamodel().entityPersisters().get(type.getName());
+					if (persister == null) {
+						log.warn("Ignoring " + classname + " in " + AuditLogConstants.GP_TRIGGER_CAPTURED_TYPES
+						        + " since it is not a mapped type");
+						continue;
+					}
+					if (!persister.getEntityName().equals(persister.getRootEntityName())) {
+						log.warn("Ignoring " + classname + " in " + AuditLogConstants.GP_TRIGGER_CAPTURED_TYPES
+						        + " since it is not the root of its hierarchy, specify " + persister.getRootEntityName()
+						        + " instead which includes all its subclasses");
+						continue;
+					}
+					types.add(type);
+					types.addAll(DAOUtils.getPersistentConcreteSubclasses(type));
+				}
+				catch (ClassNotFoundException e) {
+					log.error("Failed to load class:" + classname);
+				}
+			}
+		}
+		
+		return types;
+	}
+	
+	/**
+	 * Gets the sampling policies of the audited types that change too often to audit every create
+	 * and update, they are specified via the {@link AuditLogConstants#GP_SAMPLING_POLICIES} global
+	 * property
+	 * 
+	 * @return a map of types including their persistent subclasses to their sampling policies
+	 */
+	public Map<Class<?>, SamplingPolicy> getSamplingPolicies() {
+		if (samplingPolicyCache == null) {
+			samplingPolicyCache = getSamplingPolicies(Context.getAdministrationService().getGlobalProperty(
+			    AuditLogConstants.GP_SAMPLING_POLICIES));
+		}
+		
+		return samplingPolicyCache;
+	}
+	
+	/**
+	 * Gets the sampling policies from the specified value of the
+	 * {@link AuditLogConstants#GP_SAMPLING_POLICIES} global property, a persistent subclass shares
+	 * the policy of the specified type unless it has its own
+	 * 
+	 * @param gpValue comma separated entries of fully qualified java class names and sampling
+	 *            policies e.g. org.openmrs.Obs:10,org.openmrs.PersonAttribute:100/s
+	 * @return a map of types including their persistent subclasses to their sampling policies
+	 */
+	public Map<Class<?>, SamplingPolicy> getSamplingPolicies(String gpValue) {
+		Map<Class<?>, SamplingPolicy> explicitPolicies = new HashMap<Class<?>, SamplingPolicy>();
+		Map<Class<?>, SamplingPolicy> policies = new HashMap<Class<?>, SamplingPolicy>();
+		if (StringUtils.isNotBlank(gpValue)) {
+			for (String entry : StringUtils.split(gpValue, AuditLogConstants.SEPARATOR)) {
+				String classname = StringUtils.substringBefore(entry, ":").trim();
+				try {
+					Class<?> type = Context.loadClass(classname);
+					SamplingPolicy policy = SamplingPolicy.parse(StringUtils.substringAfter(entry, ":"));
+					explicitPolicies.put(type, policy);
+					for (Class<?> subclass : DAOUtils.getPersistentConcreteSubclasses(type)) {
+						policies.put(subclass, policy);
+					}
+				}
+				catch (ClassNotFoundException e) {
+					log.error("Failed to load class:" + classname);
+				}
+				catch (APIException e) {
+					log.error("Ignoring the sampling policy of " + classname + ": " + e.getMessage());
+				}
+			}
+		}
+		policies.putAll(explicitPolicies);
+		
+		return policies;
+	}
+	
+	/**
+	 * Gets the rules of the {@link org.openmrs.module.auditlog.strategy.RuleBasedAuditStrategy}, they
+	 * are specified via the {@link AuditLogConstants#GP_AUDIT_RULES} global property
+	 * 
+	 * @return the rules
+	 */
+	public List<AuditRule> getAuditRules() {
+		if (auditRuleCache == null) {
+			auditRuleCache = getAuditRules(Context.getAdministrationService().getGlobalProperty(
+			    AuditLogConstants.GP_AUDIT_RULES));
+		}
+		
+		return auditRuleCache;
+	}
+	
+	/**
+	 * Gets the rules of the {@link org.openmrs.module.auditlog.strategy.RuleBasedAuditStrategy} from
+	 * the specified value of the {@link AuditLogConstants#GP_AUDIT_RULES} global property
+	 * 
+	 * @param gpValue comma separated entries of either a fully qualified java class name to audit
+	 *            all entities of the type or a fully qualified java class name followed by a dot, a
+	 *            property name, an equals sign and the values of the property separated by pipes to
+	 *            only audit the entities with any of the values e.g.
+	 *            org.openmrs.Obs.concept=5089|5090,org.openmrs.Encounter
+	 * @return the rules
+	 * @should parse conditional and unconditional rules
+	 */
+	public List<AuditRule> getAuditRules(String gpValue) {
+		List<AuditRule> rules = new ArrayList<AuditRule>();
+		if (StringUtils.isNotBlank(gpValue)) {
+			for (String entry : StringUtils.split(gpValue, AuditLogConstants.SEPARATOR)) {
+				entry = entry.trim();
+				String condition = StringUtils.substringAfter(entry, "=");
+				String target = entry.contains("=") ? StringUtils.substringBefore(entry, "=").trim() : entry;
+				String classname = entry.contains("=") ? StringUtils.substringBeforeLast(target, ".") : target;
+				try {
+					Class<?> type = Context.loadClass(classname);
+					if (entry.contains("=")) {
+						String propertyName = StringUtils.substringAfterLast(target, ".");
+						rules.add(new AuditRule(type, propertyName, Arrays.asList(StringUtils.split(condition, '|'))));
+					} else {
+						rules.add(new AuditRule(type));
+					}
+				}
+				catch (ClassNotFoundException e) {
+					log.error("Failed to load class:" + classname);
+				}
+			}
+		}
+		
+		return rules;
+	}
+	
+	/**
+	 * Gets the property names per type from the specified value of the
+	 * {@link AuditLogConstants#GP_AUDITED_PROPERTIES} or
+	 * {@link AuditLogConstants#GP_IGNORED_PROPERTIES} global property
+	 * 
+	 * @param gpValue comma separated fully qualified java class names followed by a dot and a
+	 *            property name e.g. org.openmrs.Obs.valueComplex
+	 * @return a map of types to their property names
+	 * @should group the property names by type
+	 */
+	public Map<Class<?>, Set<String>> getPropertiesByType(String gpValue) {
+		Map<Class<?>, Set<String>> propertiesByType = new HashMap<Class<?>, Set<String>>();
+		if (StringUtils.isNotBlank(gpValue)) {
+			for (String entry : StringUtils.split(gpValue, AuditLogConstants.SEPARATOR)) {
+				entry = entry.trim();
+				String classname = StringUtils.substringBeforeLast(entry, ".");
+				String propertyName = StringUtils.substringAfterLast(entry, ".");
+				if (StringUtils.isBlank(classname) || StringUtils.isBlank(propertyName)) {
+					log.error("Invalid property:" + entry);
+					continue;
+				}
+				try {
+					Class<?> type = Context.loadClass(classname);
+					Set<String> propertyNames = propertiesByType.get(type);
+					if (propertyNames == null) {
+						propertyNames = new HashSet<String>();
+						propertiesByType.put(type, propertyNames);
+					}
+					propertyNames.add(propertyName);
+				}
+				catch (ClassNotFoundException e) {
+					log.error("Failed to load class:" + classname);
+				}
+			}
+		}
+		
+		return propertiesByType;
+	}
+	
 	/**
 	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
 	 */
 	@Override
 	public boolean supportsPropertyName(String gpName) {
 		return AuditLogConstants.GP_AUDITING_STRATEGY.equals(gpName)
-		        || ExceptionBasedAuditStrategy.GLOBAL_PROPERTY_EXCEPTION.equals(gpName);
+		        || ExceptionBasedAuditStrategy.GLOBAL_PROPERTY_EXCEPTION.equals(gpName)
+		        || AuditLogConstants.GP_TRIGGER_CAPTURED_TYPES.equals(gpName)
+		        || AuditLogConstants.GP_SAMPLING_POLICIES.equals(gpName)
+		        || AuditLogConstants.GP_AUDITED_PROPERTIES.equals(gpName)
+		        || AuditLogConstants.GP_IGNORED_PROPERTIES.equals(gpName)
+		        || AuditLogConstants.GP_AUDIT_RULES.equals(gpName);
 	}
 	
 	/**
@@ -245,6 +514,10 @@ public class AuditLogHelper implements GlobalPropertyListener {
 	public void globalPropertyChanged(GlobalProperty gp) {
 		implicitlyAuditedTypeCache = null;
 		exceptionsTypeCache = null;
+		decisionTableCache = null;
+		triggerCapturedTypeCache = null;
+		samplingPolicyCache = null;
+		auditRuleCache = null;
 		if (AuditLogConstants.GP_AUDITING_STRATEGY.equals(gp.getProperty())) {
 			AuditStrategy oldStrategy = null;
 			if (auditingStrategyCache != null) {
@@ -277,6 +550,10 @@ public class AuditLogHelper implements GlobalPropertyListener {
 	public void globalPropertyDeleted(String gpName) {
 		implicitlyAuditedTypeCache = null;
 		exceptionsTypeCache = null;
+		decisionTableCache = null;
+		triggerCapturedTypeCache = null;
+		samplingPolicyCache = null;
+		auditRuleCache = null;
 		if (AuditLogConstants.GP_AUDITING_STRATEGY.equals(gpName)) {
 			auditingStrategyCache = null;
 			AuditLogUtil.setGlobalProperty(ExceptionBasedAuditStrategy.GLOBAL_PROPERTY_EXCEPTION, "");
@@ -330,6 +607,7 @@ public class AuditLogHelper implements GlobalPropertyListener {
 			//cached above but the GP value didn't get updated in the DB
 			exceptionsTypeCache = null;
 			implicitlyAuditedTypeCache = null;
+			decisionTableCache = null;
 			
 			throw new APIException("Failed to " + ((startAuditing) ? "start" : "stop") + " auditing " + clazzes, e);
 		}
@@ -348,6 +626,67 @@ public class AuditLogHelper implements GlobalPropertyListener {
 		return getAuditingStrategy().isAudited(clazz);
 	}
 	
+	/**
+	 * Computes the decision for every mapped type, types that are not mapped e.g. proxy classes are
+	 * resolved the first time they are looked up
+	 * 
+	 * @return the decision table
+	 */
+	private AuditDecisionTable buildDecisionTable() {
+		Map<Class<?>, Boolean> decisions = new HashMap<Class<?>, Boolean>();
+		Map<Class<?>, SamplingPolicy> samplingPolicies = new HashMap<Class<?>, SamplingPolicy>();
+		Map<Class<?>, StateCondition> stateConditions = new HashMap<Class<?>, StateCondition>();
+		//Changes to these are captured by DB triggers
+		final Set<Class<?>> triggerCapturedTypes = getTriggerCapturedTypes();
+		if (!AuditStrategy.NONE.equals(getAuditingStrategy())) {
+			SessionFactoryImplementor sfi = (SessionFactoryImplementor) DAOUtils.getSessionFactory();
+			for (EntityPersister persister : sfi.getMetamodel().entityPersisters().values()) {
+				Class<?> mappedClass = persister.getMappedClass();
+				if (mappedClass != null) {
+					boolean audited = !triggerCapturedTypes.contains(mappedClass)
+					        && (isAuditedInternal(mappedClass) || isImplicitlyAuditedInternal(mappedClass));
+					decisions.put(mappedClass, audited);
+					SamplingPolicy policy = audited ? getAuditingStrategy().getSamplingPolicy(mappedClass) : null;
+					if (policy != null) {
+						samplingPolicies.put(mappedClass, policy);
+					}
+					StateCondition condition = audited ? getAuditingStrategy().getStateCondition(mappedClass,
+					    persister.getPropertyNames()) : null;
+					if (condition != null) {
+						stateConditions.put(mappedClass, condition);
+					}
+				}
+			}
+		}
+		
+		AdministrationService as = Context.getAdministrationService();
+		Map<Class<?>, Set<String>> auditedProperties = getPropertiesByType(as
+		        .getGlobalProperty(AuditLogConstants.GP_AUDITED_PROPERTIES));
+		Map<Class<?>, Set<String>> ignoredProperties = getPropertiesByType(as
+		        .getGlobalProperty(AuditLogConstants.GP_IGNORED_PROPERTIES));
+		
+		return new AuditDecisionTable(decisions, samplingPolicies, stateConditions, auditedProperties,
+		        ignoredProperties, clazz -> !isTriggerCaptured(clazz, triggerCapturedTypes)
+		                && (isAudited(clazz) || isImplicitlyAudited(clazz)));
+	}
+	
+	/**
+	 * Checks if the specified class is or extends any of the specified trigger captured types, this
+	 * covers classes that are not mapped e.g. proxy classes
+	 * 
+	 * @param clazz the class to check
+	 * @param triggerCapturedTypes the trigger captured types
+	 * @return true if the changes of the class are captured by DB triggers otherwise false
+	 */
+	private static boolean isTriggerCaptured(Class<?> clazz, Set<Class<?>> triggerCapturedTypes) {
+		for (Class<?> type : triggerCapturedTypes) {
+			if (type.isAssignableFrom(clazz)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * @param clazz the class whose association types to add
 	 */
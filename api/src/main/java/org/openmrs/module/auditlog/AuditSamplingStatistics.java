@@ -0,0 +1,131 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.auditlog.strategy.SamplingPolicy;
+import org.springframework.stereotype.Component;
+
+/**
+ * Exposes the numbers of sampled and skipped changes counted by the sampling policies of the
+ * current {@link AuditDecisionTable} via JMX under the {@link #OBJECT_NAME} object name. A policy
+ * applies to the persistent subclasses of its type too, its counts are reported once under the
+ * most general type it applies to.
+ */
+@Component("auditSamplingStatistics")
+public class AuditSamplingStatistics implements AuditSamplingStatisticsMXBean {
+	
+	private static final Log log = LogFactory.getLog(AuditSamplingStatistics.class);
+	
+	public static final String OBJECT_NAME = "org.openmrs.module.auditlog:type=AuditSamplingStatistics";
+	
+	private boolean registered;
+	
+	/**
+	 * Registers the JMX bean
+	 */
+	public synchronized void start() {
+		if (registered) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+			registered = true;
+		}
+		catch (Exception e) {
+			log.warn("Failed to register the audit sampling statistics with JMX", e);
+		}
+	}
+	
+	/**
+	 * Unregisters the JMX bean
+	 */
+	public synchronized void stop() {
+		if (!registered) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+		}
+		catch (Exception e) {
+			log.warn("Failed to unregister the audit sampling statistics from JMX", e);
+		}
+		registered = false;
+	}
+	
+	/**
+	 * @see AuditSamplingStatisticsMXBean#getSampledCounts()
+	 */
+	@Override
+	public Map<String, Long> getSampledCounts() {
+		return getCounts(SamplingPolicy::getSampledCount);
+	}
+	
+	/**
+	 * @see AuditSamplingStatisticsMXBean#getSkippedCounts()
+	 */
+	@Override
+	public Map<String, Long> getSkippedCounts() {
+		return getCounts(SamplingPolicy::getSkippedCount);
+	}
+	
+	private static Map<String, Long> getCounts(ToLongFunction<SamplingPolicy> counter) {
+		AuditDecisionTable table = AuditLogHelper.getLatestDecisionTable();
+		if (table == null) {
+			return Collections.emptyMap();
+		}
+		return getCounts(table.getSamplingPolicies(), counter);
+	}
+	
+	/**
+	 * Gets the counts of the specified policies by the name of the most general type each applies to
+	 * 
+	 * @param policies the sampling policies by type
+	 * @param counter the function returning the count of a policy
+	 * @return the counts by type name
+	 * @should report a policy shared with subclasses once under the most general type
+	 */
+	static Map<String, Long> getCounts(Map<Class<?>, SamplingPolicy> policies, ToLongFunction<SamplingPolicy> counter) {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<Class<?>, SamplingPolicy> entry : policies.entrySet()) {
+			if (!appliesToSuperclass(entry.getKey(), entry.getValue(), policies)) {
+				counts.put(entry.getKey().getName(), counter.applyAsLong(entry.getValue()));
+			}
+		}
+		return counts;
+	}
+	
+	private static boolean appliesToSuperclass(Class<?> type, SamplingPolicy policy, Map<Class<?>, SamplingPolicy> policies) {
+		for (Map.Entry<Class<?>, SamplingPolicy> other : policies.entrySet()) {
+			if (other.getValue() == policy && other.getKey() != type && other.getKey().isAssignableFrom(type)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
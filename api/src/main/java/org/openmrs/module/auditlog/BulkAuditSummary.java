@@ -0,0 +1,229 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.Lob;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.openmrs.User;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.TimeOrderedUuidGenerator;
+
+/**
+ * Summarizes the changes of a single type and action made during a bulk operation, it is recorded
+ * instead of an {@link AuditLog} per changed object, see
+ * {@link org.openmrs.module.auditlog.api.AuditLogService#runInBulkMode(String, Runnable)}
+ */
+@Entity
+@Table(name = "auditlog_bulk_summary")
+public class BulkAuditSummary implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "bulk_summary_id")
+	private Integer bulkSummaryId;
+	
+	@Column(name = "uuid", length = 38, nullable = false, unique = true)
+	private String uuid = TimeOrderedUuidGenerator.generate().toString();
+	
+	@Column(name = "label", length = 255, nullable = false)
+	private String label;
+	
+	@Column(name = "type", length = 512, nullable = false)
+	private String type;
+	
+	@Enumerated(EnumType.STRING)
+	@Column(name = "action", length = 50, nullable = false)
+	private Action action;
+	
+	@Column(name = "item_count", nullable = false)
+	private Integer itemCount;
+	
+	//The identifiers of the changed objects as ranges e.g. 1-100,105,200-300, null if the
+	//identifiers are not integers
+	@Lob
+	@Column(name = "identifier_ranges")
+	private String identifierRanges;
+	
+	//An order independent checksum of the identifiers of the changed objects
+	@Column(name = "checksum", nullable = false)
+	private Long checksum;
+	
+	@ManyToOne
+	@JoinColumn(name = "user_id")
+	private User user;
+	
+	@Column(name = "date_started", nullable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date dateStarted;
+	
+	@Column(name = "date_created", nullable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date dateCreated;
+	
+	@Column(name = "openmrs_version", length = 50, nullable = false)
+	private String openmrsVersion;
+	
+	@Column(name = "module_version", length = 50, nullable = false)
+	private String moduleVersion;
+	
+	public BulkAuditSummary() {
+	}
+	
+	public BulkAuditSummary(String label, String type, Action action, User user, Date dateStarted, Date dateCreated) {
+		this.label = label;
+		this.type = type;
+		this.action = action;
+		this.user = user;
+		this.dateStarted = dateStarted;
+		this.dateCreated = dateCreated;
+	}
+	
+	public Integer getBulkSummaryId() {
+		return bulkSummaryId;
+	}
+	
+	public void setBulkSummaryId(Integer bulkSummaryId) {
+		this.bulkSummaryId = bulkSummaryId;
+	}
+	
+	public String getUuid() {
+		return uuid;
+	}
+	
+	public void setUuid(String uuid) {
+		this.uuid = uuid;
+	}
+	
+	public String getLabel() {
+		return label;
+	}
+	
+	public void setLabel(String label) {
+		this.label = label;
+	}
+	
+	public String getType() {
+		return type;
+	}
+	
+	public void setType(String type) {
+		this.type = type;
+	}
+	
+	public Action getAction() {
+		return action;
+	}
+	
+	public void setAction(Action action) {
+		this.action = action;
+	}
+	
+	public Integer getItemCount() {
+		return itemCount;
+	}
+	
+	public void setItemCount(Integer itemCount) {
+		this.itemCount = itemCount;
+	}
+	
+	public String getIdentifierRanges() {
+		return identifierRanges;
+	}
+	
+	public void setIdentifierRanges(String identifierRanges) {
+		this.identifierRanges = identifierRanges;
+	}
+	
+	public Long getChecksum() {
+		return checksum;
+	}
+	
+	public void setChecksum(Long checksum) {
+		this.checksum = checksum;
+	}
+	
+	public User getUser() {
+		return user;
+	}
+	
+	public void setUser(User user) {
+		this.user = user;
+	}
+	
+	public Date getDateStarted() {
+		return dateStarted;
+	}
+	
+	public void setDateStarted(Date dateStarted) {
+		this.dateStarted = dateStarted;
+	}
+	
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+	
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+	
+	public String getOpenmrsVersion() {
+		return openmrsVersion;
+	}
+	
+	public void setOpenmrsVersion(String openmrsVersion) {
+		this.openmrsVersion = openmrsVersion;
+	}
+	
+	public String getModuleVersion() {
+		return moduleVersion;
+	}
+	
+	public void setModuleVersion(String moduleVersion) {
+		this.moduleVersion = moduleVersion;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		return this == obj
+		        || (obj instanceof BulkAuditSummary && getUuid() != null && ((BulkAuditSummary) obj).getUuid().equals(
+		            this.getUuid()));
+	}
+	
+	@Override
+	public int hashCode() {
+		return (getUuid() != null) ? getUuid().hashCode() : super.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return label + ": " + action + " " + itemCount + " " + type;
+	}
+}
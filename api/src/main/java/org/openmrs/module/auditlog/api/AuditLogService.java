@@ -22,6 +22,7 @@ import org.openmrs.annotation.Authorized;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.BulkAuditSummary;
 import org.openmrs.module.auditlog.strategy.AuditStrategy;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
 
@@ -156,4 +157,30 @@ public interface AuditLogService extends OpenmrsService {
 	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
 	public List<AuditLog> getAuditLogs(Object object, List<Action> actions, Date startDate, Date endDate,
 	                                   boolean excludeChildAuditLogs);
+	
+	/**
+	 * Runs the specified operation with the auditing of individual objects suspended for the
+	 * current thread, instead a {@link BulkAuditSummary} is recorded for each type and action with
+	 * the number of changed objects, their identifiers and a checksum. This is meant for imports
+	 * and data migrations where an audit log per object would slow down the operation.
+	 * 
+	 * @param label describes the operation e.g. the name of the imported concept package
+	 * @param operation the operation to run
+	 * @return the recorded summaries
+	 * @should record summaries instead of audit logs for the changes made by the operation
+	 * @should record no summaries if the operation fails
+	 * @should fail if the label is blank
+	 */
+	@Authorized(AuditLogConstants.PRIV_MANAGE_AUDITLOG)
+	public List<BulkAuditSummary> runInBulkMode(String label, Runnable operation);
+	
+	/**
+	 * Gets the summaries recorded for bulk operations with the specified label
+	 * 
+	 * @param label the label to match against, if null all summaries are returned
+	 * @return a list of summaries ordered by the date they were created
+	 * @should get the summaries with the specified label
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public List<BulkAuditSummary> getBulkAuditSummaries(String label);
 }
@@ -14,11 +14,14 @@
 package org.openmrs.module.auditlog.api.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.BulkAuditSummary;
 import org.openmrs.module.auditlog.api.AuditLogService;
 
 /**
@@ -78,6 +81,46 @@ public interface AuditLogDAO {
 	 */
 	public <T> T save(T object);
 	
+	/**
+	 * Saves the specified audit logs including their child logs as JDBC batched inserts, all of
+	 * them get their ids up front and parents are always inserted before their children so there
+	 * is a single insert per audit log and no follow up updates, the inserts are executed before
+	 * the method returns. When envelope storage is enabled they are packed into a single envelope
+	 * instead.
+	 * 
+	 * @param auditLogs the audit logs to save
+	 * @should save the audit logs and their child logs
+	 * @should issue batched inserts
+	 * @should pack the audit logs into a single envelope if envelope storage is enabled
+	 */
+	public void saveAll(Collection<AuditLog> auditLogs);
+	
+	/**
+	 * Inserts the specified audit logs including their child logs via a stateless session that
+	 * shares the connection of the current session, this way they are part of the current
+	 * transaction but are not held by the session. When envelope storage is enabled they are
+	 * packed into a single envelope instead.
+	 * 
+	 * @param auditLogs the audit logs to insert
+	 * @should insert the audit logs and their child logs
+	 */
+	public void insertAll(Collection<AuditLog> auditLogs);
+	
+	/**
+	 * Gets the uuids among the specified ones that belong to existing audit logs
+	 * 
+	 * @param uuids the uuids to look up
+	 * @return the uuids of the existing audit logs
+	 * @should return the uuids of existing audit logs only
+	 * @should return the uuids of audit logs packed in envelopes
+	 */
+	public Set<String> getExistingUuids(Collection<String> uuids);
+	
+	/**
+	 * @see AuditLogService#getBulkAuditSummaries(String)
+	 */
+	public List<BulkAuditSummary> getBulkAuditSummaries(String label);
+	
 	/**
 	 * @see AuditLogService
 	 */
@@ -101,6 +144,22 @@ public interface AuditLogDAO {
 	 */
 	public boolean storeLastStateOfDeletedItems();
 	
+	/**
+	 * Returns the value of the AuditLogConstants#GP_FLUSH_THRESHOLD global property
+	 * 
+	 * @return the number of changed objects in a transaction at which their audit logs are written
+	 *         after a flush, 0 if they are only written when the transaction completes
+	 */
+	public int getFlushThreshold();
+	
+	/**
+	 * Returns true or false depending on the value of the
+	 * AuditLogConstants#GP_MERGE_NESTED_TRANSACTIONS global property
+	 * 
+	 * @return true if the audit logs of nested transactions are merged otherwise false
+	 */
+	public boolean mergeNestedTransactions();
+	
 	/**
 	 * Returns unique database identifier for the specified persistent object
 	 * 
@@ -0,0 +1,186 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.openmrs.api.APIException;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLogEnvelope;
+import org.openmrs.module.auditlog.AuditLogEnvelopeItem;
+import org.openmrs.module.auditlog.writer.AuditLogRecord;
+
+/**
+ * Packs audit logs into an {@link AuditLogEnvelope} and unpacks them back, the payload is the
+ * number of packed audit logs followed by each of them including its child logs in the form
+ * written by {@link AuditLogRecord#writeTo(java.io.DataOutput)}, all deflated.
+ */
+final class AuditLogEnvelopes {
+	
+	private static final byte FORMAT_VERSION = 1;
+	
+	private AuditLogEnvelopes() {
+	}
+	
+	/**
+	 * Gets the records of the specified audit logs, child logs are only packed along with their
+	 * parents so a child whose parent is not yet saved is replaced by the top most such parent
+	 *
+	 * @param auditLogs the audit logs to pack
+	 * @return the records of the top most audit logs
+	 * @should replace child logs with their parents
+	 */
+	static List<AuditLogRecord> getRecords(Collection<AuditLog> auditLogs) {
+		Set<AuditLog> roots = Collections.newSetFromMap(new IdentityHashMap<AuditLog, Boolean>());
+		List<AuditLogRecord> records = new ArrayList<AuditLogRecord>(auditLogs.size());
+		for (AuditLog auditLog : auditLogs) {
+			AuditLog root = auditLog;
+			while (root.getParentAuditLog() != null && root.getParentAuditLog().getAuditLogId() == null) {
+				root = root.getParentAuditLog();
+			}
+			if (roots.add(root)) {
+				records.add(AuditLogRecord.of(root));
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Packs the specified records into a new envelope
+	 *
+	 * @param records the records to pack
+	 * @return the envelope
+	 * @should pack records that unpack to equal records
+	 */
+	static AuditLogEnvelope pack(List<AuditLogRecord> records) {
+		List<AuditLogRecord> all = flatten(records);
+		AuditLogEnvelope envelope = new AuditLogEnvelope();
+		envelope.setEntryCount(all.size());
+		long startDate = Long.MAX_VALUE;
+		long endDate = Long.MIN_VALUE;
+		String firstUuid = null;
+		String lastUuid = null;
+		for (AuditLogRecord record : all) {
+			startDate = Math.min(startDate, record.getDateCreated());
+			endDate = Math.max(endDate, record.getDateCreated());
+			if (firstUuid == null || record.getUuid().compareTo(firstUuid) < 0) {
+				firstUuid = record.getUuid();
+			}
+			if (lastUuid == null || record.getUuid().compareTo(lastUuid) > 0) {
+				lastUuid = record.getUuid();
+			}
+		}
+		envelope.setStartDate(new Date(startDate));
+		envelope.setEndDate(new Date(endDate));
+		envelope.setFirstUuid(firstUuid);
+		envelope.setLastUuid(lastUuid);
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(records.size());
+			for (AuditLogRecord record : records) {
+				record.writeTo(out);
+			}
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to pack audit logs", e);
+		}
+		finally {
+			deflater.end();
+		}
+		envelope.setPayload(bytes.toByteArray());
+		return envelope;
+	}
+	
+	/**
+	 * Gets the index items of the objects of the specified records and their child records
+	 *
+	 * @param records the packed records
+	 * @param envelopeId the id of the envelope the records are packed in
+	 * @return an item per distinct type and identifier
+	 * @should return an item per distinct object
+	 */
+	static Set<AuditLogEnvelopeItem> getItems(List<AuditLogRecord> records, Integer envelopeId) {
+		Set<AuditLogEnvelopeItem> items = new LinkedHashSet<AuditLogEnvelopeItem>();
+		for (AuditLogRecord record : flatten(records)) {
+			items.add(new AuditLogEnvelopeItem(record.getType(), record.getIdentifier(), envelopeId));
+		}
+		return items;
+	}
+	
+	/**
+	 * Unpacks the records of the specified envelope payload
+	 *
+	 * @param payload the payload of an envelope
+	 * @return the packed records in the order they were packed
+	 */
+	static List<AuditLogRecord> unpack(byte[] payload) {
+		try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload)))) {
+			byte version = in.readByte();
+			if (version != FORMAT_VERSION) {
+				throw new APIException("Unsupported audit log envelope format:" + version);
+			}
+			int count = in.readInt();
+			List<AuditLogRecord> records = new ArrayList<AuditLogRecord>(count);
+			for (int i = 0; i < count; i++) {
+				records.add(AuditLogRecord.readFrom(in));
+			}
+			return records;
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to unpack audit logs", e);
+		}
+	}
+	
+	/**
+	 * @return the specified records and all their child records, each parent before its children
+	 */
+	static List<AuditLogRecord> flatten(List<AuditLogRecord> records) {
+		List<AuditLogRecord> all = new ArrayList<AuditLogRecord>(records.size());
+		for (AuditLogRecord record : records) {
+			all.add(record);
+			all.addAll(flatten(record.getChildRecords()));
+		}
+		return all;
+	}
+	
+	/**
+	 * @return the specified audit logs and all their child logs, each parent before its children
+	 */
+	static List<AuditLog> flattenAuditLogs(List<AuditLog> auditLogs) {
+		List<AuditLog> all = new ArrayList<AuditLog>(auditLogs.size());
+		for (AuditLog auditLog : auditLogs) {
+			all.add(auditLog);
+			all.addAll(flattenAuditLogs(new ArrayList<AuditLog>(auditLog.getChildAuditLogs())));
+		}
+		return all;
+	}
+}
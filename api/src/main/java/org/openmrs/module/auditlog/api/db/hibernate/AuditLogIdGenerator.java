@@ -0,0 +1,192 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.enhanced.DatabaseStructure;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.id.enhanced.StandardOptimizerDescriptor;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.tool.schema.extract.spi.SequenceInformation;
+import org.hibernate.type.Type;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+
+/**
+ * Generates audit log ids from the audit_log_audit_log_id_seq sequence using the pooled optimizer,
+ * each call to the DB reserves a block of ids so that all the audit logs of a transaction get their
+ * ids without extra round trips and their inserts can be batched. On databases without sequence
+ * support hibernate falls back to a table of the same name with a single next_val column.
+ * <p>
+ * The block size is read from the {@link AuditLogConstants#RP_ID_INCREMENT_SIZE} runtime property
+ * and MUST match the increment of the sequence in the DB, otherwise blocks of ids handed out before
+ * and after a change overlap, {@link #validateIncrementSize(SessionFactory)} is called when the
+ * module is started to enforce it.
+ */
+public class AuditLogIdGenerator extends SequenceStyleGenerator {
+	
+	private static final Log log = LogFactory.getLog(AuditLogIdGenerator.class);
+	
+	public static final String SEQUENCE_NAME = "audit_log_audit_log_id_seq";
+	
+	public static final int DEFAULT_INCREMENT_SIZE = 50;
+	
+	//The column of the table backing the generator on databases without sequences that holds the
+	//increment size the ids in the table were handed out with
+	private static final String INCREMENT_SIZE_COLUMN = "increment_size";
+	
+	/**
+	 * @see SequenceStyleGenerator#configure(Type, Properties, ServiceRegistry)
+	 */
+	@Override
+	public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+		params.setProperty(SEQUENCE_PARAM, SEQUENCE_NAME);
+		params.setProperty(INITIAL_PARAM, "1");
+		params.setProperty(INCREMENT_PARAM, String.valueOf(getIncrementSize()));
+		params.setProperty(OPT_PARAM, StandardOptimizerDescriptor.POOLED.getExternalName());
+		super.configure(type, params, serviceRegistry);
+	}
+	
+	/**
+	 * Keeps the ids of audit logs that were assigned up front by the {@link AuditLogTreeWriter}
+	 * 
+	 * @see SequenceStyleGenerator#generate(SharedSessionContractImplementor, Object)
+	 */
+	@Override
+	public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+		if (object instanceof AuditLog && ((AuditLog) object).getAuditLogId() != null) {
+			return ((AuditLog) object).getAuditLogId();
+		}
+		return super.generate(session, object);
+	}
+	
+	/**
+	 * Checks that the configured increment size matches the increment of the sequence in the DB, on
+	 * databases without sequences the increment size is stored in the table backing the generator
+	 * the first time and any other value is refused afterwards.
+	 * 
+	 * @param sessionFactory the session factory
+	 * @throws APIException if the configured increment size doesn't match the one in the DB
+	 */
+	public static void validateIncrementSize(SessionFactory sessionFactory) {
+		SessionFactoryImplementor sfi = (SessionFactoryImplementor) sessionFactory;
+		IdentifierGenerator generator = sfi.getMetamodel().entityPersister(AuditLog.class).getIdentifierGenerator();
+		if (!(generator instanceof SequenceStyleGenerator)) {
+			return;
+		}
+		
+		DatabaseStructure structure = ((SequenceStyleGenerator) generator).getDatabaseStructure();
+		final int incrementSize = structure.getIncrementSize();
+		if (structure.isPhysicalSequence()) {
+			for (SequenceInformation info : sfi.getJdbcServices().getExtractedMetaDataSupport()
+			        .getSequenceInformationList()) {
+				Number dbIncrementSize = info.getIncrementValue();
+				if (SEQUENCE_NAME.equalsIgnoreCase(info.getSequenceName().getSequenceName().getText())
+				        && dbIncrementSize != null && dbIncrementSize.intValue() != incrementSize) {
+					throw new APIException("The " + AuditLogConstants.RP_ID_INCREMENT_SIZE + " runtime property is set to "
+					        + incrementSize + " but the " + SEQUENCE_NAME + " sequence increments by " + dbIncrementSize
+					        + ", run ALTER SEQUENCE " + SEQUENCE_NAME + " INCREMENT BY " + incrementSize);
+				}
+			}
+			return;
+		}
+		
+		Session session = sessionFactory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			try {
+				session.doWork(connection -> validateTableIncrementSize(connection, incrementSize));
+				tx.commit();
+			}
+			catch (RuntimeException e) {
+				tx.rollback();
+				throw e;
+			}
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	/**
+	 * Stores the specified increment size in the table backing the generator if none is stored yet
+	 * otherwise checks that it matches the stored one, the table is initialized if it has no row
+	 * 
+	 * @param connection the connection to use
+	 * @param incrementSize the configured increment size
+	 * @throws APIException if the increment size doesn't match the stored one
+	 */
+	private static void validateTableIncrementSize(Connection connection, int incrementSize) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			Integer stored = null;
+			boolean hasRow = false;
+			try (ResultSet rs = statement.executeQuery("SELECT " + INCREMENT_SIZE_COLUMN + " FROM " + SEQUENCE_NAME)) {
+				if (rs.next()) {
+					hasRow = true;
+					int value = rs.getInt(1);
+					stored = rs.wasNull() ? null : value;
+				}
+			}
+			
+			if (!hasRow) {
+				//The first block of ids handed out starts right after the highest existing id
+				statement.executeUpdate("INSERT INTO " + SEQUENCE_NAME + " (next_val, " + INCREMENT_SIZE_COLUMN
+				        + ") SELECT COALESCE(MAX(audit_log_id), 0) + " + incrementSize + ", " + incrementSize
+				        + " FROM auditlog_audit_log");
+			} else if (stored == null) {
+				statement.executeUpdate("UPDATE " + SEQUENCE_NAME + " SET " + INCREMENT_SIZE_COLUMN + " = " + incrementSize);
+			} else if (stored != incrementSize) {
+				throw new APIException("The " + AuditLogConstants.RP_ID_INCREMENT_SIZE + " runtime property is set to "
+				        + incrementSize + " but the ids in the " + SEQUENCE_NAME + " table were handed out in blocks of "
+				        + stored + ", run UPDATE " + SEQUENCE_NAME + " SET next_val = next_val + " + incrementSize + ", "
+				        + INCREMENT_SIZE_COLUMN + " = " + incrementSize);
+			}
+		}
+	}
+	
+	/**
+	 * @return the configured increment size or the default if none is set
+	 */
+	static int getIncrementSize() {
+		Properties runtimeProperties = Context.getRuntimeProperties();
+		String value = runtimeProperties != null ? runtimeProperties.getProperty(AuditLogConstants.RP_ID_INCREMENT_SIZE)
+		        : null;
+		int incrementSize = NumberUtils.toInt(value, DEFAULT_INCREMENT_SIZE);
+		if (incrementSize < 1) {
+			log.warn("Ignoring invalid value for " + AuditLogConstants.RP_ID_INCREMENT_SIZE + ": " + value);
+			incrementSize = DEFAULT_INCREMENT_SIZE;
+		}
+		
+		return incrementSize;
+	}
+}
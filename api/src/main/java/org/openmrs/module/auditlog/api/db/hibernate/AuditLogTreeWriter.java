@@ -0,0 +1,133 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.openmrs.module.auditlog.AuditLog;
+
+/**
+ * Inserts trees of audit logs in a single pass, the audit logs are put in an order where each
+ * parent comes before its children, all of them get their ids up front and then they are inserted
+ * one after the other as a single run of batched inserts via a stateless session. Since every
+ * parent id is known when its children are inserted, parent_auditlog_id is part of each insert and
+ * there are no follow up updates, and since no ids are fetched in the middle of the inserts nothing
+ * splits the batch.
+ */
+final class AuditLogTreeWriter {
+	
+	private final SessionFactory sessionFactory;
+	
+	private final int jdbcBatchSize;
+	
+	/**
+	 * @param sessionFactory the session factory to open the stateless sessions from
+	 * @param jdbcBatchSize the JDBC batch size to use for the inserts
+	 */
+	AuditLogTreeWriter(SessionFactory sessionFactory, int jdbcBatchSize) {
+		this.sessionFactory = sessionFactory;
+		this.jdbcBatchSize = jdbcBatchSize;
+	}
+	
+	/**
+	 * Inserts the specified audit logs and their child logs over the specified connection, the
+	 * inserts are executed before the method returns
+	 *
+	 * @param connection the connection to use, typically that of the current session so the inserts
+	 *            are part of the current transaction
+	 * @param auditLogs the audit logs to insert
+	 * @should issue exactly one insert per audit log and no updates
+	 */
+	void insert(Connection connection, Collection<AuditLog> auditLogs) {
+		List<AuditLog> ordered = getInsertOrder(auditLogs);
+		if (ordered.isEmpty()) {
+			return;
+		}
+		
+		StatelessSession session = sessionFactory.openStatelessSession(connection);
+		try {
+			session.setJdbcBatchSize(jdbcBatchSize);
+			assignIds((SharedSessionContractImplementor) session, ordered);
+			for (AuditLog auditLog : ordered) {
+				session.insert(auditLog);
+			}
+		}
+		catch (RuntimeException e) {
+			//Otherwise the audit logs would be taken as saved if they are passed in again
+			for (AuditLog auditLog : ordered) {
+				auditLog.setAuditLogId(null);
+			}
+			throw e;
+		}
+		finally {
+			//Closing the session executes any pending batched inserts
+			session.close();
+		}
+	}
+	
+	/**
+	 * Gets the order to insert the specified audit logs and their child logs in, a child whose
+	 * parent is not yet saved brings in the whole tree of the top most such parent
+	 *
+	 * @param auditLogs the audit logs to insert
+	 * @return the audit logs that are not yet saved, each parent before its children
+	 * @should order parents before their children
+	 * @should include each audit log once
+	 * @should skip audit logs that are already saved
+	 */
+	static List<AuditLog> getInsertOrder(Collection<AuditLog> auditLogs) {
+		Set<AuditLog> visited = Collections.newSetFromMap(new IdentityHashMap<AuditLog, Boolean>());
+		List<AuditLog> ordered = new ArrayList<AuditLog>();
+		for (AuditLog auditLog : auditLogs) {
+			AuditLog root = auditLog;
+			while (root.getParentAuditLog() != null && root.getParentAuditLog().getAuditLogId() == null) {
+				root = root.getParentAuditLog();
+			}
+			addTree(root, visited, ordered);
+		}
+		return ordered;
+	}
+	
+	private static void addTree(AuditLog auditLog, Set<AuditLog> visited, List<AuditLog> ordered) {
+		if (!visited.add(auditLog) || auditLog.getAuditLogId() != null) {
+			return;
+		}
+		ordered.add(auditLog);
+		for (AuditLog child : auditLog.getChildAuditLogs()) {
+			addTree(child, visited, ordered);
+		}
+	}
+	
+	/**
+	 * Gets ids for all the audit logs from the {@link AuditLogIdGenerator}, with its pooled
+	 * optimizer this takes at most a call to the DB per block of ids
+	 */
+	private static void assignIds(SharedSessionContractImplementor session, List<AuditLog> auditLogs) {
+		IdentifierGenerator generator = session.getFactory().getMetamodel().entityPersister(AuditLog.class)
+		        .getIdentifierGenerator();
+		for (AuditLog auditLog : auditLogs) {
+			auditLog.setAuditLogId((Integer) generator.generate(session, auditLog));
+		}
+	}
+}
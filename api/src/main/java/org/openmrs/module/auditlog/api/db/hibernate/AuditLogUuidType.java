@@ -0,0 +1,154 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.usertype.UserType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.TimeOrderedUuidGenerator;
+
+/**
+ * Maps the uuid of an audit log which is a string in the object model either to a varchar column or
+ * to a BINARY(16) column when the {@link AuditLogConstants#RP_UUID_STORAGE} runtime property is set
+ * to {@link #BINARY}. The conversion happens when values are bound and read, so queries by string
+ * uuid work the same way in both modes.
+ */
+public class AuditLogUuidType implements UserType {
+	
+	public static final String BINARY = "binary";
+	
+	private final boolean binary;
+	
+	public AuditLogUuidType() {
+		Properties runtimeProperties = Context.getRuntimeProperties();
+		binary = runtimeProperties != null
+		        && BINARY.equalsIgnoreCase(runtimeProperties.getProperty(AuditLogConstants.RP_UUID_STORAGE));
+	}
+	
+	/**
+	 * @see UserType#sqlTypes()
+	 */
+	@Override
+	public int[] sqlTypes() {
+		return new int[] { binary ? Types.BINARY : Types.VARCHAR };
+	}
+	
+	/**
+	 * @see UserType#returnedClass()
+	 */
+	@Override
+	public Class<?> returnedClass() {
+		return String.class;
+	}
+	
+	/**
+	 * @see UserType#nullSafeGet(ResultSet, String[], SharedSessionContractImplementor, Object)
+	 */
+	@Override
+	public Object nullSafeGet(ResultSet rs, String[] names, SharedSessionContractImplementor session, Object owner)
+	    throws SQLException {
+		if (binary) {
+			byte[] bytes = rs.getBytes(names[0]);
+			return bytes == null ? null : TimeOrderedUuidGenerator.fromBytes(bytes).toString();
+		}
+		return rs.getString(names[0]);
+	}
+	
+	/**
+	 * @see UserType#nullSafeSet(PreparedStatement, Object, int, SharedSessionContractImplementor)
+	 */
+	@Override
+	public void nullSafeSet(PreparedStatement st, Object value, int index, SharedSessionContractImplementor session)
+	    throws SQLException {
+		if (value == null) {
+			st.setNull(index, sqlTypes()[0]);
+		} else if (binary) {
+			try {
+				st.setBytes(index, TimeOrderedUuidGenerator.toBytes(UUID.fromString((String) value)));
+			}
+			catch (IllegalArgumentException e) {
+				throw new HibernateException("Invalid audit log uuid: " + value, e);
+			}
+		} else {
+			st.setString(index, (String) value);
+		}
+	}
+	
+	/**
+	 * @see UserType#equals(Object, Object)
+	 */
+	@Override
+	public boolean equals(Object x, Object y) {
+		return Objects.equals(x, y);
+	}
+	
+	/**
+	 * @see UserType#hashCode(Object)
+	 */
+	@Override
+	public int hashCode(Object x) {
+		return Objects.hashCode(x);
+	}
+	
+	/**
+	 * @see UserType#deepCopy(Object)
+	 */
+	@Override
+	public Object deepCopy(Object value) {
+		return value;
+	}
+	
+	/**
+	 * @see UserType#isMutable()
+	 */
+	@Override
+	public boolean isMutable() {
+		return false;
+	}
+	
+	/**
+	 * @see UserType#disassemble(Object)
+	 */
+	@Override
+	public Serializable disassemble(Object value) {
+		return (Serializable) value;
+	}
+	
+	/**
+	 * @see UserType#assemble(Serializable, Object)
+	 */
+	@Override
+	public Object assemble(Serializable cached, Object owner) {
+		return cached;
+	}
+	
+	/**
+	 * @see UserType#replace(Object, Object, Object)
+	 */
+	@Override
+	public Object replace(Object original, Object target, Object owner) {
+		return original;
+	}
+}
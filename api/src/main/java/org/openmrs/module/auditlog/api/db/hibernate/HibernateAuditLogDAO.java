@@ -14,36 +14,76 @@
 package org.openmrs.module.auditlog.api.db.hibernate;
 
 import java.io.Serializable;
+import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
 import org.hibernate.EntityMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.openmrs.GlobalProperty;
 import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogEnvelope;
+import org.openmrs.module.auditlog.AuditLogEnvelopeItem;
+import org.openmrs.module.auditlog.BulkAuditSummary;
 import org.openmrs.module.auditlog.api.db.AuditLogDAO;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
 import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.openmrs.module.auditlog.writer.AuditLogRecord;
 
 public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	//The JDBC batch size used when saving audit logs, applies to the current session only
+	private static final int JDBC_BATCH_SIZE = 50;
+	
+	//The number of envelope payloads fetched per query when unpacking envelopes
+	private static final int PAYLOAD_FETCH_SIZE = 50;
+	
+	//Orders audit logs from the latest to the earliest
+	private static final Comparator<AuditLog> LATEST_FIRST = Comparator.comparing(AuditLog::getDateCreated).reversed();
+	
 	private static Boolean storeLastStateOfDeletedItemsCache;
 	
+	private static Integer flushThresholdCache;
+	
+	private static Boolean mergeNestedTransactionsCache;
+	
+	private static Boolean envelopeStorageEnabledCache;
+	
+	private static Boolean envelopesExistCache;
+	
 	private SessionFactory sessionFactory;
 	
+	private AuditLogTreeWriter treeWriter;
+	
 	/**
 	 * @param sessionFactory the sessionFactory to set
 	 */
@@ -55,18 +95,20 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	 * @see AuditLogDAO#getAuditLogs(java.io.Serializable, java.util.List, java.util.List,
 	 *      java.util.Date, java.util.Date, boolean, Integer, Integer)
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public List<AuditLog> getAuditLogs(Serializable id, List<Class<?>> types, List<Action> actions, Date startDate,
 	                                   Date endDate, boolean excludeChildAuditLogs, Integer start, Integer length) {
 		
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLog.class);
+		List<String> identifiers = null;
 		if (id != null) {
-			criteria.add(Restrictions.eq("identifier", AuditLogUtil.serializeObject(id)));
+			identifiers = Collections.singletonList(AuditLogUtil.serializeObject(id));
+			criteria.add(Restrictions.eq("identifier", identifiers.get(0)));
 		}
 		
+		List<String> classNames = null;
 		if (types != null) {
-			List<String> classNames = types.stream()
+			classNames = types.stream()
 					.map(Class::getName)
 					.collect(Collectors.toList());
 			criteria.add(Restrictions.in("type", classNames));
@@ -83,17 +125,8 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		if (endDate != null) {
 			criteria.add(Restrictions.le("dateCreated", endDate));
 		}
-		if (start != null) {
-			criteria.setFirstResult(start);
-		}
-		if (length != null && length > 0) {
-			criteria.setMaxResults(length);
-		}
 		
-		//Show the latest logs first
-		criteria.addOrder(Order.desc("dateCreated"));
-		
-		return criteria.list();
+		return list(criteria, identifiers, classNames, actions, startDate, endDate, excludeChildAuditLogs, start, length);
 	}
 
 	@Override
@@ -118,16 +151,177 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		if (endDate != null) {
 			criteria.add(Restrictions.le("dateCreated", endDate));
 		}
-		if (start != null) {
-			criteria.setFirstResult(start);
-		}
-		if (length != null && length > 0) {
-			criteria.setMaxResults(length);
-		}
 
+		List<String> typeNames = type != null ? Collections.singletonList(type.getName()) : null;
+		return list(criteria, ids, typeNames, actions, startDate, endDate, excludeChildAuditLogs, start, length);
+	}
+
+	/**
+	 * Lists the audit logs matching the specified criteria along with the matching audit logs
+	 * packed in envelopes, the latest first
+	 */
+	@SuppressWarnings("unchecked")
+	private List<AuditLog> list(Criteria criteria, Collection<String> identifiers, Collection<String> typeNames,
+	                            List<Action> actions, Date startDate, Date endDate, boolean excludeChildAuditLogs,
+	                            Integer start, Integer length) {
+		int first = start != null ? start : 0;
+		Integer needed = length != null && length > 0 ? first + length : null;
+		List<AuditLog> packed = Collections.emptyList();
+		if (hasEnvelopes()) {
+			packed = getPackedAuditLogs(identifiers, typeNames, actions, startDate, endDate, excludeChildAuditLogs,
+			    needed);
+		}
+		
 		//Show the latest logs first
 		criteria.addOrder(Order.desc("dateCreated"));
-
+		if (packed.isEmpty()) {
+			if (start != null) {
+				criteria.setFirstResult(start);
+			}
+			if (needed != null) {
+				criteria.setMaxResults(length);
+			}
+			return criteria.list();
+		}
+		
+		//The page can only be cut out once the rows and the packed audit logs are merged
+		if (needed != null) {
+			criteria.setMaxResults(needed);
+		}
+		List<AuditLog> auditLogs = new ArrayList<AuditLog>(criteria.list());
+		auditLogs.addAll(packed);
+		auditLogs.sort(LATEST_FIRST);
+		int to = needed != null ? Math.min(needed, auditLogs.size()) : auditLogs.size();
+		return new ArrayList<AuditLog>(auditLogs.subList(Math.min(first, to), to));
+	}
+	
+	/**
+	 * Unpacks the audit logs matching the specified criteria from the envelopes, envelopes are
+	 * unpacked from the latest and once the specified number of audit logs is found the rest are
+	 * skipped if all their audit logs are older
+	 * 
+	 * @param needed the number of latest matches needed or null for all
+	 */
+	@SuppressWarnings("unchecked")
+	private List<AuditLog> getPackedAuditLogs(Collection<String> identifiers, Collection<String> typeNames,
+	                                          List<Action> actions, Date startDate, Date endDate,
+	                                          boolean excludeChildAuditLogs, Integer needed) {
+		Session session = sessionFactory.getCurrentSession();
+		Criteria criteria = session.createCriteria(AuditLogEnvelope.class);
+		if (identifiers != null || typeNames != null) {
+			DetachedCriteria items = DetachedCriteria.forClass(AuditLogEnvelopeItem.class);
+			if (identifiers != null) {
+				items.add(Restrictions.in("identifier", identifiers));
+			}
+			if (typeNames != null) {
+				items.add(Restrictions.in("type", typeNames));
+			}
+			items.setProjection(Projections.property("envelopeId"));
+			criteria.add(Subqueries.propertyIn("envelopeId", items));
+		}
+		if (startDate != null) {
+			criteria.add(Restrictions.ge("endDate", startDate));
+		}
+		if (endDate != null) {
+			criteria.add(Restrictions.le("startDate", endDate));
+		}
+		criteria.setProjection(Projections.projectionList().add(Projections.property("envelopeId")).add(
+		    Projections.property("endDate")));
+		criteria.addOrder(Order.desc("endDate"));
+		
+		List<Object[]> rows = criteria.list();
+		List<AuditLog> matches = new ArrayList<AuditLog>();
+		Map<Integer, byte[]> payloads = new HashMap<Integer, byte[]>();
+		for (int i = 0; i < rows.size(); i++) {
+			Object[] row = rows.get(i);
+			if (needed != null && matches.size() >= needed) {
+				matches.sort(LATEST_FIRST);
+				if (((Date) row[1]).before(matches.get(needed - 1).getDateCreated())) {
+					break;
+				}
+			}
+			if (!payloads.containsKey(row[0])) {
+				//Fetch the payloads of the next envelopes in one go
+				payloads.clear();
+				List<Integer> envelopeIds = new ArrayList<Integer>();
+				for (Object[] next : rows.subList(i, Math.min(i + PAYLOAD_FETCH_SIZE, rows.size()))) {
+					envelopeIds.add((Integer) next[0]);
+				}
+				payloads.putAll(getPayloads(envelopeIds));
+			}
+			for (AuditLog auditLog : unpack(payloads.get(row[0]))) {
+				if ((identifiers == null || identifiers.contains(auditLog.getIdentifier()))
+				        && (typeNames == null || typeNames.contains(auditLog.getType()))
+				        && (actions == null || actions.contains(auditLog.getAction()))
+				        && (startDate == null || !auditLog.getDateCreated().before(startDate))
+				        && (endDate == null || !auditLog.getDateCreated().after(endDate))
+				        && (!excludeChildAuditLogs || auditLog.getParentAuditLog() == null)) {
+					matches.add(auditLog);
+				}
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * Unpacks the audit logs of the envelope with the specified payload
+	 * 
+	 * @return all the packed audit logs including the child logs, each linked to its parent
+	 */
+	private List<AuditLog> unpack(byte[] payload) {
+		Session session = sessionFactory.getCurrentSession();
+		List<AuditLog> auditLogs = new ArrayList<AuditLog>();
+		for (AuditLogRecord record : AuditLogEnvelopes.unpack(payload)) {
+			auditLogs.add(record.toAuditLog(session));
+		}
+		return AuditLogEnvelopes.flattenAuditLogs(auditLogs);
+	}
+	
+	/**
+	 * @return the payloads of the envelopes with the specified ids keyed by envelope id
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<Integer, byte[]> getPayloads(List<Integer> envelopeIds) {
+		Map<Integer, byte[]> payloads = new HashMap<Integer, byte[]>();
+		if (envelopeIds.isEmpty()) {
+			return payloads;
+		}
+		
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLogEnvelope.class);
+		criteria.add(Restrictions.in("envelopeId", envelopeIds));
+		criteria.setProjection(Projections.projectionList().add(Projections.property("envelopeId")).add(
+		    Projections.property("payload")));
+		for (Object[] row : (List<Object[]>) criteria.list()) {
+			payloads.put((Integer) row[0], (byte[]) row[1]);
+		}
+		return payloads;
+	}
+	
+	/**
+	 * @return true if audit logs are or were packed in envelopes otherwise false
+	 */
+	private boolean hasEnvelopes() {
+		if (isEnvelopeStorageEnabled()) {
+			return true;
+		}
+		if (envelopesExistCache == null) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLogEnvelope.class);
+			criteria.setProjection(Projections.property("envelopeId"));
+			criteria.setMaxResults(1);
+			envelopesExistCache = criteria.uniqueResult() != null;
+		}
+		return envelopesExistCache;
+	}
+	
+	/**
+	 * @return the ids of the envelopes whose uuid ranges overlap the specified range
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Integer> getEnvelopeIds(String firstUuid, String lastUuid) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLogEnvelope.class);
+		criteria.add(Restrictions.le("firstUuid", lastUuid));
+		criteria.add(Restrictions.ge("lastUuid", firstUuid));
+		criteria.setProjection(Projections.property("envelopeId"));
 		return criteria.list();
 	}
 
@@ -149,6 +343,134 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		return object;
 	}
 	
+	/**
+	 * @see AuditLogDAO#saveAll(java.util.Collection)
+	 */
+	@Override
+	public void saveAll(Collection<AuditLog> auditLogs) {
+		if (auditLogs.isEmpty()) {
+			return;
+		}
+		
+		if (!isEnvelopeStorageEnabled()) {
+			//This is typically called after the session has been flushed for the transaction
+			//completion, the tree writer executes the inserts right away
+			getTreeWriter().insert(getConnection(), auditLogs);
+			return;
+		}
+		
+		Session session = sessionFactory.getCurrentSession();
+		Integer originalBatchSize = session.getJdbcBatchSize();
+		session.setJdbcBatchSize(JDBC_BATCH_SIZE);
+		try {
+			pack(auditLogs, session::save);
+			session.flush();
+		}
+		finally {
+			session.setJdbcBatchSize(originalBatchSize);
+		}
+	}
+	
+	/**
+	 * @see AuditLogDAO#insertAll(java.util.Collection)
+	 */
+	@Override
+	public void insertAll(Collection<AuditLog> auditLogs) {
+		if (auditLogs.isEmpty()) {
+			return;
+		}
+		
+		if (!isEnvelopeStorageEnabled()) {
+			getTreeWriter().insert(getConnection(), auditLogs);
+			return;
+		}
+		
+		StatelessSession session = sessionFactory.openStatelessSession(getConnection());
+		try {
+			session.setJdbcBatchSize(JDBC_BATCH_SIZE);
+			pack(auditLogs, session::insert);
+		}
+		finally {
+			//Closing the session executes any pending batched inserts
+			session.close();
+		}
+	}
+	
+	/**
+	 * @return the connection of the current session
+	 */
+	private Connection getConnection() {
+		return ((SessionImplementor) sessionFactory.getCurrentSession()).connection();
+	}
+	
+	private AuditLogTreeWriter getTreeWriter() {
+		if (treeWriter == null) {
+			treeWriter = new AuditLogTreeWriter(sessionFactory, JDBC_BATCH_SIZE);
+		}
+		return treeWriter;
+	}
+	
+	/**
+	 * @see AuditLogDAO#getExistingUuids(java.util.Collection)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Set<String> getExistingUuids(Collection<String> uuids) {
+		if (uuids.isEmpty()) {
+			return new HashSet<String>();
+		}
+		
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLog.class);
+		criteria.add(Restrictions.in("uuid", uuids));
+		criteria.setProjection(Projections.property("uuid"));
+		Set<String> existing = new HashSet<String>(criteria.list());
+		if (existing.size() == uuids.size() || !hasEnvelopes()) {
+			return existing;
+		}
+		
+		//The rest may be packed in envelopes
+		Set<String> remaining = new HashSet<String>(uuids);
+		remaining.removeAll(existing);
+		String firstUuid = Collections.min(remaining);
+		String lastUuid = Collections.max(remaining);
+		for (byte[] payload : getPayloads(getEnvelopeIds(firstUuid, lastUuid)).values()) {
+			for (AuditLogRecord record : AuditLogEnvelopes.flatten(AuditLogEnvelopes.unpack(payload))) {
+				if (remaining.contains(record.getUuid())) {
+					existing.add(record.getUuid());
+				}
+			}
+		}
+		return existing;
+	}
+	
+	/**
+	 * @see AuditLogDAO#getBulkAuditSummaries(String)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<BulkAuditSummary> getBulkAuditSummaries(String label) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(BulkAuditSummary.class);
+		if (label != null) {
+			criteria.add(Restrictions.eq("label", label));
+		}
+		criteria.addOrder(Order.asc("dateCreated"));
+		criteria.addOrder(Order.asc("bulkSummaryId"));
+		return criteria.list();
+	}
+	
+	/**
+	 * Packs the specified audit logs into a single envelope and inserts it along with its index
+	 * items via the specified inserter
+	 */
+	private static void pack(Collection<AuditLog> auditLogs, Consumer<Object> inserter) {
+		List<AuditLogRecord> records = AuditLogEnvelopes.getRecords(auditLogs);
+		AuditLogEnvelope envelope = AuditLogEnvelopes.pack(records);
+		inserter.accept(envelope);
+		for (AuditLogEnvelopeItem item : AuditLogEnvelopes.getItems(records, envelope.getEnvelopeId())) {
+			inserter.accept(item);
+		}
+	}
+	
 	/**
 	 * @see AuditLogDAO#delete(Object)
 	 */
@@ -193,7 +515,18 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	public <T> T getObjectByUuid(Class<T> clazz, String uuid) {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(clazz);
 		criteria.add(Restrictions.eq("uuid", uuid));
-		return (T) criteria.uniqueResult();
+		T object = (T) criteria.uniqueResult();
+		if (object == null && AuditLog.class.equals(clazz) && hasEnvelopes()) {
+			//It may be packed in an envelope
+			for (byte[] payload : getPayloads(getEnvelopeIds(uuid, uuid)).values()) {
+				for (AuditLog auditLog : unpack(payload)) {
+					if (uuid.equals(auditLog.getUuid())) {
+						return (T) auditLog;
+					}
+				}
+			}
+		}
+		return object;
 	}
 	
 	/**
@@ -209,6 +542,71 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		return storeLastStateOfDeletedItemsCache;
 	}
 	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#getFlushThreshold()
+	 */
+	@Override
+	public int getFlushThreshold() {
+		if (flushThresholdCache == null) {
+			//This is called while flushing so the query should not trigger another flush
+			Session session = sessionFactory.getCurrentSession();
+			FlushMode originalFlushMode = session.getHibernateFlushMode();
+			session.setHibernateFlushMode(FlushMode.MANUAL);
+			try {
+				String gpValue = Context.getAdministrationService().getGlobalProperty(
+				    AuditLogConstants.GP_FLUSH_THRESHOLD);
+				flushThresholdCache = Math.max(NumberUtils.toInt(StringUtils.trim(gpValue), 0), 0);
+			}
+			finally {
+				session.setHibernateFlushMode(originalFlushMode);
+			}
+		}
+		return flushThresholdCache;
+	}
+	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#mergeNestedTransactions()
+	 */
+	@Override
+	public boolean mergeNestedTransactions() {
+		if (mergeNestedTransactionsCache == null) {
+			//This is called while a transaction completes so the query should not trigger a flush
+			Session session = sessionFactory.getCurrentSession();
+			FlushMode originalFlushMode = session.getHibernateFlushMode();
+			session.setHibernateFlushMode(FlushMode.MANUAL);
+			try {
+				String gpValue = Context.getAdministrationService().getGlobalProperty(
+				    AuditLogConstants.GP_MERGE_NESTED_TRANSACTIONS);
+				mergeNestedTransactionsCache = Boolean.valueOf(StringUtils.trim(gpValue));
+			}
+			finally {
+				session.setHibernateFlushMode(originalFlushMode);
+			}
+		}
+		return mergeNestedTransactionsCache;
+	}
+	
+	/**
+	 * @return true if audit logs are packed in envelopes otherwise false
+	 */
+	private boolean isEnvelopeStorageEnabled() {
+		if (envelopeStorageEnabledCache == null) {
+			//This is called while a transaction completes so the query should not trigger a flush
+			Session session = sessionFactory.getCurrentSession();
+			FlushMode originalFlushMode = session.getHibernateFlushMode();
+			session.setHibernateFlushMode(FlushMode.MANUAL);
+			try {
+				String gpValue = Context.getAdministrationService().getGlobalProperty(
+				    AuditLogConstants.GP_ENVELOPE_STORAGE_ENABLED);
+				envelopeStorageEnabledCache = Boolean.valueOf(StringUtils.trim(gpValue));
+			}
+			finally {
+				session.setHibernateFlushMode(originalFlushMode);
+			}
+		}
+		return envelopeStorageEnabledCache;
+	}
+	
 	/**
 	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#getId(Object)
 	 * @return
@@ -225,6 +623,13 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	public void globalPropertyChanged(GlobalProperty gp) {
 		if (AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS.equals(gp.getProperty())) {
 			storeLastStateOfDeletedItemsCache = null;
+		} else if (AuditLogConstants.GP_FLUSH_THRESHOLD.equals(gp.getProperty())) {
+			flushThresholdCache = null;
+		} else if (AuditLogConstants.GP_MERGE_NESTED_TRANSACTIONS.equals(gp.getProperty())) {
+			mergeNestedTransactionsCache = null;
+		} else if (AuditLogConstants.GP_ENVELOPE_STORAGE_ENABLED.equals(gp.getProperty())) {
+			envelopeStorageEnabledCache = null;
+			envelopesExistCache = null;
 		}
 	}
 	
@@ -235,6 +640,13 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	public void globalPropertyDeleted(String gpName) {
 		if (AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS.equals(gpName)) {
 			storeLastStateOfDeletedItemsCache = null;
+		} else if (AuditLogConstants.GP_FLUSH_THRESHOLD.equals(gpName)) {
+			flushThresholdCache = null;
+		} else if (AuditLogConstants.GP_MERGE_NESTED_TRANSACTIONS.equals(gpName)) {
+			mergeNestedTransactionsCache = null;
+		} else if (AuditLogConstants.GP_ENVELOPE_STORAGE_ENABLED.equals(gpName)) {
+			envelopeStorageEnabledCache = null;
+			envelopesExistCache = null;
 		}
 	}
 	
@@ -243,6 +655,9 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	 */
 	@Override
 	public boolean supportsPropertyName(String gpName) {
-		return AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS.equals(gpName);
+		return AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS.equals(gpName)
+		        || AuditLogConstants.GP_FLUSH_THRESHOLD.equals(gpName)
+		        || AuditLogConstants.GP_MERGE_NESTED_TRANSACTIONS.equals(gpName)
+		        || AuditLogConstants.GP_ENVELOPE_STORAGE_ENABLED.equals(gpName);
 	}
 }
@@ -0,0 +1,323 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.CollectionEntry;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.event.service.spi.DuplicationStrategy;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.event.spi.PreCollectionRemoveEvent;
+import org.hibernate.event.spi.PreCollectionRemoveEventListener;
+import org.hibernate.event.spi.PreCollectionUpdateEvent;
+import org.hibernate.event.spi.PreCollectionUpdateEventListener;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * An alternative capture engine to the entity callbacks of {@link HibernateAuditLogInterceptor}
+ * based on hibernate event listeners, it is used when the
+ * {@link AuditLogConstants#GP_CAPTURE_ENGINE} global property is set to {@link #ENGINE_LISTENER}.
+ * Updates are diffed using the dirty property indexes hibernate already computed and the
+ * collections of the session's entities are looked up from the persistence context once before
+ * the transaction completes instead of on every flush. The interceptor still tracks the
+ * transactions and builds the audit logs so both engines produce the same audit logs.
+ *
+ * <pre>
+ * Collection updates and removals are captured in the pre events because hibernate resets the
+ * snapshot of a collection before it fires the post events, and the snapshot is what the
+ * previous items are read from.
+ * </pre>
+ */
+@Component("auditLogEventListener")
+public class AuditLogEventListener implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener,
+        PreCollectionUpdateEventListener, PreCollectionRemoveEventListener, GlobalPropertyListener {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final Log log = LogFactory.getLog(AuditLogEventListener.class);
+	
+	public static final String ENGINE_INTERCEPTOR = "interceptor";
+	
+	public static final String ENGINE_LISTENER = "listener";
+	
+	private static volatile boolean enabled;
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Autowired
+	private HibernateAuditLogInterceptor interceptor;
+	
+	private boolean registered;
+	
+	/**
+	 * @return true if changes are captured by the event listeners otherwise false
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Registers the event listeners with the session factory if the event listener engine is
+	 * selected, otherwise changes are left to the interceptor
+	 */
+	public synchronized void start() {
+		String engine = StringUtils.trim(Context.getAdministrationService().getGlobalProperty(
+		    AuditLogConstants.GP_CAPTURE_ENGINE));
+		boolean useListeners = ENGINE_LISTENER.equalsIgnoreCase(engine);
+		if (useListeners && !registered) {
+			register();
+			registered = true;
+		}
+		enabled = useListeners;
+		
+		if (log.isInfoEnabled()) {
+			log.info("Capturing changes using the " + (useListeners ? ENGINE_LISTENER : ENGINE_INTERCEPTOR) + " engine");
+		}
+	}
+	
+	/**
+	 * Hands capturing back to the interceptor, the listeners stay registered but do nothing
+	 */
+	public synchronized void stop() {
+		enabled = false;
+	}
+	
+	private void register() {
+		EventListenerRegistry registry = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry().getService(
+		    EventListenerRegistry.class);
+		//Replaces the instance registered before the module was restarted since it is a different class
+		registry.addDuplicationStrategy(new DuplicationStrategy() {
+			
+			@Override
+			public boolean areMatch(Object listener, Object original) {
+				return listener.getClass().getName().equals(original.getClass().getName());
+			}
+			
+			@Override
+			public Action getAction() {
+				return Action.REPLACE_ORIGINAL;
+			}
+		});
+		registry.appendListeners(EventType.POST_INSERT, this);
+		registry.appendListeners(EventType.POST_UPDATE, this);
+		registry.appendListeners(EventType.POST_DELETE, this);
+		registry.appendListeners(EventType.PRE_COLLECTION_UPDATE, this);
+		registry.appendListeners(EventType.PRE_COLLECTION_REMOVE, this);
+	}
+	
+	/**
+	 * @see org.hibernate.event.spi.PostInsertEventListener#onPostInsert(org.hibernate.event.spi.PostInsertEvent)
+	 */
+	@Override
+	public void onPostInsert(PostInsertEvent event) {
+		Object entity = event.getEntity();
+		if (enabled && InterceptorUtil.isAudited(entity.getClass())
+		        && InterceptorUtil.matchesState(entity.getClass(), event.getState())) {
+			BulkOperation bulkOperation = BulkOperation.current();
+			if (bulkOperation != null) {
+				bulkOperation.add(entity.getClass(), AuditLog.Action.CREATED, event.getId());
+				return;
+			}
+			
+			AuditTransactionContext context = interceptor.getContext(true);
+			if (context != null && context.isSampled(entity, AuditLog.Action.CREATED)) {
+				context.addInsert(entity);
+				scheduleCollectionIndexing(context, event.getSession());
+			}
+		}
+	}
+	
+	/**
+	 * @see org.hibernate.event.spi.PostUpdateEventListener#onPostUpdate(org.hibernate.event.spi.PostUpdateEvent)
+	 */
+	@Override
+	public void onPostUpdate(PostUpdateEvent event) {
+		Object entity = event.getEntity();
+		if (enabled && InterceptorUtil.isAudited(entity.getClass())) {
+			EntityPersister persister = event.getPersister();
+			interceptor.recordUpdate(entity, event.getId(), event.getState(), event.getOldState(),
+			    persister.getPropertyNames(), persister.getPropertyTypes(), event.getDirtyProperties());
+			scheduleCollectionIndexing(interceptor.getContext(false), event.getSession());
+		}
+	}
+	
+	/**
+	 * @see org.hibernate.event.spi.PostDeleteEventListener#onPostDelete(org.hibernate.event.spi.PostDeleteEvent)
+	 */
+	@Override
+	public void onPostDelete(PostDeleteEvent event) {
+		Object entity = event.getEntity();
+		if (enabled && InterceptorUtil.isAudited(entity.getClass())
+		        && InterceptorUtil.matchesState(entity.getClass(), event.getDeletedState())) {
+			BulkOperation bulkOperation = BulkOperation.current();
+			if (bulkOperation != null) {
+				bulkOperation.add(entity.getClass(), AuditLog.Action.DELETED, event.getId());
+				return;
+			}
+			
+			AuditTransactionContext context = interceptor.getContext(true);
+			if (context != null) {
+				context.addDelete(entity);
+				scheduleCollectionIndexing(context, event.getSession());
+			}
+		}
+	}
+	
+	/**
+	 * @see org.hibernate.event.spi.PreCollectionUpdateEventListener#onPreUpdateCollection(org.hibernate.event.spi.PreCollectionUpdateEvent)
+	 */
+	@Override
+	public void onPreUpdateCollection(PreCollectionUpdateEvent event) {
+		Object owner = event.getAffectedOwnerOrNull();
+		if (enabled && owner != null && BulkOperation.current() == null && InterceptorUtil.isAudited(owner.getClass())) {
+			interceptor.recordCollectionUpdate(event.getCollection());
+			scheduleCollectionIndexing(interceptor.getContext(false), event.getSession());
+		}
+	}
+	
+	/**
+	 * @see org.hibernate.event.spi.PreCollectionRemoveEventListener#onPreRemoveCollection(org.hibernate.event.spi.PreCollectionRemoveEvent)
+	 */
+	@Override
+	public void onPreRemoveCollection(PreCollectionRemoveEvent event) {
+		Object owner = event.getAffectedOwnerOrNull();
+		if (enabled && owner != null && BulkOperation.current() == null && InterceptorUtil.isAudited(owner.getClass())) {
+			//Entity deletions are executed after collection removals so the post delete event for the
+			//owner hasn't fired yet, the owner's entry is already marked as deleted though
+			EntityEntry entry = event.getSession().getPersistenceContext().getEntry(owner);
+			boolean isOwnerDeleted = entry != null
+			        && (entry.getStatus() == Status.DELETED || entry.getStatus() == Status.GONE);
+			interceptor.recordCollectionRemove(event.getCollection(), isOwnerDeleted);
+			scheduleCollectionIndexing(interceptor.getContext(false), event.getSession());
+		}
+	}
+	
+	/**
+	 * @see org.hibernate.event.spi.PostActionEventListener#requiresPostCommitHanding(org.hibernate.persister.entity.EntityPersister)
+	 */
+	@Override
+	public boolean requiresPostCommitHanding(EntityPersister persister) {
+		return false;
+	}
+	
+	/**
+	 * The interceptor looks up the collections of audited entities as they get flushed so that
+	 * changed collection elements can be linked to their owners, instead we look them up once from
+	 * the persistence context before the transaction completes.
+	 */
+	private static void scheduleCollectionIndexing(AuditTransactionContext context, EventSource session) {
+		if (context != null && context.scheduleCollectionIndexing()) {
+			session.getActionQueue().registerProcess(new CollectionIndexer(context));
+		}
+	}
+	
+	private static final class CollectionIndexer implements BeforeTransactionCompletionProcess {
+		
+		private final AuditTransactionContext context;
+		
+		CollectionIndexer(AuditTransactionContext context) {
+			this.context = context;
+		}
+		
+		/**
+		 * @see org.hibernate.action.spi.BeforeTransactionCompletionProcess#doBeforeTransactionCompletion(org.hibernate.engine.spi.SessionImplementor)
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		public void doBeforeTransactionCompletion(SessionImplementor session) {
+			if (context.isEmpty()) {
+				return;
+			}
+			
+			//Copy the entries since checking if a collection is empty can load more collections
+			Map<PersistentCollection, CollectionEntry> entries = session.getPersistenceContext().getCollectionEntries();
+			List<Map.Entry<PersistentCollection, CollectionEntry>> copy = new ArrayList<Map.Entry<PersistentCollection, CollectionEntry>>(
+			        entries.entrySet());
+			for (Map.Entry<PersistentCollection, CollectionEntry> entry : copy) {
+				PersistentCollection coll = entry.getKey();
+				Object owner = coll.getOwner();
+				//For now ignore maps just like the interceptor does
+				if (owner == null || !(coll instanceof Collection) || !InterceptorUtil.isAudited(owner.getClass())) {
+					continue;
+				}
+				String role = coll.getRole();
+				if (role != null
+				        && !InterceptorUtil.isPropertyAudited(owner.getClass(), role.substring(role.lastIndexOf('.') + 1))) {
+					continue;
+				}
+				
+				List<Collection<?>> collections = context.getOrCreateCollections(owner);
+				CollectionPersister persister = entry.getValue().getLoadedPersister();
+				Collection<?> collection = (Collection<?>) coll;
+				if (persister != null && !persister.isManyToMany() && !collection.isEmpty()) {
+					collections.add(collection);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String gpName) {
+		return AuditLogConstants.GP_CAPTURE_ENGINE.equals(gpName);
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty gp) {
+		start();
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String gpName) {
+		start();
+	}
+}
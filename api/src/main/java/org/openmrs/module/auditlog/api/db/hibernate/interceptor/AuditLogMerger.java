@@ -0,0 +1,114 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * Merges the audit logs of nested transactions into those of the enclosing transaction so that
+ * an object changed in several of them ends up with a single audit log, audit logs are matched by
+ * their type and the identifier of the object.
+ */
+final class AuditLogMerger {
+	
+	private AuditLogMerger() {
+	}
+	
+	/**
+	 * Merges the specified audit logs, if an object has an audit log in both lists:
+	 * <ul>
+	 * <li>An update after an insert is dropped since the insert covers it</li>
+	 * <li>An update after another update is merged into it, each property keeps its earliest
+	 * previous value and its latest new value</li>
+	 * <li>A delete after an update replaces the update</li>
+	 * </ul>
+	 * Otherwise both audit logs are kept, the child logs of a dropped audit log are moved to the one
+	 * that is kept.
+	 *
+	 * @param earlier the audit logs of the changes that were made first
+	 * @param later the audit logs of the changes that were made last
+	 * @return the merged audit logs
+	 * @should merge the changes of an object updated in both lists
+	 * @should drop an update for an object inserted in the earlier list
+	 * @should replace an update with a delete for the same object
+	 * @should keep audit logs for different objects
+	 */
+	static List<AuditLog> merge(List<AuditLog> earlier, List<AuditLog> later) {
+		Map<String, AuditLog> logsByKey = new LinkedHashMap<String, AuditLog>();
+		List<AuditLog> unmatched = new ArrayList<AuditLog>();
+		for (AuditLog auditLog : earlier) {
+			if (logsByKey.putIfAbsent(getKey(auditLog), auditLog) != null) {
+				unmatched.add(auditLog);
+			}
+		}
+		
+		for (AuditLog auditLog : later) {
+			String key = getKey(auditLog);
+			AuditLog existing = logsByKey.get(key);
+			if (existing == null) {
+				logsByKey.put(key, auditLog);
+			} else if (auditLog.getAction() == Action.UPDATED && existing.getAction() != Action.DELETED) {
+				if (existing.getAction() == Action.UPDATED) {
+					mergeChanges(existing, auditLog);
+				}
+				moveChildLogs(auditLog, existing);
+			} else if (auditLog.getAction() == Action.DELETED && existing.getAction() == Action.UPDATED) {
+				moveChildLogs(existing, auditLog);
+				logsByKey.put(key, auditLog);
+			} else {
+				unmatched.add(auditLog);
+			}
+		}
+		
+		List<AuditLog> merged = new ArrayList<AuditLog>(logsByKey.values());
+		merged.addAll(unmatched);
+		return merged;
+	}
+	
+	private static String getKey(AuditLog auditLog) {
+		return auditLog.getType() + "#" + auditLog.getIdentifier();
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private static void mergeChanges(AuditLog target, AuditLog source) {
+		Map<String, List> targetChanges = AuditLogUtil.getChangesOfUpdatedItem(target);
+		Map<String, List> sourceChanges = AuditLogUtil.getChangesOfUpdatedItem(source);
+		if (sourceChanges.isEmpty()) {
+			return;
+		}
+		
+		Map<String, Object[]> merged = AuditLogUtil.mergeChanges(targetChanges, sourceChanges);
+		if (merged.isEmpty()) {
+			target.setSerializedData(null);
+		} else {
+			target.setSerializedData(BlobProxy.generateProxy(AuditLogUtil.serializeToJson(merged).getBytes()));
+		}
+	}
+	
+	private static void moveChildLogs(AuditLog from, AuditLog to) {
+		for (AuditLog child : from.getChildAuditLogs()) {
+			child.setParentAuditLog(to);
+			to.getChildAuditLogs().add(child);
+		}
+		from.getChildAuditLogs().clear();
+	}
+}
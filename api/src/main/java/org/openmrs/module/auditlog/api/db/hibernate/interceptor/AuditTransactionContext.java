@@ -0,0 +1,713 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.io.Serializable;
+import java.sql.Blob;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.api.db.DAOUtils;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.openmrs.module.auditlog.writer.AuditLogRecord;
+import org.openmrs.util.OpenmrsConstants;
+
+/**
+ * Holds the changes made to audited entities in a single transaction and builds their audit logs
+ * when the transaction completes. The interceptor creates an instance on the first audited event
+ * in a transaction so transactions that don't touch audited entities never create one, the
+ * collections are also only created when something is added to them. Entities are tracked by
+ * identity since their equals and hashCode methods may be expensive or may change as their
+ * properties get updated.
+ */
+final class AuditTransactionContext {
+	
+	private static final Log log = LogFactory.getLog(AuditTransactionContext.class);
+	
+	private final Transaction transaction;
+	
+	private final Date date = new Date();
+	
+	private Set<Object> inserts;
+	
+	private Set<Object> updates;
+	
+	private Set<Object> deletes;
+	
+	//Entities whose create or update was skipped by the sampling policy of their type
+	private Set<Object> unsampled;
+	
+	//Sampling decisions of entities of sampled types made before the tracked changes were reset,
+	//keyed by the entity type and id so that they outlive the entities after the session is cleared
+	private Map<String, Boolean> samplingDecisions;
+	
+	//Mapping between objects and maps of their changed property names and their changes, the
+	//previous value is the one before the first flush that changed the property since the last reset
+	private Map<Object, Map<String, PropertyChange>> objectChangesMap;
+	
+	//Mapping between entities and lists of their Collections in the current session
+	private Map<Object, List<Collection<?>>> entityCollectionsMap;
+	
+	//Mapping between parent entities and lists of AuditLogs for their collection elements
+	private Map<Object, List<AuditLog>> ownerChildLogsMap;
+	
+	//Mapping between collection elements and their AuditLogs, will use
+	//this to avoid creating logs for collections elements multiple times
+	private Map<Object, AuditLog> childAuditLogMap;
+	
+	//Mapping between parent entities and sets of removed collection elements
+	private Map<Object, Set<Object>> entityRemovedChildrenMap;
+	
+	//Mapping between detached entities being flushed and their states in the DB, loaded in bulk
+	//before the flush since hibernate has no previous state for them
+	private Map<Object, Object[]> detachedStates;
+	
+	//Set once the event listener engine has arranged for the collections of the session's entities
+	//to be indexed before the transaction completes
+	private boolean collectionIndexingScheduled;
+	
+	//Audit logs that are handed over to the async writer once the transaction commits
+	private List<AuditLogRecord> pendingRecords;
+	
+	//Audit logs of updates that are handed over to the coalescer once the transaction commits
+	private List<AuditLogRecord> coalescedRecords;
+	
+	//Audit logs that are appended to the journal once the transaction commits
+	private List<AuditLogRecord> journaledRecords;
+	
+	//Audit logs of committed nested transactions that were merged into this transaction
+	private List<AuditLogRecord> nestedRecords;
+	
+	//Audit logs that are handed over to the enclosing transaction once this transaction commits
+	private List<AuditLogRecord> enclosingRecords;
+	
+	AuditTransactionContext(Transaction transaction) {
+		this.transaction = transaction;
+	}
+	
+	Transaction getTransaction() {
+		return transaction;
+	}
+	
+	Date getDate() {
+		return date;
+	}
+	
+	void addInsert(Object entity) {
+		if (inserts == null) {
+			inserts = InterceptorUtil.newIdentitySet();
+		}
+		inserts.add(entity);
+	}
+	
+	/**
+	 * Marks the specified entity as updated and records the change of the specified property, the
+	 * values are only serialized when the audit logs are built. If the property was already changed
+	 * by an earlier flush in the transaction its original previous value is kept and only the new
+	 * value is replaced.
+	 *
+	 * @param entity the updated entity
+	 * @param propertyName the name of the changed property
+	 * @param newValue the new value
+	 * @param previousValue the previous value
+	 */
+	void addUpdate(Object entity, String propertyName, Object newValue, Object previousValue) {
+		getUpdates().add(entity);
+		getOrCreateChanges(entity).merge(propertyName, new PropertyChange(newValue, previousValue, false),
+		    PropertyChange::update);
+	}
+	
+	/**
+	 * Marks the owner of an updated collection or map as updated and records the property change
+	 *
+	 * @param owner the owner of the collection or map
+	 * @param propertyName the name of the collection or map property
+	 * @param newValue the serialized new items
+	 * @param previousValue the serialized previous items
+	 */
+	void addCollectionUpdate(Object owner, String propertyName, Object newValue, Object previousValue) {
+		getUpdates().add(owner);
+		getOrCreateChanges(owner).merge(propertyName, new PropertyChange(newValue, previousValue, true),
+		    PropertyChange::update);
+	}
+	
+	void addDelete(Object entity) {
+		if (deletes == null) {
+			deletes = InterceptorUtil.newIdentitySet();
+		}
+		deletes.add(entity);
+	}
+	
+	/**
+	 * Checks if the creation or update of the specified entity should be audited under the sampling
+	 * policy of its type, the decision is made once per entity in the transaction so that the later
+	 * changes of a sampled entity are always audited and those of a skipped one never are.
+	 *
+	 * @param entity the created or updated entity
+	 * @param action the action performed on the entity
+	 * @return true if the change should be audited otherwise false
+	 */
+	boolean isSampled(Object entity, Action action) {
+		if (unsampled != null && unsampled.contains(entity)) {
+			return false;
+		}
+		if ((inserts != null && inserts.contains(entity)) || (updates != null && updates.contains(entity))) {
+			return true;
+		}
+		if (samplingDecisions != null && action == Action.UPDATED) {
+			Boolean sampled = samplingDecisions.get(getSamplingKey(entity));
+			if (sampled != null) {
+				if (!sampled) {
+					addUnsampled(entity);
+				}
+				return sampled;
+			}
+		}
+		if (InterceptorUtil.isSampled(entity.getClass(), action)) {
+			return true;
+		}
+		addUnsampled(entity);
+		return false;
+	}
+	
+	private void addUnsampled(Object entity) {
+		if (unsampled == null) {
+			unsampled = InterceptorUtil.newIdentitySet();
+		}
+		unsampled.add(entity);
+	}
+	
+	/**
+	 * Passes each tracked inserted, updated and deleted entity along with its action to the
+	 * specified consumer
+	 *
+	 * @param consumer the consumer
+	 * @should track equal entities separately by identity
+	 */
+	void forEachChange(BiConsumer<Object, Action> consumer) {
+		for (Object insert : getInserts()) {
+			consumer.accept(insert, Action.CREATED);
+		}
+		for (Object update : getUpdates()) {
+			consumer.accept(update, Action.UPDATED);
+		}
+		for (Object delete : getDeletes()) {
+			consumer.accept(delete, Action.DELETED);
+		}
+	}
+	
+	boolean isDeleted(Object entity) {
+		return deletes != null && deletes.contains(entity);
+	}
+	
+	/**
+	 * @param owner the entity to check
+	 * @return true if the collections of the specified entity were already looked up
+	 */
+	boolean hasCollections(Object owner) {
+		return entityCollectionsMap != null && entityCollectionsMap.containsKey(owner);
+	}
+	
+	/**
+	 * @param owner the owner of the collections
+	 * @return the list of tracked collections of the specified entity, creating it if necessary
+	 */
+	List<Collection<?>> getOrCreateCollections(Object owner) {
+		if (entityCollectionsMap == null) {
+			entityCollectionsMap = new IdentityHashMap<Object, List<Collection<?>>>();
+		}
+		List<Collection<?>> collections = entityCollectionsMap.get(owner);
+		if (collections == null) {
+			collections = new ArrayList<Collection<?>>();
+			entityCollectionsMap.put(owner, collections);
+		}
+		return collections;
+	}
+	
+	/**
+	 * Tracks items removed from a collection of the specified owner so that logs can be created for
+	 * them and linked to the owner's log
+	 *
+	 * @param owner the owner of the collection
+	 * @param removedItems the removed items
+	 */
+	void addRemovedChildren(Object owner, Collection<?> removedItems) {
+		if (entityRemovedChildrenMap == null) {
+			entityRemovedChildrenMap = new IdentityHashMap<Object, Set<Object>>();
+		}
+		Set<Object> removed = entityRemovedChildrenMap.get(owner);
+		if (removed == null) {
+			removed = InterceptorUtil.newIdentitySet();
+			entityRemovedChildrenMap.put(owner, removed);
+		}
+		removed.addAll(removedItems);
+	}
+	
+	void setDetachedStates(Map<Object, Object[]> detachedStates) {
+		this.detachedStates = detachedStates;
+	}
+	
+	/**
+	 * @param entity the detached entity
+	 * @return the state in the DB of the specified detached entity as loaded before the current
+	 *         flush or null if it wasn't loaded
+	 */
+	Object[] removeDetachedState(Object entity) {
+		return detachedStates != null ? detachedStates.remove(entity) : null;
+	}
+	
+	void clearDetachedStates() {
+		detachedStates = null;
+	}
+	
+	/**
+	 * Marks the indexing of the collections of the session's entities as scheduled
+	 *
+	 * @return true if it wasn't yet scheduled otherwise false
+	 */
+	boolean scheduleCollectionIndexing() {
+		if (collectionIndexingScheduled) {
+			return false;
+		}
+		collectionIndexingScheduled = true;
+		return true;
+	}
+	
+	/**
+	 * @return true if no entity was inserted, updated or deleted
+	 */
+	boolean isEmpty() {
+		return isEmpty(inserts) && isEmpty(updates) && isEmpty(deletes);
+	}
+	
+	/**
+	 * @return the number of tracked inserted, updated and deleted entities
+	 */
+	int size() {
+		return size(inserts) + size(updates) + size(deletes);
+	}
+	
+	/**
+	 * Discards the tracked changes after their audit logs were emitted so that the entities can be
+	 * garbage collected, the transaction, its date, any pending records and the sampling decisions
+	 * of entities of sampled types are kept
+	 *
+	 * @should release the tracked entities and collections
+	 */
+	void reset() {
+		rememberSamplingDecisions(inserts, true);
+		rememberSamplingDecisions(updates, true);
+		rememberSamplingDecisions(unsampled, false);
+		inserts = null;
+		updates = null;
+		deletes = null;
+		unsampled = null;
+		objectChangesMap = null;
+		entityCollectionsMap = null;
+		ownerChildLogsMap = null;
+		childAuditLogMap = null;
+		entityRemovedChildrenMap = null;
+		detachedStates = null;
+	}
+	
+	private void rememberSamplingDecisions(Set<Object> entities, boolean sampled) {
+		if (entities == null) {
+			return;
+		}
+		for (Object entity : entities) {
+			if (InterceptorUtil.hasSamplingPolicy(entity.getClass())) {
+				if (samplingDecisions == null) {
+					samplingDecisions = new HashMap<String, Boolean>();
+				}
+				samplingDecisions.put(getSamplingKey(entity), sampled);
+			}
+		}
+	}
+	
+	private static String getSamplingKey(Object entity) {
+		return entity.getClass().getName() + "#" + InterceptorUtil.getId(entity);
+	}
+	
+	List<AuditLogRecord> getPendingRecords() {
+		return pendingRecords;
+	}
+	
+	void setPendingRecords(List<AuditLogRecord> pendingRecords) {
+		this.pendingRecords = pendingRecords;
+	}
+	
+	List<AuditLogRecord> getCoalescedRecords() {
+		return coalescedRecords;
+	}
+	
+	void setCoalescedRecords(List<AuditLogRecord> coalescedRecords) {
+		this.coalescedRecords = coalescedRecords;
+	}
+	
+	List<AuditLogRecord> getJournaledRecords() {
+		return journaledRecords;
+	}
+	
+	void setJournaledRecords(List<AuditLogRecord> journaledRecords) {
+		this.journaledRecords = journaledRecords;
+	}
+	
+	/**
+	 * Adds the audit logs of a committed nested transaction, they are written along with the audit
+	 * logs of this transaction
+	 *
+	 * @param records the audit logs to add
+	 */
+	void addNestedRecords(List<AuditLogRecord> records) {
+		if (nestedRecords == null) {
+			nestedRecords = new ArrayList<AuditLogRecord>(records.size());
+		}
+		nestedRecords.addAll(records);
+	}
+	
+	List<AuditLogRecord> getNestedRecords() {
+		return nestedRecords;
+	}
+	
+	List<AuditLogRecord> getEnclosingRecords() {
+		return enclosingRecords;
+	}
+	
+	void setEnclosingRecords(List<AuditLogRecord> enclosingRecords) {
+		this.enclosingRecords = enclosingRecords;
+	}
+	
+	/**
+	 * Creates the audit logs for all the changes in the transaction
+	 *
+	 * @return the created audit logs
+	 */
+	List<AuditLog> buildAuditLogs() {
+		return buildAuditLogs(true);
+	}
+	
+	/**
+	 * Builds the audit logs for the tracked changes
+	 *
+	 * @param includePayload specifies whether the changed property values and the last states of
+	 *            deleted objects should be serialized
+	 * @return the audit logs
+	 */
+	List<AuditLog> buildAuditLogs(boolean includePayload) {
+		//TODO handle daemon or un authenticated operations
+		
+		//If we have any entities in the session that have child collections and there were some updates,
+		//check all collection items to find dirty ones so that we can mark the the owners as dirty too
+		//I.e if a ConceptName/Mapping/Description was edited, mark the the Concept as dirty too
+		Set<Object> inserted = getInserts();
+		Set<Object> updated = getUpdates();
+		Map<Object, List<Object>> ownersByElement = getOwnersByElement();
+		Deque<Object> changed = new ArrayDeque<Object>(inserted);
+		changed.addAll(updated);
+		while (!changed.isEmpty()) {
+			Object obj = changed.poll();
+			List<Object> owners = ownersByElement.get(obj);
+			if (owners == null) {
+				continue;
+			}
+			
+			//We handle the removed collections items below because either way they
+			//are nolonger in the current collection
+			boolean isInsert = inserted.contains(obj);
+			for (Object owner : owners) {
+				if (updated.contains(owner)) {
+					if (log.isDebugEnabled()) {
+						log.debug("There is already an auditlog for owner:" + owner.getClass() + " - "
+						        + InterceptorUtil.getId(owner));
+					}
+				} else if (!inserted.contains(owner)) {
+					//A collection item was updated and no other update had been made on the owner
+					if (log.isDebugEnabled()) {
+						log.debug("Creating log entry for edited owner object with id:" + InterceptorUtil.getId(owner)
+						        + " of type:" + owner.getClass().getName()
+						        + " due to an update for a item in a child collection");
+					}
+					updated.add(owner);
+					//The owner could itself be an item in another owner's collection
+					changed.add(owner);
+				}
+				
+				if (InterceptorUtil.isAudited(obj.getClass())) {
+					addChildLog(owner, obj, isInsert ? Action.CREATED : Action.UPDATED, includePayload);
+				}
+			}
+		}
+		
+		if (entityRemovedChildrenMap != null) {
+			for (Map.Entry<Object, Set<Object>> entry : entityRemovedChildrenMap.entrySet()) {
+				Object removedItemsOwner = entry.getKey();
+				for (Object removed : entry.getValue()) {
+					//TODO add test to ensure that this should fail for collections
+					//that don't have all-delete-orphan cascade
+					if (isDeleted(removed) && InterceptorUtil.isAudited(removed.getClass())) {
+						addChildLog(removedItemsOwner, removed, Action.DELETED, includePayload);
+					}
+				}
+			}
+		}
+		
+		List<AuditLog> logs = new ArrayList<AuditLog>();
+		for (Object insert : inserted) {
+			logs.add(createAuditLogIfNecessary(insert, Action.CREATED, includePayload));
+		}
+		
+		for (Object delete : getDeletes()) {
+			logs.add(createAuditLogIfNecessary(delete, Action.DELETED, includePayload));
+		}
+		
+		for (Object update : updated) {
+			logs.add(createAuditLogIfNecessary(update, Action.UPDATED, includePayload));
+		}
+		
+		return logs;
+	}
+	
+	/**
+	 * Indexes the owners of the tracked collections by the items in the collections, an item can
+	 * have multiple owners if it belongs to collections of different entities
+	 *
+	 * @return a map of collection items to their owners, keyed by identity
+	 * @should index the owners of all collection items in a single pass
+	 */
+	Map<Object, List<Object>> getOwnersByElement() {
+		if (entityCollectionsMap == null) {
+			return Collections.emptyMap();
+		}
+		
+		Map<Object, List<Object>> ownersByElement = new IdentityHashMap<Object, List<Object>>();
+		for (Map.Entry<Object, List<Collection<?>>> entry : entityCollectionsMap.entrySet()) {
+			for (Collection<?> coll : entry.getValue()) {
+				for (Object obj : coll) {
+					if (obj == null) {
+						continue;
+					}
+					//Changed entities are tracked by their actual instances
+					Object element = InterceptorUtil.unproxy(obj);
+					List<Object> owners = ownersByElement.get(element);
+					if (owners == null) {
+						owners = new ArrayList<Object>(1);
+						ownersByElement.put(element, owners);
+					}
+					owners.add(entry.getKey());
+				}
+			}
+		}
+		return ownersByElement;
+	}
+	
+	private void addChildLog(Object owner, Object child, Action action, boolean includePayload) {
+		if (ownerChildLogsMap == null) {
+			ownerChildLogsMap = new IdentityHashMap<Object, List<AuditLog>>();
+			childAuditLogMap = new IdentityHashMap<Object, AuditLog>();
+		}
+		List<AuditLog> childLogs = ownerChildLogsMap.get(owner);
+		if (childLogs == null) {
+			childLogs = new ArrayList<AuditLog>();
+			ownerChildLogsMap.put(owner, childLogs);
+		}
+		
+		AuditLog childLog = instantiateAuditLog(child, action, includePayload);
+		childAuditLogMap.put(child, childLog);
+		childLogs.add(childLog);
+	}
+	
+	/**
+	 * Creates if necessary
+	 *
+	 * @param object the object to create for the AuditLog
+	 * @param action see {@link org.openmrs.module.auditlog.AuditLog.Action}
+	 * @param includePayload specifies whether to serialize the changes or the last state
+	 */
+	private AuditLog createAuditLogIfNecessary(Object object, Action action, boolean includePayload) {
+		//If this is a collection element, we already created a log for it
+		AuditLog auditLog = (childAuditLogMap != null) ? childAuditLogMap.get(object) : null;
+		if (auditLog == null) {
+			auditLog = instantiateAuditLog(object, action, includePayload);
+		}
+		
+		if (ownerChildLogsMap != null && ownerChildLogsMap.containsKey(object)) {
+			for (AuditLog child : ownerChildLogsMap.get(object)) {
+				//The child side owns the relationship, linking it is what gets
+				//parent_auditlog_id written as part of the child's insert
+				child.setParentAuditLog(auditLog);
+				auditLog.getChildAuditLogs().add(child);
+			}
+		}
+		return auditLog;
+	}
+	
+	/**
+	 * Creates a new instance of an {@link org.openmrs.module.auditlog.AuditLog} for the specified
+	 * object and Action
+	 *
+	 * @param object the object to create for the AuditLog
+	 * @param action see {@link org.openmrs.module.auditlog.AuditLog.Action}
+	 * @param includePayload specifies whether to serialize the changes or the last state
+	 * @return the created AuditLog
+	 */
+	private AuditLog instantiateAuditLog(Object object, Action action, boolean includePayload) {
+		Serializable id = InterceptorUtil.getId(object);
+		String serializedId = AuditLogUtil.serializeObject(id);
+		AuditLog auditLog = new AuditLog(object.getClass().getName(), serializedId, action, Context.getAuthenticatedUser(),
+		        date);
+		auditLog.setOpenmrsVersion(OpenmrsConstants.OPENMRS_VERSION_SHORT);
+		auditLog.setModuleVersion(AuditLogConstants.MODULE_VERSION);
+		if (includePayload && (action == Action.UPDATED || action == Action.DELETED)) {
+			SessionFactory sf = DAOUtils.getSessionFactory();
+			if (action == Action.UPDATED) {
+				Map<String, Object[]> propertyValuesMap = getSerializedChanges(object);
+				if (propertyValuesMap != null) {
+					byte[] bytes = AuditLogUtil.serializeToJson(propertyValuesMap).getBytes();
+					Blob blob = sf.getCurrentSession().getLobHelper().createBlob(bytes);
+					auditLog.setSerializedData(blob);
+				}
+			} else if (InterceptorUtil.storeLastStateOfDeletedItems()) {
+				//TODO if one edits and deletes an object in the same API call, the property
+				//value that gets serialized is the new one but actually was never saved
+				//Should we store the value in the DB or the one in the current session?
+				byte[] serializedData = InterceptorUtil.serializePersistentObject(object).getBytes();
+				Blob blob = sf.getCurrentSession().getLobHelper().createBlob(serializedData);
+				auditLog.setSerializedData(blob);
+			}
+		}
+		return auditLog;
+	}
+	
+	private Set<Object> getInserts() {
+		if (inserts == null) {
+			inserts = InterceptorUtil.newIdentitySet();
+		}
+		return inserts;
+	}
+	
+	private Set<Object> getUpdates() {
+		if (updates == null) {
+			updates = InterceptorUtil.newIdentitySet();
+		}
+		return updates;
+	}
+	
+	private Set<Object> getDeletes() {
+		if (deletes == null) {
+			deletes = InterceptorUtil.newIdentitySet();
+		}
+		return deletes;
+	}
+	
+	private Map<String, PropertyChange> getOrCreateChanges(Object entity) {
+		if (objectChangesMap == null) {
+			objectChangesMap = new IdentityHashMap<Object, Map<String, PropertyChange>>();
+		}
+		Map<String, PropertyChange> propertyChanges = objectChangesMap.get(entity);
+		if (propertyChanges == null) {
+			propertyChanges = new HashMap<String, PropertyChange>();
+			objectChangesMap.put(entity, propertyChanges);
+		}
+		return propertyChanges;
+	}
+	
+	/**
+	 * Serializes the changes of the specified entity, properties whose final values are the same
+	 * as their original values are left out since they were changed back within the transaction
+	 *
+	 * @param entity the updated entity
+	 * @return a map of property names to arrays of the new and previous values or null if there are
+	 *         no changes
+	 */
+	private Map<String, Object[]> getSerializedChanges(Object entity) {
+		Map<String, PropertyChange> propertyChanges = (objectChangesMap != null) ? objectChangesMap.get(entity) : null;
+		if (propertyChanges == null) {
+			return null;
+		}
+		
+		Map<String, Object[]> serializedChanges = new HashMap<String, Object[]>(propertyChanges.size() * 2);
+		for (Map.Entry<String, PropertyChange> entry : propertyChanges.entrySet()) {
+			Object[] values = entry.getValue().serialize();
+			if (!ObjectUtils.equals(values[0], values[1])) {
+				serializedChanges.put(entry.getKey(), values);
+			}
+		}
+		return serializedChanges.isEmpty() ? null : serializedChanges;
+	}
+	
+	private static boolean isEmpty(Set<Object> set) {
+		return set == null || set.isEmpty();
+	}
+	
+	private static int size(Set<Object> set) {
+		return set == null ? 0 : set.size();
+	}
+	
+	/**
+	 * The change of a single property across all the flushes in a transaction
+	 */
+	private static final class PropertyChange {
+		
+		private Object newValue;
+		
+		private final Object previousValue;
+		
+		//Collection and map items are already serialized when the change is recorded
+		private final boolean serialized;
+		
+		PropertyChange(Object newValue, Object previousValue, boolean serialized) {
+			this.newValue = newValue;
+			this.previousValue = previousValue;
+			this.serialized = serialized;
+		}
+		
+		/**
+		 * Merges a later change of the same property into this one, the original previous value is
+		 * kept
+		 */
+		PropertyChange update(PropertyChange later) {
+			newValue = later.newValue;
+			return this;
+		}
+		
+		/**
+		 * @return an array of the new and previous values
+		 */
+		Object[] serialize() {
+			if (serialized) {
+				return new Object[] { newValue, previousValue };
+			}
+			return new String[] { AuditLogUtil.serializeObject(newValue), AuditLogUtil.serializeObject(previousValue) };
+		}
+	}
+}
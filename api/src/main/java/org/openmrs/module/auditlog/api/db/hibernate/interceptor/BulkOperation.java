@@ -0,0 +1,219 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.openmrs.User;
+import org.openmrs.api.APIException;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.BulkAuditSummary;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.util.OpenmrsConstants;
+
+/**
+ * Tracks a bulk operation running on the current thread, while it is in progress the interceptor
+ * and the event listeners don't create audit logs for the changed objects, instead they count them
+ * per type and action along with their identifiers so that a {@link BulkAuditSummary} can be
+ * recorded for each type and action once the operation ends.
+ */
+public final class BulkOperation {
+	
+	private static final ThreadLocal<BulkOperation> CURRENT = new ThreadLocal<BulkOperation>();
+	
+	private final String label;
+	
+	private final Date dateStarted = new Date();
+	
+	private final Map<String, Tally> tallies = new LinkedHashMap<String, Tally>();
+	
+	//Inserted objects whose ids are generated by the DB are only known after the flush
+	private List<Object> pendingInserts;
+	
+	private BulkOperation(String label) {
+		this.label = label;
+	}
+	
+	/**
+	 * Starts a bulk operation on the current thread
+	 *
+	 * @param label describes the operation
+	 * @return the started operation
+	 */
+	public static BulkOperation begin(String label) {
+		if (CURRENT.get() != null) {
+			throw new APIException("A bulk operation is already in progress on the current thread");
+		}
+		BulkOperation operation = new BulkOperation(label);
+		CURRENT.set(operation);
+		return operation;
+	}
+	
+	/**
+	 * @return the bulk operation in progress on the current thread or null if there is none
+	 */
+	static BulkOperation current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Ends this bulk operation, changes made on the current thread are audited normally again
+	 */
+	public void end() {
+		if (CURRENT.get() == this) {
+			CURRENT.remove();
+		}
+		resolvePendingInserts();
+	}
+	
+	/**
+	 * Creates the summaries of the changes made during this bulk operation
+	 *
+	 * @param user the user that ran the operation
+	 * @return a summary for each type and action
+	 */
+	public List<BulkAuditSummary> getSummaries(User user) {
+		Date dateCreated = new Date();
+		List<BulkAuditSummary> summaries = new ArrayList<BulkAuditSummary>(tallies.size());
+		for (Tally tally : tallies.values()) {
+			BulkAuditSummary summary = new BulkAuditSummary(label, tally.type, tally.action, user, dateStarted,
+			        dateCreated);
+			summary.setItemCount(tally.count);
+			summary.setChecksum(tally.checksum);
+			summary.setIdentifierRanges(tally.ids != null ? toRanges(tally.ids) : null);
+			summary.setOpenmrsVersion(OpenmrsConstants.OPENMRS_VERSION_SHORT);
+			summary.setModuleVersion(AuditLogConstants.MODULE_VERSION);
+			summaries.add(summary);
+		}
+		return summaries;
+	}
+	
+	/**
+	 * Records an inserted object, if its id is not yet known it is looked up after the flush
+	 *
+	 * @param entity the inserted object
+	 * @param id the id of the object if known otherwise null
+	 */
+	void addInsert(Object entity, Serializable id) {
+		if (id != null) {
+			add(entity.getClass(), Action.CREATED, id);
+		} else {
+			if (pendingInserts == null) {
+				pendingInserts = new ArrayList<Object>();
+			}
+			pendingInserts.add(entity);
+		}
+	}
+	
+	/**
+	 * Records a change to an object
+	 *
+	 * @param type the type of the object
+	 * @param action the action
+	 * @param id the id of the object
+	 */
+	void add(Class<?> type, Action action, Serializable id) {
+		String key = type.getName() + "#" + action;
+		Tally tally = tallies.get(key);
+		if (tally == null) {
+			tally = new Tally(type.getName(), action);
+			tallies.put(key, tally);
+		}
+		tally.add(id);
+	}
+	
+	/**
+	 * Records the inserted objects whose ids were generated when the session was flushed
+	 */
+	void resolvePendingInserts() {
+		if (pendingInserts == null) {
+			return;
+		}
+		List<Object> inserts = pendingInserts;
+		pendingInserts = null;
+		for (Object entity : inserts) {
+			add(entity.getClass(), Action.CREATED, InterceptorUtil.getId(entity));
+		}
+	}
+	
+	/**
+	 * Converts the set bits to ranges of consecutive ids e.g. 1-100,105,200-300
+	 *
+	 * @param ids the ids
+	 * @return the ranges
+	 * @should combine consecutive ids into ranges
+	 */
+	static String toRanges(BitSet ids) {
+		StringBuilder sb = new StringBuilder();
+		int start = ids.nextSetBit(0);
+		while (start >= 0) {
+			int end = ids.nextClearBit(start) - 1;
+			if (sb.length() > 0) {
+				sb.append(AuditLogConstants.SEPARATOR);
+			}
+			sb.append(start);
+			if (end > start) {
+				sb.append('-').append(end);
+			}
+			start = ids.nextSetBit(end + 1);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * The changes of a single type and action
+	 */
+	private static final class Tally {
+		
+		private final String type;
+		
+		private final Action action;
+		
+		private int count;
+		
+		private long checksum;
+		
+		//Null once an id that is not a non negative integer is added
+		private BitSet ids = new BitSet();
+		
+		Tally(String type, Action action) {
+			this.type = type;
+			this.action = action;
+		}
+		
+		void add(Serializable id) {
+			count++;
+			String identifier = String.valueOf(id);
+			CRC32 crc = new CRC32();
+			crc.update(identifier.getBytes(StandardCharsets.UTF_8));
+			//Adding up makes the checksum independent of the order of the changes
+			checksum += crc.getValue();
+			if (ids != null) {
+				if (id instanceof Integer && (Integer) id >= 0) {
+					ids.set((Integer) id);
+				} else {
+					ids = null;
+				}
+			}
+		}
+	}
+}
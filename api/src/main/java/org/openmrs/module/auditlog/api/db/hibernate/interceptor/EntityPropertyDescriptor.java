@@ -0,0 +1,235 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.type.StringType;
+import org.hibernate.type.TextType;
+import org.hibernate.type.Type;
+import org.openmrs.module.auditlog.AuditDecisionTable;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Describes how the properties of a mapped type are compared when diffing its states, it is
+ * computed once per type from the property names and types hibernate passes to the interceptor so
+ * that the diff loop only visits the indexes of the properties to compare and never has to look at
+ * property names or type names again. The properties that are not audited for the type as
+ * configured via the {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_AUDITED_PROPERTIES}
+ * and {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_IGNORED_PROPERTIES} global
+ * properties are ignored too, the descriptors are computed again after the configuration changes.
+ */
+final class EntityPropertyDescriptor {
+	
+	//Ignore these properties because they match auditLog.user and auditLog.dateCreated
+	static final String[] IGNORED_PROPERTIES = new String[] { "changedBy", "dateChanged", "creator", "dateCreated",
+	        "voidedBy", "dateVoided", "retiredBy", "dateRetired", "personChangedBy", "personDateChanged", "personCreator",
+	        "personDateCreated" };
+	
+	//The descriptors computed under the current decision table
+	private static volatile Cache cache = new Cache(null);
+	
+	private final String[] propertyNames;
+	
+	private final BitSet ignored;
+	
+	private final int[] comparedIndexes;
+	
+	private final PropertyComparator[] comparators;
+	
+	private final int[] collectionIndexes;
+	
+	/**
+	 * Compares the previous and current values of a single property
+	 */
+	enum PropertyComparator {
+		
+		DEFAULT {
+			
+			@Override
+			boolean isUnchanged(Object previousValue, Object currentValue) {
+				return OpenmrsUtil.nullSafeEquals(currentValue, previousValue);
+			}
+		},
+		
+		/**
+		 * For string properties, ignore changes from null to blank and vice versa and changes in case
+		 */
+		STRING {
+			
+			@Override
+			boolean isUnchanged(Object previousValue, Object currentValue) {
+				if (OpenmrsUtil.nullSafeEquals(currentValue, previousValue)) {
+					return true;
+				}
+				//TODO This should be user configurable via a module GP
+				String currentString = toNullIfBlank(currentValue);
+				String previousString = toNullIfBlank(previousValue);
+				//TODO Case sensibility here should be configurable via a GP
+				return OpenmrsUtil.nullSafeEqualsIgnoreCase(previousString, currentString);
+			}
+			
+			private String toNullIfBlank(Object value) {
+				if (value == null) {
+					return null;
+				}
+				String string = value.toString();
+				return StringUtils.isBlank(string) ? null : string;
+			}
+		};
+		
+		abstract boolean isUnchanged(Object previousValue, Object currentValue);
+	}
+	
+	/**
+	 * The descriptors computed under a single decision table, it is replaced as a whole when the
+	 * decision table is rebuilt
+	 */
+	private static final class Cache {
+		
+		private final AuditDecisionTable table;
+		
+		private final Map<Class<?>, EntityPropertyDescriptor> descriptors = new ConcurrentHashMap<Class<?>, EntityPropertyDescriptor>();
+		
+		Cache(AuditDecisionTable table) {
+			this.table = table;
+		}
+	}
+	
+	private EntityPropertyDescriptor(String[] propertyNames, Type[] types, Predicate<String> propertyFilter) {
+		this.propertyNames = propertyNames.clone();
+		ignored = new BitSet(propertyNames.length);
+		int[] compared = new int[propertyNames.length];
+		PropertyComparator[] comparatorsByIndex = new PropertyComparator[propertyNames.length];
+		int[] collections = new int[propertyNames.length];
+		int comparedCount = 0;
+		int collectionCount = 0;
+		for (int i = 0; i < propertyNames.length; i++) {
+			if (types[i].isCollectionType()) {
+				collections[collectionCount++] = i;
+			}
+			//we need to ignore dateChanged and changedBy fields in any case they
+			//are actually part of the Auditlog in form of user and dateCreated
+			if (ArrayUtils.contains(IGNORED_PROPERTIES, propertyNames[i]) || !propertyFilter.test(propertyNames[i])) {
+				ignored.set(i);
+				continue;
+			}
+			if (types[i].isCollectionType()) {
+				continue;
+			}
+			compared[comparedCount] = i;
+			comparatorsByIndex[comparedCount] = isStringLike(types[i]) ? PropertyComparator.STRING
+			        : PropertyComparator.DEFAULT;
+			comparedCount++;
+		}
+		comparedIndexes = Arrays.copyOf(compared, comparedCount);
+		comparators = Arrays.copyOf(comparatorsByIndex, comparedCount);
+		collectionIndexes = Arrays.copyOf(collections, collectionCount);
+	}
+	
+	/**
+	 * Gets the descriptor for the specified type, creating it on first use
+	 * 
+	 * @param clazz the mapped type
+	 * @param propertyNames the property names as passed to the interceptor
+	 * @param types the property types as passed to the interceptor
+	 * @return the descriptor
+	 */
+	static EntityPropertyDescriptor get(Class<?> clazz, String[] propertyNames, Type[] types) {
+		AuditDecisionTable table = InterceptorUtil.getHelper().getDecisionTable();
+		Cache current = cache;
+		if (current.table != table) {
+			current = new Cache(table);
+			cache = current;
+		}
+		EntityPropertyDescriptor descriptor = current.descriptors.get(clazz);
+		if (descriptor == null) {
+			descriptor = current.descriptors.computeIfAbsent(clazz, c -> new EntityPropertyDescriptor(propertyNames,
+			    types, table.getPropertyFilter(c)));
+		}
+		return descriptor;
+	}
+	
+	/**
+	 * Creates a descriptor that is not cached, for testing
+	 */
+	static EntityPropertyDescriptor create(String[] propertyNames, Type[] types) {
+		return create(propertyNames, types, propertyName -> true);
+	}
+	
+	/**
+	 * Creates a descriptor that is not cached with the specified filter of audited properties, for
+	 * testing
+	 */
+	static EntityPropertyDescriptor create(String[] propertyNames, Type[] types, Predicate<String> propertyFilter) {
+		return new EntityPropertyDescriptor(propertyNames, types, propertyFilter);
+	}
+	
+	static void clearCache() {
+		cache = new Cache(null);
+	}
+	
+	/**
+	 * @return the indexes of the properties whose values should be compared, they exclude ignored
+	 *         and collection properties
+	 */
+	int[] getComparedIndexes() {
+		return comparedIndexes;
+	}
+	
+	/**
+	 * @return the indexes of the collection properties including ignored ones, use
+	 *         {@link #isIgnored(int)} to skip the ones that are not audited
+	 */
+	int[] getCollectionIndexes() {
+		return collectionIndexes;
+	}
+	
+	boolean isIgnored(int index) {
+		return ignored.get(index);
+	}
+	
+	String getPropertyName(int index) {
+		return propertyNames[index];
+	}
+	
+	/**
+	 * Checks whether the values at the specified position in {@link #getComparedIndexes()} are
+	 * considered equal
+	 * 
+	 * @should ignore a change from null to blank for string properties
+	 * @should ignore a change in case for string properties
+	 * @should detect a change for non string properties
+	 * @should exclude ignored and collection properties from the compared properties
+	 * @should exclude properties that are not audited from the compared properties
+	 * @should not allocate when comparing unchanged properties
+	 */
+	boolean isUnchanged(int i, Object[] previousState, Object[] currentState) {
+		int index = comparedIndexes[i];
+		Object previousValue = (previousState != null) ? previousState[index] : null;
+		Object currentValue = (currentState != null) ? currentState[index] : null;
+		return comparators[i].isUnchanged(previousValue, currentValue);
+	}
+	
+	private static boolean isStringLike(Type type) {
+		String typeName = type.getClass().getName();
+		return StringType.class.getName().equals(typeName) || TextType.class.getName().equals(typeName);
+	}
+}
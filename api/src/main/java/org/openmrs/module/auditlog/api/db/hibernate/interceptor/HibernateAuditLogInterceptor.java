@@ -14,22 +14,21 @@
 package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
 
 import java.io.Serializable;
-import java.sql.Blob;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 
 import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.MapUtils;
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.CallbackException;
@@ -40,21 +39,22 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.PersistenceContext;
 import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.engine.spi.Status;
 import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.persister.entity.EntityPersister;
-import org.hibernate.type.StringType;
-import org.hibernate.type.TextType;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
 import org.hibernate.type.Type;
-import org.openmrs.api.context.Context;
 import org.openmrs.module.auditlog.AuditLog;
-import org.openmrs.module.auditlog.AuditLog.Action;
 import org.openmrs.module.auditlog.api.db.DAOUtils;
-import org.openmrs.module.auditlog.util.AuditLogConstants;
 import org.openmrs.module.auditlog.util.AuditLogUtil;
-import org.openmrs.util.OpenmrsConstants;
-import org.openmrs.util.OpenmrsUtil;
+import org.openmrs.module.auditlog.writer.AsyncAuditLogWriter;
+import org.openmrs.module.auditlog.writer.AuditLoadController;
+import org.openmrs.module.auditlog.writer.AuditLogCoalescer;
+import org.openmrs.module.auditlog.writer.AuditLogRecord;
 import org.springframework.orm.hibernate5.SessionFactoryUtils;
 import org.springframework.stereotype.Component;
 
@@ -78,55 +78,32 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	
 	private static final Log log = LogFactory.getLog(HibernateAuditLogInterceptor.class);
 	
-	//Use stacks to take care of nested transactions to avoid NPE since on each transaction
-	//completion the ThreadLocals get nullified, see code below, i.e a stack of two elements implies
-	//the element at the top of the stack is the inserts made in the inner/nested transaction
-	private ThreadLocal<Stack<HashSet<Object>>> inserts = new ThreadLocal<Stack<HashSet<Object>>>();
+	//The transactions in progress on the current thread with the innermost at the head, each element
+	//is either the Transaction itself or its AuditTransactionContext once an audited event happens
+	//in it, this way transactions that don't touch audited entities allocate nothing
+	private final ThreadLocal<Deque<Object>> transactions = new ThreadLocal<Deque<Object>>();
 	
-	private ThreadLocal<Stack<HashSet<Object>>> updates = new ThreadLocal<Stack<HashSet<Object>>>();
+	//A transaction with any other status has completed
+	private static final Set<TransactionStatus> IN_PROGRESS = EnumSet.of(TransactionStatus.ACTIVE,
+	    TransactionStatus.MARKED_ROLLBACK, TransactionStatus.COMMITTING, TransactionStatus.ROLLING_BACK);
 	
-	private ThreadLocal<Stack<HashSet<Object>>> deletes = new ThreadLocal<Stack<HashSet<Object>>>();
-	
-	//Mapping between objects and maps of their changed property names and their older values,
-	//the first item in the array is the old value while the the second is the new value
-	private ThreadLocal<Stack<Map<Object, Map<String, Object[]>>>> objectChangesMap = new ThreadLocal<Stack<Map<Object, Map<String, Object[]>>>>();
-	
-	//Mapping between entities and lists of their Collections in the current session
-	private ThreadLocal<Stack<Map<Object, List<Collection<?>>>>> entityCollectionsMap = new ThreadLocal<Stack<Map<Object, List<Collection<?>>>>>();
-	
-	//Mapping between parent entities and lists of AuditLogs for their collection elements
-	private ThreadLocal<Stack<Map<Object, List<AuditLog>>>> ownerUuidChildLogsMap = new ThreadLocal<Stack<Map<Object, List<AuditLog>>>>();
-	
-	//Mapping between collection elements and their AuditLogs, will use
-	//this to avoid creating logs for collections elements multiple times
-	private ThreadLocal<Stack<Map<Object, AuditLog>>> childbjectUuidAuditLogMap = new ThreadLocal<Stack<Map<Object, AuditLog>>>();
-	
-	//Mapping between parent entities and sets of removed collection elements
-	private ThreadLocal<Stack<Map<Object, HashSet<Object>>>> entityRemovedChildrenMap = new ThreadLocal<Stack<Map<Object, HashSet<Object>>>>();
-	
-	private ThreadLocal<Stack<Date>> date = new ThreadLocal<Stack<Date>>();
-	
-	//Ignore these properties because they match auditLog.user and auditLog.dateCreated
-	private static final String[] IGNORED_PROPERTIES = new String[] { "changedBy", "dateChanged", "creator", "dateCreated",
-	        "voidedBy", "dateVoided", "retiredBy", "dateRetired", "personChangedBy", "personDateChanged", "personCreator",
-	        "personDateCreated" };
+	//Looked up from the application context when not set
+	private transient AuditLoadController loadController;
 	
 	/**
 	 * @see org.hibernate.EmptyInterceptor#afterTransactionBegin(org.hibernate.Transaction)
 	 */
 	@Override
 	public void afterTransactionBegin(Transaction tx) {
-		initializeStacksIfNecessary();
+		Deque<Object> frames = transactions.get();
+		if (frames == null) {
+			frames = new ArrayDeque<Object>(4);
+			transactions.set(frames);
+		} else {
+			removeCompletedTransactions(frames);
+		}
 		
-		inserts.get().push(new HashSet<Object>());
-		updates.get().push(new HashSet<Object>());
-		deletes.get().push(new HashSet<Object>());
-		objectChangesMap.get().push(new HashMap<Object, Map<String, Object[]>>());
-		entityCollectionsMap.get().push(new HashMap<Object, List<Collection<?>>>());
-		ownerUuidChildLogsMap.get().push(new HashMap<Object, List<AuditLog>>());
-		childbjectUuidAuditLogMap.get().push(new HashMap<Object, AuditLog>());
-		entityRemovedChildrenMap.get().push(new HashMap<Object, HashSet<Object>>());
-		date.get().push(new Date());
+		frames.push(tx);
 	}
 	
 	/**
@@ -135,12 +112,22 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	 */
 	@Override
 	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
-		if (InterceptorUtil.isAudited(entity.getClass())) {
+		if (!AuditLogEventListener.isEnabled() && InterceptorUtil.isAudited(entity.getClass())
+		        && InterceptorUtil.matchesState(entity.getClass(), state)) {
+			BulkOperation bulkOperation = BulkOperation.current();
+			if (bulkOperation != null) {
+				bulkOperation.addInsert(entity, id);
+				return false;
+			}
+			
 			if (log.isDebugEnabled()) {
 				log.debug("Creating log entry for created object with id:" + id + " of type:" + entity.getClass().getName());
 			}
 			
-			inserts.get().peek().add(entity);
+			AuditTransactionContext context = getContext(true);
+			if (context != null && context.isSampled(entity, AuditLog.Action.CREATED)) {
+				context.addInsert(entity);
+			}
 		}
 		
 		return false;
@@ -154,79 +141,9 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
 	                            String[] propertyNames, Type[] types) {
 		
-		if (propertyNames != null && InterceptorUtil.isAudited(entity.getClass())) {
-			if (previousState == null) {
-				//This is a detached object, load the previous state in a separate session
-				Session tmpSession = null;
-				SessionFactory sf = InterceptorUtil.getSessionFactory();
-				try {
-					tmpSession = sf.openSession();
-					Object obj = tmpSession.get(entity.getClass(), id);
-
-					SharedSessionContractImplementor sessionImpl = (SharedSessionContractImplementor) tmpSession;
-
-					EntityPersister ep = sessionImpl.getEntityPersister(null, obj);
-					previousState = ep.getPropertyValues(obj);
-				}
-				finally {
-					if (tmpSession != null) {
-						SessionFactoryUtils.closeSession(tmpSession);
-					}
-				}
-				
-			}
-			Map<String, Object[]> propertyChangesMap = null;//Map<propertyName, Object[]{currentValue, PreviousValue}>
-			for (int i = 0; i < propertyNames.length; i++) {
-				//we need to ignore dateChanged and changedBy fields in any case they
-				//are actually part of the Auditlog in form of user and dateCreated
-				if (ArrayUtils.contains(IGNORED_PROPERTIES, propertyNames[i])) {
-					continue;
-				}
-				
-				Object previousValue = (previousState != null) ? previousState[i] : null;
-				Object currentValue = (currentState != null) ? currentState[i] : null;
-				if (!types[i].isCollectionType() && !OpenmrsUtil.nullSafeEquals(currentValue, previousValue)) {
-					//For string properties, ignore changes from null to blank and vice versa
-					//TODO This should be user configurable via a module GP
-					if (StringType.class.getName().equals(types[i].getClass().getName())
-					        || TextType.class.getName().equals(types[i].getClass().getName())) {
-						String currentStateString = null;
-						if (currentValue != null && !StringUtils.isBlank(currentValue.toString())) {
-							currentStateString = currentValue.toString();
-						}
-						
-						String previousValueString = null;
-						if (previousValue != null && !StringUtils.isBlank(previousValue.toString())) {
-							previousValueString = previousValue.toString();
-						}
-						
-						//TODO Case sensibility here should be configurable via a GP
-						if (OpenmrsUtil.nullSafeEqualsIgnoreCase(previousValueString, currentStateString)) {
-							continue;
-						}
-					}
-					
-					if (propertyChangesMap == null) {
-						propertyChangesMap = new HashMap<String, Object[]>();
-					}
-					
-					String serializedPreviousValue = AuditLogUtil.serializeObject(previousValue);
-					String serializedCurrentValue = AuditLogUtil.serializeObject(currentValue);
-					
-					propertyChangesMap.put(propertyNames[i],
-					    new String[] { serializedCurrentValue, serializedPreviousValue });
-				}
-			}
-			
-			if (MapUtils.isNotEmpty(propertyChangesMap)) {
-				if (log.isDebugEnabled()) {
-					log.debug("Creating log entry for updated object with id:" + id + " of type:"
-					        + entity.getClass().getName());
-				}
-				
-				updates.get().peek().add(entity);
-				objectChangesMap.get().peek().put(entity, propertyChangesMap);
-			}
+		if (!AuditLogEventListener.isEnabled() && propertyNames != null
+		        && InterceptorUtil.isAudited(entity.getClass())) {
+			recordUpdate(entity, id, currentState, previousState, propertyNames, types, null);
 		}
 		
 		return false;
@@ -238,39 +155,37 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	 */
 	@Override
 	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
-		if (InterceptorUtil.isAudited(entity.getClass())) {
+		if (!AuditLogEventListener.isEnabled() && InterceptorUtil.isAudited(entity.getClass())
+		        && InterceptorUtil.matchesState(entity.getClass(), state)) {
+			BulkOperation bulkOperation = BulkOperation.current();
+			if (bulkOperation != null) {
+				bulkOperation.add(entity.getClass(), AuditLog.Action.DELETED, id);
+				return;
+			}
+			
 			if (log.isDebugEnabled()) {
 				log.debug("Creating log entry for deleted object with id:" + id + " of type:" + entity.getClass().getName());
 			}
-			for (int i = 0; i < types.length; i++) {
-				if (types[i].isCollectionType()) {
-					//Avoids LazyInitializationException since the parent is already purged
-					Hibernate.initialize(state[i]);
-				}
+			for (int i : EntityPropertyDescriptor.get(entity.getClass(), propertyNames, types).getCollectionIndexes()) {
+				//Avoids LazyInitializationException since the parent is already purged
+				Hibernate.initialize(state[i]);
+			}
+			AuditTransactionContext context = getContext(true);
+			if (context != null) {
+				context.addDelete(entity);
 			}
-			deletes.get().peek().add(entity);
 		}
 	}
 	
 	/**
 	 * @see org.hibernate.EmptyInterceptor#onCollectionUpdate(Object, java.io.Serializable)
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	public void onCollectionUpdate(Object collection, Serializable key) throws CallbackException {
-		if (collection != null) {
+		if (collection != null && !AuditLogEventListener.isEnabled() && BulkOperation.current() == null) {
 			PersistentCollection persistentColl = ((PersistentCollection) collection);
 			if (InterceptorUtil.isAudited(persistentColl.getOwner().getClass())) {
-				Object owningObject = persistentColl.getOwner();
-				Map previousStoredSnapshotMap = (Map) persistentColl.getStoredSnapshot();
-				Object previousCollOrMap;
-				if (Collection.class.isAssignableFrom(collection.getClass())) {
-					previousCollOrMap = previousStoredSnapshotMap.values();
-				} else {
-					previousCollOrMap = previousStoredSnapshotMap;
-				}
-				
-				handleUpdatedCollection(collection, previousCollOrMap, owningObject, persistentColl.getRole());
+				recordCollectionUpdate(persistentColl);
 			}
 		}
 	}
@@ -278,53 +193,13 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	@Override
 	public void onCollectionRemove(Object collection, Serializable key) throws CallbackException {
 		//We need to get all collection elements and link their childlogs to the parent's
-		if (collection != null) {
+		if (collection != null && !AuditLogEventListener.isEnabled() && BulkOperation.current() == null) {
 			PersistentCollection persistentColl = (PersistentCollection) collection;
 			if (InterceptorUtil.isAudited(persistentColl.getOwner().getClass())) {
-				Object owningObject = persistentColl.getOwner();
-				String role = persistentColl.getRole();
-				String propertyName = role.substring(role.lastIndexOf('.') + 1);
-				ClassMetadata cmd = AuditLogUtil.getClassMetadata(AuditLogUtil.getActualType(owningObject));
-				Object currentCollection = cmd.getPropertyValue(owningObject, propertyName);
-				
-				//Hibernate calls onCollectionRemove whenever the underlying collection is replaced with a
-				//new instance i.e one calls the collection's setter and passes in a new instance even if the
-				//new collection contains some elements, we want to treat this as regular collection update,
-				//Except if onCollectionRemove is called because the owner got purged from the DB.
 				//I believe hibernate calls onDelete for the owner before onCollectionRemove for all its
 				//collections so we can guarantee that the owner is already in the 'deletes' thread local
-				boolean isOwnerDeleted = OpenmrsUtil.collectionContains(deletes.get().peek(), owningObject);
-				if (Collection.class.isAssignableFrom(collection.getClass())) {
-					Collection coll = (Collection) collection;
-					if (!coll.isEmpty()) {
-						if (isOwnerDeleted) {
-							if (entityRemovedChildrenMap.get().peek().get(owningObject) == null) {
-								entityRemovedChildrenMap.get().peek().put(owningObject, new HashSet<Object>());
-							}
-							for (Object removedItem : coll) {
-								entityRemovedChildrenMap.get().peek().get(owningObject).add(removedItem);
-							}
-						} else if (!isOwnerDeleted && currentCollection == null) {
-							Class<?> propertyClass = cmd.getPropertyType(propertyName).getReturnedClass();
-							if (Set.class.isAssignableFrom(propertyClass)) {
-								currentCollection = Collections.EMPTY_SET;
-							} else if (List.class.isAssignableFrom(propertyClass)) {
-								currentCollection = Collections.EMPTY_LIST;
-							}
-						}
-					}
-				} else if (Map.class.isAssignableFrom(collection.getClass())) {
-					Map map = (Map) collection;
-					if (!map.isEmpty() && !isOwnerDeleted && currentCollection == null) {
-						currentCollection = Collections.EMPTY_MAP;
-					}
-				} else {
-					//TODO: Handle other persistent collections types e.g bags
-				}
-				
-				if (!isOwnerDeleted) {
-					handleUpdatedCollection(currentCollection, collection, owningObject, role);
-				}
+				AuditTransactionContext context = getContext(false);
+				recordCollectionRemove(persistentColl, context != null && context.isDeleted(persistentColl.getOwner()));
 			}
 		}
 	}
@@ -339,33 +214,41 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	@Override
 	public int[] findDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
 	                       String[] propertyNames, Type[] types) {
-		if (InterceptorUtil.isAudited(entity.getClass())) {
-			if (entityCollectionsMap.get().peek().get(entity) == null) {
+		if (!AuditLogEventListener.isEnabled() && BulkOperation.current() == null
+		        && InterceptorUtil.isAudited(entity.getClass())) {
+			AuditTransactionContext context = getContext(false);
+			if (context == null || !context.hasCollections(entity)) {
 				//This is the first time we are trying to find collection elements for this object
 				if (log.isDebugEnabled()) {
 					log.debug("Finding collections for object:" + entity.getClass() + " #" + id);
 				}
 				
-				for (int i = 0; i < propertyNames.length; i++) {
-					if (types[i].isCollectionType()) {
-						Object coll = currentState[i];
-						//For now ignore maps because still cant imagine a logical case where the
-						//keys or values are Persistent objects that can't exist on their own
-						if (coll != null && Collection.class.isAssignableFrom(coll.getClass())) {
-							Collection<?> collection = (Collection<?>) coll;
-							if (!collection.isEmpty()) {
-								if (entityCollectionsMap.get().peek().get(entity) == null) {
-									entityCollectionsMap.get().peek().put(entity, new ArrayList<Collection<?>>());
-								}
-								if (!AuditLogUtil.getCollectionPersister(propertyNames[i], entity.getClass(), null)
-								        .isManyToMany()) {
-									entityCollectionsMap.get().peek().get(entity).add(collection);
+				EntityPropertyDescriptor descriptor = EntityPropertyDescriptor.get(entity.getClass(), propertyNames, types);
+				for (int i : descriptor.getCollectionIndexes()) {
+					if (descriptor.isIgnored(i)) {
+						continue;
+					}
+					Object coll = currentState[i];
+					//For now ignore maps because still cant imagine a logical case where the
+					//keys or values are Persistent objects that can't exist on their own
+					if (coll != null && Collection.class.isAssignableFrom(coll.getClass())) {
+						Collection<?> collection = (Collection<?>) coll;
+						if (!collection.isEmpty()) {
+							if (context == null) {
+								context = getContext(true);
+								if (context == null) {
+									break;
 								}
 							}
-						} //else {
-						  //TODO handle maps too because hibernate treats maps to be of CollectionType
-						  //}
-					}
+							List<Collection<?>> collections = context.getOrCreateCollections(entity);
+							if (!AuditLogUtil.getCollectionPersister(propertyNames[i], entity.getClass(), null)
+							        .isManyToMany()) {
+								collections.add(collection);
+							}
+						}
+					} //else {
+					  //TODO handle maps too because hibernate treats maps to be of CollectionType
+					  //}
 				}
 			}
 		}
@@ -374,248 +257,702 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	}
 	
 	/**
-	 * @see org.hibernate.EmptyInterceptor#beforeTransactionCompletion(org.hibernate.Transaction)
+	 * Loads the states in the DB of all audited detached objects about to be flushed with a single
+	 * query per type, {@link #onFlushDirty(Object, Serializable, Object[], Object[], String[], Type[])}
+	 * would otherwise open a separate session and run a query for each of them.
+	 * 
+	 * @see org.hibernate.EmptyInterceptor#preFlush(java.util.Iterator)
 	 */
+	@SuppressWarnings("rawtypes")
 	@Override
-	public void beforeTransactionCompletion(Transaction tx) {
+	public void preFlush(Iterator entities) {
+		Deque<Object> frames = transactions.get();
+		if (frames == null || frames.isEmpty()) {
+			return;
+		}
+		
+		AuditTransactionContext current = getContext(false);
+		if (current != null) {
+			//In case the previous flush failed
+			current.clearDetachedStates();
+		}
+		
 		try {
-			if (inserts.get().peek().isEmpty() && updates.get().peek().isEmpty() && deletes.get().peek().isEmpty()) {
-				return;
-			}
-			
-			try {
-				//TODO handle daemon or un authenticated operations
-				
-				//If we have any entities in the session that have child collections and there were some updates,
-				//check all collection items to find dirty ones so that we can mark the the owners as dirty too
-				//I.e if a ConceptName/Mapping/Description was edited, mark the the Concept as dirty too
-				for (Map.Entry<Object, List<Collection<?>>> entry : entityCollectionsMap.get().peek().entrySet()) {
-					for (Collection<?> coll : entry.getValue()) {
-						for (Object obj : coll) {
-							boolean isInsert = OpenmrsUtil.collectionContains(inserts.get().peek(), obj);
-							boolean isUpdate = OpenmrsUtil.collectionContains(updates.get().peek(), obj);
-							
-							//We handle the removed collections items below because either way they
-							//are nolonger in the current collection
-							if (isInsert || isUpdate) {
-								Object owner = entry.getKey();
-								boolean ownerHasUpdates = OpenmrsUtil.collectionContains(updates.get().peek(), owner);
-								boolean isOwnerNew = OpenmrsUtil.collectionContains(inserts.get().peek(), owner);
-								if (ownerHasUpdates) {
-									if (log.isDebugEnabled()) {
-										log.debug("There is already an auditlog for owner:" + owner.getClass() + " - "
-										        + InterceptorUtil.getId(owner));
-									}
-								} else if (!isOwnerNew) {
-									//A collection item was updated and no other update had been made on the owner
-									if (log.isDebugEnabled()) {
-										log.debug("Creating log entry for edited owner object with id:"
-										        + InterceptorUtil.getId(owner) + " of type:" + owner.getClass().getName()
-										        + " due to an update for a item in a child collection");
-									}
-									updates.get().peek().add(owner);
-								}
-								
-								if (InterceptorUtil.isAudited(obj.getClass())) {
-									if (ownerUuidChildLogsMap.get().peek().get(owner) == null) {
-										ownerUuidChildLogsMap.get().peek().put(owner, new ArrayList<AuditLog>());
-									}
-									
-									AuditLog childLog = instantiateAuditLog(obj, isInsert ? Action.CREATED : Action.UPDATED);
-									
-									childbjectUuidAuditLogMap.get().peek().put(obj, childLog);
-									ownerUuidChildLogsMap.get().peek().get(owner).add(childLog);
-								}
-								
-								//TODO add this collection to the list of changes properties
-								/*Map<String, Object[]> propertyValuesMap = objectChangesMap.get().peek().get(owner);
-								if(propertyValuesMap == null)
-									propertyValuesMap = new HashMap<String, Object[]>();
-									propertyValuesMap.put(arg0, arg1);*/
-							}
-						}
-					}
-				}
-				
-				for (Map.Entry<Object, HashSet<Object>> entry : entityRemovedChildrenMap.get().peek().entrySet()) {
-					Object removedItemsOwner = entry.getKey();
-					for (Object removed : entry.getValue()) {
-						//TODO add test to ensure that this should fail for collections
-						//that don't have all-delete-orphan cascade
-						boolean isDelete = OpenmrsUtil.collectionContains(deletes.get().peek(), removed);
-						if (isDelete) {
-							if (InterceptorUtil.isAudited(removed.getClass())) {
-								if (ownerUuidChildLogsMap.get().peek().get(removedItemsOwner) == null)
-									ownerUuidChildLogsMap.get().peek().put(removedItemsOwner, new ArrayList<AuditLog>());
-								
-								AuditLog childLog = instantiateAuditLog(removed, Action.DELETED);
-								
-								childbjectUuidAuditLogMap.get().peek().put(removed, childLog);
-								ownerUuidChildLogsMap.get().peek().get(removedItemsOwner).add(childLog);
-							}
-						}
-					}
+			PersistenceContext persistenceContext = null;
+			PreviousStateLoader loader = null;
+			while (entities.hasNext()) {
+				Object entity = entities.next();
+				if (!InterceptorUtil.isAudited(entity.getClass())) {
+					continue;
 				}
 				
-				List<AuditLog> logs = new ArrayList<AuditLog>();
-				for (Object insert : inserts.get().peek()) {
-					logs.add(createAuditLogIfNecessary(insert, Action.CREATED));
+				if (persistenceContext == null) {
+					SessionFactory sf = InterceptorUtil.getSessionFactory();
+					persistenceContext = ((SessionImplementor) sf.getCurrentSession()).getPersistenceContext();
 				}
 				
-				for (Object delete : deletes.get().peek()) {
-					logs.add(createAuditLogIfNecessary(delete, Action.DELETED));
+				//Hibernate has no loaded state for detached objects that were reattached to the session
+				EntityEntry entry = persistenceContext.getEntry(entity);
+				if (entry != null && entry.getLoadedState() == null && entry.getStatus() == Status.MANAGED
+				        && entry.getId() != null) {
+					if (loader == null) {
+						loader = new PreviousStateLoader();
+					}
+					loader.add(entry.getPersister(), entity, entry.getId());
 				}
-				
-				for (Object update : updates.get().peek()) {
-					logs.add(createAuditLogIfNecessary(update, Action.UPDATED));
+			}
+			
+			if (loader != null) {
+				AuditTransactionContext context = getContext(true);
+				if (context != null) {
+					context.setDetachedStates(loader.load(InterceptorUtil.getSessionFactory()));
 				}
-				
-				for (AuditLog al : logs) {
-					InterceptorUtil.saveAuditLog(al);
+			}
+		}
+		catch (Exception e) {
+			//error should not bubble out of the interceptor, the states get loaded one at a time instead
+			log.error("An error occured while loading the previous states of detached objects:", e);
+		}
+	}
+	
+	/**
+	 * @see org.hibernate.EmptyInterceptor#postFlush(java.util.Iterator)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void postFlush(Iterator entities) {
+		BulkOperation bulkOperation = BulkOperation.current();
+		if (bulkOperation != null) {
+			bulkOperation.resolvePendingInserts();
+		}
+		
+		AuditTransactionContext context = getContext(false);
+		if (context != null) {
+			context.clearDetachedStates();
+			emitIfNecessary(context);
+		}
+	}
+	
+	/**
+	 * Writes the audit logs for the changes tracked so far if their number has reached the flush
+	 * threshold and discards the changes, this keeps the memory used by a transaction that changes
+	 * lots of objects bounded since the session is typically flushed and cleared periodically in
+	 * such cases. The audit logs are inserted in the current transaction so they are rolled back
+	 * with it, they are not added to the session because it is the one being flushed.
+	 * 
+	 * @param context the context of the current transaction
+	 */
+	private void emitIfNecessary(AuditTransactionContext context) {
+		try {
+			if (context.isEmpty()) {
+				return;
+			}
+			int threshold = InterceptorUtil.getFlushThreshold();
+			if (threshold < 1 || context.size() < threshold) {
+				return;
+			}
+			
+			AuditLoadController controller = getLoadController();
+			AuditLoadController.Level level = controller.getLevel();
+			if (level == AuditLoadController.Level.SUMMARY_ONLY) {
+				summarize(context, null, controller);
+				context.reset();
+				return;
+			}
+			
+			List<AuditLog> logs = context.buildAuditLogs(level == AuditLoadController.Level.FULL);
+			context.reset();
+			long start = System.nanoTime();
+			InterceptorUtil.insertAuditLogs(logs);
+			controller.recordWrite(System.nanoTime() - start, InterceptorUtil.getWriter().getBacklog());
+			if (level == AuditLoadController.Level.NO_PAYLOAD) {
+				controller.recordReducedLogs(logs.size());
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Wrote " + logs.size() + " audit log(s) after a flush");
+			}
+		}
+		catch (Exception e) {
+			//error should not bubble out of the interceptor
+			log.error("An error occured while creating audit log(s):", e);
+		}
+	}
+	
+	/**
+	 * @see org.hibernate.EmptyInterceptor#beforeTransactionCompletion(org.hibernate.Transaction)
+	 */
+	@Override
+	public void beforeTransactionCompletion(Transaction tx) {
+		AuditTransactionContext context = getContext(false);
+		if (context == null || context.getTransaction() != tx) {
+			return;
+		}
+		
+		List<AuditLogRecord> nestedRecords = context.getNestedRecords();
+		if (context.isEmpty() && nestedRecords == null) {
+			return;
+		}
+		
+		try {
+			boolean toEnclosing = hasEnclosingTransaction() && InterceptorUtil.mergeNestedTransactions();
+			AuditLoadController controller = getLoadController();
+			AuditLoadController.Level level = controller.getLevel();
+			if (level == AuditLoadController.Level.SUMMARY_ONLY && !toEnclosing) {
+				summarize(context, nestedRecords, controller);
+				return;
+			}
+			
+			boolean includePayload = level == AuditLoadController.Level.FULL;
+			List<AuditLog> logs = context.isEmpty() ? new ArrayList<AuditLog>() : context.buildAuditLogs(includePayload);
+			if (!includePayload) {
+				controller.recordReducedLogs(logs.size());
+			}
+			if (nestedRecords != null) {
+				//The nested transactions completed first so their changes are the earlier ones
+				logs = AuditLogMerger.merge(toAuditLogs(nestedRecords), logs);
+			}
+			
+			if (toEnclosing) {
+				//They are handed over to the enclosing transaction if this one commits
+				context.setEnclosingRecords(AuditLogRecord.of(logs));
+				return;
+			}
+			
+			logs = deferToCoalescer(context, logs);
+			if (!logs.isEmpty() && !deferToJournal(context, logs) && !deferToAsyncWriter(context, logs)) {
+				long start = System.nanoTime();
+				InterceptorUtil.saveAuditLogs(logs);
+				controller.recordWrite(System.nanoTime() - start, InterceptorUtil.getWriter().getBacklog());
+			}
+		}
+		catch (Exception e) {
+			//error should not bubble out of the interceptor
+			log.error("An error occured while creating audit log(s):", e);
+		}
+	}
+	
+	/**
+	 * Discards the context of the completed transaction, this is called for committed and rolled
+	 * back transactions alike, if the audit logs were deferred to the async writer they are handed
+	 * over to it if the transaction committed. The audit logs of a committed nested transaction
+	 * that are to be merged are handed over to the enclosing transaction.
+	 * 
+	 * @see org.hibernate.EmptyInterceptor#afterTransactionCompletion(org.hibernate.Transaction)
+	 */
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		Deque<Object> frames = transactions.get();
+		if (frames == null) {
+			return;
+		}
+		
+		boolean audited = false;
+		try {
+			//Any frames above the one for this transaction belong to nested transactions whose
+			//completion we missed, the same transaction object can also be reused by its session
+			//for a later transaction, so we pop down to the outermost frame for this transaction
+			List<AuditLogRecord> enclosingRecords = null;
+			while (containsTransaction(frames, tx)) {
+				Object frame = frames.pop();
+				audited |= frame instanceof AuditTransactionContext;
+				discard(frame, tx);
+				List<AuditLogRecord> records = getCommittedEnclosingRecords(frame);
+				if (records != null) {
+					if (enclosingRecords == null) {
+						enclosingRecords = new ArrayList<AuditLogRecord>();
+					}
+					enclosingRecords.addAll(records);
 				}
 			}
-			catch (Exception e) {
-				//error should not bubble out of the interceptor
-				log.error("An error occured while creating audit log(s):", e);
+			removeCompletedTransactions(frames);
+			
+			if (enclosingRecords != null) {
+				AuditTransactionContext enclosing = getContext(true);
+				if (enclosing != null) {
+					enclosing.addNestedRecords(enclosingRecords);
+				} else {
+					InterceptorUtil.getWriter().submit(enclosingRecords);
+				}
 			}
 		}
 		finally {
-			//cleanup
-			inserts.get().pop();
-			updates.get().pop();
-			deletes.get().pop();
-			objectChangesMap.get().pop();
-			entityCollectionsMap.get().pop();
-			ownerUuidChildLogsMap.get().pop();
-			childbjectUuidAuditLogMap.get().pop();
-			entityRemovedChildrenMap.get().pop();
-			date.get().pop();
+			if (frames.isEmpty()) {
+				transactions.remove();
+			}
+		}
+		
+		if (audited) {
+			writeLoadEvents();
+		}
+	}
+	
+	/**
+	 * Submits the audit logs of the level changes of the load controller to the async writer, this
+	 * is only done when the controller is enabled since otherwise the level never changes
+	 */
+	private void writeLoadEvents() {
+		try {
+			AuditLoadController controller = getLoadController();
+			if (!controller.isEnabled()) {
+				return;
+			}
 			
-			removeStacksIfEmpty();
+			List<AuditLogRecord> loadEvents = controller.drainEvents();
+			if (loadEvents != null) {
+				InterceptorUtil.getWriter().submit(loadEvents);
+			}
+		}
+		catch (Exception e) {
+			//error should not bubble out of the interceptor
+			log.error("An error occured while writing the audit logs of the load level changes:", e);
+		}
+	}
+	
+	/**
+	 * Counts the tracked changes and the audit logs of merged nested transactions with the load
+	 * controller instead of writing audit logs for them
+	 * 
+	 * @param context the context of the current transaction
+	 * @param nestedRecords the audit logs of merged nested transactions or null if there are none
+	 * @param controller the load controller
+	 */
+	private void summarize(AuditTransactionContext context, List<AuditLogRecord> nestedRecords,
+	                       AuditLoadController controller) {
+		context.forEachChange((entity, action) -> controller.recordSummarizedChange(entity.getClass().getName(), action));
+		if (nestedRecords != null) {
+			for (AuditLogRecord record : nestedRecords) {
+				controller.recordSummarizedChange(record.getType(), record.getAction());
+			}
+		}
+	}
+	
+	/**
+	 * @return the load controller
+	 */
+	private AuditLoadController getLoadController() {
+		if (loadController == null) {
+			loadController = InterceptorUtil.getLoadController();
 		}
+		return loadController;
+	}
+	
+	/**
+	 * Sets the load controller, for testing
+	 * 
+	 * @param loadController the load controller to set
+	 */
+	void setLoadController(AuditLoadController loadController) {
+		this.loadController = loadController;
+	}
+	
+	/**
+	 * @return true if the current thread has any transactions being tracked, for testing
+	 */
+	boolean isTrackingTransactions() {
+		return transactions.get() != null;
 	}
 	
 	/**
-	 * Creates if necessary
+	 * Gets the context of the current transaction
 	 * 
-	 * @param object the object to create for the AuditLog
-	 * @param action see {@link org.openmrs.module.auditlog.AuditLog.Action}
+	 * @param create specifies whether to create the context if it doesn't exist yet
+	 * @return the context or null if it doesn't exist and create is false or if there is no
+	 *         transaction in progress
 	 */
-	private AuditLog createAuditLogIfNecessary(Object object, Action action) {
-		//If this is a collection element, we already created a log for it
-		AuditLog auditLog = childbjectUuidAuditLogMap.get().peek().get(object);
-		if (auditLog == null) {
-			auditLog = instantiateAuditLog(object, action);
+	AuditTransactionContext getContext(boolean create) {
+		Deque<Object> frames = transactions.get();
+		if (frames == null || frames.isEmpty()) {
+			return null;
+		}
+		
+		Object frame = frames.peek();
+		if (frame instanceof AuditTransactionContext) {
+			return (AuditTransactionContext) frame;
+		}
+		if (!create) {
+			return null;
 		}
 		
-		if ((ownerUuidChildLogsMap != null && ownerUuidChildLogsMap.get().peek().containsKey(object))) {
-			for (AuditLog child : ownerUuidChildLogsMap.get().peek().get(object)) {
-				auditLog.getChildAuditLogs().add(child);
+		AuditTransactionContext context = new AuditTransactionContext((Transaction) frame);
+		frames.pop();
+		frames.push(context);
+		return context;
+	}
+	
+	/**
+	 * @return true if the current transaction is nested in another transaction that is in progress
+	 */
+	private boolean hasEnclosingTransaction() {
+		Deque<Object> frames = transactions.get();
+		if (frames == null || frames.size() < 2) {
+			return false;
+		}
+		
+		Iterator<Object> it = frames.iterator();
+		it.next();
+		while (it.hasNext()) {
+			if (IN_PROGRESS.contains(getTransaction(it.next()).getStatus())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static List<AuditLogRecord> getCommittedEnclosingRecords(Object frame) {
+		if (!(frame instanceof AuditTransactionContext)) {
+			return null;
+		}
+		
+		AuditTransactionContext context = (AuditTransactionContext) frame;
+		if (context.getTransaction().getStatus() != TransactionStatus.COMMITTED) {
+			return null;
+		}
+		return context.getEnclosingRecords();
+	}
+	
+	private static List<AuditLog> toAuditLogs(List<AuditLogRecord> records) {
+		Session session = DAOUtils.getSessionFactory().getCurrentSession();
+		List<AuditLog> auditLogs = new ArrayList<AuditLog>(records.size());
+		for (AuditLogRecord record : records) {
+			auditLogs.add(record.toAuditLog(session));
+		}
+		return auditLogs;
+	}
+	
+	private static Transaction getTransaction(Object frame) {
+		if (frame instanceof AuditTransactionContext) {
+			return ((AuditTransactionContext) frame).getTransaction();
+		}
+		return (Transaction) frame;
+	}
+	
+	private static boolean containsTransaction(Deque<Object> frames, Transaction tx) {
+		for (Object frame : frames) {
+			if (getTransaction(frame) == tx) {
+				return true;
 			}
 		}
-		return auditLog;
+		return false;
 	}
 	
 	/**
-	 * Creates a new instance of an {@link org.openmrs.module.auditlog.AuditLog} for the specified
-	 * object and Action
-	 * 
-	 * @param object the object to create for the AuditLog
-	 * @param action see {@link org.openmrs.module.auditlog.AuditLog.Action}
-	 * @return the created AuditLog
+	 * Drops the frames of transactions that completed without us getting notified so that they
+	 * can't leak on pooled threads
 	 */
-	private AuditLog instantiateAuditLog(Object object, Action action) {
-		Serializable id = InterceptorUtil.getId(object);
-		String serializedId = AuditLogUtil.serializeObject(id);
-		AuditLog auditLog = new AuditLog(object.getClass().getName(), serializedId, action, Context.getAuthenticatedUser(), date.get()
-		        .peek());
-		auditLog.setOpenmrsVersion(OpenmrsConstants.OPENMRS_VERSION_SHORT);
-		auditLog.setModuleVersion(AuditLogConstants.MODULE_VERSION);
-		if (action == Action.UPDATED || action == Action.DELETED) {
-			Map<String, Object[]> propertyValuesMap = null;
-			SessionFactory sf = DAOUtils.getSessionFactory();
-
-			if (action == Action.UPDATED) {
-				propertyValuesMap = objectChangesMap.get().peek().get(object);
-
-				if (propertyValuesMap != null) {
-					byte[] bytes = AuditLogUtil.serializeToJson(propertyValuesMap).getBytes();
-					Blob blob = sf.getCurrentSession().getLobHelper().createBlob(bytes);
-
-//					Blob blob = Hibernate.createBlob(AuditLogUtil.serializeToJson(propertyValuesMap).getBytes());
-					auditLog.setSerializedData(blob);
-				}
-			} else if (InterceptorUtil.storeLastStateOfDeletedItems()) {
-				//TODO if one edits and deletes an object in the same API call, the property
-				//value that gets serialized is the new one but actually was never saved
-				//Should we store the value in the DB or the one in the current session?
-				byte[] serializedData = InterceptorUtil.serializePersistentObject(object).getBytes();
-				Blob blob = sf.getCurrentSession().getLobHelper().createBlob(serializedData);
-
-//				Blob blob = Hibernate.createBlob(InterceptorUtil.serializePersistentObject(object).getBytes());
-				auditLog.setSerializedData(blob);
+	private static void removeCompletedTransactions(Deque<Object> frames) {
+		for (Iterator<Object> it = frames.iterator(); it.hasNext();) {
+			Object frame = it.next();
+			Transaction tx = getTransaction(frame);
+			if (!IN_PROGRESS.contains(tx.getStatus())) {
+				log.warn("Discarding the audit log context of a transaction that completed without notification");
+				it.remove();
+				discard(frame, null);
 			}
 		}
-		return auditLog;
 	}
 	
-	private void initializeStacksIfNecessary() {
-		if (inserts.get() == null) {
-			inserts.set(new Stack<HashSet<Object>>());
+	/**
+	 * Releases a popped frame, audit logs deferred to the async writer are only handed over if the
+	 * frame belongs to the specified transaction and it committed
+	 * 
+	 * @param frame the popped frame
+	 * @param completedTx the transaction that completed
+	 */
+	private static void discard(Object frame, Transaction completedTx) {
+		if (!(frame instanceof AuditTransactionContext)) {
+			return;
 		}
-		if (updates.get() == null) {
-			updates.set(new Stack<HashSet<Object>>());
+		
+		AuditTransactionContext context = (AuditTransactionContext) frame;
+		List<AuditLogRecord> nestedRecords = context.getNestedRecords();
+		if (nestedRecords != null && context.getTransaction().getStatus() != TransactionStatus.COMMITTED) {
+			//The nested transactions committed, so their audit logs are written regardless
+			InterceptorUtil.getWriter().submit(nestedRecords);
 		}
-		if (deletes.get() == null) {
-			deletes.set(new Stack<HashSet<Object>>());
+		
+		boolean committed = context.getTransaction() == completedTx
+		        && completedTx.getStatus() == TransactionStatus.COMMITTED;
+		if (context.getCoalescedRecords() != null && committed) {
+			InterceptorUtil.getCoalescer().add(context.getCoalescedRecords());
 		}
-		if (objectChangesMap.get() == null) {
-			objectChangesMap.set(new Stack<Map<Object, Map<String, Object[]>>>());
+		List<AuditLogRecord> journaledRecords = context.getJournaledRecords();
+		if (journaledRecords != null && committed && !InterceptorUtil.getJournal().append(journaledRecords)) {
+			InterceptorUtil.getWriter().submit(journaledRecords);
 		}
-		if (entityCollectionsMap.get() == null) {
-			entityCollectionsMap.set(new Stack<Map<Object, List<Collection<?>>>>());
+		
+		List<AuditLogRecord> records = context.getPendingRecords();
+		if (records == null) {
+			return;
 		}
-		if (ownerUuidChildLogsMap.get() == null) {
-			ownerUuidChildLogsMap.set(new Stack<Map<Object, List<AuditLog>>>());
+		
+		AsyncAuditLogWriter writer = InterceptorUtil.getWriter();
+		if (committed) {
+			writer.enqueue(records);
+		} else {
+			writer.release(records.size());
 		}
-		if (childbjectUuidAuditLogMap.get() == null) {
-			childbjectUuidAuditLogMap.set(new Stack<Map<Object, AuditLog>>());
+	}
+	
+	/**
+	 * Sets aside the audit logs of updates for the coalescer if it is running along with those of
+	 * objects that have pending updates in it so they are written after them, they get handed over
+	 * in {@link #afterTransactionCompletion(Transaction)} if the transaction commits. The decision is
+	 * made per top most audit log, its child logs always go along with it.
+	 * 
+	 * @param context the context of the current transaction
+	 * @param logs the audit logs to write
+	 * @return the audit logs that are not coalesced
+	 */
+	private List<AuditLog> deferToCoalescer(AuditTransactionContext context, List<AuditLog> logs) {
+		AuditLogCoalescer coalescer = InterceptorUtil.getCoalescer();
+		if (!coalescer.isRunning()) {
+			return logs;
 		}
-		if (entityRemovedChildrenMap.get() == null) {
-			entityRemovedChildrenMap.set(new Stack<Map<Object, HashSet<Object>>>());
+		
+		Set<AuditLog> listed = Collections.newSetFromMap(new IdentityHashMap<AuditLog, Boolean>());
+		listed.addAll(logs);
+		List<AuditLog> coalesced = new ArrayList<AuditLog>();
+		List<AuditLog> remaining = new ArrayList<AuditLog>();
+		Set<AuditLog> remainingRoots = Collections.newSetFromMap(new IdentityHashMap<AuditLog, Boolean>());
+		for (AuditLog auditLog : logs) {
+			AuditLog root = getListedRoot(auditLog, listed);
+			if (root == auditLog) {
+				if (auditLog.getAction() == AuditLog.Action.UPDATED
+				        || coalescer.hasPending(auditLog.getType(), auditLog.getIdentifier())) {
+					coalesced.add(auditLog);
+				} else {
+					remainingRoots.add(auditLog);
+				}
+			}
+		}
+		for (AuditLog auditLog : logs) {
+			if (remainingRoots.contains(getListedRoot(auditLog, listed))) {
+				remaining.add(auditLog);
+			}
 		}
-		if (date.get() == null) {
-			date.set(new Stack<Date>());
+		if (!coalesced.isEmpty()) {
+			context.setCoalescedRecords(AuditLogRecord.of(coalesced));
 		}
+		return remaining;
 	}
 	
-	private void removeStacksIfEmpty() {
-		if (inserts.get().empty()) {
-			inserts.remove();
+	/**
+	 * @return the top most ancestor of the specified audit log that is in the specified set or the
+	 *         audit log itself if none is
+	 */
+	private static AuditLog getListedRoot(AuditLog auditLog, Set<AuditLog> listed) {
+		AuditLog root = auditLog;
+		for (AuditLog parent = auditLog.getParentAuditLog(); parent != null; parent = parent.getParentAuditLog()) {
+			if (listed.contains(parent)) {
+				root = parent;
+			}
 		}
-		if (updates.get().empty()) {
-			updates.remove();
+		return root;
+	}
+	
+	/**
+	 * Sets aside the specified audit logs for the journal if it is running, they get appended to it
+	 * in {@link #afterTransactionCompletion(Transaction)} if the transaction commits so the
+	 * transaction doesn't wait for any database inserts.
+	 * 
+	 * @param context the context of the current transaction
+	 * @param logs the audit logs to write
+	 * @return true if the audit logs will be journaled otherwise false
+	 */
+	private boolean deferToJournal(AuditTransactionContext context, List<AuditLog> logs) {
+		if (!InterceptorUtil.getJournal().isRunning()) {
+			return false;
 		}
-		if (deletes.get().empty()) {
-			deletes.remove();
+		
+		context.setJournaledRecords(AuditLogRecord.of(logs));
+		return true;
+	}
+	
+	/**
+	 * Reserves space for the specified audit logs in the async writer's queue, they get handed over
+	 * in {@link #afterTransactionCompletion(Transaction)} so that nothing is written for a
+	 * transaction that fails to commit.
+	 * 
+	 * @param context the context of the current transaction
+	 * @param logs the audit logs to write
+	 * @return true if the async writer will write the audit logs otherwise false
+	 */
+	private boolean deferToAsyncWriter(AuditTransactionContext context, List<AuditLog> logs) {
+		//Child logs are part of their parents' records, space is reserved per record
+		List<AuditLogRecord> records = AuditLogRecord.of(logs);
+		if (!InterceptorUtil.getWriter().tryReserve(records.size())) {
+			return false;
 		}
-		if (objectChangesMap.get().empty()) {
-			objectChangesMap.remove();
+		
+		context.setPendingRecords(records);
+		return true;
+	}
+	
+	/**
+	 * Records the changes made to the specified updated entity in the current transaction
+	 * 
+	 * @param entity the updated entity
+	 * @param id the id of the entity
+	 * @param currentState the current property values
+	 * @param previousState the previous property values, null for a detached entity
+	 * @param propertyNames the property names
+	 * @param types the property types
+	 * @param dirtyProperties the indexes of the dirty properties if known otherwise null
+	 */
+	void recordUpdate(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+	                  String[] propertyNames, Type[] types, int[] dirtyProperties) {
+		BulkOperation bulkOperation = BulkOperation.current();
+		if (bulkOperation != null) {
+			if (!InterceptorUtil.matchesState(entity.getClass(), currentState)
+			        && (previousState == null || !InterceptorUtil.matchesState(entity.getClass(), previousState))) {
+				return;
+			}
+			//Only the updated objects are counted so there is no need to find the changed properties
+			bulkOperation.add(entity.getClass(), AuditLog.Action.UPDATED, id);
+			return;
+		}
+		
+		BitSet dirty = null;
+		if (dirtyProperties != null && previousState != null) {
+			dirty = new BitSet(propertyNames.length);
+			for (int index : dirtyProperties) {
+				dirty.set(index);
+			}
+		}
+		
+		if (previousState == null) {
+			//This is a detached object, its state in the DB is normally loaded in preFlush along with
+			//other detached objects, otherwise load it in a separate session
+			AuditTransactionContext context = getContext(false);
+			previousState = context != null ? context.removeDetachedState(entity) : null;
+			if (previousState == null) {
+				previousState = loadPreviousState(entity, id);
+			}
+		}
+		//An update is audited if the entity matched the conditions before or after it
+		if (!InterceptorUtil.matchesState(entity.getClass(), currentState)
+		        && !InterceptorUtil.matchesState(entity.getClass(), previousState)) {
+			return;
+		}
+		//The values are serialized when the transaction completes, this way if the entity is flushed
+		//multiple times we only serialize the final values once and keep the original previous values
+		AuditTransactionContext context = null;
+		EntityPropertyDescriptor descriptor = EntityPropertyDescriptor.get(entity.getClass(), propertyNames, types);
+		int[] comparedIndexes = descriptor.getComparedIndexes();
+		for (int i = 0; i < comparedIndexes.length; i++) {
+			int index = comparedIndexes[i];
+			if ((dirty != null && !dirty.get(index)) || descriptor.isUnchanged(i, previousState, currentState)) {
+				continue;
+			}
+			
+			if (context == null) {
+				if (log.isDebugEnabled()) {
+					log.debug("Creating log entry for updated object with id:" + id + " of type:"
+					        + entity.getClass().getName());
+				}
+				
+				context = getContext(true);
+				if (context == null || !context.isSampled(entity, AuditLog.Action.UPDATED)) {
+					return;
+				}
+			}
+			
+			Object previousValue = (previousState != null) ? previousState[index] : null;
+			Object currentValue = (currentState != null) ? currentState[index] : null;
+			context.addUpdate(entity, propertyNames[index], currentValue, previousValue);
 		}
-		if (entityCollectionsMap.get().empty()) {
-			entityCollectionsMap.remove();
+	}
+	
+	/**
+	 * Records the changes made to the specified updated collection or map of an audited entity in
+	 * the current transaction, it must be called before hibernate resets the collection's snapshot
+	 * 
+	 * @param persistentColl the updated collection or map
+	 */
+	@SuppressWarnings("rawtypes")
+	void recordCollectionUpdate(PersistentCollection persistentColl) {
+		Object owningObject = persistentColl.getOwner();
+		Map previousStoredSnapshotMap = (Map) persistentColl.getStoredSnapshot();
+		Object previousCollOrMap;
+		if (Collection.class.isAssignableFrom(persistentColl.getClass())) {
+			previousCollOrMap = previousStoredSnapshotMap.values();
+		} else {
+			previousCollOrMap = previousStoredSnapshotMap;
 		}
-		if (ownerUuidChildLogsMap.get().empty()) {
-			ownerUuidChildLogsMap.remove();
+		
+		handleUpdatedCollection(persistentColl, previousCollOrMap, owningObject, persistentColl.getRole());
+	}
+	
+	/**
+	 * Records the removal of the specified collection or map of an audited entity in the current
+	 * transaction, the elements of a removed collection are linked to the owner's log if the owner
+	 * is deleted otherwise the removal is treated as a regular collection update
+	 * 
+	 * @param persistentColl the removed collection or map
+	 * @param isOwnerDeleted specifies whether the owner of the collection is getting deleted
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	void recordCollectionRemove(PersistentCollection persistentColl, boolean isOwnerDeleted) {
+		Object owningObject = persistentColl.getOwner();
+		String role = persistentColl.getRole();
+		String propertyName = role.substring(role.lastIndexOf('.') + 1);
+		ClassMetadata cmd = AuditLogUtil.getClassMetadata(AuditLogUtil.getActualType(owningObject));
+		Object currentCollection = cmd.getPropertyValue(owningObject, propertyName);
+		
+		//Hibernate calls onCollectionRemove whenever the underlying collection is replaced with a
+		//new instance i.e one calls the collection's setter and passes in a new instance even if the
+		//new collection contains some elements, we want to treat this as regular collection update,
+		//Except if onCollectionRemove is called because the owner got purged from the DB.
+		if (Collection.class.isAssignableFrom(persistentColl.getClass())) {
+			Collection coll = (Collection) persistentColl;
+			if (!coll.isEmpty()) {
+				if (isOwnerDeleted) {
+					AuditTransactionContext context = getContext(true);
+					if (context != null) {
+						context.addRemovedChildren(owningObject, coll);
+					}
+				} else if (currentCollection == null) {
+					Class<?> propertyClass = cmd.getPropertyType(propertyName).getReturnedClass();
+					if (Set.class.isAssignableFrom(propertyClass)) {
+						currentCollection = Collections.EMPTY_SET;
+					} else if (List.class.isAssignableFrom(propertyClass)) {
+						currentCollection = Collections.EMPTY_LIST;
+					}
+				}
+			}
+		} else if (Map.class.isAssignableFrom(persistentColl.getClass())) {
+			Map map = (Map) persistentColl;
+			if (!map.isEmpty() && !isOwnerDeleted && currentCollection == null) {
+				currentCollection = Collections.EMPTY_MAP;
+			}
+		} else {
+			//TODO: Handle other persistent collections types e.g bags
 		}
-		if (childbjectUuidAuditLogMap.get().empty()) {
-			childbjectUuidAuditLogMap.remove();
+		
+		if (!isOwnerDeleted) {
+			handleUpdatedCollection(currentCollection, persistentColl, owningObject, role);
 		}
-		if (entityRemovedChildrenMap.get().empty()) {
-			entityRemovedChildrenMap.remove();
+	}
+	
+	/**
+	 * Loads the state in the DB of the specified detached object in a separate session
+	 */
+	private static Object[] loadPreviousState(Object entity, Serializable id) {
+		Session tmpSession = null;
+		SessionFactory sf = InterceptorUtil.getSessionFactory();
+		try {
+			tmpSession = sf.openSession();
+			Object obj = tmpSession.get(entity.getClass(), id);
+			
+			SharedSessionContractImplementor sessionImpl = (SharedSessionContractImplementor) tmpSession;
+			
+			EntityPersister ep = sessionImpl.getEntityPersister(null, obj);
+			return ep.getPropertyValues(obj);
 		}
-		if (date.get().empty()) {
-			date.remove();
+		finally {
+			if (tmpSession != null) {
+				SessionFactoryUtils.closeSession(tmpSession);
+			}
 		}
 	}
 	
@@ -623,9 +960,13 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 		
 		if (currentCollOrMap != null || previousCollOrMap != null) {
 			String propertyName = role.substring(role.lastIndexOf('.') + 1);
+			if (!InterceptorUtil.isPropertyAudited(owningObject.getClass(), propertyName)) {
+				return;
+			}
 			
-			if (objectChangesMap.get().peek().get(owningObject) == null) {
-				objectChangesMap.get().peek().put(owningObject, new HashMap<String, Object[]>());
+			AuditTransactionContext context = getContext(true);
+			if (context == null || !context.isSampled(owningObject, AuditLog.Action.UPDATED)) {
+				return;
 			}
 			
 			Object previousSerializedItems = null;
@@ -664,12 +1005,7 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 				Set<Object> removedItems = new HashSet<Object>();
 				removedItems.addAll(CollectionUtils.subtract(pColl, cColl));
 				if (!removedItems.isEmpty()) {
-					if (entityRemovedChildrenMap.get().peek().get(owningObject) == null) {
-						entityRemovedChildrenMap.get().peek().put(owningObject, new HashSet<Object>());
-					}
-					for (Object removedItem : removedItems) {
-						entityRemovedChildrenMap.get().peek().get(owningObject).add(removedItem);
-					}
+					context.addRemovedChildren(owningObject, removedItems);
 				}
 			} else if (Map.class.isAssignableFrom(collectionOrMapType)) {
 				//For some reason hibernate ends calling onCollectionUpdate even when the map has
@@ -683,9 +1019,7 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 				newSerializedItems = AuditLogUtil.serializeMapItems((Map) currentCollOrMap);
 			}
 			
-			updates.get().peek().add(owningObject);
-			objectChangesMap.get().peek().get(owningObject)
-			        .put(propertyName, new Object[] { newSerializedItems, previousSerializedItems });
+			context.addCollectionUpdate(owningObject, propertyName, newSerializedItems, previousSerializedItems);
 		}
 	}
 }
@@ -15,20 +15,31 @@ package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.EntityMode;
 import org.hibernate.SessionFactory;
 import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLogHelper;
 import org.openmrs.module.auditlog.api.db.AuditLogDAO;
 import org.openmrs.module.auditlog.api.db.DAOUtils;
 import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.openmrs.module.auditlog.writer.AsyncAuditLogWriter;
+import org.openmrs.module.auditlog.writer.AuditJournal;
+import org.openmrs.module.auditlog.writer.AuditLoadController;
+import org.openmrs.module.auditlog.writer.AuditLogCoalescer;
 
 /**
  * Contains utility methods used by the interceptor
@@ -41,6 +52,16 @@ final class InterceptorUtil {
 	
 	private static AuditLogHelper helper;
 	
+	private static AsyncAuditLogWriter writer;
+	
+	private static AuditLoadController loadController;
+	
+	private static AuditLogCoalescer coalescer;
+	
+	private static AuditJournal journal;
+	
+	private static SessionFactory sessionFactory;
+	
 	/**
 	 * @return the dao
 	 */
@@ -61,8 +82,80 @@ final class InterceptorUtil {
 		return helper;
 	}
 	
-	static void saveAuditLog(AuditLog auditLog) {
-		getAuditLogDao().save(auditLog);
+	/**
+	 * @return the asynchronous writer
+	 */
+	static AsyncAuditLogWriter getWriter() {
+		if (writer == null) {
+			writer = Context.getRegisteredComponents(AsyncAuditLogWriter.class).get(0);
+		}
+		return writer;
+	}
+	
+	/**
+	 * @return the load controller
+	 */
+	static AuditLoadController getLoadController() {
+		if (loadController == null) {
+			loadController = Context.getRegisteredComponents(AuditLoadController.class).get(0);
+		}
+		return loadController;
+	}
+	
+	/**
+	 * @return the coalescer
+	 */
+	static AuditLogCoalescer getCoalescer() {
+		if (coalescer == null) {
+			coalescer = Context.getRegisteredComponents(AuditLogCoalescer.class).get(0);
+		}
+		return coalescer;
+	}
+	
+	/**
+	 * @return the journal
+	 */
+	static AuditJournal getJournal() {
+		if (journal == null) {
+			journal = Context.getRegisteredComponents(AuditJournal.class).get(0);
+		}
+		return journal;
+	}
+	
+	static void saveAuditLogs(List<AuditLog> auditLogs) {
+		getAuditLogDao().saveAll(auditLogs);
+	}
+	
+	/**
+	 * Inserts the specified audit logs without adding them to the current session
+	 * 
+	 * @param auditLogs the audit logs to insert
+	 */
+	static void insertAuditLogs(List<AuditLog> auditLogs) {
+		getAuditLogDao().insertAll(auditLogs);
+	}
+	
+	/**
+	 * @return a new set that compares its elements by identity
+	 */
+	static Set<Object> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	}
+	
+	/**
+	 * Gets the actual instance behind an initialized proxy
+	 * 
+	 * @param object the object to unproxy
+	 * @return the actual instance or the object itself if it is not an initialized proxy
+	 */
+	static Object unproxy(Object object) {
+		if (object instanceof HibernateProxy) {
+			LazyInitializer initializer = ((HibernateProxy) object).getHibernateLazyInitializer();
+			if (!initializer.isUninitialized()) {
+				return initializer.getImplementation();
+			}
+		}
+		return object;
 	}
 	
 	/**
@@ -72,7 +165,57 @@ final class InterceptorUtil {
 	 * @return true if is audited or implicitly audited otherwise false
 	 */
 	static boolean isAudited(Class<?> clazz) {
-		return getHelper().isAudited(clazz) || getHelper().isImplicitlyAudited(clazz);
+		//AuditLogs are never audited, checking them first also means the inserts made by
+		//the async writer's thread never need to look up the strategy or its caches
+		if (AuditLogHelper.CORE_EXCEPTIONS.contains(clazz)) {
+			return false;
+		}
+		return getHelper().getDecisionTable().isAudited(clazz);
+	}
+	
+	/**
+	 * Checks if the specified change of an audited type should be audited under the sampling policy
+	 * of the type
+	 * 
+	 * @param clazz the type of the changed object
+	 * @param action the action performed on the object
+	 * @return true if the change should be audited otherwise false
+	 */
+	static boolean isSampled(Class<?> clazz, AuditLog.Action action) {
+		return getHelper().getDecisionTable().isSampled(clazz, action);
+	}
+	
+	/**
+	 * Checks if the changes of the specified audited type are sampled
+	 * 
+	 * @param clazz the type to check
+	 * @return true if the type has a sampling policy otherwise false
+	 */
+	static boolean hasSamplingPolicy(Class<?> clazz) {
+		return getHelper().getDecisionTable().getSamplingPolicies().containsKey(clazz);
+	}
+	
+	/**
+	 * Checks if a change to an entity of the specified audited type with the specified state is
+	 * audited under the conditions of the audit strategy
+	 * 
+	 * @param clazz the type of the entity
+	 * @param state the property values of the entity
+	 * @return true if the change is audited otherwise false
+	 */
+	static boolean matchesState(Class<?> clazz, Object[] state) {
+		return getHelper().getDecisionTable().matchesState(clazz, state);
+	}
+	
+	/**
+	 * Checks if changes to the specified property of the specified type are audited
+	 * 
+	 * @param clazz the type declaring the property
+	 * @param propertyName the name of the property
+	 * @return true if the property is audited otherwise false
+	 */
+	static boolean isPropertyAudited(Class<?> clazz, String propertyName) {
+		return getHelper().getDecisionTable().isPropertyAudited(clazz, propertyName);
 	}
 	
 	/**
@@ -84,13 +227,18 @@ final class InterceptorUtil {
 	static String serializePersistentObject(Object object) {
 		//TODO Might be better to use xstream
 		Map<String, Object> propertyNameValueMap = null;
-		ClassMetadata cmd = DAOUtils.getClassMetadata(AuditLogUtil.getActualType(object));
+		Class<?> type = AuditLogUtil.getActualType(object);
+		ClassMetadata cmd = DAOUtils.getClassMetadata(type);
 		if (cmd != null) {
+			Predicate<String> propertyFilter = getHelper().getDecisionTable().getPropertyFilter(type);
 			propertyNameValueMap = new HashMap<String, Object>();
 //			propertyNameValueMap.put(cmd.getIdentifierPropertyName(), cmd.getIdentifier(object, EntityMode.POJO));
 			propertyNameValueMap.put(cmd.getIdentifierPropertyName(), cmd.getIdentifier(object));
 
 			for (String propertyName : cmd.getPropertyNames()) {
+				if (!propertyFilter.test(propertyName)) {
+					continue;
+				}
 //				Object value = cmd.getPropertyValue(object, propertyName, EntityMode.POJO);
 				Object value = cmd.getPropertyValue(object, propertyName);
 				if (value != null) {
@@ -115,13 +263,24 @@ final class InterceptorUtil {
 	}
 	
 	static SessionFactory getSessionFactory() {
-		return Context.getRegisteredComponents(SessionFactory.class).get(0);
+		if (sessionFactory == null) {
+			sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+		}
+		return sessionFactory;
 	}
 	
 	static boolean storeLastStateOfDeletedItems() {
 		return getAuditLogDao().storeLastStateOfDeletedItems();
 	}
 	
+	static int getFlushThreshold() {
+		return getAuditLogDao().getFlushThreshold();
+	}
+	
+	static boolean mergeNestedTransactions() {
+		return getAuditLogDao().mergeNestedTransactions();
+	}
+	
 	static Serializable getId(Object object) {
 		return getAuditLogDao().getId(object);
 	}
@@ -0,0 +1,112 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.orm.hibernate5.SessionFactoryUtils;
+
+/**
+ * Loads the states in the DB of detached entities that were reattached to a session, hibernate
+ * has no loaded state for such entities so it passes a null previous state to the interceptor.
+ * Instead of a separate session and a select per entity, the entities are collected before the
+ * flush and their states are loaded in a single read only session with one query per entity type.
+ */
+final class PreviousStateLoader {
+	
+	private static final Log log = LogFactory.getLog(PreviousStateLoader.class);
+	
+	private final Map<EntityPersister, List<Object>> entitiesByPersister = new LinkedHashMap<EntityPersister, List<Object>>();
+	
+	private final Map<EntityPersister, List<Serializable>> idsByPersister = new LinkedHashMap<EntityPersister, List<Serializable>>();
+	
+	private int size;
+	
+	/**
+	 * Adds an entity whose previous state should be loaded
+	 *
+	 * @param persister the persister of the entity
+	 * @param entity the entity
+	 * @param id the id of the entity
+	 */
+	void add(EntityPersister persister, Object entity, Serializable id) {
+		List<Object> entities = entitiesByPersister.get(persister);
+		if (entities == null) {
+			entities = new ArrayList<Object>();
+			entitiesByPersister.put(persister, entities);
+			idsByPersister.put(persister, new ArrayList<Serializable>());
+		}
+		entities.add(entity);
+		idsByPersister.get(persister).add(id);
+		size++;
+	}
+	
+	boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Loads the states of the added entities
+	 *
+	 * @param sf the session factory to use
+	 * @return a map of the entities to their property values in the DB, entities that no longer
+	 *         exist in the DB are left out
+	 * @should open a single session and run one query per entity type
+	 */
+	Map<Object, Object[]> load(SessionFactory sf) {
+		Map<Object, Object[]> states = new IdentityHashMap<Object, Object[]>(size);
+		Session tmpSession = null;
+		try {
+			tmpSession = sf.openSession();
+			tmpSession.setDefaultReadOnly(true);
+			tmpSession.setHibernateFlushMode(FlushMode.MANUAL);
+			for (Map.Entry<EntityPersister, List<Object>> entry : entitiesByPersister.entrySet()) {
+				EntityPersister persister = entry.getKey();
+				List<Object> entities = entry.getValue();
+				//The loaded objects are returned in the same order as the ids with nulls for missing ones
+				List<?> loaded = tmpSession.byMultipleIds(persister.getMappedClass()).multiLoad(
+				    idsByPersister.get(persister));
+				for (int i = 0; i < entities.size(); i++) {
+					Object obj = loaded.get(i);
+					if (obj != null) {
+						states.put(entities.get(i), persister.getPropertyValues(obj));
+					}
+				}
+			}
+		}
+		finally {
+			if (tmpSession != null) {
+				SessionFactoryUtils.closeSession(tmpSession);
+			}
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Loaded the previous states of " + states.size() + " detached object(s) of "
+			        + entitiesByPersister.size() + " type(s)");
+		}
+		
+		return states;
+	}
+}
@@ -25,9 +25,11 @@ import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
 import org.openmrs.module.auditlog.AuditLogHelper;
+import org.openmrs.module.auditlog.BulkAuditSummary;
 import org.openmrs.module.auditlog.api.AuditLogService;
 import org.openmrs.module.auditlog.api.db.AuditLogDAO;
 import org.openmrs.module.auditlog.api.db.DAOUtils;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.BulkOperation;
 import org.openmrs.module.auditlog.strategy.AuditStrategy;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
 import org.openmrs.util.OpenmrsUtil;
@@ -165,4 +167,39 @@ public class AuditLogServiceImpl extends BaseOpenmrsService implements AuditLogS
 	                                   boolean excludeChildAuditLogs) {
 		return getAuditLogs(dao.getId(object), object.getClass(), actions, startDate, endDate, excludeChildAuditLogs);
 	}
+	
+	/**
+	 * @see AuditLogService#runInBulkMode(String, Runnable)
+	 */
+	@Override
+	public List<BulkAuditSummary> runInBulkMode(String label, Runnable operation) {
+		if (StringUtils.isBlank(label)) {
+			throw new APIException("A label is required for a bulk operation");
+		}
+		
+		BulkOperation bulkOperation = BulkOperation.begin(label);
+		try {
+			operation.run();
+			//Updates and deletes are only detected when the session is flushed
+			Context.flushSession();
+		}
+		finally {
+			bulkOperation.end();
+		}
+		
+		List<BulkAuditSummary> summaries = bulkOperation.getSummaries(Context.getAuthenticatedUser());
+		for (BulkAuditSummary summary : summaries) {
+			dao.save(summary);
+		}
+		return summaries;
+	}
+	
+	/**
+	 * @see AuditLogService#getBulkAuditSummaries(String)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<BulkAuditSummary> getBulkAuditSummaries(String label) {
+		return dao.getBulkAuditSummaries(label);
+	}
 }
@@ -0,0 +1,134 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.strategy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.hibernate.proxy.HibernateProxy;
+import org.openmrs.OpenmrsObject;
+
+/**
+ * A rule of the {@link RuleBasedAuditStrategy}, it marks a type and its subclasses as audited
+ * either unconditionally or only for the entities whose value of a property is among the specified
+ * values, for a property that references another entity the value is the id of the referenced
+ * entity.
+ */
+public final class AuditRule {
+	
+	private final Class<?> type;
+	
+	private final String propertyName;
+	
+	private final Set<Object> values;
+	
+	/**
+	 * Creates a rule that audits all entities of the specified type
+	 *
+	 * @param type the audited type
+	 */
+	public AuditRule(Class<?> type) {
+		this(type, null, null);
+	}
+	
+	/**
+	 * Creates a rule that audits the entities of the specified type whose value of the specified
+	 * property is among the specified values
+	 *
+	 * @param type the audited type
+	 * @param propertyName the name of the property to check
+	 * @param values the values of the property for which an entity is audited
+	 */
+	public AuditRule(Class<?> type, String propertyName, Collection<String> values) {
+		this.type = type;
+		this.propertyName = propertyName;
+		if (values == null) {
+			this.values = null;
+		} else {
+			Set<Object> set = new HashSet<Object>();
+			for (String value : values) {
+				String trimmed = value.trim();
+				set.add(trimmed);
+				//Ids are mostly integers, this avoids converting them to strings for every check
+				if (NumberUtils.isDigits(trimmed)) {
+					set.add(Integer.valueOf(trimmed));
+				}
+			}
+			this.values = Collections.unmodifiableSet(set);
+		}
+	}
+	
+	public Class<?> getType() {
+		return type;
+	}
+	
+	public String getPropertyName() {
+		return propertyName;
+	}
+	
+	/**
+	 * @param clazz the class to check
+	 * @return true if the rule applies to the specified class i.e. it is the type of the rule or
+	 *         one of its subclasses
+	 */
+	public boolean appliesTo(Class<?> clazz) {
+		return type.isAssignableFrom(clazz);
+	}
+	
+	/**
+	 * Compiles the rule against the property names of a mapped type
+	 *
+	 * @param propertyNames the property names of the type in the order of its state
+	 * @return the compiled condition or null if the rule has no condition
+	 * @should match an entity whose property value is among the values
+	 * @should match an entity that references an entity whose id is among the values
+	 * @should never match if the type has no such property
+	 */
+	public StateCondition compile(String[] propertyNames) {
+		if (propertyName == null) {
+			return null;
+		}
+		final int index = ArrayUtils.indexOf(propertyNames, propertyName);
+		if (index < 0) {
+			return state -> false;
+		}
+		return state -> {
+			Object value = state[index];
+			return value != null && values.contains(toComparableValue(value));
+		};
+	}
+	
+	private static Object toComparableValue(Object value) {
+		if (value instanceof HibernateProxy) {
+			//Reading the id of a proxy doesn't initialize it
+			return ((HibernateProxy) value).getHibernateLazyInitializer().getIdentifier();
+		}
+		if (value instanceof OpenmrsObject) {
+			return ((OpenmrsObject) value).getId();
+		}
+		if (value instanceof Integer || value instanceof String) {
+			return value;
+		}
+		return value.toString();
+	}
+	
+	@Override
+	public String toString() {
+		return type.getName() + (propertyName != null ? "." + propertyName + "=" + values : "");
+	}
+}
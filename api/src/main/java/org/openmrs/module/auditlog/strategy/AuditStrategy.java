@@ -51,4 +51,28 @@ public interface AuditStrategy {
 	 */
 	boolean isAudited(Class<?> clazz);
 	
+	/**
+	 * Gets the policy that decides which creates and updates of the specified audited type get an
+	 * audit log, deletes are always audited
+	 * 
+	 * @param clazz the audited class
+	 * @return the sampling policy or null if every change of the type is audited
+	 */
+	default SamplingPolicy getSamplingPolicy(Class<?> clazz) {
+		return null;
+	}
+	
+	/**
+	 * Gets the condition on the state of the entities of the specified audited type that decides
+	 * which of their changes are audited, it is called once per mapped type when the audit
+	 * configuration is loaded
+	 * 
+	 * @param clazz the audited class
+	 * @param propertyNames the property names of the class in the order of the state of its entities
+	 * @return the condition or null if the changes to all entities of the type are audited
+	 */
+	default StateCondition getStateCondition(Class<?> clazz, String[] propertyNames) {
+		return null;
+	}
+	
 }
@@ -13,11 +13,25 @@
  */
 package org.openmrs.module.auditlog.strategy;
 
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLogHelper;
+
 /**
  * A Superclass for all AuditStrategy Implementations that base equality on the Type
  */
 public abstract class BaseAuditStrategy implements AuditStrategy {
 	
+	/**
+	 * Looks up the sampling policy of the specified type as configured via the
+	 * {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_SAMPLING_POLICIES} global property
+	 * 
+	 * @see AuditStrategy#getSamplingPolicy(Class)
+	 */
+	@Override
+	public SamplingPolicy getSamplingPolicy(Class<?> clazz) {
+		return Context.getRegisteredComponents(AuditLogHelper.class).get(0).getSamplingPolicies().get(clazz);
+	}
+	
 	@Override
 	public boolean equals(Object o) {
 		if (o == null) {
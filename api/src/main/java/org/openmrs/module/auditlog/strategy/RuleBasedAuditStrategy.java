@@ -0,0 +1,79 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.strategy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLogHelper;
+
+/**
+ * Audits the types that have {@link AuditRule}s as specified via the
+ * {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_AUDIT_RULES} global property, a
+ * type with conditional rules only has the changes to the entities that match any of its rules
+ * audited e.g. only the Obs for specific concepts. The rules are compiled into
+ * {@link StateCondition}s once per mapped type when the audit configuration is loaded.
+ */
+public final class RuleBasedAuditStrategy extends BaseAuditStrategy {
+	
+	private AuditLogHelper helper = null;
+	
+	/**
+	 * Gets the AuditLogHelper instance
+	 * 
+	 * @return
+	 */
+	public AuditLogHelper getHelper() {
+		if (helper == null) {
+			helper = Context.getRegisteredComponents(AuditLogHelper.class).get(0);
+		}
+		return helper;
+	}
+	
+	/**
+	 * @see AuditStrategy#isAudited(Class)
+	 * @should return true for a type with a rule or a subclass of it
+	 * @should return false for a type without rules
+	 */
+	@Override
+	public boolean isAudited(Class<?> clazz) {
+		for (AuditRule rule : getHelper().getAuditRules()) {
+			if (rule.appliesTo(clazz)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @see AuditStrategy#getStateCondition(Class, String[])
+	 * @should return null if the type has an unconditional rule
+	 * @should combine the conditions of the rules of the type
+	 */
+	@Override
+	public StateCondition getStateCondition(Class<?> clazz, String[] propertyNames) {
+		List<StateCondition> conditions = new ArrayList<StateCondition>();
+		for (AuditRule rule : getHelper().getAuditRules()) {
+			if (rule.appliesTo(clazz)) {
+				StateCondition condition = rule.compile(propertyNames);
+				if (condition == null) {
+					return null;
+				}
+				conditions.add(condition);
+			}
+		}
+		return conditions.isEmpty() ? null : StateCondition.anyOf(conditions);
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.strategy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.api.APIException;
+
+/**
+ * Decides which creates and updates of an audited type get an audit log for types that change too
+ * often to audit every change, deletes are always audited. The number of sampled and skipped
+ * changes are counted so that the audit logs can still be used to estimate the totals.
+ */
+public abstract class SamplingPolicy {
+	
+	private static final String PER_SECOND_SUFFIX = "/s";
+	
+	private final AtomicLong sampledCount = new AtomicLong();
+	
+	private final AtomicLong skippedCount = new AtomicLong();
+	
+	/**
+	 * Creates a policy that audits one in every n changes
+	 *
+	 * @param n the sampling interval
+	 * @return the policy
+	 */
+	public static SamplingPolicy oneIn(int n) {
+		if (n < 1) {
+			throw new APIException("The sampling interval should be a positive number");
+		}
+		return new OneInNSamplingPolicy(n);
+	}
+	
+	/**
+	 * Creates a policy that audits at most the specified number of changes per second, allowing
+	 * bursts of up to that number of changes
+	 *
+	 * @param permitsPerSecond the number of changes per second
+	 * @return the policy
+	 */
+	public static SamplingPolicy perSecond(int permitsPerSecond) {
+		if (permitsPerSecond < 1) {
+			throw new APIException("The number of changes per second should be a positive number");
+		}
+		return new TokenBucketSamplingPolicy(permitsPerSecond);
+	}
+	
+	/**
+	 * Creates a policy from its string form, a number n for one in every n changes or a number
+	 * followed by /s for a maximum number of changes per second
+	 *
+	 * @param value the string to parse e.g. 10 or 100/s
+	 * @return the policy
+	 * @should parse a one in n policy
+	 * @should parse a per second policy
+	 * @should fail for an invalid value
+	 */
+	public static SamplingPolicy parse(String value) {
+		String trimmed = StringUtils.trimToEmpty(value);
+		boolean perSecond = trimmed.endsWith(PER_SECOND_SUFFIX);
+		String number = perSecond ? trimmed.substring(0, trimmed.length() - PER_SECOND_SUFFIX.length()).trim() : trimmed;
+		if (!StringUtils.isNumeric(number) || number.isEmpty()) {
+			throw new APIException("Invalid sampling policy: " + value);
+		}
+		int n = Integer.parseInt(number);
+		return perSecond ? perSecond(n) : oneIn(n);
+	}
+	
+	/**
+	 * Decides if the current change should be audited and counts the decision
+	 *
+	 * @return true if the change should be audited otherwise false
+	 * @should audit one in every n changes
+	 * @should audit at most the specified number of changes per second
+	 */
+	public final boolean sample() {
+		boolean sampled = doSample();
+		(sampled ? sampledCount : skippedCount).incrementAndGet();
+		return sampled;
+	}
+	
+	/**
+	 * Adds the counts of the specified policy that this one replaces so that the counts survive
+	 * changes to the configuration
+	 *
+	 * @param previous the replaced policy
+	 * @should add the counts of the previous policy
+	 */
+	public void carryOver(SamplingPolicy previous) {
+		sampledCount.addAndGet(previous.getSampledCount());
+		skippedCount.addAndGet(previous.getSkippedCount());
+	}
+	
+	/**
+	 * @return the number of changes that were audited
+	 */
+	public long getSampledCount() {
+		return sampledCount.get();
+	}
+	
+	/**
+	 * @return the number of changes that were not audited
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+	
+	protected abstract boolean doSample();
+	
+	private static final class OneInNSamplingPolicy extends SamplingPolicy {
+		
+		private final int n;
+		
+		private final AtomicLong counter = new AtomicLong();
+		
+		OneInNSamplingPolicy(int n) {
+			this.n = n;
+		}
+		
+		@Override
+		protected boolean doSample() {
+			return counter.getAndIncrement() % n == 0;
+		}
+		
+		@Override
+		public String toString() {
+			return Integer.toString(n);
+		}
+	}
+	
+	private static final class TokenBucketSamplingPolicy extends SamplingPolicy {
+		
+		private final int permitsPerSecond;
+		
+		private double tokens;
+		
+		private long lastRefill = System.nanoTime();
+		
+		TokenBucketSamplingPolicy(int permitsPerSecond) {
+			this.permitsPerSecond = permitsPerSecond;
+			this.tokens = permitsPerSecond;
+		}
+		
+		@Override
+		protected synchronized boolean doSample() {
+			long now = System.nanoTime();
+			tokens = Math.min(permitsPerSecond, tokens + (now - lastRefill) * permitsPerSecond / 1e9);
+			lastRefill = now;
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			return permitsPerSecond + PER_SECOND_SUFFIX;
+		}
+	}
+}
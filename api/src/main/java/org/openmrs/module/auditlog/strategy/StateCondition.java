@@ -0,0 +1,53 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.strategy;
+
+import java.util.List;
+
+/**
+ * A condition on the state of an entity that decides if a change to it is audited, it is compiled
+ * once per mapped type against the property names of the type so that evaluating it only involves
+ * looking up property values by index.
+ */
+@FunctionalInterface
+public interface StateCondition {
+	
+	/**
+	 * @param state the property values of the entity in the order of the property names the
+	 *            condition was compiled against
+	 * @return true if the entity with the specified state is audited otherwise false
+	 */
+	boolean matches(Object[] state);
+	
+	/**
+	 * Combines the specified conditions into one that matches if any of them matches
+	 *
+	 * @param conditions the conditions to combine
+	 * @return the combined condition
+	 */
+	static StateCondition anyOf(List<StateCondition> conditions) {
+		if (conditions.size() == 1) {
+			return conditions.get(0);
+		}
+		final StateCondition[] array = conditions.toArray(new StateCondition[conditions.size()]);
+		return state -> {
+			for (StateCondition condition : array) {
+				if (condition.matches(state)) {
+					return true;
+				}
+			}
+			return false;
+		};
+	}
+}
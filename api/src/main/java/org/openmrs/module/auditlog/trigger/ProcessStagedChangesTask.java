@@ -0,0 +1,48 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.trigger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that creates audit logs from the changes staged by the DB triggers
+ * 
+ * @see StagedChangeProcessor
+ */
+public class ProcessStagedChangesTask extends AbstractTask {
+	
+	private static final Log log = LogFactory.getLog(ProcessStagedChangesTask.class);
+	
+	/**
+	 * @see org.openmrs.scheduler.tasks.AbstractTask#execute()
+	 */
+	@Override
+	public void execute() {
+		if (!isExecuting) {
+			startExecuting();
+			try {
+				Context.getRegisteredComponents(StagedChangeProcessor.class).get(0).processStagedChanges();
+			}
+			catch (Exception e) {
+				log.error("Failed to process the staged audit log changes:", e);
+			}
+			finally {
+				stopExecuting();
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.trigger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.openmrs.User;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogHelper;
+import org.openmrs.module.auditlog.api.db.AuditLogDAO;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.util.OpenmrsConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Turns the rows written by the triggers installed by {@link TriggerCaptureManager} into audit
+ * logs, the rows are processed in batches each in its own transaction and removed from the staging
+ * table once their audit logs are saved.
+ */
+@Component("auditLogStagedChangeProcessor")
+public class StagedChangeProcessor {
+	
+	private static final Log log = LogFactory.getLog(StagedChangeProcessor.class);
+	
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	@Autowired
+	@Qualifier("auditLogDAO")
+	private AuditLogDAO dao;
+	
+	@Autowired
+	private AuditLogHelper helper;
+	
+	/**
+	 * Processes all staged rows
+	 *
+	 * @return the number of created audit logs
+	 */
+	public int processStagedChanges() {
+		Map<String, Class<?>> typesByTable = getTypesByTable();
+		TransactionTemplate txTemplate = new TransactionTemplate(transactionManager);
+		int total = 0;
+		int count;
+		do {
+			count = txTemplate.execute(status -> processBatch(typesByTable, DEFAULT_BATCH_SIZE));
+			total += count;
+		} while (count == DEFAULT_BATCH_SIZE);
+		
+		if (total > 0 && log.isDebugEnabled()) {
+			log.debug("Created " + total + " audit log(s) from staged changes");
+		}
+		
+		return total;
+	}
+	
+	private int processBatch(Map<String, Class<?>> typesByTable, int batchSize) {
+		Session session = sessionFactory.getCurrentSession();
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = session.createNativeQuery(
+		    "SELECT id, table_name, row_id, action, user_id, date_created FROM " + TriggerCaptureManager.STAGING_TABLE
+		            + " ORDER BY id").setMaxResults(batchSize).list();
+		if (rows.isEmpty()) {
+			return 0;
+		}
+		
+		List<Long> ids = new ArrayList<Long>(rows.size());
+		List<AuditLog> auditLogs = new ArrayList<AuditLog>(rows.size());
+		for (Object[] row : rows) {
+			ids.add(((Number) row[0]).longValue());
+			String table = ((String) row[1]).toLowerCase();
+			Class<?> type = typesByTable.get(table);
+			//The types may have changed since the row was staged
+			String typeName = type != null ? type.getName() : table;
+			Action action = Action.valueOf((String) row[3]);
+			User user = row[4] != null ? session.load(User.class, ((Number) row[4]).intValue()) : null;
+			AuditLog auditLog = new AuditLog(typeName, (String) row[2], action, user, (Date) row[5]);
+			auditLog.setOpenmrsVersion(OpenmrsConstants.OPENMRS_VERSION_SHORT);
+			auditLog.setModuleVersion(AuditLogConstants.MODULE_VERSION);
+			auditLogs.add(auditLog);
+		}
+		
+		dao.saveAll(auditLogs);
+		session.createNativeQuery("DELETE FROM " + TriggerCaptureManager.STAGING_TABLE + " WHERE id IN (:ids)")
+		        .setParameterList("ids", ids).executeUpdate();
+		
+		return rows.size();
+	}
+	
+	private Map<String, Class<?>> getTypesByTable() {
+		SessionFactoryImplementor sfi = (SessionFactoryImplementor) sessionFactory;
+		Map<String, Class<?>> typesByTable = new HashMap<String, Class<?>>();
+		for (Class<?> type : helper.getTriggerCapturedTypes()) {
+			AbstractEntityPersister persister = (AbstractEntityPersister) sfi.getMetamodel().entityPersister(type);
+			//Rows are logged as the root type since the trigger is on the root table
+			if (persister.getEntityName().equals(persister.getRootEntityName())) {
+				typesByTable.put(persister.getRootTableName().toLowerCase(), type);
+			}
+		}
+		return typesByTable;
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.trigger;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogHelper;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.orm.hibernate5.SessionFactoryUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Installs DB triggers for the types specified via the
+ * {@link AuditLogConstants#GP_TRIGGER_CAPTURED_TYPES} global property, the triggers write a
+ * compact row per inserted, updated or deleted row into the {@link #STAGING_TABLE} table and
+ * {@link StagedChangeProcessor} turns the rows into audit logs. The interceptor ignores these types
+ * so the overhead of capturing their changes in java is gone and changes that are not made via
+ * hibernate are captured too, the audit logs don't include the changed property values though.
+ *
+ * <pre>
+ * Triggers are generated for MySQL, on H2 they call a java trigger which is provided by the
+ * module's tests since H2 is only used for testing.
+ * </pre>
+ */
+@Component("auditLogTriggerCaptureManager")
+public class TriggerCaptureManager implements GlobalPropertyListener {
+	
+	private static final Log log = LogFactory.getLog(TriggerCaptureManager.class);
+	
+	public static final String STAGING_TABLE = "auditlog_staged_change";
+	
+	public static final String TRIGGER_PREFIX = "auditlog_";
+	
+	public static final String H2_TRIGGER_CLASS = "org.openmrs.module.auditlog.trigger.H2StagingTrigger";
+	
+	//Columns holding the user that last changed a row, the first one that is set is used
+	private static final String[] UPDATE_USER_PROPERTIES = { "changedBy", "voidedBy", "retiredBy" };
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Autowired
+	private AuditLogHelper helper;
+	
+	/**
+	 * Installs the triggers for the types specified via the global property
+	 */
+	public void installTriggers() {
+		installTriggers(helper.getTriggerCapturedTypes());
+	}
+	
+	/**
+	 * Drops any existing triggers created by the module and creates the triggers for the
+	 * specified types
+	 *
+	 * @param types the types to create the triggers for
+	 */
+	public synchronized void installTriggers(Set<Class<?>> types) {
+		SessionFactoryImplementor sfi = (SessionFactoryImplementor) sessionFactory;
+		Dialect dialect = sfi.getJdbcServices().getDialect();
+		final boolean isMySql = dialect instanceof MySQLDialect;
+		boolean isH2 = dialect instanceof H2Dialect && ClassUtils.isPresent(H2_TRIGGER_CLASS, getClass().getClassLoader());
+		if (!isMySql && !isH2) {
+			if (!types.isEmpty()) {
+				log.warn("Capturing changes with DB triggers is not supported for " + dialect.getClass().getName()
+				        + ", changes will be captured by the interceptor");
+			}
+			return;
+		}
+		
+		//Only root types are accepted and their subclasses share or join the root table, so a
+		//trigger on the root table covers the whole hierarchy which is excluded from the interceptor
+		Map<String, AbstractEntityPersister> persistersByTable = new HashMap<String, AbstractEntityPersister>();
+		for (Class<?> type : types) {
+			AbstractEntityPersister persister = (AbstractEntityPersister) sfi.getMetamodel().entityPersister(type);
+			if (persister.getEntityName().equals(persister.getRootEntityName())) {
+				persistersByTable.put(persister.getRootTableName(), persister);
+			}
+		}
+		
+		final List<String> statements = new ArrayList<String>();
+		for (Map.Entry<String, AbstractEntityPersister> entry : persistersByTable.entrySet()) {
+			if (isMySql) {
+				statements.addAll(getMySqlTriggerStatements(entry.getKey(), entry.getValue()));
+			} else {
+				statements.addAll(getH2TriggerStatements(entry.getKey()));
+			}
+		}
+		
+		Session session = null;
+		try {
+			session = sessionFactory.openSession();
+			session.doWork(connection -> {
+				try (Statement statement = connection.createStatement()) {
+					List<String> existing = new ArrayList<String>();
+					String query = "SELECT TRIGGER_NAME FROM INFORMATION_SCHEMA.TRIGGERS WHERE UPPER(TRIGGER_NAME) LIKE 'AUDITLOG\\_%'";
+					if (isMySql) {
+						query += " AND TRIGGER_SCHEMA = DATABASE()";
+					}
+					try (ResultSet rs = statement.executeQuery(query)) {
+						while (rs.next()) {
+							existing.add(rs.getString(1));
+						}
+					}
+					for (String trigger : existing) {
+						statement.execute("DROP TRIGGER " + trigger);
+					}
+					for (String sql : statements) {
+						statement.execute(sql);
+					}
+				}
+			});
+			
+			if (log.isInfoEnabled()) {
+				log.info("Installed audit log triggers for " + persistersByTable.size() + " table(s)");
+			}
+		}
+		catch (Exception e) {
+			log.error("Failed to install the audit log triggers:", e);
+		}
+		finally {
+			if (session != null) {
+				SessionFactoryUtils.closeSession(session);
+			}
+		}
+	}
+	
+	private static List<String> getMySqlTriggerStatements(String table, AbstractEntityPersister persister) {
+		String insertUserColumn = getColumn(persister, "creator");
+		List<String> updateUserColumns = new ArrayList<String>();
+		for (String property : UPDATE_USER_PROPERTIES) {
+			String column = getColumn(persister, property);
+			if (column != null) {
+				updateUserColumns.add(column);
+			}
+		}
+		return getMySqlTriggerStatements(table, persister.getIdentifierColumnNames()[0], insertUserColumn,
+		    updateUserColumns);
+	}
+	
+	/**
+	 * Generates the statements that create the MySQL triggers for the specified table
+	 *
+	 * @param table the table name
+	 * @param idColumn the primary key column
+	 * @param insertUserColumn the column holding the user that created a row, can be null
+	 * @param updateUserColumns the columns holding the user that last changed a row
+	 * @return the create trigger statements
+	 * @should generate an after insert, update and delete trigger
+	 * @should use null for the user if the table has no user columns
+	 */
+	static List<String> getMySqlTriggerStatements(String table, String idColumn, String insertUserColumn,
+	                                              List<String> updateUserColumns) {
+		String updateUser;
+		if (updateUserColumns.isEmpty()) {
+			updateUser = "NULL";
+		} else if (updateUserColumns.size() == 1) {
+			updateUser = "NEW." + updateUserColumns.get(0);
+		} else {
+			StringBuilder sb = new StringBuilder("COALESCE(");
+			for (int i = 0; i < updateUserColumns.size(); i++) {
+				sb.append(i > 0 ? ", " : "").append("NEW.").append(updateUserColumns.get(i));
+			}
+			updateUser = sb.append(")").toString();
+		}
+		
+		List<String> statements = new ArrayList<String>(3);
+		statements.add(getMySqlTriggerStatement(table, "ai", "INSERT", "NEW." + idColumn, Action.CREATED,
+		    insertUserColumn != null ? "NEW." + insertUserColumn : "NULL"));
+		statements.add(getMySqlTriggerStatement(table, "au", "UPDATE", "NEW." + idColumn, Action.UPDATED, updateUser));
+		statements.add(getMySqlTriggerStatement(table, "ad", "DELETE", "OLD." + idColumn, Action.DELETED, "NULL"));
+		return statements;
+	}
+	
+	private static String getMySqlTriggerStatement(String table, String suffix, String event, String rowId,
+	                                               Action action, String user) {
+		return "CREATE TRIGGER " + TRIGGER_PREFIX + table + "_" + suffix + " AFTER " + event + " ON " + table
+		        + " FOR EACH ROW INSERT INTO " + STAGING_TABLE
+		        + " (table_name, row_id, action, user_id, date_created) VALUES ('" + table + "', " + rowId + ", '"
+		        + action.name() + "', " + user + ", NOW())";
+	}
+	
+	private static List<String> getH2TriggerStatements(String table) {
+		List<String> statements = new ArrayList<String>(3);
+		statements.add(getH2TriggerStatement(table, "ai", "INSERT"));
+		statements.add(getH2TriggerStatement(table, "au", "UPDATE"));
+		statements.add(getH2TriggerStatement(table, "ad", "DELETE"));
+		return statements;
+	}
+	
+	private static String getH2TriggerStatement(String table, String suffix, String event) {
+		return "CREATE TRIGGER " + TRIGGER_PREFIX + table + "_" + suffix + " AFTER " + event + " ON " + table
+		        + " FOR EACH ROW CALL \"" + H2_TRIGGER_CLASS + "\"";
+	}
+	
+	private static String getColumn(AbstractEntityPersister persister, String propertyName) {
+		for (String name : persister.getPropertyNames()) {
+			if (name.equals(propertyName)) {
+				String[] columns = persister.getPropertyColumnNames(propertyName);
+				return columns.length == 1 ? columns[0] : null;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String gpName) {
+		return AuditLogConstants.GP_TRIGGER_CAPTURED_TYPES.equals(gpName);
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty gp) {
+		//The helper's cache might not have been cleared yet
+		installTriggers(helper.getTriggerCapturedTypes(gp.getPropertyValue()));
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String gpName) {
+		installTriggers(helper.getTriggerCapturedTypes(null));
+	}
+}
@@ -37,6 +37,66 @@ public final class AuditLogConstants {
 	//Specifies whether the last states of deleted items should be stored on the auditlog
 	public static final String GP_STORE_LAST_STATE_OF_DELETED_ITEMS = MODULE_ID + ".storeLastStateOfDeletedItems";
 	
+	//Specifies whether audit logs should be written by a background thread instead of the audited transaction
+	public static final String GP_ASYNC_WRITE_ENABLED = MODULE_ID + ".asyncWriteEnabled";
+	
+	//Specifies the maximum number of audit logs that can be waiting to be written by the background thread
+	public static final String GP_ASYNC_QUEUE_SIZE = MODULE_ID + ".asyncQueueSize";
+	
+	//Specifies the time in milliseconds the background thread waits to group audit logs into a single batch
+	public static final String GP_ASYNC_FLUSH_INTERVAL = MODULE_ID + ".asyncFlushInterval";
+	
+	//Specifies the maximum number of audit logs the background thread writes in a single transaction
+	public static final String GP_ASYNC_BATCH_SIZE = MODULE_ID + ".asyncBatchSize";
+	
+	//Specifies the number of background threads writing audit logs, each writes those of its own share of the items
+	public static final String GP_ASYNC_WRITER_THREADS = MODULE_ID + ".asyncWriterThreads";
+	
+	//Specifies the engine used to capture changes i.e. the hibernate interceptor or hibernate event listeners
+	public static final String GP_CAPTURE_ENGINE = MODULE_ID + ".captureEngine";
+	
+	//Specifies the fully qualified java class names of audited types whose changes are captured by DB triggers
+	public static final String GP_TRIGGER_CAPTURED_TYPES = MODULE_ID + ".triggerCapturedTypes";
+	
+	//Specifies the number of changed objects in a transaction at which their audit logs are written after a flush
+	public static final String GP_FLUSH_THRESHOLD = MODULE_ID + ".flushThreshold";
+	
+	//Specifies whether the audit logs of nested transactions should be written along with those of the enclosing transaction
+	public static final String GP_MERGE_NESTED_TRANSACTIONS = MODULE_ID + ".mergeNestedTransactions";
+	
+	//Specifies whether the audit logs saved together are packed into a single envelope row instead of a row per audit log
+	public static final String GP_ENVELOPE_STORAGE_ENABLED = MODULE_ID + ".envelopeStorageEnabled";
+	
+	//Specifies the sampling policies of audited types that change too often to audit every create and update
+	public static final String GP_SAMPLING_POLICIES = MODULE_ID + ".samplingPolicies";
+	
+	//Specifies the rules of the rule based audit strategy, i.e. the audited types and the conditions on their property values
+	public static final String GP_AUDIT_RULES = MODULE_ID + ".auditRules";
+	
+	//Specifies the only properties of types that are audited, as fully qualified java class names followed by property names
+	public static final String GP_AUDITED_PROPERTIES = MODULE_ID + ".auditedProperties";
+	
+	//Specifies the properties of types that are never audited, as fully qualified java class names followed by property names
+	public static final String GP_IGNORED_PROPERTIES = MODULE_ID + ".ignoredProperties";
+	
+	//Specifies the time window in milliseconds within which updates to the same item by the same user are merged
+	public static final String GP_COALESCING_WINDOW = MODULE_ID + ".coalescingWindow";
+	
+	//Specifies whether audit logs are appended to a local journal from which they are inserted into the database
+	public static final String GP_JOURNAL_ENABLED = MODULE_ID + ".journalEnabled";
+	
+	//Specifies the average time in milliseconds to write audit logs at which their level of detail is lowered
+	public static final String GP_LOAD_SHEDDING_LATENCY = MODULE_ID + ".loadSheddingLatency";
+	
+	//Specifies the number of audit logs waiting to be written at which their level of detail is lowered
+	public static final String GP_LOAD_SHEDDING_BACKLOG = MODULE_ID + ".loadSheddingBacklog";
+	
+	//Runtime property specifying the number of audit log ids reserved per call to the id sequence
+	public static final String RP_ID_INCREMENT_SIZE = MODULE_ID + ".idIncrementSize";
+	
+	//Runtime property specifying how audit log uuids are stored, set it to binary to store them in a BINARY(16) column
+	public static final String RP_UUID_STORAGE = MODULE_ID + ".uuidStorage";
+	
 	/* MODULE PRIVILEGES */
 	public static final String PRIV_GET_AUDITLOGS = "Get Audit Logs";
 	
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -35,6 +36,7 @@ import java.util.Set;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -160,6 +162,38 @@ public class AuditLogUtil {
 		return changes;
 	}
 	
+	/**
+	 * Merges the changes of two consecutive updates of the same object, each property keeps its
+	 * earliest previous value and its latest new value, properties that were changed back to their
+	 * original values are left out
+	 * 
+	 * @param earlier the changes of the earlier update
+	 * @param later the changes of the later update
+	 * @return the net changes mapped to arrays of the new and previous values
+	 * @should keep the earliest previous value and the latest new value
+	 * @should leave out properties changed back to their original values
+	 */
+	@SuppressWarnings("rawtypes")
+	public static Map<String, Object[]> mergeChanges(Map<String, List> earlier, Map<String, List> later) {
+		Map<String, Object[]> merged = new LinkedHashMap<String, Object[]>();
+		for (Map.Entry<String, List> entry : earlier.entrySet()) {
+			merged.put(entry.getKey(), entry.getValue().toArray());
+		}
+		for (Map.Entry<String, List> entry : later.entrySet()) {
+			Object[] earlierValues = merged.get(entry.getKey());
+			Object previousValue = (earlierValues != null) ? earlierValues[1] : entry.getValue().get(1);
+			Object newValue = entry.getValue().get(0);
+			if (ObjectUtils.equals(previousValue, newValue)) {
+				//The property was changed back to its original value
+				merged.remove(entry.getKey());
+			} else {
+				merged.put(entry.getKey(), new Object[] { newValue, previousValue });
+			}
+		}
+		
+		return merged;
+	}
+	
 	/**
 	 * Returns a map of property names and values for AuditLogs with action DELETED
 	 * 
@@ -0,0 +1,100 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates version 7 UUIDs i.e. the most significant 48 bits hold the unix time in milliseconds
+ * and the rest are random, this means uuids generated later sort after earlier ones so new rows are
+ * appended to the end of the index on the uuid column instead of being spread across it. The random
+ * bits come from {@link ThreadLocalRandom} which unlike {@link UUID#randomUUID()} doesn't contend
+ * on a shared SecureRandom, audit log uuids are identifiers and not secrets.
+ */
+public final class TimeOrderedUuidGenerator {
+	
+	private static final long VERSION = 0x7000L;
+	
+	private static final long VARIANT = 0x8000000000000000L;
+	
+	private TimeOrderedUuidGenerator() {
+	}
+	
+	/**
+	 * @return a new time ordered uuid
+	 * @should generate a version 7 uuid
+	 * @should generate uuids that sort in the order they were generated
+	 */
+	public static UUID generate() {
+		return generate(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Generates a uuid for the specified time
+	 * 
+	 * @param timestamp the unix time in milliseconds
+	 * @return the generated uuid
+	 */
+	static UUID generate(long timestamp) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long msb = (timestamp << 16) | VERSION | (random.nextLong() & 0x0FFFL);
+		long lsb = VARIANT | (random.nextLong() & 0x3FFFFFFFFFFFFFFFL);
+		return new UUID(msb, lsb);
+	}
+	
+	/**
+	 * Converts the specified uuid to its 16 byte binary form in big endian order, this is the same
+	 * order as in its string form, so time ordered uuids remain time ordered in binary form
+	 * 
+	 * @param uuid the uuid to convert
+	 * @return the bytes
+	 * @should convert a uuid to bytes and back
+	 */
+	public static byte[] toBytes(UUID uuid) {
+		byte[] bytes = new byte[16];
+		putLong(bytes, 0, uuid.getMostSignificantBits());
+		putLong(bytes, 8, uuid.getLeastSignificantBits());
+		return bytes;
+	}
+	
+	/**
+	 * Converts the specified 16 bytes back to a uuid
+	 * 
+	 * @param bytes the bytes to convert
+	 * @return the uuid
+	 * @see #toBytes(UUID)
+	 */
+	public static UUID fromBytes(byte[] bytes) {
+		if (bytes.length != 16) {
+			throw new IllegalArgumentException("A uuid must be 16 bytes long but got " + bytes.length);
+		}
+		return new UUID(getLong(bytes, 0), getLong(bytes, 8));
+	}
+	
+	private static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+	
+	private static long getLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
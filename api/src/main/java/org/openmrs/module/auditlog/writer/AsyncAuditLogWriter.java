@@ -0,0 +1,846 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.api.db.AuditLogDAO;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Persists audit logs off the thread of the transaction that produced them, the interceptor hands
+ * over {@link AuditLogRecord}s via bounded in memory queues and dedicated writer threads save them
+ * in batches, each batch in its own transaction. The writer is only started when the
+ * {@link AuditLogConstants#GP_ASYNC_WRITE_ENABLED} global property is set to true.
+ *
+ * <pre>
+ * The queue is bounded by reserving capacity before the producing transaction commits, if no
+ * capacity can be reserved the caller is expected to save its audit logs synchronously, this way
+ * audit logs are never dropped because the queue is full.
+ *
+ * Records are spread over the number of partitions set via the
+ * {@link AuditLogConstants#GP_ASYNC_WRITER_THREADS} global property by the hash of their type and
+ * identifier, each partition has its own queue and thread so the audit logs of an object are
+ * written in the order they were produced while those of other objects are written in parallel.
+ * Child records are written along with their parents, so a record whose type and identifier or
+ * those of any of its descendants are still pending in a partition goes to that partition, a record
+ * with objects pending in different partitions waits until they are only pending in one of them.
+ * Queued records are held in a compact binary form in pooled direct buffers so a large backlog
+ * puts no pressure on the garbage collector. The backlog and lag of each partition are exposed via
+ * JMX under the {@link #OBJECT_NAME} object name.
+ * </pre>
+ */
+@Component("auditLogWriter")
+public class AsyncAuditLogWriter implements AsyncAuditLogWriterMXBean, GlobalPropertyListener {
+	
+	private static final Log log = LogFactory.getLog(AsyncAuditLogWriter.class);
+	
+	public static final String OBJECT_NAME = "org.openmrs.module.auditlog:type=AsyncAuditLogWriter";
+	
+	private static final String THREAD_NAME = "auditlog-writer";
+	
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+	
+	private static final long PENDING_WAIT_TIMEOUT_MILLIS = 10000;
+	
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+	
+	public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+	
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	
+	public static final int DEFAULT_WRITER_THREADS = 1;
+	
+	private static final int SLAB_SIZE = 1024 * 1024;
+	
+	private static final int MAX_POOLED_SLABS = 16;
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	@Autowired
+	@Qualifier("auditLogDAO")
+	private AuditLogDAO dao;
+	
+	@Autowired
+	private AuditLoadController loadController;
+	
+	@Autowired
+	private AuditJournal journal;
+	
+	private final SlabPool slabPool = new SlabPool(SLAB_SIZE, MAX_POOLED_SLABS);
+	
+	private final AuditLogRecordCodec codec = new AuditLogRecordCodec(slabPool);
+	
+	private volatile Partition[] partitions = new Partition[0];
+	
+	//The partitions of the types and identifiers of the queued records including child records, it
+	//is only accessed while holding its monitor so that routing a record and marking its keys as
+	//pending is a single step
+	private final Map<String, PendingKey> pendingKeys = new HashMap<String, PendingKey>();
+	
+	//Resized rather than replaced when the writer is restarted so that space reserved before a
+	//restart is given back to the same semaphore
+	private final QueueCapacity capacity = new QueueCapacity();
+	
+	private volatile boolean running;
+	
+	//Held shared while adding records to the queues and exclusively while starting or stopping so
+	//that no records are added after the writer threads have drained their queues
+	private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+	
+	private boolean registered;
+	
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	
+	private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+	
+	/**
+	 * Starts the writer threads if asynchronous writing is enabled, it does nothing if the writer is
+	 * already running
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		
+		AdministrationService as = Context.getAdministrationService();
+		if (!Boolean.valueOf(as.getGlobalProperty(AuditLogConstants.GP_ASYNC_WRITE_ENABLED))) {
+			return;
+		}
+		
+		int queueSize = getPositiveInt(as, AuditLogConstants.GP_ASYNC_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+		batchSize = getPositiveInt(as, AuditLogConstants.GP_ASYNC_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+		flushInterval = getPositiveInt(as, AuditLogConstants.GP_ASYNC_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL);
+		int threads = getPositiveInt(as, AuditLogConstants.GP_ASYNC_WRITER_THREADS, DEFAULT_WRITER_THREADS);
+		capacity.resize(queueSize);
+		Partition[] newPartitions = new Partition[threads];
+		for (int i = 0; i < threads; i++) {
+			newPartitions[i] = new Partition(i);
+		}
+		synchronized (pendingKeys) {
+			pendingKeys.clear();
+		}
+		stateLock.writeLock().lock();
+		try {
+			partitions = newPartitions;
+			running = true;
+		}
+		finally {
+			stateLock.writeLock().unlock();
+		}
+		for (Partition partition : newPartitions) {
+			partition.thread.start();
+		}
+		register();
+		
+		if (log.isInfoEnabled()) {
+			log.info("Started asynchronous audit log writer with queue size:" + queueSize + ", batch size:" + batchSize
+			        + ", flush interval:" + flushInterval + "ms and " + threads + " thread(s)");
+		}
+	}
+	
+	/**
+	 * Stops accepting new audit logs and waits for the writer threads to drain their queues
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		
+		stateLock.writeLock().lock();
+		try {
+			running = false;
+		}
+		finally {
+			stateLock.writeLock().unlock();
+		}
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+		boolean finished = true;
+		for (Partition partition : partitions) {
+			try {
+				partition.thread.join(Math.max(deadline - System.currentTimeMillis(), 1));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finished &= !partition.thread.isAlive();
+		}
+		
+		if (!finished) {
+			log.warn("Timed out waiting for the audit log writer to finish, " + getBacklog()
+			        + " audit log(s) are still queued");
+		} else if (log.isInfoEnabled()) {
+			log.info("Stopped asynchronous audit log writer");
+		}
+		unregister();
+	}
+	
+	/**
+	 * @return true if the writer is accepting audit logs otherwise false
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * @return the number of audit logs waiting to be written
+	 */
+	@Override
+	public int getBacklog() {
+		int backlog = 0;
+		for (Partition partition : partitions) {
+			backlog += partition.backlog.get();
+		}
+		return backlog;
+	}
+	
+	/**
+	 * @see AsyncAuditLogWriterMXBean#getPartitionCount()
+	 */
+	@Override
+	public int getPartitionCount() {
+		return partitions.length;
+	}
+	
+	/**
+	 * @see AsyncAuditLogWriterMXBean#getPartitionBacklogs()
+	 */
+	@Override
+	public int[] getPartitionBacklogs() {
+		Partition[] current = partitions;
+		int[] backlogs = new int[current.length];
+		for (int i = 0; i < current.length; i++) {
+			backlogs[i] = current[i].backlog.get();
+		}
+		return backlogs;
+	}
+	
+	/**
+	 * @see AsyncAuditLogWriterMXBean#getPartitionLags()
+	 */
+	@Override
+	public long[] getPartitionLags() {
+		Partition[] current = partitions;
+		long now = System.currentTimeMillis();
+		long[] lags = new long[current.length];
+		for (int i = 0; i < current.length; i++) {
+			lags[i] = current[i].getLag(now);
+		}
+		return lags;
+	}
+	
+	/**
+	 * @return the number of direct bytes held for queued audit logs
+	 */
+	@Override
+	public long getOffHeapBytes() {
+		return slabPool.getCapacity();
+	}
+	
+	/**
+	 * Reserves space in the queue for the specified number of records, callers that get a
+	 * reservation must either pass the records to {@link #enqueue(List)} or give the space back
+	 * via {@link #release(int)}
+	 *
+	 * @param count the number of records to reserve space for
+	 * @return true if the space was reserved otherwise false
+	 */
+	public boolean tryReserve(int count) {
+		return running && capacity.tryAcquire(count);
+	}
+	
+	/**
+	 * Gives back space reserved via {@link #tryReserve(int)} that won't be used
+	 *
+	 * @param count the number of records to release space for
+	 */
+	public void release(int count) {
+		capacity.release(count);
+	}
+	
+	/**
+	 * Adds the specified records to the queues of their partitions, space for them must have been
+	 * reserved via {@link #tryReserve(int)}, in case the writer was stopped in the meantime the
+	 * records are written in the calling thread after the stopped partitions have written the
+	 * records queued before them. The records are encoded before any lock is taken so concurrent
+	 * callers only contend for the queues.
+	 *
+	 * @param records the records to write
+	 */
+	public void enqueue(List<AuditLogRecord> records) {
+		Partition[] current = partitions;
+		Entry[] entries = running && current.length > 0 ? encode(records, current.length) : null;
+		boolean added = false;
+		if (entries != null) {
+			stateLock.readLock().lock();
+			try {
+				//The partitions are replaced when the writer is restarted
+				if (running && partitions == current) {
+					for (int i = 0; i < entries.length; i++) {
+						if (entries[i] != null) {
+							current[i].add(entries[i]);
+						}
+					}
+					added = true;
+				}
+			}
+			finally {
+				stateLock.readLock().unlock();
+			}
+		}
+		
+		if (!added) {
+			if (entries != null) {
+				for (Entry entry : entries) {
+					if (entry != null) {
+						entry.region.release();
+						unregister(entry.keys);
+					}
+				}
+			}
+			awaitStopped(current, entries);
+			try {
+				write(records);
+			}
+			finally {
+				release(records.size());
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the threads of the specified stopped partitions to write their queued records so
+	 * that older audit logs of the same objects are not written after newer ones
+	 *
+	 * @param stopped the partitions
+	 * @param entries the entries of the records indexed by partition, if null all partitions are
+	 *            waited for
+	 */
+	private static void awaitStopped(Partition[] stopped, Entry[] entries) {
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+		for (int i = 0; i < stopped.length; i++) {
+			if (entries != null && entries[i] == null) {
+				continue;
+			}
+			try {
+				stopped[i].thread.join(Math.max(deadline - System.currentTimeMillis(), 1));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Splits the specified records by partition and encodes those of each partition
+	 *
+	 * @return the entries indexed by partition, null for partitions that get no records
+	 */
+	private Entry[] encode(List<AuditLogRecord> records, int partitionCount) {
+		Entry[] entries = new Entry[partitionCount];
+		long now = System.currentTimeMillis();
+		if (partitionCount == 1) {
+			entries[0] = new Entry(codec.encode(records), records.size(), null, now);
+			return entries;
+		}
+		
+		List<List<AuditLogRecord>> recordsByPartition = new ArrayList<List<AuditLogRecord>>(partitionCount);
+		List<List<PendingKey>> keysByPartition = new ArrayList<List<PendingKey>>(partitionCount);
+		for (int i = 0; i < partitionCount; i++) {
+			recordsByPartition.add(new ArrayList<AuditLogRecord>());
+			keysByPartition.add(new ArrayList<PendingKey>());
+		}
+		route(records, recordsByPartition, keysByPartition);
+		for (int i = 0; i < partitionCount; i++) {
+			List<AuditLogRecord> partitionRecords = recordsByPartition.get(i);
+			if (!partitionRecords.isEmpty()) {
+				entries[i] = new Entry(codec.encode(partitionRecords), partitionRecords.size(), keysByPartition.get(i),
+				        now);
+			}
+		}
+		return entries;
+	}
+	
+	/**
+	 * Adds the specified records to the queue if there is space for them otherwise writes them in
+	 * the calling thread, either way they are written in a new transaction
+	 *
+	 * @param records the records to write
+	 */
+	public void submit(List<AuditLogRecord> records) {
+		if (tryReserve(records.size())) {
+			enqueue(records);
+		} else {
+			write(records);
+		}
+	}
+	
+	/**
+	 * Splits the specified record trees by partition and marks their keys as pending in their
+	 * partitions in a single step, the keys are the types and identifiers of a record and its
+	 * descendants. A record goes to the partition where any of its keys is still pending so that
+	 * the audit logs of an object are written in order whether they are child records or not,
+	 * otherwise it goes to the partition of its own key. Records that share keys go to the same
+	 * partition, if the keys of a record are pending in different partitions it waits until they
+	 * are only pending in one of them.
+	 *
+	 * @param records the records to route
+	 * @param recordsByPartition the lists to add the records of each partition to
+	 * @param keysByPartition the lists to add the pending keys of each partition to
+	 * @should return the partition of a pending child record with the same type and identifier
+	 * @should route concurrent records of the same object to the same partition
+	 * @should wait for the keys of a record to be pending in a single partition
+	 */
+	void route(List<AuditLogRecord> records, List<List<AuditLogRecord>> recordsByPartition,
+	        List<List<PendingKey>> keysByPartition) {
+		int partitionCount = recordsByPartition.size();
+		List<List<String>> keys = new ArrayList<List<String>>(records.size());
+		int[] groups = new int[records.size()];
+		Map<String, Integer> firstRecordByKey = new HashMap<String, Integer>();
+		for (int i = 0; i < records.size(); i++) {
+			List<String> recordKeys = new ArrayList<String>();
+			addKeys(records.get(i), recordKeys);
+			keys.add(recordKeys);
+			groups[i] = i;
+			for (String key : recordKeys) {
+				Integer first = firstRecordByKey.putIfAbsent(key, i);
+				if (first != null) {
+					groups[getGroup(groups, i)] = getGroup(groups, first);
+				}
+			}
+		}
+		
+		int[] chosen = new int[records.size()];
+		synchronized (pendingKeys) {
+			long deadline = System.currentTimeMillis() + PENDING_WAIT_TIMEOUT_MILLIS;
+			while (!choosePartitions(records, keys, groups, partitionCount, chosen)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					log.warn("Timed out waiting for the objects of audit logs to be pending in a single partition, "
+					        + "they might be written out of order");
+					break;
+				}
+				try {
+					pendingKeys.wait(remaining);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			
+			for (int i = 0; i < records.size(); i++) {
+				int partition = chosen[getGroup(groups, i)];
+				recordsByPartition.get(partition).add(records.get(i));
+				for (String key : keys.get(i)) {
+					PendingKey pending = pendingKeys.get(key);
+					if (pending == null || pending.partition != partition) {
+						pending = new PendingKey(key, partition);
+						pendingKeys.put(key, pending);
+					}
+					pending.count++;
+					keysByPartition.get(partition).add(pending);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Chooses the partition of each group of records that share keys, it is the partition where
+	 * any of the keys of the group is pending otherwise that of the first record of the group
+	 *
+	 * @return false if the keys of a group are pending in different partitions otherwise true
+	 */
+	private boolean choosePartitions(List<AuditLogRecord> records, List<List<String>> keys, int[] groups,
+	        int partitionCount, int[] chosen) {
+		Arrays.fill(chosen, -1);
+		boolean resolved = true;
+		for (int i = 0; i < records.size(); i++) {
+			int group = getGroup(groups, i);
+			for (String key : keys.get(i)) {
+				PendingKey pending = pendingKeys.get(key);
+				if (pending == null || pending.partition >= partitionCount) {
+					continue;
+				}
+				if (chosen[group] < 0) {
+					chosen[group] = pending.partition;
+				} else if (chosen[group] != pending.partition) {
+					resolved = false;
+				}
+			}
+		}
+		for (int i = 0; i < records.size(); i++) {
+			int group = getGroup(groups, i);
+			if (chosen[group] < 0) {
+				chosen[group] = getPartition(records.get(i), partitionCount);
+			}
+		}
+		return resolved;
+	}
+	
+	private static int getGroup(int[] groups, int index) {
+		while (groups[index] != index) {
+			index = groups[index];
+		}
+		return index;
+	}
+	
+	/**
+	 * Marks the specified keys as no longer pending once their records are written
+	 *
+	 * @param keys the keys, can be null
+	 */
+	void unregister(List<PendingKey> keys) {
+		if (keys == null) {
+			return;
+		}
+		synchronized (pendingKeys) {
+			for (PendingKey pending : keys) {
+				//A key is replaced if routing timed out waiting for it or the writer was restarted
+				if (--pending.count == 0 && pendingKeys.get(pending.key) == pending) {
+					pendingKeys.remove(pending.key);
+				}
+			}
+			pendingKeys.notifyAll();
+		}
+	}
+	
+	private static void addKeys(AuditLogRecord record, List<String> keys) {
+		keys.add(record.getType() + "#" + record.getIdentifier());
+		for (AuditLogRecord child : record.getChildRecords()) {
+			addKeys(child, keys);
+		}
+	}
+	
+	/**
+	 * Gets the partition of the specified record by the hash of its type and identifier
+	 *
+	 * @param record the record
+	 * @param partitionCount the number of partitions
+	 * @return the index of the partition
+	 * @should return the same partition for the same type and identifier
+	 */
+	static int getPartition(AuditLogRecord record, int partitionCount) {
+		int hash = 31 * record.getType().hashCode() + record.getIdentifier().hashCode();
+		return Math.floorMod(hash, partitionCount);
+	}
+	
+	/**
+	 * Writes the audit logs of the changes of the level of detail made by the load controller
+	 */
+	private void writeLoadEvents() {
+		List<AuditLogRecord> events = loadController.drainEvents();
+		if (events != null) {
+			write(events);
+		}
+	}
+	
+	private void write(final List<AuditLogRecord> records) {
+		long start = System.nanoTime();
+		try {
+			TransactionTemplate txTemplate = new TransactionTemplate(transactionManager);
+			txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			txTemplate.execute(status -> {
+				Session session = sessionFactory.getCurrentSession();
+				List<AuditLog> auditLogs = new ArrayList<AuditLog>(records.size());
+				for (AuditLogRecord record : records) {
+					auditLogs.add(record.toAuditLog(session));
+				}
+				dao.saveAll(auditLogs);
+				return null;
+			});
+			loadController.recordWrite(System.nanoTime() - start, getBacklog());
+		}
+		catch (Exception e) {
+			//The journal's replayer retries them until the database is available again
+			if (journal.append(records)) {
+				log.warn("Failed to write " + records.size() + " audit log(s), they were appended to the journal:", e);
+			} else {
+				log.error("Failed to write " + records.size() + " audit log(s):", e);
+			}
+		}
+	}
+	
+	private void register() {
+		if (registered) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+			registered = true;
+		}
+		catch (Exception e) {
+			log.warn("Failed to register the audit log writer with JMX", e);
+		}
+	}
+	
+	private void unregister() {
+		if (!registered) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+		}
+		catch (Exception e) {
+			log.warn("Failed to unregister the audit log writer from JMX", e);
+		}
+		registered = false;
+	}
+	
+	private static int getPositiveInt(AdministrationService as, String gpName, int defaultValue) {
+		int value = NumberUtils.toInt(as.getGlobalProperty(gpName), defaultValue);
+		return value > 0 ? value : defaultValue;
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String gpName) {
+		return AuditLogConstants.GP_ASYNC_WRITE_ENABLED.equals(gpName)
+		        || AuditLogConstants.GP_ASYNC_QUEUE_SIZE.equals(gpName)
+		        || AuditLogConstants.GP_ASYNC_BATCH_SIZE.equals(gpName)
+		        || AuditLogConstants.GP_ASYNC_FLUSH_INTERVAL.equals(gpName)
+		        || AuditLogConstants.GP_ASYNC_WRITER_THREADS.equals(gpName);
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty gp) {
+		stop();
+		start();
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String gpName) {
+		stop();
+		start();
+	}
+	
+	/**
+	 * A queue of encoded records with its own writer thread
+	 */
+	private final class Partition {
+		
+		private final int index;
+		
+		private final Thread thread;
+		
+		//Each element holds the encoded records of a transaction that belong to the partition
+		private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+		
+		//The number of queued records
+		private final AtomicInteger backlog = new AtomicInteger();
+		
+		//The time the oldest record of the batch being written was queued, 0 when idle
+		private volatile long inFlightSince;
+		
+		private Partition(int index) {
+			this.index = index;
+			thread = new Thread(this::processQueue, THREAD_NAME + "-" + index);
+			thread.setDaemon(true);
+		}
+		
+		private void add(Entry entry) {
+			backlog.addAndGet(entry.count);
+			queue.add(entry);
+		}
+		
+		/**
+		 * @return the time in milliseconds the oldest record of the partition has been waiting
+		 */
+		private long getLag(long now) {
+			long since = inFlightSince;
+			Entry head = queue.peek();
+			if (since == 0 && head != null) {
+				since = head.enqueued;
+			}
+			return since > 0 ? now - since : 0;
+		}
+		
+		private void processQueue() {
+			List<AuditLogRecord> batch = new ArrayList<AuditLogRecord>(batchSize);
+			List<Entry> entries = new ArrayList<Entry>();
+			while (running || !queue.isEmpty()) {
+				try {
+					Entry first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						loadController.recordBacklog(getBacklog());
+						if (index == 0) {
+							writeLoadEvents();
+						}
+						continue;
+					}
+					
+					//Group whatever arrives within the flush interval up to the batch size
+					inFlightSince = first.enqueued;
+					decodeInto(first, batch, entries);
+					long deadline = System.currentTimeMillis() + flushInterval;
+					while (batch.size() < batchSize) {
+						Entry next = queue.poll();
+						if (next == null) {
+							long remaining = deadline - System.currentTimeMillis();
+							if (remaining <= 0 || !running) {
+								break;
+							}
+							next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+							if (next == null) {
+								break;
+							}
+						}
+						decodeInto(next, batch, entries);
+					}
+					
+					write(batch);
+					if (index == 0) {
+						writeLoadEvents();
+					}
+				}
+				catch (InterruptedException e) {
+					log.warn("The audit log writer was interrupted, " + backlog.get() + " audit log(s) were not written");
+					Thread.currentThread().interrupt();
+					return;
+				}
+				finally {
+					inFlightSince = 0;
+					release(batch.size());
+					batch.clear();
+					for (Entry entry : entries) {
+						unregister(entry.keys);
+					}
+					entries.clear();
+				}
+			}
+		}
+		
+		/**
+		 * Decodes the records of the specified entry into the batch and gives its region back
+		 */
+		private void decodeInto(Entry entry, List<AuditLogRecord> batch, List<Entry> entries) {
+			entries.add(entry);
+			try {
+				List<AuditLogRecord> records = codec.decode(entry.region);
+				batch.addAll(records);
+				backlog.addAndGet(-records.size());
+			}
+			finally {
+				entry.region.release();
+			}
+		}
+	}
+	
+	private static final class Entry {
+		
+		private final SlabPool.Region region;
+		
+		//The number of records held by the region
+		private final int count;
+		
+		//The keys of the records that are pending, null if there is a single partition
+		private final List<PendingKey> keys;
+		
+		private final long enqueued;
+		
+		private Entry(SlabPool.Region region, int count, List<PendingKey> keys, long enqueued) {
+			this.region = region;
+			this.count = count;
+			this.keys = keys;
+			this.enqueued = enqueued;
+		}
+	}
+	
+	/**
+	 * The space in the queues whose size can be changed while space is reserved
+	 */
+	private static final class QueueCapacity extends Semaphore {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private int size;
+		
+		private QueueCapacity() {
+			super(0);
+		}
+		
+		private synchronized void resize(int newSize) {
+			if (newSize > size) {
+				release(newSize - size);
+			} else if (newSize < size) {
+				reducePermits(size - newSize);
+			}
+			size = newSize;
+		}
+	}
+	
+	static final class PendingKey {
+		
+		private final String key;
+		
+		private final int partition;
+		
+		//The number of queued records with the key, only changed while holding the monitor of the
+		//pending keys
+		private int count;
+		
+		private PendingKey(String key, int partition) {
+			this.key = key;
+			this.partition = partition;
+		}
+	}
+}
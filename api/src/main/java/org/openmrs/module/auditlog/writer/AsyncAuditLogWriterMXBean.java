@@ -0,0 +1,45 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+/**
+ * The metrics of the {@link AsyncAuditLogWriter} exposed via JMX
+ */
+public interface AsyncAuditLogWriterMXBean {
+	
+	/**
+	 * @return the number of audit logs waiting to be written across all partitions
+	 */
+	int getBacklog();
+	
+	/**
+	 * @return the number of direct bytes held for queued audit logs
+	 */
+	long getOffHeapBytes();
+	
+	/**
+	 * @return the number of partitions i.e. writer threads
+	 */
+	int getPartitionCount();
+	
+	/**
+	 * @return the number of audit logs waiting to be written by each partition
+	 */
+	int[] getPartitionBacklogs();
+	
+	/**
+	 * @return the time in milliseconds the oldest audit log of each partition has been waiting
+	 */
+	long[] getPartitionLags();
+}
@@ -0,0 +1,665 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.api.db.AuditLogDAO;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A local append only journal of audit logs, committed transactions append their
+ * {@link AuditLogRecord}s to memory mapped segment files and a replayer thread inserts them into
+ * the database in batches, this way audit logs aren't lost when the database inserts fail e.g.
+ * during an outage. The journal is only started when the
+ * {@link AuditLogConstants#GP_JOURNAL_ENABLED} global property is set to true.
+ *
+ * <pre>
+ * Each segment is a fixed size file in the auditlog/journal folder of the application data
+ * directory, each entry is the length and CRC32 checksum of the record followed by the record in
+ * the binary form of {@link AuditLogRecord#writeTo(java.io.DataOutput)}, a zero length marks the
+ * end of the entries. Appending is a copy into the mapped pages so the entries outlive a crash of
+ * the JVM but not of the operating system or a power loss, the pages are only forced to the disk
+ * when a segment is full or the journal is stopped.
+ * Records are inserted idempotently by uuid so a segment can safely be replayed again after a
+ * restart, a segment is deleted once all its entries are in the database. A batch that keeps
+ * failing is inserted record by record, the records that still fail while the database is
+ * available are moved to the dead-letter file in the same folder so they don't block the rest.
+ * </pre>
+ */
+@Component("auditJournal")
+public class AuditJournal implements GlobalPropertyListener {
+	
+	private static final Log log = LogFactory.getLog(AuditJournal.class);
+	
+	private static final String THREAD_NAME = "auditlog-journal-replayer";
+	
+	private static final String SEGMENT_PREFIX = "segment-";
+	
+	private static final String SEGMENT_SUFFIX = ".journal";
+	
+	static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+	
+	//The length and checksum of each entry
+	static final int ENTRY_HEADER_SIZE = 8;
+	
+	private static final long REPLAY_INTERVAL = 1000;
+	
+	private static final int REPLAY_BATCH_SIZE = 100;
+	
+	//The number of times a batch is retried before its records are inserted one by one
+	private static final int MAX_REPLAY_ATTEMPTS = 5;
+	
+	private static final String DEAD_LETTER_FILE = "dead-letter" + SEGMENT_SUFFIX;
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	@Autowired
+	@Qualifier("auditLogDAO")
+	private AuditLogDAO dao;
+	
+	//The segments that still have entries to replay, the last one is the one being appended to
+	private final Deque<Segment> segments = new ConcurrentLinkedDeque<Segment>();
+	
+	private volatile Segment active;
+	
+	private volatile boolean running;
+	
+	private ScheduledExecutorService scheduler;
+	
+	private File directory;
+	
+	private long nextSequence;
+	
+	//The number of consecutive failed attempts to insert the current batch, only used by the replayer
+	private int failedAttempts;
+	
+	/**
+	 * Opens the segments left behind by a previous run and replays them in the background, the
+	 * journal only accepts new entries if it is enabled otherwise it stops once they are replayed
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		
+		directory = new File(OpenmrsUtil.getApplicationDataDirectory(), AuditLogConstants.MODULE_ID + File.separator
+		        + "journal");
+		boolean enabled = Boolean.valueOf(Context.getAdministrationService().getGlobalProperty(
+		    AuditLogConstants.GP_JOURNAL_ENABLED));
+		try {
+			openSegments();
+		}
+		catch (IOException e) {
+			log.error("Failed to open the audit log journal in " + directory, e);
+			closeSegments();
+			return;
+		}
+		
+		if (!enabled && segments.isEmpty()) {
+			closeSegments();
+			return;
+		}
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, THREAD_NAME);
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (!enabled) {
+			//Audit logs journaled before the journal was disabled still have to be written, this is
+			//done off the startup thread since the database might be unavailable
+			scheduler.scheduleWithFixedDelay(this::drain, 0, REPLAY_INTERVAL, TimeUnit.MILLISECONDS);
+			if (log.isInfoEnabled()) {
+				log.info("Replaying " + segments.size() + " segment(s) of the disabled audit log journal in " + directory);
+			}
+			return;
+		}
+		
+		scheduler.scheduleWithFixedDelay(this::replay, 0, REPLAY_INTERVAL, TimeUnit.MILLISECONDS);
+		running = true;
+		
+		if (log.isInfoEnabled()) {
+			log.info("Started the audit log journal in " + directory + " with " + segments.size()
+			        + " segment(s) to replay");
+		}
+	}
+	
+	/**
+	 * Stops accepting new entries, replays what it can and closes the segments, the segments that
+	 * still have entries to replay are kept for the next start
+	 */
+	public void stop() {
+		ScheduledExecutorService replayer;
+		synchronized (this) {
+			if (scheduler == null) {
+				return;
+			}
+			running = false;
+			replayer = scheduler;
+			scheduler = null;
+		}
+		
+		//The replayer thread is not waited for while holding the lock since it needs it too
+		replayer.shutdown();
+		try {
+			replayer.awaitTermination(REPLAY_INTERVAL * 10, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		replay();
+		synchronized (this) {
+			closeSegments();
+		}
+		if (log.isInfoEnabled()) {
+			log.info("Stopped the audit log journal");
+		}
+	}
+	
+	/**
+	 * @return true if the journal is accepting new entries otherwise false
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * @return the number of segments that still have entries to replay
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+	
+	/**
+	 * Appends the specified records to the journal, they are inserted into the database by the
+	 * replayer thread
+	 *
+	 * @param records the records to append
+	 * @return true if the records were appended otherwise false in which case the caller is
+	 *         expected to write them by other means
+	 */
+	public synchronized boolean append(List<AuditLogRecord> records) {
+		if (!running) {
+			return false;
+		}
+		
+		try {
+			for (AuditLogRecord record : records) {
+				byte[] bytes = encode(record);
+				Segment segment = active;
+				if (segment == null || !segment.hasRoomFor(bytes.length)) {
+					segment = roll(bytes.length);
+				}
+				segment.append(bytes);
+			}
+			return true;
+		}
+		catch (IOException e) {
+			log.error("Failed to append " + records.size() + " audit log(s) to the journal:", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Replays the segments of a disabled journal and stops the replayer once they are all replayed
+	 */
+	private void drain() {
+		replay();
+		synchronized (this) {
+			if (segments.isEmpty() && !running && scheduler != null) {
+				scheduler.shutdown();
+				scheduler = null;
+				closeSegments();
+				if (log.isInfoEnabled()) {
+					log.info("Replayed the disabled audit log journal");
+				}
+			}
+		}
+	}
+	
+	private void openSegments() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create the directory " + directory);
+		}
+		
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+		        && name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			throw new IOException("Failed to list the files in " + directory);
+		}
+		Arrays.sort(files, (f1, f2) -> Long.compare(getSequence(f1), getSequence(f2)));
+		for (File file : files) {
+			Segment segment = Segment.open(file, getSequence(file));
+			if (segment.isEmpty()) {
+				segment.delete();
+			} else {
+				segments.add(segment);
+			}
+			nextSequence = Math.max(nextSequence, segment.sequence + 1);
+		}
+	}
+	
+	private void closeSegments() {
+		Segment segment;
+		while ((segment = segments.pollFirst()) != null) {
+			segment.close();
+		}
+		active = null;
+	}
+	
+	/**
+	 * Starts a new segment big enough for an entry of the specified size
+	 */
+	private Segment roll(int entrySize) throws IOException {
+		if (active != null) {
+			active.buffer.force();
+		}
+		long sequence = nextSequence++;
+		File file = new File(directory, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+		Segment segment = Segment.create(file, sequence, Math.max(SEGMENT_SIZE, entrySize + ENTRY_HEADER_SIZE + 4));
+		segments.add(segment);
+		active = segment;
+		return segment;
+	}
+	
+	/**
+	 * Inserts the journaled records into the database in batches, it stops at the first batch that
+	 * fails so that it is retried in the next run, after {@link #MAX_REPLAY_ATTEMPTS} failed attempts
+	 * the records of the batch are inserted one by one instead
+	 */
+	private void replay() {
+		try {
+			Segment segment;
+			while ((segment = segments.peekFirst()) != null) {
+				List<AuditLogRecord> batch = new ArrayList<AuditLogRecord>(REPLAY_BATCH_SIZE);
+				int position = segment.read(batch, REPLAY_BATCH_SIZE);
+				if (!batch.isEmpty()) {
+					if (!insert(batch) && (++failedAttempts < MAX_REPLAY_ATTEMPTS || !insertEach(batch))) {
+						return;
+					}
+					failedAttempts = 0;
+					segment.readPosition = position;
+					continue;
+				}
+				
+				synchronized (this) {
+					//The active segment can still get new entries
+					if (segment == active || segment.readPosition < segment.writePosition) {
+						return;
+					}
+					segments.pollFirst();
+				}
+				segment.delete();
+			}
+		}
+		catch (Exception e) {
+			log.error("Failed to replay the audit log journal:", e);
+		}
+	}
+	
+	private boolean insert(List<AuditLogRecord> records) {
+		try {
+			insertRecords(records);
+			return true;
+		}
+		catch (Exception e) {
+			log.warn("Failed to replay " + records.size() + " audit log(s) from the journal, will retry:", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Inserts the specified records one by one, a record that fails while the database is available
+	 * is moved to the dead-letter file
+	 *
+	 * @param records the records to insert
+	 * @return true if all the records were either inserted or moved to the dead-letter file
+	 *         otherwise false in which case the batch is retried in the next run
+	 */
+	private boolean insertEach(List<AuditLogRecord> records) {
+		for (AuditLogRecord record : records) {
+			try {
+				insertRecords(Collections.singletonList(record));
+			}
+			catch (Exception e) {
+				//Nothing can be inserted during an outage so the record is not to blame
+				if (!isDatabaseAvailable(record)) {
+					return false;
+				}
+				try {
+					deadLetter(record);
+				}
+				catch (IOException ioe) {
+					log.error("Failed to move the audit log with uuid " + record.getUuid() + " to the dead-letter file:", ioe);
+					return false;
+				}
+				log.error("Moved the audit log with uuid " + record.getUuid() + " that failed to be inserted from the journal to "
+				        + new File(directory, DEAD_LETTER_FILE), e);
+			}
+		}
+		return true;
+	}
+	
+	private void insertRecords(final List<AuditLogRecord> records) {
+		newTransactionTemplate().execute(status -> {
+			Set<String> uuids = new HashSet<String>();
+			for (AuditLogRecord record : records) {
+				addUuids(record, uuids);
+			}
+			//Records that were already inserted before a restart or a failed replay are skipped
+			//along with any of their child records that were already inserted
+			Set<String> inserted = dao.getExistingUuids(uuids);
+			Session session = sessionFactory.getCurrentSession();
+			List<AuditLog> auditLogs = new ArrayList<AuditLog>(records.size());
+			for (AuditLogRecord record : records) {
+				if (inserted.add(record.getUuid())) {
+					AuditLog auditLog = record.toAuditLog(session);
+					removeInserted(auditLog, inserted);
+					auditLogs.add(auditLog);
+				}
+			}
+			dao.saveAll(auditLogs);
+			return null;
+		});
+	}
+	
+	private boolean isDatabaseAvailable(final AuditLogRecord record) {
+		try {
+			newTransactionTemplate().execute(status -> dao.getExistingUuids(Collections.singleton(record.getUuid())));
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+	
+	private TransactionTemplate newTransactionTemplate() {
+		TransactionTemplate txTemplate = new TransactionTemplate(transactionManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return txTemplate;
+	}
+	
+	/**
+	 * Appends the specified record to the dead-letter file, the entries have the same format as
+	 * those of the segments
+	 */
+	private void deadLetter(AuditLogRecord record) throws IOException {
+		byte[] bytes = encode(record);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		FileOutputStream stream = new FileOutputStream(new File(directory, DEAD_LETTER_FILE), true);
+		try {
+			DataOutputStream out = new DataOutputStream(stream);
+			out.writeInt(bytes.length);
+			out.writeInt((int) crc.getValue());
+			out.write(bytes);
+			out.flush();
+			//The entry is removed from the segment afterwards
+			stream.getFD().sync();
+		}
+		finally {
+			stream.close();
+		}
+	}
+	
+	private static void addUuids(AuditLogRecord record, Set<String> uuids) {
+		uuids.add(record.getUuid());
+		for (AuditLogRecord child : record.getChildRecords()) {
+			addUuids(child, uuids);
+		}
+	}
+	
+	/**
+	 * Removes the descendants of the specified audit log whose uuids are in the specified set and
+	 * adds the uuids of the rest to it
+	 *
+	 * @param auditLog the audit log
+	 * @param inserted the uuids of the audit logs that are inserted or are going to be
+	 * @should remove the child logs that are already inserted
+	 */
+	static void removeInserted(AuditLog auditLog, Set<String> inserted) {
+		Iterator<AuditLog> it = auditLog.getChildAuditLogs().iterator();
+		while (it.hasNext()) {
+			AuditLog child = it.next();
+			if (inserted.add(child.getUuid())) {
+				removeInserted(child, inserted);
+			} else {
+				it.remove();
+			}
+		}
+	}
+	
+	static byte[] encode(AuditLogRecord record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		record.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static long getSequence(File file) {
+		String name = file.getName();
+		return NumberUtils.toLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String gpName) {
+		return AuditLogConstants.GP_JOURNAL_ENABLED.equals(gpName);
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty gp) {
+		stop();
+		start();
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String gpName) {
+		stop();
+		start();
+	}
+	
+	/**
+	 * A memory mapped segment file of the journal
+	 */
+	static final class Segment {
+		
+		private final long sequence;
+		
+		private final File file;
+		
+		private final FileChannel channel;
+		
+		private final MappedByteBuffer buffer;
+		
+		//The end of the entries, entries before it are complete
+		private volatile int writePosition;
+		
+		//The start of the entries that are not yet in the database, only used by the replayer
+		private volatile int readPosition;
+		
+		private Segment(long sequence, File file, FileChannel channel, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+		
+		static Segment create(File file, long sequence, int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+			return new Segment(sequence, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+		}
+		
+		/**
+		 * Opens an existing segment, its end is the first entry that is incomplete or corrupt
+		 *
+		 * @should find the end of the appended entries
+		 * @should stop at a corrupt entry
+		 */
+		static Segment open(File file, long sequence) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			FileChannel channel = raf.getChannel();
+			Segment segment = new Segment(sequence, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+			    channel.size()));
+			int position = 0;
+			int next;
+			while ((next = segment.nextEntry(position)) > position) {
+				position = next;
+			}
+			segment.writePosition = position;
+			return segment;
+		}
+		
+		boolean isEmpty() {
+			return writePosition == 0;
+		}
+		
+		boolean hasRoomFor(int length) {
+			//Room is kept for the zero length that marks the end
+			return buffer.capacity() - writePosition >= length + ENTRY_HEADER_SIZE + 4;
+		}
+		
+		void append(byte[] bytes) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			ByteBuffer dup = buffer.duplicate();
+			dup.position(writePosition + 4);
+			dup.putInt((int) crc.getValue());
+			dup.put(bytes);
+			//The length is written last so the replayer never sees a partially written entry
+			buffer.putInt(writePosition, bytes.length);
+			writePosition = dup.position();
+		}
+		
+		/**
+		 * Reads up to the specified number of records after the read position
+		 *
+		 * @param records the list to add the records to
+		 * @param max the maximum number of records to read
+		 * @return the position after the last record that was read
+		 * @should read the appended records
+		 */
+		int read(List<AuditLogRecord> records, int max) throws IOException {
+			int position = readPosition;
+			int end = writePosition;
+			while (records.size() < max && position < end) {
+				int length = buffer.getInt(position);
+				byte[] bytes = new byte[length];
+				ByteBuffer dup = buffer.duplicate();
+				dup.position(position + ENTRY_HEADER_SIZE);
+				dup.get(bytes);
+				records.add(AuditLogRecord.readFrom(new DataInputStream(new ByteArrayInputStream(bytes))));
+				position += ENTRY_HEADER_SIZE + length;
+			}
+			return position;
+		}
+		
+		/**
+		 * @return the position of the entry after the one at the specified position, or the same
+		 *         position if there is no valid entry there
+		 */
+		private int nextEntry(int position) {
+			if (buffer.capacity() - position < ENTRY_HEADER_SIZE) {
+				return position;
+			}
+			int length = buffer.getInt(position);
+			if (length <= 0 || length > buffer.capacity() - position - ENTRY_HEADER_SIZE) {
+				return position;
+			}
+			byte[] bytes = new byte[length];
+			ByteBuffer dup = buffer.duplicate();
+			dup.position(position + ENTRY_HEADER_SIZE);
+			dup.get(bytes);
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+				log.warn("Ignoring a corrupt entry at position " + position + " of the journal segment " + file);
+				return position;
+			}
+			return position + ENTRY_HEADER_SIZE + length;
+		}
+		
+		void close() {
+			try {
+				buffer.force();
+				channel.close();
+			}
+			catch (IOException e) {
+				log.warn("Failed to close the journal segment " + file, e);
+			}
+		}
+		
+		void delete() {
+			close();
+			if (!file.delete()) {
+				log.warn("Failed to delete the replayed journal segment " + file);
+			}
+		}
+	}
+}
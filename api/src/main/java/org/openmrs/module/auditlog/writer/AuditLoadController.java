@@ -0,0 +1,394 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.openmrs.util.OpenmrsConstants;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies backpressure to the audit write path, it tracks the time it takes to write audit logs
+ * and the backlog of the async writer and lowers the level of detail of the audit logs one step at
+ * a time as either crosses its threshold, first the serialized data is left out and then only the
+ * number of changes per type and action are counted. The full level of detail is restored one step
+ * at a time once the load drops below half of the threshold of the current level. Every change of
+ * level is itself recorded as an audit log of type {@link #EVENT_TYPE} along with the numbers of
+ * changes summarized since the previous change of level.
+ *
+ * <pre>
+ * The thresholds are specified via the {@link AuditLogConstants#GP_LOAD_SHEDDING_LATENCY} and
+ * {@link AuditLogConstants#GP_LOAD_SHEDDING_BACKLOG} global properties, the level and the load are
+ * exposed via JMX under the {@link #OBJECT_NAME} object name.
+ * </pre>
+ */
+@Component("auditLoadController")
+public class AuditLoadController implements AuditLoadControllerMXBean, GlobalPropertyListener {
+	
+	private static final Log log = LogFactory.getLog(AuditLoadController.class);
+	
+	public static final String OBJECT_NAME = "org.openmrs.module.auditlog:type=AuditLoadController";
+	
+	public static final String EVENT_TYPE = AuditLoadController.class.getName();
+	
+	//The level is re-evaluated at most this often when there are no writes e.g. to restore it
+	private static final long EVALUATION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	
+	//The time it takes for the write latency to drop by half when there are no writes
+	private static final long LATENCY_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(5);
+	
+	//The weight of the latest write in the average write latency
+	private static final double SMOOTHING_FACTOR = 0.2;
+	
+	/**
+	 * The levels of detail of the audit logs from the highest to the lowest
+	 */
+	public enum Level {
+		FULL, NO_PAYLOAD, SUMMARY_ONLY
+	}
+	
+	private volatile Level level = Level.FULL;
+	
+	private volatile long latencyThreshold;
+	
+	private volatile int backlogThreshold;
+	
+	private double writeLatency;
+	
+	private long lastWriteNanos = System.nanoTime();
+	
+	private volatile int backlog;
+	
+	private volatile long lastEvaluationNanos = System.nanoTime();
+	
+	private final AtomicLong reducedLogCount = new AtomicLong();
+	
+	private final AtomicLong summarizedChangeCount = new AtomicLong();
+	
+	//The numbers of changes per type and action summarized since the last change of level
+	private final Map<String, LongAdder> summarizedChanges = new ConcurrentHashMap<String, LongAdder>();
+	
+	//Audit logs of level changes that are yet to be written
+	private final Queue<AuditLogRecord> events = new ConcurrentLinkedQueue<AuditLogRecord>();
+	
+	private boolean registered;
+	
+	/**
+	 * Loads the thresholds and registers the JMX bean
+	 */
+	public synchronized void start() {
+		AdministrationService as = Context.getAdministrationService();
+		setThresholds(as.getGlobalProperty(AuditLogConstants.GP_LOAD_SHEDDING_LATENCY),
+		    as.getGlobalProperty(AuditLogConstants.GP_LOAD_SHEDDING_BACKLOG));
+		if (!registered) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(OBJECT_NAME);
+				if (!server.isRegistered(name)) {
+					server.registerMBean(this, name);
+				}
+				registered = true;
+			}
+			catch (Exception e) {
+				log.warn("Failed to register the audit load controller with JMX", e);
+			}
+		}
+	}
+	
+	/**
+	 * Unregisters the JMX bean
+	 */
+	public synchronized void stop() {
+		if (!registered) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+		}
+		catch (Exception e) {
+			log.warn("Failed to unregister the audit load controller from JMX", e);
+		}
+		registered = false;
+	}
+	
+	/**
+	 * @return true if any threshold is set otherwise false
+	 */
+	public boolean isEnabled() {
+		return latencyThreshold > 0 || backlogThreshold > 0;
+	}
+	
+	/**
+	 * Gets the level of detail of the audit logs to write, if no write was recorded recently the
+	 * level is re-evaluated first so that it can be restored after the load drops
+	 *
+	 * @see AuditLoadControllerMXBean#getLevel()
+	 */
+	@Override
+	public Level getLevel() {
+		if (level != Level.FULL && System.nanoTime() - lastEvaluationNanos > EVALUATION_INTERVAL_NANOS) {
+			evaluate();
+		}
+		return level;
+	}
+	
+	/**
+	 * Records the time it took to write audit logs and re-evaluates the level
+	 *
+	 * @param nanos the time it took in nanoseconds
+	 * @param backlog the number of audit logs still waiting to be written
+	 */
+	public void recordWrite(long nanos, int backlog) {
+		if (!isEnabled()) {
+			return;
+		}
+		synchronized (this) {
+			long now = System.nanoTime();
+			double millis = nanos / 1e6;
+			writeLatency = getWriteLatency(now) * (1 - SMOOTHING_FACTOR) + millis * SMOOTHING_FACTOR;
+			lastWriteNanos = now;
+			this.backlog = backlog;
+		}
+		evaluate();
+	}
+	
+	/**
+	 * Records the number of audit logs waiting to be written and re-evaluates the level if it
+	 * wasn't recently
+	 *
+	 * @param backlog the number of audit logs waiting to be written
+	 */
+	public void recordBacklog(int backlog) {
+		this.backlog = backlog;
+		if (isEnabled() && System.nanoTime() - lastEvaluationNanos > EVALUATION_INTERVAL_NANOS) {
+			evaluate();
+		}
+	}
+	
+	/**
+	 * Records audit logs that were written without their serialized data
+	 *
+	 * @param count the number of audit logs
+	 */
+	public void recordReducedLogs(int count) {
+		reducedLogCount.addAndGet(count);
+	}
+	
+	/**
+	 * Counts a change that didn't get an audit log
+	 *
+	 * @param type the fully qualified java class name of the changed object
+	 * @param action the action performed on the object
+	 */
+	public void recordSummarizedChange(String type, Action action) {
+		summarizedChanges.computeIfAbsent(type + "#" + action, key -> new LongAdder()).increment();
+		summarizedChangeCount.incrementAndGet();
+	}
+	
+	/**
+	 * Removes and returns the audit logs of the level changes that are yet to be written
+	 *
+	 * @return the audit logs or null if there are none
+	 */
+	public List<AuditLogRecord> drainEvents() {
+		if (events.isEmpty()) {
+			return null;
+		}
+		List<AuditLogRecord> records = new ArrayList<AuditLogRecord>();
+		AuditLogRecord record;
+		while ((record = events.poll()) != null) {
+			records.add(record);
+		}
+		return records;
+	}
+	
+	/**
+	 * @see AuditLoadControllerMXBean#getWriteLatency()
+	 */
+	@Override
+	public synchronized double getWriteLatency() {
+		return getWriteLatency(System.nanoTime());
+	}
+	
+	/**
+	 * @see AuditLoadControllerMXBean#getBacklog()
+	 */
+	@Override
+	public int getBacklog() {
+		return backlog;
+	}
+	
+	/**
+	 * @see AuditLoadControllerMXBean#getReducedLogCount()
+	 */
+	@Override
+	public long getReducedLogCount() {
+		return reducedLogCount.get();
+	}
+	
+	/**
+	 * @see AuditLoadControllerMXBean#getSummarizedChangeCount()
+	 */
+	@Override
+	public long getSummarizedChangeCount() {
+		return summarizedChangeCount.get();
+	}
+	
+	/**
+	 * Gets the level that follows the specified one under the specified load, the level is lowered
+	 * one step when the load reaches the threshold of the next lower level i.e. 1 for
+	 * {@link Level#NO_PAYLOAD} and 2 for {@link Level#SUMMARY_ONLY} and raised one step when it
+	 * drops below half of the threshold of the current level
+	 *
+	 * @param current the current level
+	 * @param pressure the load as a multiple of its threshold
+	 * @return the next level
+	 * @should lower the level one step at a time
+	 * @should raise the level once the pressure drops below half of the threshold
+	 * @should keep the level between the thresholds
+	 */
+	static Level nextLevel(Level current, double pressure) {
+		int ordinal = current.ordinal();
+		if (ordinal < Level.values().length - 1 && pressure >= ordinal + 1) {
+			return Level.values()[ordinal + 1];
+		}
+		if (ordinal > 0 && pressure < ordinal / 2.0) {
+			return Level.values()[ordinal - 1];
+		}
+		return current;
+	}
+	
+	private double getWriteLatency(long now) {
+		//Decay the latency when there are no writes so that the level can be restored
+		return writeLatency * Math.pow(0.5, (double) (now - lastWriteNanos) / LATENCY_HALF_LIFE_NANOS);
+	}
+	
+	private synchronized void evaluate() {
+		long now = System.nanoTime();
+		lastEvaluationNanos = now;
+		double latency = getWriteLatency(now);
+		double pressure = 0;
+		if (latencyThreshold > 0) {
+			pressure = latency / latencyThreshold;
+		}
+		if (backlogThreshold > 0) {
+			pressure = Math.max(pressure, (double) backlog / backlogThreshold);
+		}
+		
+		Level next = nextLevel(level, pressure);
+		if (next != level) {
+			changeLevel(next, latency);
+		}
+	}
+	
+	private synchronized void changeLevel(Level next, double latency) {
+		Level previous = level;
+		level = next;
+		log.warn("Changed the level of detail of audit logs from " + previous + " to " + next + ", write latency:"
+		        + Math.round(latency) + "ms, backlog:" + backlog);
+		
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (String key : new ArrayList<String>(summarizedChanges.keySet())) {
+			LongAdder adder = summarizedChanges.remove(key);
+			if (adder != null) {
+				counts.put(key, adder.sum());
+			}
+		}
+		Map<String, Object[]> changes = new LinkedHashMap<String, Object[]>();
+		changes.put("level", new Object[] { next.name(), previous.name() });
+		changes.put("writeLatency", new Object[] { Math.round(latency), null });
+		changes.put("backlog", new Object[] { backlog, null });
+		if (!counts.isEmpty()) {
+			changes.put("summarizedChanges", new Object[] { counts, null });
+		}
+		
+		AuditLog event = new AuditLog(EVENT_TYPE, next.name(), Action.UPDATED, null, new Date());
+		event.setOpenmrsVersion(OpenmrsConstants.OPENMRS_VERSION_SHORT);
+		event.setModuleVersion(AuditLogConstants.MODULE_VERSION);
+		String json = AuditLogUtil.serializeToJson(changes);
+		if (json != null) {
+			event.setSerializedData(BlobProxy.generateProxy(json.getBytes(StandardCharsets.UTF_8)));
+		}
+		events.add(AuditLogRecord.of(event));
+	}
+	
+	private synchronized void setThresholds(String latency, String backlog) {
+		latencyThreshold = Math.max(0, NumberUtils.toLong(latency, 0));
+		backlogThreshold = Math.max(0, NumberUtils.toInt(backlog, 0));
+		if (!isEnabled() && level != Level.FULL) {
+			changeLevel(Level.FULL, getWriteLatency(System.nanoTime()));
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String gpName) {
+		return AuditLogConstants.GP_LOAD_SHEDDING_LATENCY.equals(gpName)
+		        || AuditLogConstants.GP_LOAD_SHEDDING_BACKLOG.equals(gpName);
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty gp) {
+		if (AuditLogConstants.GP_LOAD_SHEDDING_LATENCY.equals(gp.getProperty())) {
+			setThresholds(gp.getPropertyValue(), Integer.toString(backlogThreshold));
+		} else {
+			setThresholds(Long.toString(latencyThreshold), gp.getPropertyValue());
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String gpName) {
+		if (AuditLogConstants.GP_LOAD_SHEDDING_LATENCY.equals(gpName)) {
+			setThresholds(null, Integer.toString(backlogThreshold));
+		} else {
+			setThresholds(Long.toString(latencyThreshold), null);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+/**
+ * The metrics of the {@link AuditLoadController} exposed via JMX
+ */
+public interface AuditLoadControllerMXBean {
+	
+	/**
+	 * @return the current level of detail of the audit logs
+	 */
+	AuditLoadController.Level getLevel();
+	
+	/**
+	 * @return the recent average time in milliseconds it takes to write a batch of audit logs
+	 */
+	double getWriteLatency();
+	
+	/**
+	 * @return the number of audit logs waiting to be written by the async writer
+	 */
+	int getBacklog();
+	
+	/**
+	 * @return the number of audit logs written without their serialized data to reduce load
+	 */
+	long getReducedLogCount();
+	
+	/**
+	 * @return the number of changes that were only counted instead of getting an audit log
+	 */
+	long getSummarizedChangeCount();
+}
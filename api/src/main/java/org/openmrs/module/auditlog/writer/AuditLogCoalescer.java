@@ -0,0 +1,389 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Merges the audit logs of updates to the same object made by the same user in separate
+ * transactions within a time window into a single audit log with the net changes, each property
+ * keeps its earliest previous value and its latest new value. The merged audit log keeps the uuid
+ * and date of the first update and the child logs of all the updates, it is handed over to the
+ * {@link AsyncAuditLogWriter} when the window that started with the first update expires. The
+ * coalescer is only started when the {@link AuditLogConstants#GP_COALESCING_WINDOW} global property
+ * is set to a positive number of milliseconds.
+ *
+ * <pre>
+ * Audit logs are only handed over after the transaction that produced them commits, all pending
+ * audit logs are written when the coalescer is stopped so nothing is lost on shutdown. Audit logs
+ * of other actions are passed through right away, any pending updates to the same object are
+ * written before them so that e.g. an update is never written after the deletion of its object.
+ * </pre>
+ */
+@Component("auditLogCoalescer")
+public class AuditLogCoalescer implements GlobalPropertyListener {
+	
+	private static final Log log = LogFactory.getLog(AuditLogCoalescer.class);
+	
+	private static final String THREAD_NAME = "auditlog-coalescer";
+	
+	//Caps the memory used by pending audit logs, the oldest ones are written early beyond it
+	static final int MAX_PENDING = 10000;
+	
+	private static final ObjectMapper mapper = new ObjectMapper();
+	
+	@Autowired
+	private AsyncAuditLogWriter writer;
+	
+	private final Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+	
+	//The number of pending audit logs per object i.e. type and identifier regardless of the user
+	private final Map<String, Integer> pendingCountsByItem = new HashMap<String, Integer>();
+	
+	private volatile boolean running;
+	
+	private ScheduledExecutorService scheduler;
+	
+	private long window;
+	
+	/**
+	 * Starts coalescing if a coalescing window is set, it does nothing if the coalescer is already
+	 * running
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		
+		start(NumberUtils.toLong(Context.getAdministrationService().getGlobalProperty(
+		    AuditLogConstants.GP_COALESCING_WINDOW)));
+	}
+	
+	/**
+	 * Starts coalescing within the specified window if it is positive
+	 *
+	 * @param window the window in milliseconds
+	 */
+	synchronized void start(long window) {
+		if (running || window < 1) {
+			return;
+		}
+		
+		this.window = window;
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, THREAD_NAME);
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(window / 2, 1);
+		scheduler.scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+		running = true;
+		
+		if (log.isInfoEnabled()) {
+			log.info("Started coalescing updates within a window of " + window + "ms");
+		}
+	}
+	
+	/**
+	 * Stops coalescing and writes all the pending audit logs
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		
+		running = false;
+		scheduler.shutdownNow();
+		scheduler = null;
+		flush(Long.MAX_VALUE);
+		if (log.isInfoEnabled()) {
+			log.info("Stopped coalescing updates");
+		}
+	}
+	
+	/**
+	 * Sets the writer, for testing
+	 *
+	 * @param writer the writer to set
+	 */
+	void setWriter(AsyncAuditLogWriter writer) {
+		this.writer = writer;
+	}
+	
+	/**
+	 * @return true if the coalescer is accepting audit logs otherwise false
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * @param type the type of the object
+	 * @param identifier the identifier of the object
+	 * @return true if there are pending updates to the specified object by any user otherwise false
+	 */
+	public synchronized boolean hasPending(String type, String identifier) {
+		return pendingCountsByItem.containsKey(getItemKey(type, identifier));
+	}
+	
+	/**
+	 * @return the number of audit logs waiting for their windows to expire
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * Adds the specified audit logs made in a committed transaction, each update is merged with the
+	 * pending audit log for the same object and user if any while the audit logs of other actions
+	 * are handed over to the writer right away after any pending updates to the same object. In
+	 * case the coalescer was stopped in the meantime all the audit logs are handed over right away.
+	 *
+	 * @param records the records to add
+	 * @should write the pending updates to an object before the audit log of its deletion
+	 */
+	public void add(List<AuditLogRecord> records) {
+		List<AuditLogRecord> evicted = null;
+		synchronized (this) {
+			if (running) {
+				long now = System.currentTimeMillis();
+				for (AuditLogRecord record : records) {
+					if (record.getAction() != Action.UPDATED) {
+						if (evicted == null) {
+							evicted = new ArrayList<AuditLogRecord>();
+						}
+						removeItem(record.getType(), record.getIdentifier(), evicted);
+						evicted.add(record);
+						continue;
+					}
+					String key = getKey(record);
+					Pending existing = pending.get(key);
+					if (existing == null) {
+						pending.put(key, new Pending(record, now));
+						pendingCountsByItem.merge(getItemKey(record.getType(), record.getIdentifier()), 1, Integer::sum);
+					} else {
+						existing.merge(record);
+					}
+				}
+				if (pending.size() > MAX_PENDING) {
+					if (evicted == null) {
+						evicted = new ArrayList<AuditLogRecord>();
+					}
+					evicted.addAll(remove(pending.size() - MAX_PENDING, Long.MAX_VALUE));
+				}
+			} else {
+				evicted = records;
+			}
+		}
+		
+		if (evicted != null) {
+			writer.submit(evicted);
+		}
+	}
+	
+	private void flushExpired() {
+		try {
+			flush(System.currentTimeMillis() - window);
+		}
+		catch (Exception e) {
+			log.error("Failed to write coalesced audit log(s):", e);
+		}
+	}
+	
+	/**
+	 * Writes the pending audit logs whose windows started at or before the specified time
+	 *
+	 * @param startedBy the time in milliseconds
+	 */
+	private void flush(long startedBy) {
+		List<AuditLogRecord> expired;
+		synchronized (this) {
+			expired = remove(Integer.MAX_VALUE, startedBy);
+		}
+		if (!expired.isEmpty()) {
+			writer.submit(expired);
+		}
+	}
+	
+	/**
+	 * Removes pending audit logs in the order their windows started, it stops at the first one
+	 * whose window started after the specified time
+	 */
+	private List<AuditLogRecord> remove(int max, long startedBy) {
+		if (pending.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<AuditLogRecord> removed = new ArrayList<AuditLogRecord>();
+		Iterator<Pending> it = pending.values().iterator();
+		while (it.hasNext() && removed.size() < max) {
+			Pending next = it.next();
+			if (next.started > startedBy) {
+				break;
+			}
+			removed.add(next.toRecord());
+			it.remove();
+			decrementItemCount(next.first.getType(), next.first.getIdentifier());
+		}
+		return removed;
+	}
+	
+	/**
+	 * Removes the pending audit logs of the specified object by any user
+	 *
+	 * @param removed the list to add the removed audit logs to
+	 */
+	private void removeItem(String type, String identifier, List<AuditLogRecord> removed) {
+		if (!pendingCountsByItem.containsKey(getItemKey(type, identifier))) {
+			return;
+		}
+		Iterator<Pending> it = pending.values().iterator();
+		while (it.hasNext()) {
+			Pending next = it.next();
+			if (next.first.getType().equals(type) && next.first.getIdentifier().equals(identifier)) {
+				removed.add(next.toRecord());
+				it.remove();
+			}
+		}
+		pendingCountsByItem.remove(getItemKey(type, identifier));
+	}
+	
+	private void decrementItemCount(String type, String identifier) {
+		pendingCountsByItem.computeIfPresent(getItemKey(type, identifier), (k, count) -> count > 1 ? count - 1 : null);
+	}
+	
+	private static String getKey(AuditLogRecord record) {
+		return getItemKey(record.getType(), record.getIdentifier()) + "#" + record.getUserId();
+	}
+	
+	private static String getItemKey(String type, String identifier) {
+		return type + "#" + identifier;
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Map<String, List> getChanges(byte[] serializedData) {
+		if (serializedData == null || serializedData.length == 0) {
+			return Collections.emptyMap();
+		}
+		try {
+			return mapper.readValue(serializedData, Map.class);
+		}
+		catch (Exception e) {
+			log.warn("Failed to convert serialized data to a map", e);
+			return Collections.emptyMap();
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String gpName) {
+		return AuditLogConstants.GP_COALESCING_WINDOW.equals(gpName);
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty gp) {
+		stop();
+		start();
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String gpName) {
+		stop();
+		start();
+	}
+	
+	/**
+	 * The merged updates of an object by a user within a window
+	 */
+	static final class Pending {
+		
+		private final AuditLogRecord first;
+		
+		private final long started;
+		
+		//The serialized data is only parsed once a second update arrives
+		@SuppressWarnings("rawtypes")
+		private Map<String, List> changes;
+		
+		private List<AuditLogRecord> childRecords;
+		
+		Pending(AuditLogRecord first, long started) {
+			this.first = first;
+			this.started = started;
+		}
+		
+		/**
+		 * Merges the changes of the specified later update of the same object
+		 *
+		 * @param record the record of the later update
+		 * @should keep the earliest previous value and the latest new value of each property
+		 * @should keep the child records of all the updates
+		 */
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		void merge(AuditLogRecord record) {
+			if (changes == null) {
+				changes = getChanges(first.getSerializedData());
+				childRecords = new ArrayList<AuditLogRecord>(first.getChildRecords());
+			}
+			Map<String, List> merged = new LinkedHashMap<String, List>();
+			for (Map.Entry<String, Object[]> entry : AuditLogUtil.mergeChanges(changes,
+			    getChanges(record.getSerializedData())).entrySet()) {
+				merged.put(entry.getKey(), Arrays.asList(entry.getValue()));
+			}
+			changes = merged;
+			childRecords.addAll(record.getChildRecords());
+		}
+		
+		/**
+		 * @return the record of the merged updates
+		 */
+		AuditLogRecord toRecord() {
+			if (changes == null) {
+				return first;
+			}
+			byte[] serializedData = changes.isEmpty() ? null : AuditLogUtil.serializeToJson(changes).getBytes();
+			return first.withData(serializedData, childRecords);
+		}
+	}
+}
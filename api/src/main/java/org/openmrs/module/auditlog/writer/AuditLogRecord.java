@@ -0,0 +1,320 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.sql.Blob;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.openmrs.User;
+import org.openmrs.api.APIException;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+/**
+ * An immutable, session independent copy of an {@link AuditLog} and its child logs, it is what gets
+ * handed over from the thread that captured the changes to the thread that persists them. It
+ * holds no references to persistent objects, the user is kept as a user id and the serialized data
+ * as raw bytes.
+ */
+public final class AuditLogRecord {
+	
+	private final String uuid;
+	
+	private final String type;
+	
+	private final String identifier;
+	
+	private final Action action;
+	
+	private final Integer userId;
+	
+	private final long dateCreated;
+	
+	private final String openmrsVersion;
+	
+	private final String moduleVersion;
+	
+	private final byte[] serializedData;
+	
+	private final List<AuditLogRecord> childRecords;
+	
+	private AuditLogRecord(AuditLog auditLog) {
+		uuid = auditLog.getUuid();
+		type = auditLog.getType();
+		identifier = auditLog.getIdentifier();
+		action = auditLog.getAction();
+		userId = auditLog.getUser() != null ? auditLog.getUser().getUserId() : null;
+		dateCreated = auditLog.getDateCreated().getTime();
+		openmrsVersion = auditLog.getOpenmrsVersion();
+		moduleVersion = auditLog.getModuleVersion();
+		serializedData = getBytes(auditLog.getSerializedData());
+		List<AuditLogRecord> children = new ArrayList<AuditLogRecord>(auditLog.getChildAuditLogs().size());
+		for (AuditLog child : auditLog.getChildAuditLogs()) {
+			children.add(new AuditLogRecord(child));
+		}
+		childRecords = Collections.unmodifiableList(children);
+	}
+	
+	private AuditLogRecord(AuditLogRecord template, byte[] serializedData, List<AuditLogRecord> childRecords) {
+		uuid = template.uuid;
+		type = template.type;
+		identifier = template.identifier;
+		action = template.action;
+		userId = template.userId;
+		dateCreated = template.dateCreated;
+		openmrsVersion = template.openmrsVersion;
+		moduleVersion = template.moduleVersion;
+		this.serializedData = serializedData;
+		this.childRecords = Collections.unmodifiableList(new ArrayList<AuditLogRecord>(childRecords));
+	}
+	
+	AuditLogRecord(String uuid, String type, String identifier, Action action, Integer userId,
+	    long dateCreated, String openmrsVersion, String moduleVersion, byte[] serializedData,
+	    List<AuditLogRecord> childRecords) {
+		this.uuid = uuid;
+		this.type = type;
+		this.identifier = identifier;
+		this.action = action;
+		this.userId = userId;
+		this.dateCreated = dateCreated;
+		this.openmrsVersion = openmrsVersion;
+		this.moduleVersion = moduleVersion;
+		this.serializedData = serializedData;
+		this.childRecords = Collections.unmodifiableList(childRecords);
+	}
+	
+	/**
+	 * Creates a copy of this record with the specified serialized data and child records
+	 *
+	 * @param serializedData the serialized data of the copy
+	 * @param childRecords the child records of the copy
+	 * @return the created record
+	 */
+	AuditLogRecord withData(byte[] serializedData, List<AuditLogRecord> childRecords) {
+		return new AuditLogRecord(this, serializedData, childRecords);
+	}
+	
+	/**
+	 * Creates a record for the specified audit log including its child logs
+	 *
+	 * @param auditLog the audit log to copy
+	 * @return the created record
+	 */
+	public static AuditLogRecord of(AuditLog auditLog) {
+		return new AuditLogRecord(auditLog);
+	}
+	
+	/**
+	 * Creates records for the specified audit logs including their child logs, an audit log whose
+	 * parent or any other ancestor is also in the list is only copied as a child record of that
+	 * ancestor so that no audit log gets more than one record
+	 *
+	 * @param auditLogs the audit logs to copy
+	 * @return a list of records for the top most audit logs in the same order as the audit logs
+	 * @should only create records for audit logs with no ancestor in the list
+	 */
+	public static List<AuditLogRecord> of(List<AuditLog> auditLogs) {
+		Set<AuditLog> listed = Collections.newSetFromMap(new IdentityHashMap<AuditLog, Boolean>());
+		listed.addAll(auditLogs);
+		List<AuditLogRecord> records = new ArrayList<AuditLogRecord>(auditLogs.size());
+		for (AuditLog auditLog : auditLogs) {
+			if (!hasListedAncestor(auditLog, listed)) {
+				records.add(of(auditLog));
+			}
+		}
+		return records;
+	}
+	
+	private static boolean hasListedAncestor(AuditLog auditLog, Set<AuditLog> listed) {
+		for (AuditLog parent = auditLog.getParentAuditLog(); parent != null; parent = parent.getParentAuditLog()) {
+			if (listed.contains(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Rebuilds the {@link AuditLog} and its child logs, the user is attached to the specified
+	 * session as an uninitialized proxy so no extra query is made for it.
+	 *
+	 * @param session the session the audit log is going to be saved in
+	 * @return the audit log
+	 */
+	public AuditLog toAuditLog(Session session) {
+		AuditLog auditLog = new AuditLog(type, identifier, action, null, new Date(dateCreated));
+		auditLog.setUuid(uuid);
+		if (userId != null) {
+			auditLog.setUser(session.load(User.class, userId));
+		}
+		auditLog.setOpenmrsVersion(openmrsVersion);
+		auditLog.setModuleVersion(moduleVersion);
+		if (serializedData != null) {
+			auditLog.setSerializedData(session.getLobHelper().createBlob(serializedData));
+		}
+		for (AuditLogRecord childRecord : childRecords) {
+			AuditLog child = childRecord.toAuditLog(session);
+			child.setParentAuditLog(auditLog);
+			auditLog.getChildAuditLogs().add(child);
+		}
+		return auditLog;
+	}
+	
+	public String getUuid() {
+		return uuid;
+	}
+	
+	public String getType() {
+		return type;
+	}
+	
+	public String getIdentifier() {
+		return identifier;
+	}
+	
+	public Action getAction() {
+		return action;
+	}
+	
+	public Integer getUserId() {
+		return userId;
+	}
+	
+	public long getDateCreated() {
+		return dateCreated;
+	}
+	
+	public String getOpenmrsVersion() {
+		return openmrsVersion;
+	}
+	
+	public String getModuleVersion() {
+		return moduleVersion;
+	}
+	
+	/**
+	 * @return the serialized data, callers must not modify the returned array
+	 */
+	public byte[] getSerializedData() {
+		return serializedData;
+	}
+	
+	public List<AuditLogRecord> getChildRecords() {
+		return childRecords;
+	}
+	
+	/**
+	 * @return the number of records in this tree i.e. this record plus all its descendants
+	 */
+	public int size() {
+		int size = 1;
+		for (AuditLogRecord child : childRecords) {
+			size += child.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Writes this record including its child records in a compact binary form
+	 *
+	 * @param out the output to write to
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(uuid);
+		out.writeUTF(type);
+		out.writeUTF(identifier);
+		out.writeByte(action.ordinal());
+		out.writeInt(userId != null ? userId : -1);
+		out.writeLong(dateCreated);
+		writeNullableString(out, openmrsVersion);
+		writeNullableString(out, moduleVersion);
+		out.writeInt(serializedData != null ? serializedData.length : -1);
+		if (serializedData != null) {
+			out.write(serializedData);
+		}
+		out.writeInt(childRecords.size());
+		for (AuditLogRecord child : childRecords) {
+			child.writeTo(out);
+		}
+	}
+	
+	/**
+	 * Reads a record including its child records that was written via {@link #writeTo(DataOutput)}
+	 *
+	 * @param in the input to read from
+	 * @return the record
+	 * @throws IOException
+	 */
+	public static AuditLogRecord readFrom(DataInput in) throws IOException {
+		String uuid = in.readUTF();
+		String type = in.readUTF();
+		String identifier = in.readUTF();
+		Action action = Action.values()[in.readByte()];
+		int userId = in.readInt();
+		long dateCreated = in.readLong();
+		String openmrsVersion = readNullableString(in);
+		String moduleVersion = readNullableString(in);
+		byte[] serializedData = null;
+		int length = in.readInt();
+		if (length > -1) {
+			serializedData = new byte[length];
+			in.readFully(serializedData);
+		}
+		int childCount = in.readInt();
+		List<AuditLogRecord> children = new ArrayList<AuditLogRecord>(childCount);
+		for (int i = 0; i < childCount; i++) {
+			children.add(readFrom(in));
+		}
+		return new AuditLogRecord(uuid, type, identifier, action, userId > -1 ? userId : null, dateCreated,
+		        openmrsVersion, moduleVersion, serializedData, children);
+	}
+	
+	private static void writeNullableString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+	
+	private static String readNullableString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+	
+	@Override
+	public String toString() {
+		return action + " " + type + " " + identifier;
+	}
+	
+	private static byte[] getBytes(Blob blob) {
+		if (blob == null) {
+			return null;
+		}
+		try {
+			return blob.getBytes(1, (int) blob.length());
+		}
+		catch (Exception e) {
+			throw new APIException("Failed to read the serialized data of the audit log", e);
+		}
+	}
+}
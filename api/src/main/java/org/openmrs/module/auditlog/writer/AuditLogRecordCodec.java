@@ -0,0 +1,250 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+/**
+ * Encodes {@link AuditLogRecord}s into a compact binary form held in direct buffers of a
+ * {@link SlabPool} and decodes them back, this is how the {@link AsyncAuditLogWriter} keeps its
+ * backlog off the heap. Types and versions are written as ids of a dictionary that lives as long as
+ * the codec, uuids as 16 bytes, the user as its id and the date as a timestamp, the serialized data
+ * is copied as is.
+ *
+ * <pre>
+ * The encoded form of a list of records is the number of records followed by each record, a
+ * record is the uuid, type id, identifier, action, user id, timestamp, openmrs and module version
+ * ids, serialized data and the number of child records followed by each child record.
+ * </pre>
+ */
+final class AuditLogRecordCodec {
+	
+	private static final int INITIAL_SCRATCH_SIZE = 8 * 1024;
+	
+	//Bigger scratch buffers are only used for the call that needed them
+	static final int MAX_SCRATCH_SIZE = 256 * 1024;
+	
+	private static final byte UUID_BINARY = 0;
+	
+	private static final byte UUID_TEXT = 1;
+	
+	private static final Action[] ACTIONS = Action.values();
+	
+	private final SlabPool pool;
+	
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	
+	private final List<String> names = new CopyOnWriteArrayList<String>();
+	
+	//Records are encoded into a reusable heap buffer first since their size is only known after,
+	//it is capped at MAX_SCRATCH_SIZE so a single huge transaction doesn't pin memory per thread
+	private final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer
+	        .allocate(INITIAL_SCRATCH_SIZE));
+	
+	/**
+	 * @param pool the pool to allocate the buffers holding the encoded records from
+	 */
+	AuditLogRecordCodec(SlabPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Encodes the specified records into a region of the pool
+	 *
+	 * @param records the records to encode
+	 * @return the region holding the encoded records
+	 * @should encode records that decode to equal records
+	 * @should not keep a scratch buffer bigger than the maximum size
+	 */
+	SlabPool.Region encode(List<AuditLogRecord> records) {
+		ByteBuffer buffer = scratch.get();
+		while (true) {
+			buffer.clear();
+			try {
+				buffer.putInt(records.size());
+				for (AuditLogRecord record : records) {
+					write(record, buffer);
+				}
+				break;
+			}
+			catch (BufferOverflowException e) {
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+				if (buffer.capacity() <= MAX_SCRATCH_SIZE) {
+					scratch.set(buffer);
+				}
+			}
+		}
+		
+		buffer.flip();
+		SlabPool.Region region = pool.allocate(buffer.remaining());
+		region.getBuffer().put(buffer);
+		return region;
+	}
+	
+	/**
+	 * @return the capacity of the scratch buffer of the calling thread, for testing
+	 */
+	int getScratchCapacity() {
+		return scratch.get().capacity();
+	}
+	
+	/**
+	 * Decodes the records held by the specified region, the region is left as is
+	 *
+	 * @param region the region holding the encoded records
+	 * @return the decoded records
+	 */
+	List<AuditLogRecord> decode(SlabPool.Region region) {
+		ByteBuffer buffer = region.getBuffer();
+		int count = buffer.getInt();
+		List<AuditLogRecord> records = new ArrayList<AuditLogRecord>(count);
+		for (int i = 0; i < count; i++) {
+			records.add(read(buffer));
+		}
+		return records;
+	}
+	
+	private void write(AuditLogRecord record, ByteBuffer buffer) {
+		writeUuid(record.getUuid(), buffer);
+		buffer.putInt(getId(record.getType()));
+		writeString(record.getIdentifier(), buffer);
+		buffer.put((byte) record.getAction().ordinal());
+		buffer.putInt(record.getUserId() != null ? record.getUserId() : -1);
+		buffer.putLong(record.getDateCreated());
+		buffer.putInt(getId(record.getOpenmrsVersion()));
+		buffer.putInt(getId(record.getModuleVersion()));
+		byte[] serializedData = record.getSerializedData();
+		buffer.putInt(serializedData != null ? serializedData.length : -1);
+		if (serializedData != null) {
+			buffer.put(serializedData);
+		}
+		buffer.putInt(record.getChildRecords().size());
+		for (AuditLogRecord child : record.getChildRecords()) {
+			write(child, buffer);
+		}
+	}
+	
+	private AuditLogRecord read(ByteBuffer buffer) {
+		String uuid = readUuid(buffer);
+		String type = getName(buffer.getInt());
+		String identifier = readString(buffer);
+		Action action = ACTIONS[buffer.get()];
+		int userId = buffer.getInt();
+		long dateCreated = buffer.getLong();
+		String openmrsVersion = getName(buffer.getInt());
+		String moduleVersion = getName(buffer.getInt());
+		byte[] serializedData = null;
+		int length = buffer.getInt();
+		if (length > -1) {
+			serializedData = new byte[length];
+			buffer.get(serializedData);
+		}
+		int childCount = buffer.getInt();
+		List<AuditLogRecord> children = new ArrayList<AuditLogRecord>(childCount);
+		for (int i = 0; i < childCount; i++) {
+			children.add(read(buffer));
+		}
+		return new AuditLogRecord(uuid, type, identifier, action, userId > -1 ? userId : null, dateCreated,
+		        openmrsVersion, moduleVersion, serializedData, children);
+	}
+	
+	/**
+	 * Gets the dictionary id of the specified name, adding it if necessary
+	 */
+	private int getId(String name) {
+		if (name == null) {
+			return -1;
+		}
+		Integer id = ids.get(name);
+		if (id == null) {
+			synchronized (names) {
+				id = ids.get(name);
+				if (id == null) {
+					names.add(name);
+					id = names.size() - 1;
+					ids.put(name, id);
+				}
+			}
+		}
+		return id;
+	}
+	
+	private String getName(int id) {
+		return id > -1 ? names.get(id) : null;
+	}
+	
+	private static void writeUuid(String uuid, ByteBuffer buffer) {
+		UUID parsed = parseUuid(uuid);
+		if (parsed != null) {
+			buffer.put(UUID_BINARY);
+			buffer.putLong(parsed.getMostSignificantBits());
+			buffer.putLong(parsed.getLeastSignificantBits());
+		} else {
+			buffer.put(UUID_TEXT);
+			writeString(uuid, buffer);
+		}
+	}
+	
+	private static String readUuid(ByteBuffer buffer) {
+		if (buffer.get() == UUID_BINARY) {
+			return new UUID(buffer.getLong(), buffer.getLong()).toString();
+		}
+		return readString(buffer);
+	}
+	
+	/**
+	 * @return the parsed uuid if it converts back to the same text otherwise null
+	 */
+	private static UUID parseUuid(String uuid) {
+		if (uuid == null || uuid.length() != 36) {
+			return null;
+		}
+		try {
+			UUID parsed = UUID.fromString(uuid);
+			return parsed.toString().equals(uuid) ? parsed : null;
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	private static void writeString(String value, ByteBuffer buffer) {
+		if (value == null) {
+			buffer.putInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+	
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
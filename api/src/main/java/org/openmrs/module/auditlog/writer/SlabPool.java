@@ -0,0 +1,159 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Hands out regions of large direct {@link ByteBuffer}s, a region is carved off the current slab
+ * by bumping its position and a slab is reused once all its regions are released, this way
+ * holding encoded data puts no pressure on the garbage collector. Regions bigger than a slab get
+ * their own direct buffer that is not pooled.
+ */
+final class SlabPool {
+	
+	private final int slabSize;
+	
+	private final int maxPooledSlabs;
+	
+	private final Deque<Slab> freeSlabs = new ArrayDeque<Slab>();
+	
+	private Slab current;
+	
+	//The number of bytes held by slabs that are in use or pooled
+	private long capacity;
+	
+	/**
+	 * @param slabSize the size of each slab in bytes
+	 * @param maxPooledSlabs the maximum number of free slabs to keep for reuse
+	 */
+	SlabPool(int slabSize, int maxPooledSlabs) {
+		this.slabSize = slabSize;
+		this.maxPooledSlabs = maxPooledSlabs;
+	}
+	
+	/**
+	 * Allocates a region of the specified size, it must be released once its data is no longer
+	 * needed
+	 *
+	 * @param size the size of the region in bytes
+	 * @return the allocated region
+	 * @should carve regions off the same slab
+	 * @should reuse a slab once all its regions are released
+	 */
+	synchronized Region allocate(int size) {
+		if (size > slabSize) {
+			return new Region(null, ByteBuffer.allocateDirect(size));
+		}
+		
+		if (current == null || slabSize - current.position < size) {
+			if (current != null) {
+				current.retired = true;
+				recycleIfUnused(current);
+			}
+			current = freeSlabs.poll();
+			if (current == null) {
+				current = new Slab(ByteBuffer.allocateDirect(slabSize));
+				capacity += slabSize;
+			}
+		}
+		
+		ByteBuffer dup = current.buffer.duplicate();
+		dup.position(current.position);
+		dup.limit(current.position + size);
+		current.position += size;
+		current.regions++;
+		return new Region(current, dup.slice());
+	}
+	
+	/**
+	 * @return the number of direct bytes held by the slabs in use or pooled
+	 */
+	synchronized long getCapacity() {
+		return capacity;
+	}
+	
+	private synchronized void release(Slab slab) {
+		slab.regions--;
+		if (slab == current && slab.regions == 0) {
+			//Nothing refers to the current slab anymore so it can be filled again from the start
+			slab.position = 0;
+			return;
+		}
+		recycleIfUnused(slab);
+	}
+	
+	private void recycleIfUnused(Slab slab) {
+		if (!slab.retired || slab.regions > 0) {
+			return;
+		}
+		
+		slab.position = 0;
+		slab.retired = false;
+		if (freeSlabs.size() < maxPooledSlabs) {
+			freeSlabs.push(slab);
+		} else {
+			capacity -= slabSize;
+		}
+	}
+	
+	private static final class Slab {
+		
+		private final ByteBuffer buffer;
+		
+		private int position;
+		
+		private int regions;
+		
+		//Set once no more regions are carved off the slab
+		private boolean retired;
+		
+		private Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+	
+	/**
+	 * A region of a slab
+	 */
+	final class Region {
+		
+		private final Slab slab;
+		
+		private final ByteBuffer buffer;
+		
+		private Region(Slab slab, ByteBuffer buffer) {
+			this.slab = slab;
+			this.buffer = buffer;
+		}
+		
+		/**
+		 * @return a buffer spanning the region, positioned at its start
+		 */
+		ByteBuffer getBuffer() {
+			return buffer.duplicate();
+		}
+		
+		/**
+		 * Gives the region back to the pool, it must not be used afterwards
+		 */
+		void release() {
+			if (slab != null) {
+				SlabPool.this.release(slab);
+			}
+		}
+	}
+}
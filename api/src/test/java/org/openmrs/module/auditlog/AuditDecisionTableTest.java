@@ -0,0 +1,246 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.strategy.SamplingPolicy;
+import org.openmrs.module.auditlog.strategy.StateCondition;
+
+public class AuditDecisionTableTest {
+	
+	/**
+	 * @verifies return the precomputed decision for a mapped type
+	 * @see AuditDecisionTable#isAudited(Class)
+	 */
+	@Test
+	public void isAudited_shouldReturnThePrecomputedDecisionForAMappedType() throws Exception {
+		Map<Class<?>, Boolean> decisions = new HashMap<Class<?>, Boolean>();
+		decisions.put(Concept.class, true);
+		decisions.put(Location.class, false);
+		AuditDecisionTable table = new AuditDecisionTable(decisions, clazz -> {
+			throw new AssertionError("The fallback should not be called for " + clazz);
+		});
+		
+		assertTrue(table.isAudited(Concept.class));
+		assertFalse(table.isAudited(Location.class));
+		assertEquals(2, table.size());
+	}
+	
+	/**
+	 * @verifies call the fallback only once for a type without a precomputed decision
+	 * @see AuditDecisionTable#isAudited(Class)
+	 */
+	@Test
+	public void isAudited_shouldCallTheFallbackOnlyOnceForATypeWithoutAPrecomputedDecision() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		AuditDecisionTable table = new AuditDecisionTable(new HashMap<Class<?>, Boolean>(), clazz -> {
+			calls.incrementAndGet();
+			return ConceptName.class.equals(clazz);
+		});
+		
+		assertTrue(table.isAudited(ConceptName.class));
+		assertTrue(table.isAudited(ConceptName.class));
+		assertEquals(1, calls.get());
+	}
+	
+	/**
+	 * @verifies always audit deletes
+	 * @see AuditDecisionTable#isSampled(Class, Action)
+	 */
+	@Test
+	public void isSampled_shouldAlwaysAuditDeletes() throws Exception {
+		SamplingPolicy policy = SamplingPolicy.oneIn(1000);
+		AuditDecisionTable table = new AuditDecisionTable(Collections.<Class<?>, Boolean> singletonMap(Obs.class, true),
+		        Collections.<Class<?>, SamplingPolicy> singletonMap(Obs.class, policy), clazz -> false);
+		
+		for (int i = 0; i < 10; i++) {
+			assertTrue(table.isSampled(Obs.class, Action.DELETED));
+		}
+		assertEquals(0, policy.getSampledCount() + policy.getSkippedCount());
+	}
+	
+	/**
+	 * @verifies audit every change of a type without a sampling policy
+	 * @see AuditDecisionTable#isSampled(Class, Action)
+	 */
+	@Test
+	public void isSampled_shouldAuditEveryChangeOfATypeWithoutASamplingPolicy() throws Exception {
+		AuditDecisionTable table = new AuditDecisionTable(Collections.<Class<?>, Boolean> singletonMap(Obs.class, true),
+		        Collections.<Class<?>, SamplingPolicy> singletonMap(Obs.class, SamplingPolicy.oneIn(1000)), clazz -> false);
+		
+		for (int i = 0; i < 10; i++) {
+			assertTrue(table.isSampled(Location.class, Action.CREATED));
+			assertTrue(table.isSampled(Location.class, Action.UPDATED));
+		}
+	}
+	
+	/**
+	 * @verifies apply the sampling policy to creates and updates
+	 * @see AuditDecisionTable#isSampled(Class, Action)
+	 */
+	@Test
+	public void isSampled_shouldApplyTheSamplingPolicyToCreatesAndUpdates() throws Exception {
+		SamplingPolicy policy = SamplingPolicy.oneIn(2);
+		AuditDecisionTable table = new AuditDecisionTable(Collections.<Class<?>, Boolean> singletonMap(Obs.class, true),
+		        Collections.<Class<?>, SamplingPolicy> singletonMap(Obs.class, policy), clazz -> false);
+		
+		assertTrue(table.isSampled(Obs.class, Action.CREATED));
+		assertFalse(table.isSampled(Obs.class, Action.UPDATED));
+		assertTrue(table.isSampled(Obs.class, Action.UPDATED));
+		assertFalse(table.isSampled(Obs.class, Action.CREATED));
+		assertEquals(2, policy.getSampledCount());
+		assertEquals(2, policy.getSkippedCount());
+	}
+	
+	/**
+	 * @verifies return true for a type without a condition
+	 * @see AuditDecisionTable#matchesState(Class, Object[])
+	 */
+	@Test
+	public void matchesState_shouldReturnTrueForATypeWithoutACondition() throws Exception {
+		AuditDecisionTable table = new AuditDecisionTable(Collections.<Class<?>, Boolean> singletonMap(Obs.class, true),
+		        Collections.<Class<?>, SamplingPolicy> emptyMap(), Collections.<Class<?>, StateCondition> singletonMap(
+		            Obs.class, state -> false), Collections.<Class<?>, Set<String>> emptyMap(), Collections
+		                .<Class<?>, Set<String>> emptyMap(), clazz -> false);
+		
+		assertTrue(table.matchesState(Concept.class, new Object[] { "value" }));
+		assertTrue(table.matchesState(Concept.class, null));
+	}
+	
+	/**
+	 * @verifies evaluate the condition of the type
+	 * @see AuditDecisionTable#matchesState(Class, Object[])
+	 */
+	@Test
+	public void matchesState_shouldEvaluateTheConditionOfTheType() throws Exception {
+		AuditDecisionTable table = new AuditDecisionTable(Collections.<Class<?>, Boolean> singletonMap(Obs.class, true),
+		        Collections.<Class<?>, SamplingPolicy> emptyMap(), Collections.<Class<?>, StateCondition> singletonMap(
+		            Obs.class, state -> "value".equals(state[0])), Collections.<Class<?>, Set<String>> emptyMap(),
+		        Collections.<Class<?>, Set<String>> emptyMap(), clazz -> false);
+		
+		assertTrue(table.matchesState(Obs.class, new Object[] { "value" }));
+		assertFalse(table.matchesState(Obs.class, new Object[] { "other" }));
+		assertFalse(table.matchesState(Obs.class, null));
+	}
+	
+	private static AuditDecisionTable createTable(Map<Class<?>, Set<String>> auditedProperties,
+	                                              Map<Class<?>, Set<String>> ignoredProperties) {
+		return new AuditDecisionTable(new HashMap<Class<?>, Boolean>(), Collections.<Class<?>, SamplingPolicy> emptyMap(),
+		        Collections.<Class<?>, StateCondition> emptyMap(), auditedProperties, ignoredProperties, clazz -> true);
+	}
+	
+	/**
+	 * @verifies return false for an ignored property of a type or its superclasses
+	 * @see AuditDecisionTable#isPropertyAudited(Class, String)
+	 */
+	@Test
+	public void isPropertyAudited_shouldReturnFalseForAnIgnoredPropertyOfATypeOrItsSuperclasses() throws Exception {
+		Map<Class<?>, Set<String>> ignored = new HashMap<Class<?>, Set<String>>();
+		ignored.put(Obs.class, Collections.singleton("valueComplex"));
+		ignored.put(Person.class, Collections.singleton("gender"));
+		AuditDecisionTable table = createTable(Collections.<Class<?>, Set<String>> emptyMap(), ignored);
+		
+		assertFalse(table.isPropertyAudited(Obs.class, "valueComplex"));
+		assertTrue(table.isPropertyAudited(Obs.class, "valueText"));
+		assertFalse(table.isPropertyAudited(Patient.class, "gender"));
+		assertTrue(table.isPropertyAudited(Patient.class, "birthdate"));
+	}
+	
+	/**
+	 * @verifies return false for a property missing from the audited properties of a type
+	 * @see AuditDecisionTable#isPropertyAudited(Class, String)
+	 */
+	@Test
+	public void isPropertyAudited_shouldReturnFalseForAPropertyMissingFromTheAuditedPropertiesOfAType() throws Exception {
+		AuditDecisionTable table = createTable(Collections.<Class<?>, Set<String>> singletonMap(Patient.class,
+		    new HashSet<String>(Arrays.asList("gender", "birthdate"))), Collections.<Class<?>, Set<String>> emptyMap());
+		
+		assertTrue(table.isPropertyAudited(Patient.class, "gender"));
+		assertFalse(table.isPropertyAudited(Patient.class, "dead"));
+		assertTrue(table.isPropertyAudited(Person.class, "dead"));
+	}
+	
+	/**
+	 * @verifies return true for a property of a type without any property filters
+	 * @see AuditDecisionTable#isPropertyAudited(Class, String)
+	 */
+	@Test
+	public void isPropertyAudited_shouldReturnTrueForAPropertyOfATypeWithoutAnyPropertyFilters() throws Exception {
+		AuditDecisionTable table = createTable(Collections.<Class<?>, Set<String>> emptyMap(),
+		    Collections.<Class<?>, Set<String>> singletonMap(Obs.class, Collections.singleton("valueComplex")));
+		
+		assertTrue(table.isPropertyAudited(Location.class, "name"));
+	}
+	
+	/**
+	 * @verifies ignore later changes to the properties the table was built from
+	 * @see AuditDecisionTable#isPropertyAudited(Class, String)
+	 */
+	@Test
+	public void isPropertyAudited_shouldIgnoreLaterChangesToThePropertiesTheTableWasBuiltFrom() throws Exception {
+		Set<String> ignoredObsProperties = new HashSet<String>(Collections.singleton("valueComplex"));
+		Map<Class<?>, Set<String>> ignored = new HashMap<Class<?>, Set<String>>();
+		ignored.put(Obs.class, ignoredObsProperties);
+		AuditDecisionTable table = createTable(Collections.<Class<?>, Set<String>> emptyMap(), ignored);
+		ignoredObsProperties.add("valueText");
+		ignored.put(Person.class, Collections.singleton("gender"));
+		
+		assertFalse(table.isPropertyAudited(Obs.class, "valueComplex"));
+		assertTrue(table.isPropertyAudited(Obs.class, "valueText"));
+		assertTrue(table.isPropertyAudited(Person.class, "gender"));
+	}
+	
+	/**
+	 * @verifies carry over the counts of a shared policy once
+	 * @see AuditDecisionTable#carryOverSamplingCounts(AuditDecisionTable)
+	 */
+	@Test
+	public void carryOverSamplingCounts_shouldCarryOverTheCountsOfASharedPolicyOnce() throws Exception {
+		SamplingPolicy previousPolicy = SamplingPolicy.oneIn(1);
+		previousPolicy.sample();
+		Map<Class<?>, SamplingPolicy> previousPolicies = new HashMap<Class<?>, SamplingPolicy>();
+		previousPolicies.put(Person.class, previousPolicy);
+		previousPolicies.put(Patient.class, previousPolicy);
+		AuditDecisionTable previous = new AuditDecisionTable(new HashMap<Class<?>, Boolean>(), previousPolicies,
+		        clazz -> true);
+		SamplingPolicy policy = SamplingPolicy.oneIn(1);
+		Map<Class<?>, SamplingPolicy> policies = new HashMap<Class<?>, SamplingPolicy>();
+		policies.put(Person.class, policy);
+		policies.put(Patient.class, policy);
+		AuditDecisionTable table = new AuditDecisionTable(new HashMap<Class<?>, Boolean>(), policies, clazz -> true);
+		
+		table.carryOverSamplingCounts(previous);
+		
+		assertEquals(1, policy.getSampledCount());
+	}
+}
@@ -34,6 +34,8 @@ import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openmrs.Concept;
@@ -567,4 +569,85 @@ public class AuditLogBehaviorTest extends BaseBehaviorTest {
 		assertEquals(oldName, AuditLogUtil.getPreviousValueOfUpdatedItem("name", log));
 		assertEquals(newName, AuditLogUtil.getNewValueOfUpdatedItem("name", log));
 	}
+	
+	@Test
+	
+	public void shouldLoadThePreviousStatesOfDetachedObjectsInBulk() throws Exception {
+		final int count = 500;
+		EncounterService es = Context.getEncounterService();
+		List<EncounterType> types = new ArrayList<EncounterType>(count);
+		for (int i = 0; i < count; i++) {
+			types.add(es.saveEncounterType(new EncounterType("type" + i, "desc" + i)));
+		}
+		Context.flushSession();
+		for (EncounterType type : types) {
+			Context.evictFromSession(type);
+			type.setName(type.getName() + " edited");
+		}
+		
+		Statistics statistics = Context.getRegisteredComponents(SessionFactory.class).get(0).getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+		try {
+			for (EncounterType type : types) {
+				es.saveEncounterType(type);
+			}
+			Context.flushSession();
+			
+			//The previous states used to be loaded in a new session per detached object
+			assertTrue(statistics.getSessionOpenCount() <= 2);
+		}
+		finally {
+			statistics.setStatisticsEnabled(false);
+		}
+		
+		for (EncounterType type : types) {
+			AuditLog log = getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(UPDATED)).get(0);
+			assertEquals(type.getName(), AuditLogUtil.getNewValueOfUpdatedItem("name", log));
+		}
+	}
+	
+	@Test
+	public void shouldMergeTheChangesMadeToAnObjectInMultipleFlushesIntoOneAuditLog() throws Exception {
+		EncounterService es = Context.getEncounterService();
+		EncounterType type = es.getEncounterType(1);
+		final String originalName = type.getName();
+		final String originalDescription = type.getDescription();
+		type.setName("first name");
+		es.saveEncounterType(type);
+		Context.flushSession();
+		type.setName("second name");
+		type.setDescription("new description");
+		es.saveEncounterType(type);
+		Context.flushSession();
+		
+		List<AuditLog> logs = getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(UPDATED));
+		assertEquals(1, logs.size());
+		AuditLog al = logs.get(0);
+		assertEquals(2, AuditLogUtil.getChangesOfUpdatedItem(al).size());
+		assertEquals(originalName, AuditLogUtil.getPreviousValueOfUpdatedItem("name", al));
+		assertEquals("second name", AuditLogUtil.getNewValueOfUpdatedItem("name", al));
+		assertEquals(originalDescription, AuditLogUtil.getPreviousValueOfUpdatedItem("description", al));
+		assertEquals("new description", AuditLogUtil.getNewValueOfUpdatedItem("description", al));
+	}
+	
+	@Test
+	public void shouldLeaveOutPropertiesChangedBackToTheirOriginalValuesInLaterFlushes() throws Exception {
+		EncounterService es = Context.getEncounterService();
+		EncounterType type = es.getEncounterType(1);
+		final String originalName = type.getName();
+		type.setName("first name");
+		type.setDescription("new description");
+		es.saveEncounterType(type);
+		Context.flushSession();
+		type.setName(originalName);
+		es.saveEncounterType(type);
+		Context.flushSession();
+		
+		List<AuditLog> logs = getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(UPDATED));
+		assertEquals(1, logs.size());
+		AuditLog al = logs.get(0);
+		assertEquals(1, AuditLogUtil.getChangesOfUpdatedItem(al).size());
+		assertNull(AuditLogUtil.getNewValueOfUpdatedItem("name", al));
+	}
 }
@@ -15,9 +15,14 @@ package org.openmrs.module.auditlog;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
@@ -37,6 +42,7 @@ import org.openmrs.ConceptSet;
 import org.openmrs.EncounterType;
 import org.openmrs.GlobalProperty;
 import org.openmrs.Location;
+import org.openmrs.Obs;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.Person;
 import org.openmrs.PersonName;
@@ -44,6 +50,7 @@ import org.openmrs.Program;
 import org.openmrs.api.APIException;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.strategy.AuditRule;
 import org.openmrs.module.auditlog.strategy.AuditStrategy;
 import org.openmrs.module.auditlog.strategy.ExceptionBasedAuditStrategy;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
@@ -274,4 +281,33 @@ public class AuditLogHelperTest extends BaseAuditLogTest {
 		as.saveGlobalProperties(Arrays.asList(strategy));
 		assertTrue(StringUtils.isBlank(as.getGlobalProperty(ExceptionBasedAuditStrategy.GLOBAL_PROPERTY_EXCEPTION)));
 	}
+	
+	/**
+	 * @verifies group the property names by type
+	 * @see AuditLogHelper#getPropertiesByType(String)
+	 */
+	@Test
+	public void getPropertiesByType_shouldGroupThePropertyNamesByType() throws Exception {
+		Map<Class<?>, Set<String>> propertiesByType = helper
+		        .getPropertiesByType("org.openmrs.Obs.valueComplex, org.openmrs.Obs.comment,org.openmrs.Location.name,invalid");
+		
+		assertEquals(2, propertiesByType.size());
+		assertEquals(new HashSet<String>(Arrays.asList("valueComplex", "comment")), propertiesByType.get(Obs.class));
+		assertEquals(Collections.singleton("name"), propertiesByType.get(Location.class));
+	}
+	
+	/**
+	 * @verifies parse conditional and unconditional rules
+	 * @see AuditLogHelper#getAuditRules(String)
+	 */
+	@Test
+	public void getAuditRules_shouldParseConditionalAndUnconditionalRules() throws Exception {
+		List<AuditRule> rules = helper.getAuditRules("org.openmrs.Obs.concept=5089|5090, org.openmrs.Location,invalid.type");
+		
+		assertEquals(2, rules.size());
+		assertEquals(Obs.class, rules.get(0).getType());
+		assertEquals("concept", rules.get(0).getPropertyName());
+		assertEquals(Location.class, rules.get(1).getType());
+		assertNull(rules.get(1).getPropertyName());
+	}
 }
@@ -0,0 +1,51 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.module.auditlog.strategy.SamplingPolicy;
+
+public class AuditSamplingStatisticsTest {
+	
+	/**
+	 * @verifies report a policy shared with subclasses once under the most general type
+	 * @see AuditSamplingStatistics#getCounts(Map, java.util.function.ToLongFunction)
+	 */
+	@Test
+	public void getCounts_shouldReportAPolicySharedWithSubclassesOnceUnderTheMostGeneralType() throws Exception {
+		SamplingPolicy personPolicy = SamplingPolicy.oneIn(2);
+		personPolicy.sample();
+		personPolicy.sample();
+		SamplingPolicy obsPolicy = SamplingPolicy.oneIn(1);
+		obsPolicy.sample();
+		Map<Class<?>, SamplingPolicy> policies = new HashMap<Class<?>, SamplingPolicy>();
+		policies.put(Person.class, personPolicy);
+		policies.put(Patient.class, personPolicy);
+		policies.put(Obs.class, obsPolicy);
+		
+		Map<String, Long> counts = AuditSamplingStatistics.getCounts(policies, SamplingPolicy::getSkippedCount);
+		
+		assertEquals(2, counts.size());
+		assertEquals(Long.valueOf(1), counts.get(Person.class.getName()));
+		assertEquals(Long.valueOf(0), counts.get(Obs.class.getName()));
+	}
+}
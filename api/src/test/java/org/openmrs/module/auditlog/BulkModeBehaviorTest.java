@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.openmrs.module.auditlog.AuditLog.Action.CREATED;
+import static org.openmrs.module.auditlog.AuditLog.Action.DELETED;
+import static org.openmrs.module.auditlog.AuditLog.Action.UPDATED;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.openmrs.EncounterType;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+
+/**
+ * Contains tests for running operations in bulk mode
+ */
+@Ignore
+public class BulkModeBehaviorTest extends BaseBehaviorTest {
+	
+	private static BulkAuditSummary getSummary(List<BulkAuditSummary> summaries, AuditLog.Action action) {
+		for (BulkAuditSummary summary : summaries) {
+			if (summary.getType().equals(EncounterType.class.getName()) && summary.getAction() == action) {
+				return summary;
+			}
+		}
+		return null;
+	}
+	
+	@Test
+	public void shouldRecordSummariesInsteadOfAuditLogsForTheChangesMadeByTheOperation() throws Exception {
+		final List<EncounterType> created = new ArrayList<EncounterType>();
+		List<BulkAuditSummary> summaries = auditLogService.runInBulkMode("import", () -> {
+			for (int i = 0; i < 5; i++) {
+				created.add(encounterService.saveEncounterType(new EncounterType("type" + i, "desc" + i)));
+			}
+			EncounterType existing = encounterService.getEncounterType(1);
+			existing.setName("new name");
+			encounterService.saveEncounterType(existing);
+			encounterService.purgeEncounterType(encounterService.getEncounterType(6));
+		});
+		Context.flushSession();
+		
+		assertTrue(getAllLogs().isEmpty());
+		assertEquals(3, summaries.size());
+		BulkAuditSummary inserts = getSummary(summaries, CREATED);
+		assertNotNull(inserts);
+		assertEquals(5, inserts.getItemCount().intValue());
+		assertEquals(created.get(0).getId() + "-" + created.get(4).getId(), inserts.getIdentifierRanges());
+		assertEquals("1", getSummary(summaries, UPDATED).getIdentifierRanges());
+		assertEquals("6", getSummary(summaries, DELETED).getIdentifierRanges());
+		assertEquals(summaries, auditLogService.getBulkAuditSummaries("import"));
+	}
+	
+	@Test
+	public void shouldAuditChangesNormallyAfterTheOperation() throws Exception {
+		auditLogService.runInBulkMode("import", () -> encounterService.saveEncounterType(new EncounterType("a", "b")));
+		EncounterType type = encounterService.saveEncounterType(new EncounterType("c", "d"));
+		Context.flushSession();
+		
+		assertEquals(1, getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(CREATED)).size());
+	}
+	
+	@Test(expected = APIException.class)
+	public void shouldFailIfTheLabelIsBlank() throws Exception {
+		auditLogService.runInBulkMode(" ", () -> {
+		});
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.openmrs.module.auditlog.AuditLog.Action.CREATED;
+import static org.openmrs.module.auditlog.AuditLog.Action.DELETED;
+import static org.openmrs.module.auditlog.AuditLog.Action.UPDATED;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptDescription;
+import org.openmrs.EncounterType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditLogEventListener;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * Contains tests for the capture engine based on hibernate event listeners
+ */
+@Ignore
+public class CaptureEngineBehaviorTest extends BaseBehaviorTest {
+	
+	private static final Log log = LogFactory.getLog(CaptureEngineBehaviorTest.class);
+	
+	private void useEngine(String engine) {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_CAPTURE_ENGINE, engine);
+		assertEquals(AuditLogEventListener.ENGINE_LISTENER.equals(engine), AuditLogEventListener.isEnabled());
+	}
+	
+	@After
+	public void after() {
+		useEngine(AuditLogEventListener.ENGINE_INTERCEPTOR);
+	}
+	
+	@Test
+	public void shouldCreateAnAuditLogForAnInsertedObject() throws Exception {
+		useEngine(AuditLogEventListener.ENGINE_LISTENER);
+		EncounterType type = encounterService.saveEncounterType(new EncounterType("new type", "desc"));
+		Context.flushSession();
+		
+		assertEquals(1, getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(CREATED)).size());
+	}
+	
+	@Test
+	public void shouldCreateAnAuditLogWithTheChangedPropertiesOfAnUpdatedObject() throws Exception {
+		useEngine(AuditLogEventListener.ENGINE_LISTENER);
+		EncounterType type = encounterService.getEncounterType(1);
+		final String oldName = type.getName();
+		final String newName = "new name";
+		assertFalse(newName.equals(oldName));
+		type.setName(newName);
+		encounterService.saveEncounterType(type);
+		Context.flushSession();
+		
+		List<AuditLog> logs = getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(UPDATED));
+		assertEquals(1, logs.size());
+		AuditLog al = logs.get(0);
+		assertEquals(1, AuditLogUtil.getChangesOfUpdatedItem(al).size());
+		assertEquals(oldName, AuditLogUtil.getPreviousValueOfUpdatedItem("name", al));
+		assertEquals(newName, AuditLogUtil.getNewValueOfUpdatedItem("name", al));
+	}
+	
+	@Test
+	public void shouldCreateAnAuditLogForADeletedObject() throws Exception {
+		useEngine(AuditLogEventListener.ENGINE_LISTENER);
+		EncounterType type = encounterService.getEncounterType(6);
+		encounterService.purgeEncounterType(type);
+		Context.flushSession();
+		
+		assertEquals(1, getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(DELETED)).size());
+	}
+	
+	@Test
+	public void shouldLinkTheAuditLogOfAnUpdatedCollectionElementToTheOwner() throws Exception {
+		useEngine(AuditLogEventListener.ENGINE_LISTENER);
+		startAuditing(ConceptDescription.class);
+		Concept concept = conceptService.getConcept(7);
+		ConceptDescription description = concept.getDescription();
+		description.setDescription("another descr");
+		conceptService.saveConcept(concept);
+		Context.flushSession();
+		
+		List<AuditLog> conceptLogs = getAllLogs(concept.getId(), Concept.class, Collections.singletonList(UPDATED));
+		assertEquals(1, conceptLogs.size());
+		List<AuditLog> descriptionLogs = getAllLogs(description.getId(), ConceptDescription.class,
+		    Collections.singletonList(UPDATED));
+		assertEquals(1, descriptionLogs.size());
+		assertEquals(conceptLogs.get(0), descriptionLogs.get(0).getParentAuditLog());
+	}
+	
+	@Test
+	public void shouldCaptureTheSameUpdatesAsTheInterceptor() throws Exception {
+		final int count = 2000;
+		List<EncounterType> types = new ArrayList<EncounterType>(count);
+		for (int i = 0; i < count; i++) {
+			types.add(encounterService.saveEncounterType(new EncounterType("type" + i, "desc" + i)));
+		}
+		Context.flushSession();
+		
+		long interceptorTime = timeUpdates(AuditLogEventListener.ENGINE_INTERCEPTOR, types);
+		long listenerTime = timeUpdates(AuditLogEventListener.ENGINE_LISTENER, types);
+		log.info("Updated " + count + " objects in " + interceptorTime + "ms with the interceptor engine and "
+		        + listenerTime + "ms with the listener engine");
+		
+		for (EncounterType type : types) {
+			assertEquals(2, getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(UPDATED)).size());
+		}
+	}
+	
+	private long timeUpdates(String engine, List<EncounterType> types) {
+		useEngine(engine);
+		long start = System.currentTimeMillis();
+		for (EncounterType type : types) {
+			type.setDescription(type.getDescription() + " " + engine);
+			encounterService.saveEncounterType(type);
+		}
+		Context.flushSession();
+		return System.currentTimeMillis() - start;
+	}
+}
@@ -207,6 +207,25 @@ public class CollectionsAuditLogBehaviorTest extends BaseBehaviorTest {
         assertEquals(al, descriptionLogs.get(0).getParentAuditLog());
     }
 
+    @Test
+    public void shouldCreateLogsForAParentWithThousandsOfNewElementsInAChildCollection() throws Exception {
+        final int count = 10000;
+        Concept concept = conceptService.getConcept(5089);
+        startAuditing(ConceptDescription.class);
+        assertTrue(auditLogService.isAudited(ConceptDescription.class));
+
+        for (int i = 0; i < count; i++) {
+            ConceptDescription cd = new ConceptDescription("desc" + i, Locale.ENGLISH);
+            cd.setDateCreated(new Date());
+            cd.setCreator(Context.getAuthenticatedUser());
+            concept.addDescription(cd);
+        }
+        conceptService.saveConcept(concept);
+
+        List<AuditLog> descriptionLogs = getAllLogs(null, ConceptDescription.class, Collections.singletonList(CREATED));
+        assertEquals(count, descriptionLogs.size());
+    }
+
     @Test
 
     public void shouldCreateAnAuditLogForTheParentObjectWhenAnAuditedElementInAChildCollectionIsUpdated() throws Exception {
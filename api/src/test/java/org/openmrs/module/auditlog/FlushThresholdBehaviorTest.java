@@ -0,0 +1,78 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.openmrs.module.auditlog.AuditLog.Action.CREATED;
+
+import java.util.Collections;
+
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.openmrs.EncounterType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * Contains tests for writing the audit logs of a transaction after a flush once the number of
+ * changed objects reaches the flush threshold
+ */
+@Ignore
+public class FlushThresholdBehaviorTest extends BaseBehaviorTest {
+	
+	private static final int FLUSH_INTERVAL = 1000;
+	
+	@After
+	public void after() {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_FLUSH_THRESHOLD, "0");
+	}
+	
+	@Test
+	public void shouldWriteTheAuditLogsAfterAFlushOnceTheThresholdIsReached() throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_FLUSH_THRESHOLD, "10");
+		for (int i = 0; i < 10; i++) {
+			encounterService.saveEncounterType(new EncounterType("type" + i, "desc" + i));
+		}
+		Context.flushSession();
+		
+		assertEquals(10, countCreatedLogs());
+	}
+	
+	@Test
+	public void shouldWriteTheAuditLogsOfAHugeTransactionInBatches() throws Exception {
+		final int count = 100000;
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_FLUSH_THRESHOLD, Integer.toString(FLUSH_INTERVAL));
+		for (int i = 0; i < count; i++) {
+			encounterService.saveEncounterType(new EncounterType("type" + i, "desc"));
+			if ((i + 1) % FLUSH_INTERVAL == 0) {
+				Context.flushSession();
+				Context.clearSession();
+				assertEquals(i + 1, countCreatedLogs());
+			}
+		}
+		
+		assertEquals(count, countCreatedLogs());
+	}
+	
+	private long countCreatedLogs() {
+		SessionFactory sf = Context.getRegisteredComponents(SessionFactory.class).get(0);
+		return (Long) sf.getCurrentSession()
+		        .createQuery("select count(*) from AuditLog where type = :type and action in (:actions)")
+		        .setParameter("type", EncounterType.class.getName())
+		        .setParameterList("actions", Collections.singletonList(CREATED)).uniqueResult();
+	}
+}
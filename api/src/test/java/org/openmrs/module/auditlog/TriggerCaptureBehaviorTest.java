@@ -0,0 +1,109 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.openmrs.module.auditlog.AuditLog.Action.CREATED;
+import static org.openmrs.module.auditlog.AuditLog.Action.UPDATED;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.openmrs.EncounterType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.trigger.StagedChangeProcessor;
+import org.openmrs.module.auditlog.trigger.TriggerCaptureManager;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * Contains tests for capturing changes with DB triggers, they run against H2 java triggers
+ */
+@Ignore
+public class TriggerCaptureBehaviorTest extends BaseBehaviorTest {
+	
+	private static final Log log = LogFactory.getLog(TriggerCaptureBehaviorTest.class);
+	
+	private StagedChangeProcessor processor;
+	
+	@Before
+	public void createStagingTable() throws Exception {
+		processor = Context.getRegisteredComponents(StagedChangeProcessor.class).get(0);
+		//Liquibase isn't run for tests
+		Context.getAdministrationService().executeSQL(
+		    "CREATE TABLE IF NOT EXISTS " + TriggerCaptureManager.STAGING_TABLE
+		            + " (id INT AUTO_INCREMENT PRIMARY KEY, table_name VARCHAR(64) NOT NULL,"
+		            + " row_id VARCHAR(255) NOT NULL, action VARCHAR(50) NOT NULL, user_id INT,"
+		            + " date_created TIMESTAMP NOT NULL)", false);
+	}
+	
+	@After
+	public void after() throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_TRIGGER_CAPTURED_TYPES, "");
+	}
+	
+	private void captureWithTriggers(Class<?> type) {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_TRIGGER_CAPTURED_TYPES, type.getName());
+		assertTrue(helper.getTriggerCapturedTypes().contains(type));
+	}
+	
+	@Test
+	public void shouldCreateAuditLogsFromTheChangesStagedByTheTriggers() throws Exception {
+		captureWithTriggers(EncounterType.class);
+		assertFalse(helper.getDecisionTable().isAudited(EncounterType.class));
+		EncounterType type = encounterService.getEncounterType(1);
+		type.setName("new name");
+		encounterService.saveEncounterType(type);
+		Context.flushSession();
+		//The interceptor should ignore it
+		assertEquals(0, getAllLogs(type.getId(), EncounterType.class, null).size());
+		
+		assertEquals(1, processor.processStagedChanges());
+		List<AuditLog> logs = getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(UPDATED));
+		assertEquals(1, logs.size());
+		assertEquals(0, processor.processStagedChanges());
+	}
+	
+	@Test
+	public void shouldCaptureTheSameInsertsWithTriggersAsWithTheInterceptor() throws Exception {
+		final int count = 2000;
+		long interceptorTime = timeInserts("interceptor", count);
+		captureWithTriggers(EncounterType.class);
+		long triggerTime = timeInserts("trigger", count);
+		long start = System.currentTimeMillis();
+		assertEquals(count, processor.processStagedChanges());
+		long processingTime = System.currentTimeMillis() - start;
+		log.info("Inserted " + count + " objects in " + interceptorTime + "ms with the interceptor and " + triggerTime
+		        + "ms with triggers, processing the staged changes took " + processingTime + "ms");
+		
+		assertEquals(count * 2, getAllLogs(null, EncounterType.class, Collections.singletonList(CREATED)).size());
+	}
+	
+	private long timeInserts(String prefix, int count) {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			encounterService.saveEncounterType(new EncounterType(prefix + i, "desc"));
+		}
+		Context.flushSession();
+		return System.currentTimeMillis() - start;
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.junit.Test;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogEnvelope;
+import org.openmrs.module.auditlog.AuditLogEnvelopeItem;
+import org.openmrs.module.auditlog.writer.AuditLogRecord;
+
+public class AuditLogEnvelopesTest {
+	
+	private static AuditLog newAuditLogWithChildren() {
+		AuditLog parent = new AuditLog("org.openmrs.Encounter", 1, Action.UPDATED, null, new Date(1000));
+		parent.setSerializedData(BlobProxy.generateProxy("{\"encounterDatetime\":[\"b\",\"a\"]}".getBytes()));
+		for (int i = 0; i < 3; i++) {
+			AuditLog child = new AuditLog("org.openmrs.Obs", i, Action.CREATED, null, new Date(2000 + i));
+			child.setParentAuditLog(parent);
+			parent.getChildAuditLogs().add(child);
+		}
+		return parent;
+	}
+	
+	/**
+	 * @verifies replace child logs with their parents
+	 * @see AuditLogEnvelopes#getRecords(java.util.Collection)
+	 */
+	@Test
+	public void getRecords_shouldReplaceChildLogsWithTheirParents() throws Exception {
+		AuditLog parent = newAuditLogWithChildren();
+		AuditLog child = parent.getChildAuditLogs().iterator().next();
+		AuditLog other = new AuditLog("org.openmrs.Patient", 2, Action.DELETED, null, new Date());
+		
+		List<AuditLogRecord> records = AuditLogEnvelopes.getRecords(Arrays.asList(child, parent, other));
+		
+		assertEquals(2, records.size());
+		assertEquals(parent.getUuid(), records.get(0).getUuid());
+		assertEquals(3, records.get(0).getChildRecords().size());
+		assertEquals(other.getUuid(), records.get(1).getUuid());
+	}
+	
+	/**
+	 * @verifies pack records that unpack to equal records
+	 * @see AuditLogEnvelopes#pack(List)
+	 */
+	@Test
+	public void pack_shouldPackRecordsThatUnpackToEqualRecords() throws Exception {
+		AuditLog parent = newAuditLogWithChildren();
+		List<AuditLogRecord> records = AuditLogEnvelopes.getRecords(Arrays.asList(parent));
+		
+		AuditLogEnvelope envelope = AuditLogEnvelopes.pack(records);
+		List<AuditLogRecord> unpacked = AuditLogEnvelopes.unpack(envelope.getPayload());
+		
+		assertEquals(4, envelope.getEntryCount().intValue());
+		assertEquals(new Date(1000), envelope.getStartDate());
+		assertEquals(new Date(2002), envelope.getEndDate());
+		List<AuditLogRecord> all = AuditLogEnvelopes.flatten(records);
+		List<AuditLogRecord> allUnpacked = AuditLogEnvelopes.flatten(unpacked);
+		assertEquals(all.size(), allUnpacked.size());
+		for (int i = 0; i < all.size(); i++) {
+			AuditLogRecord expected = all.get(i);
+			AuditLogRecord actual = allUnpacked.get(i);
+			assertEquals(expected.getUuid(), actual.getUuid());
+			assertEquals(expected.getType(), actual.getType());
+			assertEquals(expected.getIdentifier(), actual.getIdentifier());
+			assertEquals(expected.getAction(), actual.getAction());
+			assertEquals(expected.getDateCreated(), actual.getDateCreated());
+			assertArrayEquals(expected.getSerializedData(), actual.getSerializedData());
+			assertTrue(envelope.getFirstUuid().compareTo(actual.getUuid()) <= 0);
+			assertTrue(envelope.getLastUuid().compareTo(actual.getUuid()) >= 0);
+		}
+	}
+	
+	/**
+	 * @verifies return an item per distinct object
+	 * @see AuditLogEnvelopes#getItems(List, Integer)
+	 */
+	@Test
+	public void getItems_shouldReturnAnItemPerDistinctObject() throws Exception {
+		AuditLog parent = newAuditLogWithChildren();
+		AuditLog update = new AuditLog("org.openmrs.Obs", 0, Action.UPDATED, null, new Date());
+		
+		Set<AuditLogEnvelopeItem> items = AuditLogEnvelopes.getItems(
+		    AuditLogEnvelopes.getRecords(Arrays.asList(parent, update)), 5);
+		
+		assertEquals(4, items.size());
+		assertTrue(items.contains(new AuditLogEnvelopeItem("org.openmrs.Encounter", "1", 5)));
+		assertTrue(items.contains(new AuditLogEnvelopeItem("org.openmrs.Obs", "0", 5)));
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.junit.Test;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+public class AuditLogTreeWriterTest {
+	
+	private static AuditLog newAuditLog(String type, Integer id, AuditLog parent) {
+		AuditLog auditLog = new AuditLog(type, id, Action.CREATED, null, new Date());
+		if (parent != null) {
+			auditLog.setParentAuditLog(parent);
+			parent.getChildAuditLogs().add(auditLog);
+		}
+		return auditLog;
+	}
+	
+	/**
+	 * @verifies order parents before their children
+	 * @see AuditLogTreeWriter#getInsertOrder(java.util.Collection)
+	 */
+	@Test
+	public void getInsertOrder_shouldOrderParentsBeforeTheirChildren() throws Exception {
+		AuditLog root = newAuditLog("org.openmrs.Encounter", 1, null);
+		AuditLog child = newAuditLog("org.openmrs.Obs", 1, root);
+		AuditLog grandChild = newAuditLog("org.openmrs.Obs", 2, child);
+		
+		List<AuditLog> ordered = AuditLogTreeWriter.getInsertOrder(Arrays.asList(grandChild));
+		
+		assertEquals(Arrays.asList(root, child, grandChild), ordered);
+	}
+	
+	/**
+	 * @verifies include each audit log once
+	 * @see AuditLogTreeWriter#getInsertOrder(java.util.Collection)
+	 */
+	@Test
+	public void getInsertOrder_shouldIncludeEachAuditLogOnce() throws Exception {
+		AuditLog root = newAuditLog("org.openmrs.Encounter", 1, null);
+		AuditLog child = newAuditLog("org.openmrs.Obs", 1, root);
+		AuditLog other = newAuditLog("org.openmrs.Patient", 2, null);
+		
+		List<AuditLog> ordered = AuditLogTreeWriter.getInsertOrder(Arrays.asList(child, root, other, child));
+		
+		assertEquals(3, ordered.size());
+		assertSame(root, ordered.get(0));
+		assertSame(child, ordered.get(1));
+		assertSame(other, ordered.get(2));
+	}
+	
+	/**
+	 * @verifies skip audit logs that are already saved
+	 * @see AuditLogTreeWriter#getInsertOrder(java.util.Collection)
+	 */
+	@Test
+	public void getInsertOrder_shouldSkipAuditLogsThatAreAlreadySaved() throws Exception {
+		AuditLog root = newAuditLog("org.openmrs.Encounter", 1, null);
+		root.setAuditLogId(10);
+		AuditLog child = newAuditLog("org.openmrs.Obs", 1, root);
+		
+		List<AuditLog> ordered = AuditLogTreeWriter.getInsertOrder(Arrays.asList(child, root));
+		
+		assertEquals(1, ordered.size());
+		assertTrue(ordered.contains(child));
+	}
+	
+	/**
+	 * @verifies issue exactly one insert per audit log and no updates
+	 * @see AuditLogTreeWriter#insert(Connection, java.util.Collection)
+	 */
+	@Test
+	public void insert_shouldIssueExactlyOneInsertPerAuditLogAndNoUpdates() throws Exception {
+		AuditLog root = newAuditLog("org.openmrs.Encounter", 1, null);
+		for (int i = 0; i < 30; i++) {
+			newAuditLog("org.openmrs.Obs", i, root);
+		}
+		AuditLog other = newAuditLog("org.openmrs.Patient", 2, null);
+		
+		SessionFactory sessionFactory = mock(SessionFactory.class);
+		StatelessSession session = mock(StatelessSession.class, withSettings().extraInterfaces(
+		    SharedSessionContractImplementor.class).defaultAnswer(RETURNS_DEEP_STUBS));
+		Connection connection = mock(Connection.class);
+		when(sessionFactory.openStatelessSession(connection)).thenReturn(session);
+		IdentifierGenerator generator = mock(IdentifierGenerator.class);
+		final AtomicInteger nextId = new AtomicInteger(1);
+		when(generator.generate(any(), any())).thenAnswer(invocation -> nextId.getAndIncrement());
+		when(((SharedSessionContractImplementor) session).getFactory().getMetamodel().entityPersister(AuditLog.class)
+		        .getIdentifierGenerator()).thenReturn(generator);
+		final List<AuditLog> inserted = new ArrayList<AuditLog>();
+		doAnswer(invocation -> {
+			AuditLog auditLog = invocation.getArgument(0);
+			//The parent id has to be known when the child is inserted
+			assertNotNull(auditLog.getAuditLogId());
+			if (auditLog.getParentAuditLog() != null) {
+				assertTrue(inserted.contains(auditLog.getParentAuditLog()));
+			}
+			inserted.add(auditLog);
+			return auditLog.getAuditLogId();
+		}).when(session).insert(any());
+		
+		new AuditLogTreeWriter(sessionFactory, 50).insert(connection, Arrays.asList(root, other));
+		
+		assertEquals(32, inserted.size());
+		Set<AuditLog> distinct = Collections.newSetFromMap(new IdentityHashMap<AuditLog, Boolean>());
+		distinct.addAll(inserted);
+		assertEquals(32, distinct.size());
+		verify(session, never()).update(any());
+		verify(session).close();
+	}
+}
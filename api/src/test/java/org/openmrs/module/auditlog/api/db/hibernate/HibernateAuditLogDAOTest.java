@@ -0,0 +1,229 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.api.db.AuditLogDAO;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.util.OpenmrsConstants;
+
+@Ignore
+public class HibernateAuditLogDAOTest extends BaseModuleContextSensitiveTest {
+	
+	private static final int CHILD_COUNT = 40;
+	
+	private AuditLogDAO dao;
+	
+	private Statistics statistics;
+	
+	@Before
+	public void before() throws Exception {
+		dao = Context.getRegisteredComponents(AuditLogDAO.class).get(0);
+		statistics = Context.getRegisteredComponents(SessionFactory.class).get(0).getStatistics();
+		statistics.setStatisticsEnabled(true);
+	}
+	
+	@After
+	public void after() throws Exception {
+		statistics.setStatisticsEnabled(false);
+	}
+	
+	private AuditLog newAuditLog(Class<?> type, Integer id, Action action) {
+		AuditLog auditLog = new AuditLog(type.getName(), id, action, Context.getAuthenticatedUser(), new Date());
+		auditLog.setOpenmrsVersion(OpenmrsConstants.OPENMRS_VERSION_SHORT);
+		auditLog.setModuleVersion(AuditLogConstants.MODULE_VERSION);
+		return auditLog;
+	}
+	
+	private AuditLog newAuditLogWithChildren() {
+		AuditLog parent = newAuditLog(Concept.class, 1, Action.UPDATED);
+		for (int i = 0; i < CHILD_COUNT; i++) {
+			AuditLog child = newAuditLog(ConceptName.class, 1000 + i, Action.CREATED);
+			child.setParentAuditLog(parent);
+			parent.getChildAuditLogs().add(child);
+		}
+		return parent;
+	}
+	
+	/**
+	 * @verifies save the audit logs and their child logs
+	 * @see AuditLogDAO#saveAll(java.util.Collection)
+	 */
+	@Test
+	public void saveAll_shouldSaveTheAuditLogsAndTheirChildLogs() throws Exception {
+		AuditLog parent = newAuditLogWithChildren();
+		
+		dao.saveAll(Collections.singletonList(parent));
+		
+		assertNotNull(parent.getAuditLogId());
+		for (AuditLog child : parent.getChildAuditLogs()) {
+			assertNotNull(child.getAuditLogId());
+			assertEquals(parent, child.getParentAuditLog());
+		}
+	}
+	
+	/**
+	 * @verifies issue batched inserts
+	 * @see AuditLogDAO#saveAll(java.util.Collection)
+	 */
+	@Test
+	public void saveAll_shouldIssueBatchedInserts() throws Exception {
+		AuditLog parent = newAuditLogWithChildren();
+		statistics.clear();
+		
+		dao.saveAll(Collections.singletonList(parent));
+		
+		//No follow up updates to link the children
+		assertEquals(0, statistics.getEntityUpdateCount());
+		//At most 2 calls to the id sequence for the first block of ids and a single batched insert
+		assertTrue(statistics.getPrepareStatementCount() <= 3);
+	}
+	
+	/**
+	 * @verifies return the uuids of existing audit logs only
+	 * @see AuditLogDAO#getExistingUuids(java.util.Collection)
+	 */
+	@Test
+	public void getExistingUuids_shouldReturnTheUuidsOfExistingAuditLogsOnly() throws Exception {
+		AuditLog auditLog = newAuditLog(Concept.class, 1, Action.UPDATED);
+		dao.saveAll(Collections.singletonList(auditLog));
+		
+		Set<String> uuids = dao.getExistingUuids(Arrays.asList(auditLog.getUuid(), "unknown-uuid"));
+		
+		assertEquals(Collections.singleton(auditLog.getUuid()), uuids);
+	}
+	
+	private void setEnvelopeStorageEnabled(boolean enabled) {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(AuditLogConstants.GP_ENVELOPE_STORAGE_ENABLED, String.valueOf(enabled)));
+	}
+	
+	/**
+	 * @verifies pack the audit logs into a single envelope if envelope storage is enabled
+	 * @see AuditLogDAO#saveAll(java.util.Collection)
+	 */
+	@Test
+	public void saveAll_shouldPackTheAuditLogsIntoASingleEnvelopeIfEnvelopeStorageIsEnabled() throws Exception {
+		setEnvelopeStorageEnabled(true);
+		AuditLog parent = newAuditLogWithChildren();
+		AuditLog child = parent.getChildAuditLogs().iterator().next();
+		statistics.clear();
+		
+		dao.saveAll(Collections.singletonList(parent));
+		
+		//The envelope and an index item per audit log since each is for a different object
+		assertEquals(1 + CHILD_COUNT + 1, statistics.getEntityInsertCount());
+		assertEquals(0, statistics.getEntityUpdateCount());
+		List<AuditLog> auditLogs = dao.getAuditLogs(child.getIdentifier(),
+		    Collections.<Class<?>> singletonList(ConceptName.class), null, null, null, false, null, null);
+		assertEquals(1, auditLogs.size());
+		assertEquals(child.getUuid(), auditLogs.get(0).getUuid());
+		assertEquals(parent.getUuid(), auditLogs.get(0).getParentAuditLog().getUuid());
+		assertEquals(parent, dao.getObjectByUuid(AuditLog.class, parent.getUuid()));
+	}
+	
+	/**
+	 * @verifies return the uuids of audit logs packed in envelopes
+	 * @see AuditLogDAO#getExistingUuids(java.util.Collection)
+	 */
+	@Test
+	public void getExistingUuids_shouldReturnTheUuidsOfAuditLogsPackedInEnvelopes() throws Exception {
+		setEnvelopeStorageEnabled(true);
+		AuditLog parent = newAuditLogWithChildren();
+		AuditLog child = parent.getChildAuditLogs().iterator().next();
+		dao.saveAll(Collections.singletonList(parent));
+		
+		Set<String> uuids = dao.getExistingUuids(Arrays.asList(child.getUuid(), "unknown-uuid"));
+		
+		assertEquals(Collections.singleton(child.getUuid()), uuids);
+	}
+	
+	/**
+	 * Wraps the specified connection to count the rows each kind of SQL statement is executed for,
+	 * keyed by the first keyword of the statement
+	 */
+	private static Connection countRows(final Connection connection, final Map<String, Integer> counts) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+		    (proxy, method, args) -> {
+			    Object result = method.invoke(connection, args);
+			    if (result instanceof PreparedStatement && "prepareStatement".equals(method.getName())) {
+				    final PreparedStatement statement = (PreparedStatement) result;
+				    final String keyword = args[0].toString().trim().split("\\s+")[0].toLowerCase();
+				    return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+				        new Class<?>[] { PreparedStatement.class }, (p, m, a) -> {
+					        if ("addBatch".equals(m.getName()) || "executeUpdate".equals(m.getName())) {
+						        counts.merge(keyword, 1, Integer::sum);
+					        }
+					        return m.invoke(statement, a);
+				        });
+			    }
+			    return result;
+		    });
+	}
+	
+	/**
+	 * @verifies issue exactly one insert per audit log and no updates
+	 * @see AuditLogTreeWriter#insert(Connection, java.util.Collection)
+	 */
+	@Test
+	public void insert_shouldIssueExactlyOneInsertPerAuditLogAndNoUpdates() throws Exception {
+		SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+		AuditLog parent = newAuditLogWithChildren();
+		AuditLog other = newAuditLog(Concept.class, 2, Action.DELETED);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		Connection connection = ((SessionImplementor) sessionFactory.getCurrentSession()).connection();
+		
+		new AuditLogTreeWriter(sessionFactory, 50).insert(countRows(connection, counts), Arrays.asList(parent, other));
+		
+		assertEquals(CHILD_COUNT + 2, counts.get("insert").intValue());
+		assertNull(counts.get("update"));
+		for (AuditLog child : parent.getChildAuditLogs()) {
+			assertTrue(child.getAuditLogId() > parent.getAuditLogId());
+		}
+		//The children were linked to the parent by their inserts
+		Number linked = (Number) sessionFactory.getCurrentSession()
+		        .createNativeQuery("select count(*) from auditlog_audit_log where parent_auditlog_id = :parentId")
+		        .setParameter("parentId", parent.getAuditLogId()).uniqueResult();
+		assertEquals(CHILD_COUNT, linked.intValue());
+	}
+}
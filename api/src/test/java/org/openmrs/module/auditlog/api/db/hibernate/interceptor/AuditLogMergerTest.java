@@ -0,0 +1,115 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.junit.Test;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+public class AuditLogMergerTest {
+	
+	private static AuditLog createLog(Class<?> type, String id, Action action) {
+		return new AuditLog(type.getName(), id, action, null, new Date());
+	}
+	
+	private static AuditLog createUpdateLog(String id, String property, String newValue, String previousValue) {
+		AuditLog auditLog = createLog(EncounterType.class, id, Action.UPDATED);
+		Map<String, Object[]> changes = new HashMap<String, Object[]>();
+		changes.put(property, new Object[] { newValue, previousValue });
+		auditLog.setSerializedData(BlobProxy.generateProxy(AuditLogUtil.serializeToJson(changes).getBytes()));
+		return auditLog;
+	}
+	
+	/**
+	 * @verifies merge the changes of an object updated in both lists
+	 * @see AuditLogMerger#merge(List, List)
+	 */
+	@Test
+	public void merge_shouldMergeTheChangesOfAnObjectUpdatedInBothLists() throws Exception {
+		AuditLog earlier = createUpdateLog("1", "name", "first", "original");
+		AuditLog later = createUpdateLog("1", "name", "second", "first");
+		
+		List<AuditLog> merged = AuditLogMerger.merge(Collections.singletonList(earlier), Collections.singletonList(later));
+		
+		assertEquals(1, merged.size());
+		assertSame(earlier, merged.get(0));
+		assertEquals("original", AuditLogUtil.getPreviousValueOfUpdatedItem("name", earlier));
+		assertEquals("second", AuditLogUtil.getNewValueOfUpdatedItem("name", earlier));
+	}
+	
+	/**
+	 * @verifies drop an update for an object inserted in the earlier list
+	 * @see AuditLogMerger#merge(List, List)
+	 */
+	@Test
+	public void merge_shouldDropAnUpdateForAnObjectInsertedInTheEarlierList() throws Exception {
+		AuditLog insert = createLog(EncounterType.class, "1", Action.CREATED);
+		AuditLog update = createUpdateLog("1", "name", "second", "first");
+		AuditLog child = createLog(Location.class, "2", Action.UPDATED);
+		child.setParentAuditLog(update);
+		update.getChildAuditLogs().add(child);
+		
+		List<AuditLog> merged = AuditLogMerger.merge(Collections.singletonList(insert), Collections.singletonList(update));
+		
+		assertEquals(1, merged.size());
+		assertSame(insert, merged.get(0));
+		assertTrue(insert.getChildAuditLogs().contains(child));
+		assertSame(insert, child.getParentAuditLog());
+	}
+	
+	/**
+	 * @verifies replace an update with a delete for the same object
+	 * @see AuditLogMerger#merge(List, List)
+	 */
+	@Test
+	public void merge_shouldReplaceAnUpdateWithADeleteForTheSameObject() throws Exception {
+		AuditLog update = createUpdateLog("1", "name", "second", "first");
+		AuditLog delete = createLog(EncounterType.class, "1", Action.DELETED);
+		
+		List<AuditLog> merged = AuditLogMerger.merge(Collections.singletonList(update), Collections.singletonList(delete));
+		
+		assertEquals(1, merged.size());
+		assertSame(delete, merged.get(0));
+	}
+	
+	/**
+	 * @verifies keep audit logs for different objects
+	 * @see AuditLogMerger#merge(List, List)
+	 */
+	@Test
+	public void merge_shouldKeepAuditLogsForDifferentObjects() throws Exception {
+		AuditLog type = createLog(EncounterType.class, "1", Action.CREATED);
+		AuditLog location = createLog(Location.class, "1", Action.CREATED);
+		AuditLog otherType = createUpdateLog("2", "name", "second", "first");
+		
+		List<AuditLog> merged = AuditLogMerger.merge(Arrays.asList(type, location), Collections.singletonList(otherType));
+		
+		assertEquals(Arrays.asList(type, location, otherType), merged);
+	}
+}
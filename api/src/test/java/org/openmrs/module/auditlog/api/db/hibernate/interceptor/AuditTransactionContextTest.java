@@ -0,0 +1,117 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.hibernate.Transaction;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptDescription;
+import org.openmrs.Obs;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+public class AuditTransactionContextTest {
+	
+	/**
+	 * @verifies track equal entities separately by identity
+	 * @see AuditTransactionContext#forEachChange(java.util.function.BiConsumer)
+	 */
+	@Test
+	public void forEachChange_shouldTrackEqualEntitiesSeparatelyByIdentity() throws Exception {
+		AuditTransactionContext context = new AuditTransactionContext(mock(Transaction.class));
+		Obs obs = new Obs();
+		Obs copy = new Obs();
+		copy.setUuid(obs.getUuid());
+		assertTrue(obs.equals(copy));
+		context.addInsert(obs);
+		context.addInsert(copy);
+		context.addDelete(copy);
+		
+		final List<Object> inserts = new ArrayList<Object>();
+		context.forEachChange((entity, action) -> {
+			if (action == Action.CREATED) {
+				inserts.add(entity);
+			}
+		});
+		
+		assertEquals(2, inserts.size());
+		assertTrue(context.isDeleted(copy));
+		assertFalse(context.isDeleted(obs));
+	}
+	
+	/**
+	 * @verifies index the owners of all collection items in a single pass
+	 * @see AuditTransactionContext#getOwnersByElement()
+	 */
+	@Test
+	public void getOwnersByElement_shouldIndexTheOwnersOfAllCollectionItemsInASinglePass() throws Exception {
+		final int count = 10000;
+		AuditTransactionContext context = new AuditTransactionContext(mock(Transaction.class));
+		Concept owner = new Concept(1);
+		List<ConceptDescription> descriptions = new ArrayList<ConceptDescription>(count);
+		for (int i = 0; i < count; i++) {
+			descriptions.add(new ConceptDescription("desc" + i, Locale.ENGLISH));
+		}
+		context.getOrCreateCollections(owner).add(descriptions);
+		Concept otherOwner = new Concept(2);
+		context.getOrCreateCollections(otherOwner).add(Collections.singletonList(descriptions.get(0)));
+		
+		Map<Object, List<Object>> ownersByElement = context.getOwnersByElement();
+		
+		assertEquals(count, ownersByElement.size());
+		for (ConceptDescription description : descriptions) {
+			assertSame(owner, ownersByElement.get(description).get(0));
+		}
+		assertEquals(2, ownersByElement.get(descriptions.get(0)).size());
+		assertSame(otherOwner, ownersByElement.get(descriptions.get(0)).get(1));
+	}
+	
+	/**
+	 * @verifies release the tracked entities and collections
+	 * @see AuditTransactionContext#reset()
+	 */
+	@Test
+	public void reset_shouldReleaseTheTrackedEntitiesAndCollections() throws Exception {
+		final int count = 1000;
+		AuditTransactionContext context = new AuditTransactionContext(mock(Transaction.class));
+		Concept owner = new Concept(1);
+		List<ConceptDescription> descriptions = new ArrayList<ConceptDescription>(count);
+		for (int i = 0; i < count; i++) {
+			ConceptDescription description = new ConceptDescription("desc" + i, Locale.ENGLISH);
+			descriptions.add(description);
+			context.addDelete(description);
+		}
+		context.getOrCreateCollections(owner).add(descriptions);
+		assertEquals(count, context.size());
+		
+		context.reset();
+		
+		assertTrue(context.isEmpty());
+		assertEquals(0, context.size());
+		assertFalse(context.isDeleted(descriptions.get(0)));
+		assertFalse(context.hasCollections(owner));
+		assertTrue(context.getOwnersByElement().isEmpty());
+	}
+}
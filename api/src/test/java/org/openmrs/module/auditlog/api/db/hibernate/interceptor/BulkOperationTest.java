@@ -0,0 +1,39 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.BitSet;
+
+import org.junit.Test;
+
+public class BulkOperationTest {
+	
+	/**
+	 * @verifies combine consecutive ids into ranges
+	 * @see BulkOperation#toRanges(BitSet)
+	 */
+	@Test
+	public void toRanges_shouldCombineConsecutiveIdsIntoRanges() throws Exception {
+		BitSet ids = new BitSet();
+		ids.set(1, 101);
+		ids.set(105);
+		ids.set(200, 301);
+		ids.set(400, 402);
+		
+		assertEquals("1-100,105,200-300,400-401", BulkOperation.toRanges(ids));
+		assertEquals("", BulkOperation.toRanges(new BitSet()));
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+
+import org.hibernate.type.IntegerType;
+import org.hibernate.type.StringType;
+import org.hibernate.type.TextType;
+import org.hibernate.type.TimestampType;
+import org.hibernate.type.Type;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class EntityPropertyDescriptorTest {
+	
+	private static final String[] PROPERTY_NAMES = new String[] { "givenName", "description", "dateChanged", "value" };
+	
+	private static final Type[] TYPES = new Type[] { StringType.INSTANCE, TextType.INSTANCE, TimestampType.INSTANCE,
+	        IntegerType.INSTANCE };
+	
+	private final EntityPropertyDescriptor descriptor = EntityPropertyDescriptor.create(PROPERTY_NAMES, TYPES);
+	
+	/**
+	 * @verifies exclude ignored and collection properties from the compared properties
+	 * @see EntityPropertyDescriptor#isUnchanged(int, Object[], Object[])
+	 */
+	@Test
+	public void isUnchanged_shouldExcludeIgnoredAndCollectionPropertiesFromTheComparedProperties() throws Exception {
+		assertArrayEquals(new int[] { 0, 1, 3 }, descriptor.getComparedIndexes());
+		assertTrue(descriptor.isIgnored(2));
+	}
+	
+	/**
+	 * @verifies exclude properties that are not audited from the compared properties
+	 * @see EntityPropertyDescriptor#isUnchanged(int, Object[], Object[])
+	 */
+	@Test
+	public void isUnchanged_shouldExcludePropertiesThatAreNotAuditedFromTheComparedProperties() throws Exception {
+		EntityPropertyDescriptor filtered = EntityPropertyDescriptor.create(PROPERTY_NAMES, TYPES,
+		    propertyName -> !"description".equals(propertyName));
+		assertArrayEquals(new int[] { 0, 3 }, filtered.getComparedIndexes());
+		assertTrue(filtered.isIgnored(1));
+	}
+	
+	/**
+	 * @verifies ignore a change from null to blank for string properties
+	 * @see EntityPropertyDescriptor#isUnchanged(int, Object[], Object[])
+	 */
+	@Test
+	public void isUnchanged_shouldIgnoreAChangeFromNullToBlankForStringProperties() throws Exception {
+		Object[] previousState = new Object[] { null, " ", new Date(), 1 };
+		Object[] currentState = new Object[] { "", null, new Date(0), 1 };
+		assertTrue(descriptor.isUnchanged(0, previousState, currentState));
+		assertTrue(descriptor.isUnchanged(1, previousState, currentState));
+	}
+	
+	/**
+	 * @verifies ignore a change in case for string properties
+	 * @see EntityPropertyDescriptor#isUnchanged(int, Object[], Object[])
+	 */
+	@Test
+	public void isUnchanged_shouldIgnoreAChangeInCaseForStringProperties() throws Exception {
+		Object[] previousState = new Object[] { "john", "Some text", null, 1 };
+		Object[] currentState = new Object[] { "John", "some TEXT", null, 1 };
+		assertTrue(descriptor.isUnchanged(0, previousState, currentState));
+		assertTrue(descriptor.isUnchanged(1, previousState, currentState));
+		currentState[0] = "Jon";
+		assertFalse(descriptor.isUnchanged(0, previousState, currentState));
+	}
+	
+	/**
+	 * @verifies detect a change for non string properties
+	 * @see EntityPropertyDescriptor#isUnchanged(int, Object[], Object[])
+	 */
+	@Test
+	public void isUnchanged_shouldDetectAChangeForNonStringProperties() throws Exception {
+		Object[] previousState = new Object[] { null, null, null, 1 };
+		assertTrue(descriptor.isUnchanged(2, previousState, new Object[] { null, null, null, 1 }));
+		assertFalse(descriptor.isUnchanged(2, previousState, new Object[] { null, null, null, 2 }));
+		assertFalse(descriptor.isUnchanged(2, previousState, null));
+	}
+	
+	/**
+	 * @verifies not allocate when comparing unchanged properties
+	 * @see EntityPropertyDescriptor#isUnchanged(int, Object[], Object[])
+	 */
+	@Test
+	public void isUnchanged_shouldNotAllocateWhenComparingUnchangedProperties() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		Object[] previousState = new Object[] { "John", "Some text", new Date(0), 1 };
+		Object[] currentState = new Object[] { "john", "Some text", new Date(), 1 };
+		int comparedCount = descriptor.getComparedIndexes().length;
+		int iterations = 100000;
+		compare(previousState, currentState, comparedCount, iterations);
+		
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		int unchanged = compare(previousState, currentState, comparedCount, iterations);
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		
+		assertEquals(comparedCount * iterations, unchanged);
+		//a single allocation per comparison would add up to megabytes
+		assertTrue("Allocated " + allocated + " bytes", allocated < iterations);
+	}
+	
+	private int compare(Object[] previousState, Object[] currentState, int comparedCount, int iterations) {
+		int unchanged = 0;
+		for (int n = 0; n < iterations; n++) {
+			for (int i = 0; i < comparedCount; i++) {
+				if (descriptor.isUnchanged(i, previousState, currentState)) {
+					unchanged++;
+				}
+			}
+		}
+		return unchanged;
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.hibernate.Transaction;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.auditlog.writer.AuditLoadController;
+
+public class HibernateAuditLogInterceptorTest {
+	
+	private final HibernateAuditLogInterceptor interceptor = new HibernateAuditLogInterceptor();
+	
+	private final AuditLoadController loadController = mock(AuditLoadController.class);
+	
+	@Before
+	public void before() {
+		interceptor.setLoadController(loadController);
+	}
+	
+	private static Transaction newTransaction(TransactionStatus status) {
+		Transaction tx = mock(Transaction.class);
+		when(tx.getStatus()).thenReturn(status);
+		return tx;
+	}
+	
+	/**
+	 * @verifies leave nothing behind when a transaction is rolled back
+	 * @see HibernateAuditLogInterceptor#afterTransactionCompletion(Transaction)
+	 */
+	@Test
+	public void afterTransactionCompletion_shouldLeaveNothingBehindWhenATransactionIsRolledBack() throws Exception {
+		Transaction tx = newTransaction(TransactionStatus.ACTIVE);
+		interceptor.afterTransactionBegin(tx);
+		assertTrue(interceptor.isTrackingTransactions());
+		
+		//Hibernate doesn't call beforeTransactionCompletion for a rollback
+		when(tx.getStatus()).thenReturn(TransactionStatus.ROLLED_BACK);
+		interceptor.afterTransactionCompletion(tx);
+		
+		assertFalse(interceptor.isTrackingTransactions());
+	}
+	
+	/**
+	 * @verifies leave nothing behind when the completion of a nested transaction is missed
+	 * @see HibernateAuditLogInterceptor#afterTransactionCompletion(Transaction)
+	 */
+	@Test
+	public void afterTransactionCompletion_shouldLeaveNothingBehindWhenTheCompletionOfANestedTransactionIsMissed()
+	    throws Exception {
+		Transaction outer = newTransaction(TransactionStatus.ACTIVE);
+		Transaction inner = newTransaction(TransactionStatus.ACTIVE);
+		interceptor.afterTransactionBegin(outer);
+		interceptor.afterTransactionBegin(inner);
+		
+		when(outer.getStatus()).thenReturn(TransactionStatus.COMMITTED);
+		interceptor.beforeTransactionCompletion(outer);
+		interceptor.afterTransactionCompletion(outer);
+		
+		assertFalse(interceptor.isTrackingTransactions());
+	}
+	
+	/**
+	 * @verifies discard transactions that completed without notification
+	 * @see HibernateAuditLogInterceptor#afterTransactionBegin(Transaction)
+	 */
+	@Test
+	public void afterTransactionBegin_shouldDiscardTransactionsThatCompletedWithoutNotification() throws Exception {
+		Transaction leaked = newTransaction(TransactionStatus.ACTIVE);
+		interceptor.afterTransactionBegin(leaked);
+		when(leaked.getStatus()).thenReturn(TransactionStatus.NOT_ACTIVE);
+		
+		Transaction tx = newTransaction(TransactionStatus.ACTIVE);
+		interceptor.afterTransactionBegin(tx);
+		when(tx.getStatus()).thenReturn(TransactionStatus.COMMITTED);
+		interceptor.afterTransactionCompletion(tx);
+		
+		assertFalse(interceptor.isTrackingTransactions());
+	}
+	
+	/**
+	 * @verifies keep the outer transaction when a nested transaction completes
+	 * @see HibernateAuditLogInterceptor#afterTransactionCompletion(Transaction)
+	 */
+	@Test
+	public void afterTransactionCompletion_shouldKeepTheOuterTransactionWhenANestedTransactionCompletes()
+	    throws Exception {
+		Transaction outer = newTransaction(TransactionStatus.ACTIVE);
+		Transaction inner = newTransaction(TransactionStatus.ACTIVE);
+		interceptor.afterTransactionBegin(outer);
+		interceptor.afterTransactionBegin(inner);
+		
+		when(inner.getStatus()).thenReturn(TransactionStatus.ROLLED_BACK);
+		interceptor.afterTransactionCompletion(inner);
+		assertTrue(interceptor.isTrackingTransactions());
+		
+		when(outer.getStatus()).thenReturn(TransactionStatus.COMMITTED);
+		interceptor.afterTransactionCompletion(outer);
+		assertFalse(interceptor.isTrackingTransactions());
+	}
+	
+	/**
+	 * @verifies not drain the load events when the load controller is disabled
+	 * @see HibernateAuditLogInterceptor#afterTransactionCompletion(Transaction)
+	 */
+	@Test
+	public void afterTransactionCompletion_shouldNotDrainTheLoadEventsWhenTheLoadControllerIsDisabled() throws Exception {
+		Transaction tx = newTransaction(TransactionStatus.ACTIVE);
+		interceptor.afterTransactionBegin(tx);
+		interceptor.getContext(true);
+		
+		when(tx.getStatus()).thenReturn(TransactionStatus.ROLLED_BACK);
+		interceptor.afterTransactionCompletion(tx);
+		
+		verify(loadController, never()).drainEvents();
+	}
+	
+	/**
+	 * @verifies drain the load events when the load controller is enabled
+	 * @see HibernateAuditLogInterceptor#afterTransactionCompletion(Transaction)
+	 */
+	@Test
+	public void afterTransactionCompletion_shouldDrainTheLoadEventsWhenTheLoadControllerIsEnabled() throws Exception {
+		when(loadController.isEnabled()).thenReturn(true);
+		Transaction tx = newTransaction(TransactionStatus.ACTIVE);
+		interceptor.afterTransactionBegin(tx);
+		interceptor.getContext(true);
+		
+		when(tx.getStatus()).thenReturn(TransactionStatus.ROLLED_BACK);
+		interceptor.afterTransactionCompletion(tx);
+		
+		verify(loadController).drainEvents();
+	}
+}
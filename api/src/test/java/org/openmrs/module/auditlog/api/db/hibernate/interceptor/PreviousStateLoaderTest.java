@@ -0,0 +1,89 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.MultiIdentifierLoadAccess;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.persister.entity.EntityPersister;
+import org.junit.Test;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+
+public class PreviousStateLoaderTest {
+	
+	/**
+	 * @verifies open a single session and run one query per entity type
+	 * @see PreviousStateLoader#load(SessionFactory)
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void load_shouldOpenASingleSessionAndRunOneQueryPerEntityType() throws Exception {
+		final int count = 100;
+		EntityPersister typePersister = mock(EntityPersister.class);
+		when(typePersister.getMappedClass()).thenReturn((Class) EncounterType.class);
+		EntityPersister locationPersister = mock(EntityPersister.class);
+		when(locationPersister.getMappedClass()).thenReturn((Class) Location.class);
+		PreviousStateLoader loader = new PreviousStateLoader();
+		List<Object> types = new ArrayList<Object>();
+		List<Object> loadedTypes = new ArrayList<Object>();
+		for (int i = 0; i < count; i++) {
+			EncounterType type = new EncounterType(i);
+			types.add(type);
+			loader.add(typePersister, type, i);
+			EncounterType loaded = new EncounterType(i);
+			loadedTypes.add(loaded);
+			when(typePersister.getPropertyValues(loaded)).thenReturn(new Object[] { "type" + i });
+		}
+		Location location = new Location(1);
+		loader.add(locationPersister, location, 1);
+		assertFalse(loader.isEmpty());
+		
+		SessionFactory sf = mock(SessionFactory.class);
+		Session session = mock(Session.class);
+		when(sf.openSession()).thenReturn(session);
+		MultiIdentifierLoadAccess<EncounterType> typeAccess = mock(MultiIdentifierLoadAccess.class);
+		when(session.byMultipleIds(EncounterType.class)).thenReturn(typeAccess);
+		when(typeAccess.multiLoad(anyList())).thenReturn((List) loadedTypes);
+		MultiIdentifierLoadAccess<Location> locationAccess = mock(MultiIdentifierLoadAccess.class);
+		when(session.byMultipleIds(Location.class)).thenReturn(locationAccess);
+		//A location that no longer exists in the DB
+		when(locationAccess.multiLoad(anyList())).thenReturn(Arrays.<Location> asList((Location) null));
+		
+		Map<Object, Object[]> states = loader.load(sf);
+		
+		verify(sf, times(1)).openSession();
+		verify(typeAccess, times(1)).multiLoad(anyList());
+		verify(locationAccess, times(1)).multiLoad(anyList());
+		assertEquals(count, states.size());
+		for (int i = 0; i < count; i++) {
+			assertSame("type" + i, states.get(types.get(i))[0]);
+		}
+		assertFalse(states.containsKey(location));
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.strategy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.Person;
+
+public class AuditRuleTest {
+	
+	private static final String[] PROPERTY_NAMES = new String[] { "person", "concept", "valueText" };
+	
+	/**
+	 * @verifies match an entity whose property value is among the values
+	 * @see AuditRule#compile(String[])
+	 */
+	@Test
+	public void compile_shouldMatchAnEntityWhosePropertyValueIsAmongTheValues() throws Exception {
+		StateCondition condition = new AuditRule(Obs.class, "valueText", Arrays.asList("yes", " 1 ")).compile(PROPERTY_NAMES);
+		
+		assertTrue(condition.matches(new Object[] { null, null, "yes" }));
+		assertTrue(condition.matches(new Object[] { null, null, "1" }));
+		assertFalse(condition.matches(new Object[] { null, null, "no" }));
+		assertFalse(condition.matches(new Object[] { null, null, null }));
+	}
+	
+	/**
+	 * @verifies match an entity that references an entity whose id is among the values
+	 * @see AuditRule#compile(String[])
+	 */
+	@Test
+	public void compile_shouldMatchAnEntityThatReferencesAnEntityWhoseIdIsAmongTheValues() throws Exception {
+		StateCondition condition = new AuditRule(Obs.class, "concept", Arrays.asList("5089", "5090"))
+		        .compile(PROPERTY_NAMES);
+		
+		assertTrue(condition.matches(new Object[] { null, new Concept(5089), null }));
+		assertTrue(condition.matches(new Object[] { null, new Concept(5090), null }));
+		assertFalse(condition.matches(new Object[] { null, new Concept(5091), null }));
+		assertFalse(condition.matches(new Object[] { new Person(5089), null, null }));
+	}
+	
+	/**
+	 * @verifies never match if the type has no such property
+	 * @see AuditRule#compile(String[])
+	 */
+	@Test
+	public void compile_shouldNeverMatchIfTheTypeHasNoSuchProperty() throws Exception {
+		StateCondition condition = new AuditRule(Obs.class, "encounter", Arrays.asList("1")).compile(PROPERTY_NAMES);
+		
+		assertFalse(condition.matches(new Object[] { 1, 1, "1" }));
+		assertNull(new AuditRule(Obs.class).compile(PROPERTY_NAMES));
+	}
+}
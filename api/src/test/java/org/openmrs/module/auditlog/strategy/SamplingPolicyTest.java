@@ -0,0 +1,108 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.strategy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openmrs.api.APIException;
+
+public class SamplingPolicyTest {
+	
+	/**
+	 * @verifies parse a one in n policy
+	 * @see SamplingPolicy#parse(String)
+	 */
+	@Test
+	public void parse_shouldParseAOneInNPolicy() throws Exception {
+		assertEquals("10", SamplingPolicy.parse(" 10 ").toString());
+	}
+	
+	/**
+	 * @verifies parse a per second policy
+	 * @see SamplingPolicy#parse(String)
+	 */
+	@Test
+	public void parse_shouldParseAPerSecondPolicy() throws Exception {
+		assertEquals("100/s", SamplingPolicy.parse("100/s").toString());
+	}
+	
+	/**
+	 * @verifies fail for an invalid value
+	 * @see SamplingPolicy#parse(String)
+	 */
+	@Test(expected = APIException.class)
+	public void parse_shouldFailForAnInvalidValue() throws Exception {
+		SamplingPolicy.parse("ten");
+	}
+	
+	/**
+	 * @verifies audit one in every n changes
+	 * @see SamplingPolicy#sample()
+	 */
+	@Test
+	public void sample_shouldAuditOneInEveryNChanges() throws Exception {
+		SamplingPolicy policy = SamplingPolicy.oneIn(10);
+		int sampled = 0;
+		for (int i = 0; i < 100; i++) {
+			if (policy.sample()) {
+				sampled++;
+			}
+		}
+		
+		assertEquals(10, sampled);
+		assertEquals(10, policy.getSampledCount());
+		assertEquals(90, policy.getSkippedCount());
+	}
+	
+	/**
+	 * @verifies audit at most the specified number of changes per second
+	 * @see SamplingPolicy#sample()
+	 */
+	@Test
+	public void sample_shouldAuditAtMostTheSpecifiedNumberOfChangesPerSecond() throws Exception {
+		SamplingPolicy policy = SamplingPolicy.perSecond(5);
+		long start = System.nanoTime();
+		int sampled = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (policy.sample()) {
+				sampled++;
+			}
+		}
+		//The burst plus whatever was refilled while looping
+		long maxExpected = 5 + (System.nanoTime() - start) * 5 / 1000000000L + 1;
+		
+		assertEquals(true, sampled >= 5 && sampled <= maxExpected);
+		assertEquals(1000 - sampled, policy.getSkippedCount());
+	}
+	
+	/**
+	 * @verifies add the counts of the previous policy
+	 * @see SamplingPolicy#carryOver(SamplingPolicy)
+	 */
+	@Test
+	public void carryOver_shouldAddTheCountsOfThePreviousPolicy() throws Exception {
+		SamplingPolicy previous = SamplingPolicy.oneIn(2);
+		for (int i = 0; i < 4; i++) {
+			previous.sample();
+		}
+		SamplingPolicy policy = SamplingPolicy.oneIn(2);
+		policy.sample();
+		
+		policy.carryOver(previous);
+		
+		assertEquals(3, policy.getSampledCount());
+		assertEquals(2, policy.getSkippedCount());
+	}
+}
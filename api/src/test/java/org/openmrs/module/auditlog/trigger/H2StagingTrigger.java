@@ -0,0 +1,93 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.trigger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.h2.api.Trigger;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+/**
+ * H2 java trigger that stages changes the same way the MySQL triggers generated by
+ * {@link TriggerCaptureManager} do, the user is not staged.
+ */
+public class H2StagingTrigger implements Trigger {
+	
+	private String tableName;
+	
+	private Action action;
+	
+	private int idIndex;
+	
+	/**
+	 * @see org.h2.api.Trigger#init(java.sql.Connection, java.lang.String, java.lang.String,
+	 *      java.lang.String, boolean, int)
+	 */
+	@Override
+	public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before, int type)
+	    throws SQLException {
+		this.tableName = tableName.toLowerCase();
+		if (type == INSERT) {
+			action = Action.CREATED;
+		} else if (type == UPDATE) {
+			action = Action.UPDATED;
+		} else {
+			action = Action.DELETED;
+		}
+		
+		String idColumn = null;
+		try (ResultSet rs = conn.getMetaData().getPrimaryKeys(null, schemaName, tableName)) {
+			if (rs.next()) {
+				idColumn = rs.getString("COLUMN_NAME");
+			}
+		}
+		try (ResultSet rs = conn.getMetaData().getColumns(null, schemaName, tableName, idColumn)) {
+			idIndex = rs.next() ? rs.getInt("ORDINAL_POSITION") - 1 : 0;
+		}
+	}
+	
+	/**
+	 * @see org.h2.api.Trigger#fire(java.sql.Connection, java.lang.Object[], java.lang.Object[])
+	 */
+	@Override
+	public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+		Object[] row = newRow != null ? newRow : oldRow;
+		try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + TriggerCaptureManager.STAGING_TABLE
+		        + " (table_name, row_id, action, date_created) VALUES (?, ?, ?, ?)")) {
+			ps.setString(1, tableName);
+			ps.setString(2, String.valueOf(row[idIndex]));
+			ps.setString(3, action.name());
+			ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+			ps.executeUpdate();
+		}
+	}
+	
+	/**
+	 * @see org.h2.api.Trigger#close()
+	 */
+	@Override
+	public void close() {
+	}
+	
+	/**
+	 * @see org.h2.api.Trigger#remove()
+	 */
+	@Override
+	public void remove() {
+	}
+}
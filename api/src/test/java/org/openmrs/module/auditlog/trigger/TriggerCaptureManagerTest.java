@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.trigger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TriggerCaptureManagerTest {
+	
+	/**
+	 * @verifies generate an after insert, update and delete trigger
+	 * @see TriggerCaptureManager#getMySqlTriggerStatements(String, String, String, java.util.List)
+	 */
+	@Test
+	public void getMySqlTriggerStatements_shouldGenerateAnAfterInsertUpdateAndDeleteTrigger() throws Exception {
+		List<String> statements = TriggerCaptureManager.getMySqlTriggerStatements("obs", "obs_id", "creator",
+		    Arrays.asList("changed_by", "voided_by"));
+		
+		assertEquals(3, statements.size());
+		assertEquals("CREATE TRIGGER auditlog_obs_ai AFTER INSERT ON obs FOR EACH ROW INSERT INTO auditlog_staged_change "
+		        + "(table_name, row_id, action, user_id, date_created) VALUES ('obs', NEW.obs_id, 'CREATED', NEW.creator, NOW())",
+		    statements.get(0));
+		assertEquals("CREATE TRIGGER auditlog_obs_au AFTER UPDATE ON obs FOR EACH ROW INSERT INTO auditlog_staged_change "
+		        + "(table_name, row_id, action, user_id, date_created) VALUES ('obs', NEW.obs_id, 'UPDATED', "
+		        + "COALESCE(NEW.changed_by, NEW.voided_by), NOW())", statements.get(1));
+		assertEquals("CREATE TRIGGER auditlog_obs_ad AFTER DELETE ON obs FOR EACH ROW INSERT INTO auditlog_staged_change "
+		        + "(table_name, row_id, action, user_id, date_created) VALUES ('obs', OLD.obs_id, 'DELETED', NULL, NOW())",
+		    statements.get(2));
+	}
+	
+	/**
+	 * @verifies use null for the user if the table has no user columns
+	 * @see TriggerCaptureManager#getMySqlTriggerStatements(String, String, String, java.util.List)
+	 */
+	@Test
+	public void getMySqlTriggerStatements_shouldUseNullForTheUserIfTheTableHasNoUserColumns() throws Exception {
+		List<String> statements = TriggerCaptureManager.getMySqlTriggerStatements("concept_word", "concept_word_id", null,
+		    Collections.<String> emptyList());
+		
+		for (String statement : statements) {
+			assertTrue(statement, statement.contains(", NULL, NOW())"));
+		}
+	}
+}
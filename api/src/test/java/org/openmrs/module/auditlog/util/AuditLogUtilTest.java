@@ -16,6 +16,12 @@ package org.openmrs.module.auditlog.util;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -61,4 +67,33 @@ public class AuditLogUtilTest extends BaseModuleContextSensitiveTest {
 		assertEquals(Concept.class.getName() + ".names",
 		    AuditLogUtil.getCollectionPersister("names", ConceptNumeric.class, null).getRole());
 	}
+	
+	/**
+	 * @verifies keep the earliest previous value and the latest new value
+	 * @see AuditLogUtil#mergeChanges(java.util.Map, java.util.Map)
+	 */
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void mergeChanges_shouldKeepTheEarliestPreviousValueAndTheLatestNewValue() throws Exception {
+		Map<String, List> earlier = Collections.<String, List> singletonMap("name", Arrays.asList("b", "a"));
+		Map<String, List> later = Collections.<String, List> singletonMap("name", Arrays.asList("c", "b"));
+		
+		Map<String, Object[]> merged = AuditLogUtil.mergeChanges(earlier, later);
+		assertEquals(1, merged.size());
+		assertEquals("c", merged.get("name")[0]);
+		assertEquals("a", merged.get("name")[1]);
+	}
+	
+	/**
+	 * @verifies leave out properties changed back to their original values
+	 * @see AuditLogUtil#mergeChanges(java.util.Map, java.util.Map)
+	 */
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void mergeChanges_shouldLeaveOutPropertiesChangedBackToTheirOriginalValues() throws Exception {
+		Map<String, List> earlier = Collections.<String, List> singletonMap("name", Arrays.asList("b", "a"));
+		Map<String, List> later = Collections.<String, List> singletonMap("name", Arrays.asList("a", "b"));
+		
+		assertTrue(AuditLogUtil.mergeChanges(earlier, later).isEmpty());
+	}
 }
@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class TimeOrderedUuidGeneratorTest {
+	
+	/**
+	 * @verifies generate a version 7 uuid
+	 * @see TimeOrderedUuidGenerator#generate()
+	 */
+	@Test
+	public void generate_shouldGenerateAVersion7Uuid() throws Exception {
+		UUID uuid = TimeOrderedUuidGenerator.generate();
+		assertEquals(7, uuid.version());
+		assertEquals(2, uuid.variant());
+		assertEquals(uuid, UUID.fromString(uuid.toString()));
+	}
+	
+	/**
+	 * @verifies generate uuids that sort in the order they were generated
+	 * @see TimeOrderedUuidGenerator#generate()
+	 */
+	@Test
+	public void generate_shouldGenerateUuidsThatSortInTheOrderTheyWereGenerated() throws Exception {
+		long now = System.currentTimeMillis();
+		String earlier = TimeOrderedUuidGenerator.generate(now).toString();
+		String later = TimeOrderedUuidGenerator.generate(now + 1).toString();
+		assertTrue(earlier.compareTo(later) < 0);
+	}
+	
+	/**
+	 * @verifies convert a uuid to bytes and back
+	 * @see TimeOrderedUuidGenerator#toBytes(UUID)
+	 */
+	@Test
+	public void toBytes_shouldConvertAUuidToBytesAndBack() throws Exception {
+		UUID uuid = TimeOrderedUuidGenerator.generate();
+		byte[] bytes = TimeOrderedUuidGenerator.toBytes(uuid);
+		assertEquals(16, bytes.length);
+		assertEquals(uuid, TimeOrderedUuidGenerator.fromBytes(bytes));
+		assertEquals(0x7, (bytes[6] >> 4) & 0xF);
+	}
+}
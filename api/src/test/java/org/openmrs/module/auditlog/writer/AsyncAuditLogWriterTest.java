@@ -0,0 +1,190 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.writer.AsyncAuditLogWriter.PendingKey;
+
+public class AsyncAuditLogWriterTest {
+	
+	/**
+	 * @verifies return the same partition for the same type and identifier
+	 * @see AsyncAuditLogWriter#getPartition(AuditLogRecord, int)
+	 */
+	@Test
+	public void getPartition_shouldReturnTheSamePartitionForTheSameTypeAndIdentifier() throws Exception {
+		final int partitionCount = 4;
+		Set<Integer> partitions = new HashSet<Integer>();
+		for (int i = 0; i < 100; i++) {
+			List<AuditLogRecord> records = AuditLogRecord.of(Arrays.asList(new AuditLog("org.openmrs.Obs", i,
+			        Action.CREATED, null, new Date()), new AuditLog("org.openmrs.Obs", i, Action.UPDATED, null,
+			        new Date())));
+			int partition = AsyncAuditLogWriter.getPartition(records.get(0), partitionCount);
+			assertEquals(partition, AsyncAuditLogWriter.getPartition(records.get(1), partitionCount));
+			assertTrue(partition >= 0 && partition < partitionCount);
+			partitions.add(partition);
+		}
+		//Different items are spread over the partitions
+		assertEquals(partitionCount, partitions.size());
+	}
+	
+	/**
+	 * @verifies return the partition of a pending child record with the same type and identifier
+	 * @see AsyncAuditLogWriter#route(List, List, List)
+	 */
+	@Test
+	public void route_shouldReturnThePartitionOfAPendingChildRecordWithTheSameTypeAndIdentifier() throws Exception {
+		final int partitionCount = 4;
+		AsyncAuditLogWriter writer = new AsyncAuditLogWriter();
+		AuditLog parent = new AuditLog("org.openmrs.Encounter", 1, Action.UPDATED, null, new Date());
+		AuditLog child = new AuditLog("org.openmrs.Obs", 2, Action.UPDATED, null, new Date());
+		child.setParentAuditLog(parent);
+		parent.getChildAuditLogs().add(child);
+		AuditLogRecord standalone = AuditLogRecord.of(new AuditLog("org.openmrs.Obs", 2, Action.UPDATED, null,
+		        new Date()));
+		List<List<PendingKey>> parentKeys = newLists(partitionCount);
+		int partition = route(writer, AuditLogRecord.of(parent), parentKeys);
+		assertEquals(partition, AsyncAuditLogWriter.getPartition(AuditLogRecord.of(parent), partitionCount));
+		
+		List<List<PendingKey>> keys = newLists(partitionCount);
+		assertEquals(partition, route(writer, standalone, keys));
+		
+		//Once written, the record goes to its own partition again
+		writer.unregister(parentKeys.get(partition));
+		writer.unregister(keys.get(partition));
+		assertEquals(AsyncAuditLogWriter.getPartition(standalone, partitionCount),
+		    route(writer, standalone, AsyncAuditLogWriterTest.<PendingKey> newLists(partitionCount)));
+	}
+	
+	/**
+	 * @verifies route concurrent records of the same object to the same partition
+	 * @see AsyncAuditLogWriter#route(List, List, List)
+	 */
+	@Test
+	public void route_shouldRouteConcurrentRecordsOfTheSameObjectToTheSamePartition() throws Exception {
+		final int partitionCount = 8;
+		final int iterations = 500;
+		final AsyncAuditLogWriter writer = new AsyncAuditLogWriter();
+		final Set<Integer> partitions = Collections.synchronizedSet(new HashSet<Integer>());
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 2; t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					startSignal.await();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < iterations; i++) {
+					//Each parent hashes to its own partition while they all have the same child
+					AuditLog parent = new AuditLog("org.openmrs.Encounter", thread * iterations + i, Action.UPDATED,
+					        null, new Date());
+					AuditLog child = new AuditLog("org.openmrs.Obs", 1, Action.UPDATED, null, new Date());
+					child.setParentAuditLog(parent);
+					parent.getChildAuditLogs().add(child);
+					partitions.add(route(writer, AuditLogRecord.of(parent), AsyncAuditLogWriterTest
+					        .<PendingKey> newLists(partitionCount)));
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		startSignal.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertEquals(1, partitions.size());
+	}
+	
+	/**
+	 * @verifies wait for the keys of a record to be pending in a single partition
+	 * @see AsyncAuditLogWriter#route(List, List, List)
+	 */
+	@Test
+	public void route_shouldWaitForTheKeysOfARecordToBePendingInASinglePartition() throws Exception {
+		final int partitionCount = 4;
+		final AsyncAuditLogWriter writer = new AsyncAuditLogWriter();
+		AuditLogRecord first = AuditLogRecord.of(new AuditLog("org.openmrs.Obs", 1, Action.UPDATED, null, new Date()));
+		AuditLogRecord second = null;
+		for (int id = 2; second == null; id++) {
+			AuditLogRecord record = AuditLogRecord.of(new AuditLog("org.openmrs.Obs", id, Action.UPDATED, null,
+			        new Date()));
+			if (AsyncAuditLogWriter.getPartition(record, partitionCount) != AsyncAuditLogWriter.getPartition(first,
+			    partitionCount)) {
+				second = record;
+			}
+		}
+		List<List<PendingKey>> firstKeys = newLists(partitionCount);
+		int firstPartition = route(writer, first, firstKeys);
+		List<List<PendingKey>> secondKeys = newLists(partitionCount);
+		int secondPartition = route(writer, second, secondKeys);
+		
+		final AuditLog parent = new AuditLog("org.openmrs.Encounter", 1, Action.UPDATED, null, new Date());
+		for (AuditLogRecord record : Arrays.asList(first, second)) {
+			AuditLog child = new AuditLog(record.getType(), record.getIdentifier(), Action.UPDATED, null, new Date());
+			child.setParentAuditLog(parent);
+			parent.getChildAuditLogs().add(child);
+		}
+		final int[] parentPartition = { -1 };
+		Thread thread = new Thread(() -> parentPartition[0] = route(writer, AuditLogRecord.of(parent),
+		    AsyncAuditLogWriterTest.<PendingKey> newLists(partitionCount)));
+		thread.start();
+		thread.join(500);
+		assertTrue(thread.isAlive());
+		
+		writer.unregister(firstKeys.get(firstPartition));
+		thread.join();
+		assertEquals(secondPartition, parentPartition[0]);
+	}
+	
+	/**
+	 * Routes the specified record and returns the index of its partition
+	 */
+	private static int route(AsyncAuditLogWriter writer, AuditLogRecord record, List<List<PendingKey>> keys) {
+		List<List<AuditLogRecord>> recordsByPartition = newLists(keys.size());
+		writer.route(Collections.singletonList(record), recordsByPartition, keys);
+		for (int i = 0; i < recordsByPartition.size(); i++) {
+			if (recordsByPartition.get(i).contains(record)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private static <T> List<List<T>> newLists(int count) {
+		List<List<T>> lists = new ArrayList<List<T>>(count);
+		for (int i = 0; i < count; i++) {
+			lists.add(new ArrayList<T>());
+		}
+		return lists;
+	}
+}
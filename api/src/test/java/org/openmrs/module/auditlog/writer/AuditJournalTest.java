@@ -0,0 +1,158 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+public class AuditJournalTest {
+	
+	private static final int SIZE = 4096;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private static AuditLogRecord createRecord(Integer id) {
+		AuditLog auditLog = new AuditLog("org.openmrs.Obs", id, Action.UPDATED, null, new Date());
+		auditLog.setSerializedData(BlobProxy.generateProxy(("{\"valueNumeric\":[\"" + id + "\",\"1\"]}").getBytes()));
+		AuditLog child = new AuditLog("org.openmrs.Obs", id + 1, Action.CREATED, null, new Date());
+		child.setParentAuditLog(auditLog);
+		auditLog.getChildAuditLogs().add(child);
+		return AuditLogRecord.of(auditLog);
+	}
+	
+	/**
+	 * @verifies read the appended records
+	 * @see AuditJournal.Segment#read(List, int)
+	 */
+	@Test
+	public void read_shouldReadTheAppendedRecords() throws Exception {
+		AuditJournal.Segment segment = AuditJournal.Segment.create(folder.newFile(), 1, SIZE);
+		AuditLogRecord record1 = createRecord(1);
+		AuditLogRecord record2 = createRecord(3);
+		segment.append(AuditJournal.encode(record1));
+		segment.append(AuditJournal.encode(record2));
+		
+		List<AuditLogRecord> records = new ArrayList<AuditLogRecord>();
+		segment.read(records, 10);
+		segment.close();
+		
+		assertEquals(2, records.size());
+		assertEquals(record1.getUuid(), records.get(0).getUuid());
+		assertEquals(record2.getUuid(), records.get(1).getUuid());
+		assertEquals(record1.getIdentifier(), records.get(0).getIdentifier());
+		assertArrayEquals(record1.getSerializedData(), records.get(0).getSerializedData());
+		assertEquals(record1.getDateCreated(), records.get(0).getDateCreated());
+		assertEquals(1, records.get(0).getChildRecords().size());
+		assertEquals(Action.CREATED, records.get(0).getChildRecords().get(0).getAction());
+	}
+	
+	/**
+	 * @verifies find the end of the appended entries
+	 * @see AuditJournal.Segment#open(File, long)
+	 */
+	@Test
+	public void open_shouldFindTheEndOfTheAppendedEntries() throws Exception {
+		File file = folder.newFile();
+		AuditJournal.Segment segment = AuditJournal.Segment.create(file, 1, SIZE);
+		segment.append(AuditJournal.encode(createRecord(1)));
+		segment.append(AuditJournal.encode(createRecord(3)));
+		segment.close();
+		
+		AuditJournal.Segment reopened = AuditJournal.Segment.open(file, 1);
+		List<AuditLogRecord> records = new ArrayList<AuditLogRecord>();
+		reopened.read(records, 10);
+		reopened.close();
+		
+		assertEquals(2, records.size());
+	}
+	
+	/**
+	 * @verifies stop at a corrupt entry
+	 * @see AuditJournal.Segment#open(File, long)
+	 */
+	@Test
+	public void open_shouldStopAtACorruptEntry() throws Exception {
+		File file = folder.newFile();
+		AuditJournal.Segment segment = AuditJournal.Segment.create(file, 1, SIZE);
+		byte[] first = AuditJournal.encode(createRecord(1));
+		segment.append(first);
+		segment.append(AuditJournal.encode(createRecord(3)));
+		segment.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			//Flip a byte of the second entry
+			long position = AuditJournal.ENTRY_HEADER_SIZE * 2 + first.length + 10;
+			raf.seek(position);
+			int value = raf.read();
+			raf.seek(position);
+			raf.write(value ^ 0xFF);
+		}
+		finally {
+			raf.close();
+		}
+		
+		AuditJournal.Segment reopened = AuditJournal.Segment.open(file, 1);
+		List<AuditLogRecord> records = new ArrayList<AuditLogRecord>();
+		reopened.read(records, 10);
+		reopened.close();
+		
+		assertEquals(1, records.size());
+	}
+	
+	/**
+	 * @verifies remove the child logs that are already inserted
+	 * @see AuditJournal#removeInserted(AuditLog, Set)
+	 */
+	@Test
+	public void removeInserted_shouldRemoveTheChildLogsThatAreAlreadyInserted() throws Exception {
+		AuditLog auditLog = new AuditLog("org.openmrs.Encounter", 1, Action.UPDATED, null, new Date());
+		AuditLog inserted = new AuditLog("org.openmrs.Obs", 2, Action.CREATED, null, new Date());
+		AuditLog notInserted = new AuditLog("org.openmrs.Obs", 3, Action.CREATED, null, new Date());
+		AuditLog grandChild = new AuditLog("org.openmrs.Obs", 4, Action.CREATED, null, new Date());
+		inserted.setParentAuditLog(auditLog);
+		notInserted.setParentAuditLog(auditLog);
+		grandChild.setParentAuditLog(notInserted);
+		auditLog.getChildAuditLogs().add(inserted);
+		auditLog.getChildAuditLogs().add(notInserted);
+		notInserted.getChildAuditLogs().add(grandChild);
+		Set<String> uuids = new HashSet<String>();
+		uuids.add(auditLog.getUuid());
+		uuids.add(inserted.getUuid());
+		
+		AuditJournal.removeInserted(auditLog, uuids);
+		
+		assertEquals(1, auditLog.getChildAuditLogs().size());
+		assertEquals(notInserted, auditLog.getChildAuditLogs().iterator().next());
+		assertEquals(1, notInserted.getChildAuditLogs().size());
+		assertTrue(uuids.contains(notInserted.getUuid()));
+		assertTrue(uuids.contains(grandChild.getUuid()));
+	}
+}
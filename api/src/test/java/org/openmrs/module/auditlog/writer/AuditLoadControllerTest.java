@@ -0,0 +1,59 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.openmrs.module.auditlog.writer.AuditLoadController.Level.FULL;
+import static org.openmrs.module.auditlog.writer.AuditLoadController.Level.NO_PAYLOAD;
+import static org.openmrs.module.auditlog.writer.AuditLoadController.Level.SUMMARY_ONLY;
+
+import org.junit.Test;
+
+public class AuditLoadControllerTest {
+	
+	/**
+	 * @verifies lower the level one step at a time
+	 * @see AuditLoadController#nextLevel(AuditLoadController.Level, double)
+	 */
+	@Test
+	public void nextLevel_shouldLowerTheLevelOneStepAtATime() throws Exception {
+		assertEquals(NO_PAYLOAD, AuditLoadController.nextLevel(FULL, 1));
+		assertEquals(NO_PAYLOAD, AuditLoadController.nextLevel(FULL, 10));
+		assertEquals(SUMMARY_ONLY, AuditLoadController.nextLevel(NO_PAYLOAD, 2));
+		assertEquals(SUMMARY_ONLY, AuditLoadController.nextLevel(SUMMARY_ONLY, 10));
+	}
+	
+	/**
+	 * @verifies raise the level once the pressure drops below half of the threshold
+	 * @see AuditLoadController#nextLevel(AuditLoadController.Level, double)
+	 */
+	@Test
+	public void nextLevel_shouldRaiseTheLevelOnceThePressureDropsBelowHalfOfTheThreshold() throws Exception {
+		assertEquals(NO_PAYLOAD, AuditLoadController.nextLevel(SUMMARY_ONLY, 0.99));
+		assertEquals(NO_PAYLOAD, AuditLoadController.nextLevel(SUMMARY_ONLY, 0));
+		assertEquals(FULL, AuditLoadController.nextLevel(NO_PAYLOAD, 0.49));
+	}
+	
+	/**
+	 * @verifies keep the level between the thresholds
+	 * @see AuditLoadController#nextLevel(AuditLoadController.Level, double)
+	 */
+	@Test
+	public void nextLevel_shouldKeepTheLevelBetweenTheThresholds() throws Exception {
+		assertEquals(FULL, AuditLoadController.nextLevel(FULL, 0.99));
+		assertEquals(NO_PAYLOAD, AuditLoadController.nextLevel(NO_PAYLOAD, 0.5));
+		assertEquals(NO_PAYLOAD, AuditLoadController.nextLevel(NO_PAYLOAD, 1.99));
+		assertEquals(SUMMARY_ONLY, AuditLoadController.nextLevel(SUMMARY_ONLY, 1));
+	}
+}
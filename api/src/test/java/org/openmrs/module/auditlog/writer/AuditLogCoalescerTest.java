@@ -0,0 +1,115 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+public class AuditLogCoalescerTest {
+	
+	private static AuditLogRecord createRecord(String uuid, String serializedData, AuditLog... childLogs) {
+		AuditLog auditLog = new AuditLog("org.openmrs.User", 1, Action.UPDATED, null, new Date());
+		auditLog.setUuid(uuid);
+		auditLog.setSerializedData(BlobProxy.generateProxy(serializedData.getBytes()));
+		for (AuditLog child : childLogs) {
+			child.setParentAuditLog(auditLog);
+			auditLog.getChildAuditLogs().add(child);
+		}
+		return AuditLogRecord.of(auditLog);
+	}
+	
+	/**
+	 * @verifies keep the earliest previous value and the latest new value of each property
+	 * @see AuditLogCoalescer.Pending#merge(AuditLogRecord)
+	 */
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void merge_shouldKeepTheEarliestPreviousValueAndTheLatestNewValueOfEachProperty() throws Exception {
+		AuditLogCoalescer.Pending pending = new AuditLogCoalescer.Pending(createRecord("first",
+		    "{\"username\":[\"b\",\"a\"],\"systemId\":[\"2\",\"1\"]}"), 0);
+		pending.merge(createRecord("second", "{\"username\":[\"c\",\"b\"]}"));
+		pending.merge(createRecord("third", "{\"systemId\":[\"1\",\"2\"]}"));
+		
+		AuditLogRecord record = pending.toRecord();
+		Map changes = new ObjectMapper().readValue(record.getSerializedData(), Map.class);
+		assertEquals("first", record.getUuid());
+		assertEquals(1, changes.size());
+		assertEquals("c", ((List) changes.get("username")).get(0));
+		assertEquals("a", ((List) changes.get("username")).get(1));
+	}
+	
+	/**
+	 * @verifies keep the child records of all the updates
+	 * @see AuditLogCoalescer.Pending#merge(AuditLogRecord)
+	 */
+	@Test
+	public void merge_shouldKeepTheChildRecordsOfAllTheUpdates() throws Exception {
+		AuditLog child1 = new AuditLog("org.openmrs.PersonName", 1, Action.UPDATED, null, new Date());
+		AuditLog child2 = new AuditLog("org.openmrs.PersonName", 2, Action.CREATED, null, new Date());
+		AuditLogCoalescer.Pending pending = new AuditLogCoalescer.Pending(createRecord("first",
+		    "{\"username\":[\"b\",\"a\"]}", child1), 0);
+		pending.merge(createRecord("second", "{\"username\":[\"a\",\"b\"]}", child2));
+		
+		AuditLogRecord record = pending.toRecord();
+		assertNull(record.getSerializedData());
+		assertEquals(2, record.getChildRecords().size());
+	}
+	
+	/**
+	 * @verifies write the pending updates to an object before the audit log of its deletion
+	 * @see AuditLogCoalescer#add(List)
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void add_shouldWriteThePendingUpdatesToAnObjectBeforeTheAuditLogOfItsDeletion() throws Exception {
+		AsyncAuditLogWriter writer = mock(AsyncAuditLogWriter.class);
+		AuditLogCoalescer coalescer = new AuditLogCoalescer();
+		coalescer.setWriter(writer);
+		coalescer.start(60000);
+		try {
+			coalescer.add(Collections.singletonList(createRecord("update", "{\"username\":[\"b\",\"a\"]}")));
+			AuditLogRecord deleted = AuditLogRecord.of(new AuditLog("org.openmrs.User", 1, Action.DELETED, null,
+			        new Date()));
+			coalescer.add(Arrays.asList(deleted));
+			
+			ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+			verify(writer).submit(captor.capture());
+			List<AuditLogRecord> written = captor.getValue();
+			assertEquals(2, written.size());
+			assertEquals("update", written.get(0).getUuid());
+			assertEquals(deleted.getUuid(), written.get(1).getUuid());
+			assertEquals(0, coalescer.getPendingCount());
+			assertFalse(coalescer.hasPending("org.openmrs.User", "1"));
+		}
+		finally {
+			coalescer.stop();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.junit.Test;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+public class AuditLogRecordCodecTest {
+	
+	private static void assertRecordEquals(AuditLogRecord expected, AuditLogRecord actual) {
+		assertEquals(expected.getUuid(), actual.getUuid());
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getIdentifier(), actual.getIdentifier());
+		assertEquals(expected.getAction(), actual.getAction());
+		assertEquals(expected.getUserId(), actual.getUserId());
+		assertEquals(expected.getDateCreated(), actual.getDateCreated());
+		assertEquals(expected.getOpenmrsVersion(), actual.getOpenmrsVersion());
+		assertEquals(expected.getModuleVersion(), actual.getModuleVersion());
+		assertArrayEquals(expected.getSerializedData(), actual.getSerializedData());
+		assertEquals(expected.getChildRecords().size(), actual.getChildRecords().size());
+		for (int i = 0; i < expected.getChildRecords().size(); i++) {
+			assertRecordEquals(expected.getChildRecords().get(i), actual.getChildRecords().get(i));
+		}
+	}
+	
+	/**
+	 * @verifies encode records that decode to equal records
+	 * @see AuditLogRecordCodec#encode(List)
+	 */
+	@Test
+	public void encode_shouldEncodeRecordsThatDecodeToEqualRecords() throws Exception {
+		AuditLog parent = new AuditLog("org.openmrs.Encounter", 1, Action.UPDATED, null, new Date());
+		parent.setOpenmrsVersion("2.5.0");
+		parent.setModuleVersion("3.0.0");
+		parent.setSerializedData(BlobProxy.generateProxy("{\"encounterDatetime\":[\"b\",\"a\"]}".getBytes()));
+		AuditLog child = new AuditLog("org.openmrs.Obs", "é-1", Action.CREATED, null, new Date());
+		child.setUuid("not-a-uuid");
+		child.setParentAuditLog(parent);
+		parent.getChildAuditLogs().add(child);
+		AuditLog other = new AuditLog("org.openmrs.Obs", 2, Action.DELETED, null, new Date());
+		List<AuditLogRecord> records = AuditLogRecord.of(Arrays.asList(parent, other));
+		SlabPool pool = new SlabPool(1024, 1);
+		AuditLogRecordCodec codec = new AuditLogRecordCodec(pool);
+		
+		SlabPool.Region region = codec.encode(records);
+		List<AuditLogRecord> decoded = codec.decode(region);
+		region.release();
+		
+		assertEquals(2, decoded.size());
+		assertRecordEquals(records.get(0), decoded.get(0));
+		assertRecordEquals(records.get(1), decoded.get(1));
+		assertNull(decoded.get(1).getSerializedData());
+		assertEquals("not-a-uuid", decoded.get(0).getChildRecords().get(0).getUuid());
+	}
+	
+	/**
+	 * @verifies not keep a scratch buffer bigger than the maximum size
+	 * @see AuditLogRecordCodec#encode(List)
+	 */
+	@Test
+	public void encode_shouldNotKeepAScratchBufferBiggerThanTheMaximumSize() throws Exception {
+		AuditLog auditLog = new AuditLog("org.openmrs.Obs", 1, Action.UPDATED, null, new Date());
+		byte[] serializedData = new byte[AuditLogRecordCodec.MAX_SCRATCH_SIZE * 2];
+		auditLog.setSerializedData(BlobProxy.generateProxy(serializedData));
+		AuditLogRecordCodec codec = new AuditLogRecordCodec(new SlabPool(1024, 1));
+		
+		SlabPool.Region region = codec.encode(Collections.singletonList(AuditLogRecord.of(auditLog)));
+		List<AuditLogRecord> decoded = codec.decode(region);
+		region.release();
+		
+		assertEquals(serializedData.length, decoded.get(0).getSerializedData().length);
+		assertTrue(codec.getScratchCapacity() <= AuditLogRecordCodec.MAX_SCRATCH_SIZE);
+	}
+}
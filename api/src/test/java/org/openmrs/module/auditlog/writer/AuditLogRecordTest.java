@@ -0,0 +1,66 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+public class AuditLogRecordTest {
+	
+	private static void collectUuids(AuditLogRecord record, List<String> uuids) {
+		uuids.add(record.getUuid());
+		for (AuditLogRecord child : record.getChildRecords()) {
+			collectUuids(child, uuids);
+		}
+	}
+	
+	/**
+	 * @verifies only create records for audit logs with no ancestor in the list
+	 * @see AuditLogRecord#of(List)
+	 */
+	@Test
+	public void of_shouldOnlyCreateRecordsForAuditLogsWithNoAncestorInTheList() throws Exception {
+		//This is how the audit logs of a transaction are built, an updated collection item is both
+		//nested under its owner and listed on its own
+		AuditLog parent = new AuditLog("org.openmrs.Concept", 1, Action.UPDATED, null, new Date());
+		AuditLog child = new AuditLog("org.openmrs.ConceptName", 2, Action.UPDATED, null, new Date());
+		child.setParentAuditLog(parent);
+		parent.getChildAuditLogs().add(child);
+		AuditLog other = new AuditLog("org.openmrs.Obs", 3, Action.CREATED, null, new Date());
+		
+		List<AuditLogRecord> records = AuditLogRecord.of(Arrays.asList(child, parent, other));
+		
+		assertEquals(2, records.size());
+		assertEquals(parent.getUuid(), records.get(0).getUuid());
+		assertEquals(other.getUuid(), records.get(1).getUuid());
+		List<String> uuids = new ArrayList<String>();
+		for (AuditLogRecord record : records) {
+			collectUuids(record, uuids);
+		}
+		Set<String> unique = new HashSet<String>(uuids);
+		assertEquals(uuids.size(), unique.size());
+		assertTrue(unique.contains(child.getUuid()));
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.writer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SlabPoolTest {
+	
+	/**
+	 * @verifies carve regions off the same slab
+	 * @see SlabPool#allocate(int)
+	 */
+	@Test
+	public void allocate_shouldCarveRegionsOffTheSameSlab() throws Exception {
+		SlabPool pool = new SlabPool(100, 1);
+		
+		SlabPool.Region first = pool.allocate(40);
+		SlabPool.Region second = pool.allocate(60);
+		first.getBuffer().putInt(1);
+		second.getBuffer().putInt(2);
+		
+		assertEquals(100, pool.getCapacity());
+		assertEquals(40, first.getBuffer().remaining());
+		assertEquals(1, first.getBuffer().getInt());
+		assertEquals(2, second.getBuffer().getInt());
+	}
+	
+	/**
+	 * @verifies reuse a slab once all its regions are released
+	 * @see SlabPool#allocate(int)
+	 */
+	@Test
+	public void allocate_shouldReuseASlabOnceAllItsRegionsAreReleased() throws Exception {
+		SlabPool pool = new SlabPool(100, 1);
+		SlabPool.Region first = pool.allocate(60);
+		SlabPool.Region second = pool.allocate(60);
+		assertEquals(200, pool.getCapacity());
+		
+		first.release();
+		pool.allocate(60);
+		assertEquals(200, pool.getCapacity());
+		
+		//Regions bigger than a slab are not pooled
+		pool.allocate(150);
+		second.release();
+		assertEquals(200, pool.getCapacity());
+	}
+}